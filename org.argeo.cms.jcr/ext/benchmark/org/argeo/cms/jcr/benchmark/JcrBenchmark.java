@@ -0,0 +1,450 @@
+package org.argeo.cms.jcr.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryManager;
+import javax.jcr.security.Privilege;
+import javax.security.auth.Subject;
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.AppConfigurationEntry.LoginModuleControlFlag;
+import javax.security.auth.login.Configuration;
+import javax.security.auth.x500.X500Principal;
+
+import org.apache.jackrabbit.core.RepositoryContext;
+import org.argeo.api.cms.CmsConstants;
+import org.argeo.api.cms.DataAdminPrincipal;
+import org.argeo.cms.internal.jcr.RepoConf;
+import org.argeo.cms.internal.jcr.RepositoryBuilder;
+import org.argeo.jcr.JcrUtils;
+import org.argeo.jcr.fs.JcrFileSystem;
+import org.argeo.jcr.fs.JcrFileSystemProvider;
+import org.argeo.maintenance.backup.LogicalBackup;
+import org.argeo.maintenance.backup.LogicalRestore;
+import org.argeo.security.jackrabbit.SystemJackrabbitLoginModule;
+
+/**
+ * Benchmarks of the JCR stack against a standalone Jackrabbit repository
+ * created by {@link RepositoryBuilder} (<code>memory</code> or
+ * <code>localfs</code> type). Each benchmark is run a few times for warm-up,
+ * then measured, and the results are written as CSV so that they can be
+ * compared between releases.
+ * <p>
+ * The parameters are set as system properties (see the <code>PROP_</code>
+ * constants), the optional argument is the path of the CSV file (standard
+ * output by default).
+ */
+public class JcrBenchmark {
+	public final static String PROP_TYPE = "argeo.benchmark.type";
+	public final static String PROP_NODES = "argeo.benchmark.nodes";
+	public final static String PROP_FILES = "argeo.benchmark.files";
+	public final static String PROP_FILE_SIZE = "argeo.benchmark.fileSize";
+	public final static String PROP_QUERIES = "argeo.benchmark.queries";
+	public final static String PROP_WARMUP = "argeo.benchmark.warmup";
+	public final static String PROP_ITERATIONS = "argeo.benchmark.iterations";
+	public final static String PROP_LOGINS = "argeo.benchmark.logins";
+	public final static String PROP_THREADS = "argeo.benchmark.threads";
+
+	final static String CSV_HEADER = "benchmark,type,iteration,operations,unit,durationMs,throughput";
+
+	private final static String BENCHMARK_NODE = "benchmark";
+	/** Node property used by the queries. */
+	private final static String BUCKET = "bucket";
+	private final static int BUCKETS = 100;
+	private final static int SAVE_BATCH = 1000;
+	/** Regular user reading the tree. */
+	private final static String USER_DN = "uid=benchmark,ou=People,dc=example,dc=com";
+
+	private final String type;
+	private final int nodes;
+	private final int files;
+	private final int fileSize;
+	private final int queries;
+	private final int warmup;
+	private final int iterations;
+	private final int logins;
+	private final int threads;
+
+	private final Subject dataAdmin;
+	private final Subject user;
+	private final Path tempDir;
+	private final List<Result> results = new ArrayList<>();
+
+	public JcrBenchmark(Path tempDir) {
+		this.type = System.getProperty(PROP_TYPE, "memory");
+		this.nodes = Integer.getInteger(PROP_NODES, 10000);
+		this.files = Integer.getInteger(PROP_FILES, 100);
+		this.fileSize = Integer.getInteger(PROP_FILE_SIZE, 1024 * 1024);
+		this.queries = Integer.getInteger(PROP_QUERIES, 100);
+		this.warmup = Integer.getInteger(PROP_WARMUP, 2);
+		this.iterations = Integer.getInteger(PROP_ITERATIONS, 5);
+		this.logins = Integer.getInteger(PROP_LOGINS, 10000);
+		this.threads = Integer.getInteger(PROP_THREADS, Runtime.getRuntime().availableProcessors());
+		this.tempDir = tempDir;
+
+		dataAdmin = new Subject();
+		dataAdmin.getPrincipals().add(new DataAdminPrincipal());
+		user = new Subject();
+		user.getPrincipals().add(new X500Principal(USER_DN));
+	}
+
+	public void run() throws Exception {
+		RepositoryContext repositoryContext = createRepositoryContext("source");
+		try {
+			Repository repository = repositoryContext.getRepository();
+			Session session = login(repository, null);
+			try {
+				for (int i = -warmup; i < iterations; i++) {
+					int iteration = i;
+					reset(session);
+					measure("nodeCreation", iteration, nodes, "nodes", () -> createNodes(session));
+					measure("traversal", iteration, nodes, "nodes", () -> traverse(session));
+					measure("query", iteration, queries, "queries", () -> query(session));
+				}
+
+				// read-heavy access by a regular user, whose ACLs are evaluated
+				JcrUtils.addPrivilege(session, "/" + BENCHMARK_NODE, USER_DN, Privilege.JCR_READ);
+				for (int i = -warmup; i < iterations; i++)
+					measure(user, "aclRead", i, nodes, "nodes", () -> aclRead(repository));
+
+				// short-lived sessions opened concurrently, as per request
+				for (int i = -warmup; i < iterations; i++)
+					measure("concurrentLogin", i, logins, "logins", () -> concurrentLogin(repository));
+
+				JcrFileSystem fileSystem = asAdmin(() -> new JcrFileSystem(new BenchmarkFsProvider(), repository));
+				Path base = fileSystem.getPath("/" + BENCHMARK_NODE + "-files");
+				byte[] content = new byte[fileSize];
+				new Random(0).nextBytes(content);
+				long bytes = (long) files * fileSize;
+				for (int i = -warmup; i < iterations; i++) {
+					deleteRecursively(base);
+					Files.createDirectories(base);
+					measure("nioWrite", i, bytes, "bytes", () -> writeFiles(base, content));
+					measure("nioRead", i, bytes, "bytes", () -> readFiles(base));
+				}
+
+				for (int i = -warmup; i < iterations; i++) {
+					Path backupDir = Files.createTempDirectory(tempDir, "backup");
+					measure("backup", i, bytes, "bytes", () -> {
+						LogicalBackup backup = new LogicalBackup(null, repository, backupDir);
+						backup.perform();
+					});
+					RepositoryContext targetContext = createRepositoryContext("restore" + i);
+					try {
+						measure("restore", i, bytes, "bytes", () -> {
+							LogicalRestore restore = new LogicalRestore(targetContext.getRepository(), backupDir);
+							restore.run();
+						});
+					} finally {
+						targetContext.getRepository().shutdown();
+					}
+					deleteRecursively(backupDir);
+				}
+			} finally {
+				JcrUtils.logoutQuietly(session);
+			}
+		} finally {
+			repositoryContext.getRepository().shutdown();
+		}
+	}
+
+	/*
+	 * BENCHMARKS
+	 */
+	protected void createNodes(Session session) throws RepositoryException {
+		Node base = session.getRootNode().getNode(BENCHMARK_NODE);
+		Node parent = null;
+		for (int i = 0; i < nodes; i++) {
+			// avoid too many children per node
+			if (i % SAVE_BATCH == 0)
+				parent = base.addNode("batch" + (i / SAVE_BATCH));
+			Node node = parent.addNode("node" + i);
+			node.setProperty(Property.JCR_TITLE, "Node " + i);
+			node.setProperty(BUCKET, (long) (i % BUCKETS));
+			if (i % SAVE_BATCH == SAVE_BATCH - 1)
+				session.save();
+		}
+		session.save();
+	}
+
+	protected void traverse(Session session) throws RepositoryException {
+		long count = traverse(session.getRootNode().getNode(BENCHMARK_NODE)) - 1;
+		if (count < nodes)
+			throw new IllegalStateException("Only " + count + " nodes traversed, expected " + nodes);
+	}
+
+	private long traverse(Node node) throws RepositoryException {
+		long count = 1;
+		for (PropertyIterator pit = node.getProperties(); pit.hasNext();)
+			pit.nextProperty().getValue();
+		for (NodeIterator nit = node.getNodes(); nit.hasNext();)
+			count = count + traverse(nit.nextNode());
+		return count;
+	}
+
+	/**
+	 * Traverses the tree with a new session per batch of nodes, as short-lived
+	 * sessions (typically per request) of the same user would.
+	 */
+	protected void aclRead(Repository repository) throws RepositoryException {
+		Session userSession = repository.login();
+		List<String> batches = new ArrayList<>();
+		try {
+			for (NodeIterator nit = userSession.getNode("/" + BENCHMARK_NODE).getNodes(); nit.hasNext();)
+				batches.add(nit.nextNode().getPath());
+		} finally {
+			JcrUtils.logoutQuietly(userSession);
+		}
+		long count = 0;
+		for (String batch : batches) {
+			userSession = repository.login();
+			try {
+				count = count + traverse(userSession.getNode(batch)) - 1;
+			} finally {
+				JcrUtils.logoutQuietly(userSession);
+			}
+		}
+		if (count < nodes)
+			throw new IllegalStateException("Only " + count + " nodes read, expected " + nodes);
+	}
+
+	/**
+	 * Opens and closes sessions of the regular user from concurrent threads,
+	 * each session reading the benchmark node so that its access manager is
+	 * actually used.
+	 */
+	protected void concurrentLogin(Repository repository) throws Exception {
+		AtomicInteger remaining = new AtomicInteger(logins);
+		ExecutorService executorService = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Void>> futures = new ArrayList<>();
+			for (int t = 0; t < threads; t++)
+				futures.add(executorService.submit(() -> Subject.doAs(user, (PrivilegedExceptionAction<Void>) () -> {
+					while (remaining.getAndDecrement() > 0) {
+						Session userSession = repository.login();
+						try {
+							userSession.getNode("/" + BENCHMARK_NODE);
+						} finally {
+							JcrUtils.logoutQuietly(userSession);
+						}
+					}
+					return null;
+				})));
+			for (Future<Void> future : futures)
+				future.get();
+		} finally {
+			executorService.shutdownNow();
+		}
+	}
+
+	protected void query(Session session) throws RepositoryException {
+		QueryManager queryManager = session.getWorkspace().getQueryManager();
+		for (int i = 0; i < queries; i++) {
+			Query query = queryManager.createQuery("SELECT * FROM [nt:unstructured] WHERE ISDESCENDANTNODE('/"
+					+ BENCHMARK_NODE + "') AND [" + BUCKET + "]=" + (i % BUCKETS), Query.JCR_SQL2);
+			NodeIterator nit = query.execute().getNodes();
+			while (nit.hasNext())
+				nit.nextNode();
+		}
+	}
+
+	protected void writeFiles(Path base, byte[] content) throws IOException {
+		for (int i = 0; i < files; i++)
+			try (OutputStream out = Files.newOutputStream(base.resolve("file" + i + ".bin"))) {
+				out.write(content);
+			}
+	}
+
+	protected void readFiles(Path base) throws IOException {
+		byte[] buf = new byte[64 * 1024];
+		for (int i = 0; i < files; i++)
+			try (InputStream in = Files.newInputStream(base.resolve("file" + i + ".bin"))) {
+				while (in.read(buf) != -1)
+					;
+			}
+	}
+
+	/*
+	 * UTILITIES
+	 */
+	protected void measure(String benchmark, int iteration, long operations, String unit, Task task)
+			throws Exception {
+		measure(dataAdmin, benchmark, iteration, operations, unit, task);
+	}
+
+	protected void measure(Subject subject, String benchmark, int iteration, long operations, String unit,
+			Task task) throws Exception {
+		long begin = System.nanoTime();
+		Subject.doAs(subject, (PrivilegedExceptionAction<Void>) () -> {
+			task.run();
+			return null;
+		});
+		long duration = System.nanoTime() - begin;
+		if (iteration >= 0)
+			results.add(new Result(benchmark, iteration, operations, unit, duration));
+	}
+
+	protected RepositoryContext createRepositoryContext(String name) throws Exception {
+		Path home = Files.createDirectories(tempDir.resolve(name));
+		Dictionary<String, Object> properties = new Hashtable<>();
+		properties.put(RepoConf.type.name(), type);
+		properties.put(CmsConstants.CN, name);
+		properties.put(RepoConf.labeledUri.name(), home.toUri().toString());
+		properties.put(RepoConf.indexesBase.name(), tempDir.resolve("indexes").toString());
+		return new RepositoryBuilder().createRepositoryContext(properties);
+	}
+
+	protected Session login(Repository repository, String workspace) throws Exception {
+		return asAdmin(() -> repository.login(workspace));
+	}
+
+	protected <T> T asAdmin(PrivilegedExceptionAction<T> action) throws Exception {
+		return Subject.doAs(dataAdmin, action);
+	}
+
+	protected void reset(Session session) throws RepositoryException {
+		if (session.itemExists("/" + BENCHMARK_NODE))
+			session.getNode("/" + BENCHMARK_NODE).remove();
+		session.getRootNode().addNode(BENCHMARK_NODE);
+		session.save();
+	}
+
+	static void deleteRecursively(Path path) throws IOException {
+		if (!Files.exists(path))
+			return;
+		try (Stream<Path> paths = Files.walk(path)) {
+			for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+				Files.delete(p);
+		}
+	}
+
+	public void writeCsv(PrintStream out) {
+		out.println(CSV_HEADER);
+		for (Result result : results)
+			out.println(result.toCsv(type));
+	}
+
+	public List<Result> getResults() {
+		return Collections.unmodifiableList(results);
+	}
+
+	/** A benchmarked operation. */
+	@FunctionalInterface
+	interface Task {
+		void run() throws Exception;
+	}
+
+	/** The outcome of one measured iteration. */
+	public static class Result {
+		private final String benchmark;
+		private final int iteration;
+		private final long operations;
+		private final String unit;
+		private final long durationNs;
+
+		Result(String benchmark, int iteration, long operations, String unit, long durationNs) {
+			this.benchmark = benchmark;
+			this.iteration = iteration;
+			this.operations = operations;
+			this.unit = unit;
+			this.durationNs = durationNs;
+		}
+
+		/** Operations per second. */
+		public double getThroughput() {
+			return operations * 1e9d / Math.max(1, durationNs);
+		}
+
+		String toCsv(String type) {
+			return benchmark + ',' + type + ',' + iteration + ',' + operations + ',' + unit + ','
+					+ String.format("%.3f", durationNs / 1e6d) + ',' + String.format("%.3f", getThroughput());
+		}
+	}
+
+	/** Minimal provider wrapping the file systems created by the benchmark. */
+	static class BenchmarkFsProvider extends JcrFileSystemProvider {
+		@Override
+		public String getScheme() {
+			return "jcr+benchmark";
+		}
+
+		@Override
+		public FileSystem newFileSystem(URI uri, Map<String, ?> env) throws IOException {
+			throw new UnsupportedOperationException("File systems are created by the benchmark");
+		}
+
+		@Override
+		public FileSystem getFileSystem(URI uri) {
+			throw new UnsupportedOperationException("File systems are created by the benchmark");
+		}
+
+		@Override
+		public Path getPath(URI uri) {
+			throw new UnsupportedOperationException("Paths must be resolved from the file system");
+		}
+	}
+
+	/** Sets up the JAAS configuration used by Jackrabbit, if none is set. */
+	static void configureJaas() {
+		if (System.getProperty("java.security.auth.login.config") != null)
+			return;
+		Configuration.setConfiguration(new Configuration() {
+			@Override
+			public AppConfigurationEntry[] getAppConfigurationEntry(String name) {
+				if (!"Jackrabbit".equals(name))
+					return null;
+				return new AppConfigurationEntry[] { new AppConfigurationEntry(
+						SystemJackrabbitLoginModule.class.getName(), LoginModuleControlFlag.REQUIRED,
+						new HashMap<String, Object>()) };
+			}
+		});
+	}
+
+	public static void main(String[] args) throws Exception {
+		configureJaas();
+		Path tempDir = Files.createTempDirectory("argeo-jcr-benchmark");
+		try {
+			JcrBenchmark benchmark = new JcrBenchmark(tempDir);
+			benchmark.run();
+			if (args.length > 0) {
+				try (PrintStream out = new PrintStream(Files.newOutputStream(Paths.get(args[0])), false, "UTF-8")) {
+					benchmark.writeCsv(out);
+				}
+			} else {
+				benchmark.writeCsv(System.out);
+			}
+		} finally {
+			deleteRecursively(tempDir);
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package org.argeo.cms.jcr.acr;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import javax.jcr.nodetype.NodeType;
+import javax.xml.namespace.QName;
+
+import org.apache.jackrabbit.core.TransientRepository;
+import org.argeo.api.acr.search.AndFilter;
+import org.argeo.api.acr.search.BasicSearch;
+
+import junit.framework.TestCase;
+
+/** Tests the conversion of ACR basic searches to JCR queries. */
+public class BasicSearchToQomTest extends TestCase {
+	private final static QName NT_HIERARCHY_NODE = nt("hierarchyNode");
+	private final static QName NT_FOLDER = NtType.folder.qName();
+	private final static QName MIX_TITLE = mix("title");
+	private final static QName MIX_LAST_MODIFIED = mix("lastModified");
+
+	/** In-memory repository, with simple security and an in-memory index. */
+	private final static String REPOSITORY_XML = """
+			<?xml version="1.0"?>
+			<!DOCTYPE Repository PUBLIC "Jackrabbit 2.6" "http://jackrabbit.apache.org/dtd/repository-2.6.dtd">
+			<Repository>
+				<FileSystem class="org.apache.jackrabbit.core.fs.mem.MemoryFileSystem" />
+				<Security appName="Jackrabbit">
+					<SecurityManager class="org.apache.jackrabbit.core.security.simple.SimpleSecurityManager" />
+					<AccessManager class="org.apache.jackrabbit.core.security.simple.SimpleAccessManager" />
+					<LoginModule class="org.apache.jackrabbit.core.security.simple.SimpleLoginModule" />
+				</Security>
+				<Workspaces rootPath="${rep.home}/workspaces" defaultWorkspace="default" />
+				<Workspace name="${wsp.name}">
+					<FileSystem class="org.apache.jackrabbit.core.fs.mem.MemoryFileSystem" />
+					<PersistenceManager class="org.apache.jackrabbit.core.persistence.bundle.BundleFsPersistenceManager" />
+					<SearchIndex class="org.apache.jackrabbit.core.query.lucene.SearchIndex">
+						<param name="path" value="${wsp.home}/index" />
+						<param name="directoryManagerClass"
+							value="org.apache.jackrabbit.core.query.lucene.directory.RAMDirectoryManager" />
+						<FileSystem class="org.apache.jackrabbit.core.fs.mem.MemoryFileSystem" />
+					</SearchIndex>
+				</Workspace>
+				<Versioning rootPath="${rep.home}/version">
+					<FileSystem class="org.apache.jackrabbit.core.fs.mem.MemoryFileSystem" />
+					<PersistenceManager class="org.apache.jackrabbit.core.persistence.bundle.BundleFsPersistenceManager" />
+				</Versioning>
+			</Repository>
+			""";
+
+	private Path repositoryDir;
+	private TransientRepository repository;
+	private Session session;
+
+	@Override
+	protected void setUp() throws Exception {
+		repositoryDir = Files.createTempDirectory(getClass().getSimpleName());
+		Path repositoryXml = repositoryDir.resolve("repository.xml");
+		Files.writeString(repositoryXml, REPOSITORY_XML);
+		repository = new TransientRepository(repositoryXml.toFile(), repositoryDir.toFile());
+		session = repository.login(new SimpleCredentials("admin", "admin".toCharArray()));
+
+		Node base = session.getRootNode().addNode("test");
+		base.addNode("folder", NodeType.NT_FOLDER);
+		base.addNode("unstructured", NodeType.NT_UNSTRUCTURED);
+		Node titled = base.addNode("titled", NodeType.NT_UNSTRUCTURED);
+		titled.addMixin(NodeType.MIX_TITLE);
+		titled.setProperty(Property.JCR_TITLE, "Titled");
+		// primary type extending mix:lastModified
+		base.addNode("resource", NodeType.NT_RESOURCE).setProperty(Property.JCR_DATA, "data");
+		session.save();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		session.logout();
+		repository.shutdown();
+		try (Stream<Path> paths = Files.walk(repositoryDir)) {
+			for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+				Files.delete(p);
+		}
+	}
+
+	public void testSelectorClass() throws Exception {
+		assertEquals(Set.of("folder"), search((and) -> and.isContentClass(NT_FOLDER)));
+		assertEquals(Set.of("folder"), search((and) -> and.isContentClass(NT_HIERARCHY_NODE)));
+	}
+
+	public void testSubtypesInUnion() throws Exception {
+		assertEquals(Set.of("folder", "titled"), search((and) -> and.any((or) -> {
+			or.isContentClass(NT_HIERARCHY_NODE);
+			or.isContentClass(MIX_TITLE);
+		})));
+		// mixin as supertype of a primary type
+		assertEquals(Set.of("resource", "titled"), search((and) -> and.any((or) -> {
+			or.isContentClass(MIX_LAST_MODIFIED);
+			or.isContentClass(MIX_TITLE);
+		})));
+	}
+
+	public void testNestedIntersectionInUnion() throws Exception {
+		// the class of a nested intersection does not apply to the other branches
+		assertEquals(Set.of("folder", "titled"), search((and) -> and.any((or) -> {
+			or.all((nested) -> nested.isContentClass(NT_FOLDER));
+			or.all((nested) -> nested.isContentClass(MIX_TITLE));
+		})));
+	}
+
+	/** The names of the nodes found below the test node. */
+	private Set<String> search(Consumer<AndFilter> where) throws Exception {
+		BasicSearch basicSearch = new BasicSearch();
+		basicSearch.where(where);
+		NodeIterator nodes = new BasicSearchToQom(session, basicSearch, "test").createQuery().execute().getNodes();
+		Set<String> names = new TreeSet<>();
+		while (nodes.hasNext())
+			names.add(nodes.nextNode().getName());
+		return names;
+	}
+
+	private static QName nt(String localName) {
+		return new QName(JcrContentNamespace.JCR_NT.getNamespaceURI(), localName,
+				JcrContentNamespace.JCR_NT.getDefaultPrefix());
+	}
+
+	private static QName mix(String localName) {
+		return new QName(JcrContentNamespace.JCR_MIX.getNamespaceURI(), localName,
+				JcrContentNamespace.JCR_MIX.getDefaultPrefix());
+	}
+}
@@ -0,0 +1,205 @@
+package org.argeo.cms.jcr.internal.servlet;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import javax.jcr.Credentials;
+import javax.jcr.GuestCredentials;
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.jackrabbit.commons.jackrabbit.authorization.AccessControlUtils;
+import org.apache.jackrabbit.core.TransientRepository;
+
+import junit.framework.TestCase;
+
+/** Tests that the canonical renderings cached by {@link LinkServlet} are invalidated. */
+public class LinkServletTest extends TestCase {
+	/** In-memory repository, with access control. */
+	private final static String REPOSITORY_XML = """
+			<?xml version="1.0"?>
+			<!DOCTYPE Repository PUBLIC "Jackrabbit 2.6" "http://jackrabbit.apache.org/dtd/repository-2.6.dtd">
+			<Repository>
+				<FileSystem class="org.apache.jackrabbit.core.fs.mem.MemoryFileSystem" />
+				<Security appName="Jackrabbit">
+					<SecurityManager class="org.apache.jackrabbit.core.DefaultSecurityManager" workspaceName="security" />
+					<AccessManager class="org.apache.jackrabbit.core.security.DefaultAccessManager" />
+					<LoginModule class="org.apache.jackrabbit.core.security.authentication.DefaultLoginModule">
+						<param name="anonymousId" value="anonymous" />
+						<param name="adminId" value="admin" />
+					</LoginModule>
+				</Security>
+				<Workspaces rootPath="${rep.home}/workspaces" defaultWorkspace="default" />
+				<Workspace name="${wsp.name}">
+					<FileSystem class="org.apache.jackrabbit.core.fs.mem.MemoryFileSystem" />
+					<PersistenceManager class="org.apache.jackrabbit.core.persistence.bundle.BundleFsPersistenceManager" />
+				</Workspace>
+				<Versioning rootPath="${rep.home}/version">
+					<FileSystem class="org.apache.jackrabbit.core.fs.mem.MemoryFileSystem" />
+					<PersistenceManager class="org.apache.jackrabbit.core.persistence.bundle.BundleFsPersistenceManager" />
+				</Versioning>
+			</Repository>
+			""";
+	/** How long to wait for the changes to be observed, in ms. */
+	private final static long TIMEOUT = 10 * 1000;
+
+	private Path repositoryDir;
+	private TransientRepository repository;
+	private Session adminSession;
+	private LinkServlet servlet;
+
+	@Override
+	protected void setUp() throws Exception {
+		repositoryDir = Files.createTempDirectory(getClass().getSimpleName());
+		Path repositoryXml = repositoryDir.resolve("repository.xml");
+		Files.writeString(repositoryXml, REPOSITORY_XML);
+		repository = new TransientRepository(repositoryXml.toFile(), repositoryDir.toFile());
+		adminSession = repository.login(adminCredentials());
+
+		Node page = adminSession.getRootNode().addNode("page");
+		page.setProperty(Property.JCR_TITLE, "Public page");
+		page.addNode("section").setProperty(Property.JCR_TITLE, "Public section");
+		adminSession.save();
+
+		servlet = new LinkServlet() {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			Session openAnonymousSession() {
+				return login(new GuestCredentials());
+			}
+
+			@Override
+			Session openObservationSession() {
+				return login(adminCredentials());
+			}
+		};
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		servlet.destroy();
+		adminSession.logout();
+		repository.shutdown();
+		try (Stream<Path> paths = Files.walk(repositoryDir)) {
+			for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+				Files.delete(p);
+		}
+	}
+
+	public void testRevokedReadIsNotServed() throws Exception {
+		startObserving();
+		assertTrue(get("/page").body.contains("Public page"));
+
+		AccessControlUtils.denyAllToEveryone(adminSession, "/page");
+		adminSession.save();
+		waitFor("/page", (response) -> response.status == HttpServletResponse.SC_NOT_FOUND);
+	}
+
+	public void testRevokedReadOfDescendantIsNotServed() throws Exception {
+		startObserving();
+		assertTrue(get("/page").body.contains("Public section"));
+
+		AccessControlUtils.denyAllToEveryone(adminSession, "/page/section");
+		adminSession.save();
+		waitFor("/page", (response) -> response.status == HttpServletResponse.SC_OK
+				&& response.body.contains("Public page") && !response.body.contains("Public section"));
+	}
+
+	public void testChangeIsServed() throws Exception {
+		startObserving();
+		assertTrue(get("/page").body.contains("Public page"));
+
+		adminSession.getNode("/page").setProperty(Property.JCR_TITLE, "Updated page");
+		adminSession.save();
+		waitFor("/page", (response) -> response.body.contains("Updated page"));
+	}
+
+	/*
+	 * UTILITIES
+	 */
+	/**
+	 * Requests a first rendering, which is not cached since changes are only
+	 * observed from then on.
+	 */
+	private void startObserving() throws Exception {
+		get("/");
+	}
+
+	/** Requests this path until the condition is met, since changes are observed asynchronously. */
+	private void waitFor(String path, Predicate<Response> condition) throws Exception {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		Response response = get(path);
+		while (!condition.test(response)) {
+			if (System.currentTimeMillis() > deadline)
+				fail("Unexpected response for " + path + " (HTTP " + response.status + "): " + response.body);
+			Thread.sleep(50);
+			response = get(path);
+		}
+	}
+
+	/** Requests this path as a bot. */
+	private Response get(String path) throws Exception {
+		Response response = new Response();
+		HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class }, (p, method, args) -> {
+					switch (method.getName()) {
+					case "getPathInfo":
+						return path;
+					case "getHeader":
+						return "User-Agent".equals(args[0]) ? "testbot" : null;
+					case "getRequestURL":
+						return new StringBuffer("http://localhost/link" + path);
+					default:
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+		HttpServletResponse httpResponse = (HttpServletResponse) Proxy.newProxyInstance(
+				getClass().getClassLoader(), new Class<?>[] { HttpServletResponse.class }, (p, method, args) -> {
+					switch (method.getName()) {
+					case "sendError":
+					case "setStatus":
+						response.status = (Integer) args[0];
+						return null;
+					case "getWriter":
+						return response.writer;
+					default:
+						// headers
+						return null;
+					}
+				});
+		servlet.service(request, httpResponse);
+		response.writer.flush();
+		response.body = response.out.toString();
+		return response;
+	}
+
+	private Session login(Credentials credentials) {
+		try {
+			return repository.login(credentials);
+		} catch (Exception e) {
+			throw new IllegalStateException("Cannot log in", e);
+		}
+	}
+
+	private static Credentials adminCredentials() {
+		return new SimpleCredentials("admin", "admin".toCharArray());
+	}
+
+	private static class Response {
+		private int status = HttpServletResponse.SC_OK;
+		private final StringWriter out = new StringWriter();
+		private final PrintWriter writer = new PrintWriter(out);
+		private String body;
+	}
+}
@@ -0,0 +1,87 @@
+package org.argeo.jcr.fs;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+
+import org.apache.jackrabbit.api.JackrabbitRepository;
+import org.argeo.jackrabbit.fs.JackrabbitMemoryFsProvider;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests that the attributes read while listing a directory don't hide the
+ * modifications performed through the file system.
+ */
+public class JcrFileSystemProviderTest extends TestCase {
+	private JackrabbitMemoryFsProvider provider;
+	private Path dir;
+
+	@Override
+	protected void setUp() throws Exception {
+		provider = new JackrabbitMemoryFsProvider();
+		FileSystem fileSystem = provider.newFileSystem(new URI("jcr+memory:/"), new HashMap<>());
+		dir = fileSystem.getPath("/dir");
+		Files.createDirectory(dir);
+		Files.writeString(dir.resolve("file.txt"), "abc", StandardCharsets.UTF_8);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		((JackrabbitRepository) provider.getRepository()).shutdown();
+	}
+
+	public void testListedFileIsWritten() throws Exception {
+		Path listed = list("file.txt");
+		assertEquals(3, Files.readAttributes(listed, BasicFileAttributes.class).size());
+
+		// through another path instance
+		Files.writeString(dir.resolve("file.txt"), "abcdef", StandardCharsets.UTF_8);
+		assertEquals(6, Files.readAttributes(listed, BasicFileAttributes.class).size());
+
+		listed = list("file.txt");
+		Files.writeString(listed, "a", StandardCharsets.UTF_8);
+		assertEquals(1, Files.size(listed));
+	}
+
+	public void testListedFileIsDeleted() throws Exception {
+		Path listed = list("file.txt");
+		assertTrue(Files.isRegularFile(listed));
+		Files.delete(dir.resolve("file.txt"));
+		assertFalse(Files.isRegularFile(listed));
+	}
+
+	public void testListedFileIsMoved() throws Exception {
+		Path listed = list("file.txt");
+		assertTrue(Files.isRegularFile(listed));
+		Files.move(listed, dir.resolve("moved.txt"));
+		assertFalse(Files.isRegularFile(listed));
+		assertEquals(3, Files.size(list("moved.txt")));
+	}
+
+	public void testListedDirectoryIsReplaced() throws Exception {
+		Files.createDirectory(dir.resolve("sub"));
+		Path listed = list("sub");
+		assertTrue(Files.isDirectory(listed));
+		Files.delete(dir.resolve("sub"));
+		Files.writeString(dir.resolve("sub"), "abc", StandardCharsets.UTF_8);
+		assertFalse(Files.isDirectory(listed));
+		assertTrue(Files.isRegularFile(listed));
+	}
+
+	/** Lists the directory, and returns the path of this child. */
+	private Path list(String name) throws Exception {
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path path : stream)
+				if (path.getFileName().toString().equals(name))
+					return path;
+		}
+		fail(name + " is not listed in " + dir);
+		return null;
+	}
+}
@@ -0,0 +1,118 @@
+package org.argeo.jcr.fs;
+
+import java.nio.file.Paths;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import junit.framework.TestCase;
+
+/** Tests the conversion of globs to regular expressions. */
+public class JcrPathMatcherTest extends TestCase {
+	public void testStar() throws Exception {
+		assertMatches("*.txt", "a.txt", ".txt");
+		assertNotMatches("*.txt", "a.txt.bak", "dir/a.txt");
+		assertMatches("/dir/*/file", "/dir/sub/file", "/dir//file");
+		assertNotMatches("/dir/*/file", "/dir/sub/sub/file");
+	}
+
+	public void testDoubleStar() throws Exception {
+		assertMatches("/dir/**", "/dir/", "/dir/a", "/dir/a/b/c");
+		assertNotMatches("/dir/**", "/dir", "/other/a");
+		assertMatches("**/*.java", "/src/A.java", "src/org/B.java");
+		assertNotMatches("**/*.java", "A.java", "/src/A.java/x");
+	}
+
+	public void testQuestionMark() throws Exception {
+		assertMatches("file?.txt", "file1.txt", "fileA.txt");
+		assertNotMatches("file?.txt", "file.txt", "file12.txt", "file/.txt");
+	}
+
+	public void testGroups() throws Exception {
+		assertMatches("*.{java,class}", "A.java", "A.class");
+		assertNotMatches("*.{java,class}", "A.jar", "A.javaclass", "A.");
+		assertMatches("{a,b*}/c", "a/c", "b/c", "bbb/c");
+		assertNotMatches("{a,b*}/c", "ab/c", "c/c");
+		assertMatches("{,x}y", "y", "xy");
+		// outside a group, they are literal
+		assertMatches("a,b}", "a,b}");
+	}
+
+	public void testCharacterClasses() throws Exception {
+		assertMatches("[abc].txt", "a.txt", "c.txt");
+		assertNotMatches("[abc].txt", "d.txt", "ab.txt");
+		assertMatches("[a-c]x", "bx");
+		assertNotMatches("[a-c]x", "dx");
+		assertMatches("[!a-c]x", "dx", "Zx");
+		assertNotMatches("[!a-c]x", "ax", "/x");
+		// not negated in a glob
+		assertMatches("[^a]", "^", "a");
+		assertNotMatches("[^a]", "b");
+		// regex meta characters are literal within a class
+		assertMatches("[&.]", "&", ".");
+		assertNotMatches("[&.]", "x");
+		assertMatches("[*?]", "*", "?");
+		assertNotMatches("[*?]", "a");
+	}
+
+	public void testEscaping() throws Exception {
+		assertMatches("\\*", "*");
+		assertNotMatches("\\*", "a", "\\a");
+		assertMatches("a\\{b,c\\}", "a{b,c}");
+		assertMatches("\\[x]", "[x]");
+		assertMatches("a\\\\b", "a\\b");
+		// regex meta characters are literal
+		assertMatches("a.b+(c)|$^", "a.b+(c)|$^");
+		assertNotMatches("a.b", "axb");
+	}
+
+	public void testSyntaxErrors() throws Exception {
+		assertSyntaxError("a\\");
+		assertSyntaxError("[abc");
+		assertSyntaxError("[a/b]");
+		assertSyntaxError("{a,{b,c}}");
+		assertSyntaxError("{a,b");
+	}
+
+	public void testSyntaxes() throws Exception {
+		assertTrue(new JcrPathMatcher("glob:/dir/*.txt").matches(Paths.get("/dir/a.txt")));
+		assertTrue(new JcrPathMatcher("GLOB:/dir/*.txt").matches(Paths.get("/dir/a.txt")));
+		assertFalse(new JcrPathMatcher("glob:/dir/*.txt").matches(Paths.get("/dir/sub/a.txt")));
+		assertTrue(new JcrPathMatcher("regex:/dir/.*\\.txt").matches(Paths.get("/dir/sub/a.txt")));
+		try {
+			new JcrPathMatcher("/dir/*.txt");
+			fail("A syntax is required");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		try {
+			new JcrPathMatcher("xpath:/dir");
+			fail("Syntax is not supported");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+	}
+
+	/*
+	 * UTILITIES
+	 */
+	private static void assertMatches(String glob, String... paths) {
+		Pattern pattern = Pattern.compile(JcrPathMatcher.globToRegex(glob));
+		for (String path : paths)
+			assertTrue(glob + " should match " + path, pattern.matcher(path).matches());
+	}
+
+	private static void assertNotMatches(String glob, String... paths) {
+		Pattern pattern = Pattern.compile(JcrPathMatcher.globToRegex(glob));
+		for (String path : paths)
+			assertFalse(glob + " should not match " + path, pattern.matcher(path).matches());
+	}
+
+	private static void assertSyntaxError(String glob) {
+		try {
+			JcrPathMatcher.globToRegex(glob);
+			fail(glob + " should not be valid");
+		} catch (PatternSyntaxException e) {
+			// expected
+		}
+	}
+}
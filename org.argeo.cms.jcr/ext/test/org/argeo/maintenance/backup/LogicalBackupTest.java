@@ -0,0 +1,179 @@
+package org.argeo.maintenance.backup;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import javax.jcr.nodetype.NodeType;
+
+import org.apache.jackrabbit.core.TransientRepository;
+import org.argeo.jcr.JcrUtils;
+
+import junit.framework.TestCase;
+
+/** Tests incremental {@link LogicalBackup}s of an in-memory repository. */
+public class LogicalBackupTest extends TestCase {
+	private final static String WORKSPACE = "default";
+	/** Long enough to be stored in the data store, and thus de-duplicated. */
+	private final static String CONTENT = "Content shared by the two files of the backup.";
+
+	/** In-memory repository, with a data store so that binaries have an identity. */
+	private final static String REPOSITORY_XML = """
+			<?xml version="1.0"?>
+			<!DOCTYPE Repository PUBLIC "Jackrabbit 2.6" "http://jackrabbit.apache.org/dtd/repository-2.6.dtd">
+			<Repository>
+				<FileSystem class="org.apache.jackrabbit.core.fs.mem.MemoryFileSystem" />
+				<DataStore class="org.apache.jackrabbit.core.data.FileDataStore">
+					<param name="path" value="${rep.home}/datastore" />
+					<param name="minRecordLength" value="16" />
+				</DataStore>
+				<Security appName="Jackrabbit">
+					<SecurityManager class="org.apache.jackrabbit.core.security.simple.SimpleSecurityManager" />
+					<AccessManager class="org.apache.jackrabbit.core.security.simple.SimpleAccessManager" />
+					<LoginModule class="org.apache.jackrabbit.core.security.simple.SimpleLoginModule" />
+				</Security>
+				<Workspaces rootPath="${rep.home}/workspaces" defaultWorkspace="default" />
+				<Workspace name="${wsp.name}">
+					<FileSystem class="org.apache.jackrabbit.core.fs.mem.MemoryFileSystem" />
+					<PersistenceManager class="org.apache.jackrabbit.core.persistence.bundle.BundleFsPersistenceManager" />
+				</Workspace>
+				<Versioning rootPath="${rep.home}/version">
+					<FileSystem class="org.apache.jackrabbit.core.fs.mem.MemoryFileSystem" />
+					<PersistenceManager class="org.apache.jackrabbit.core.persistence.bundle.BundleFsPersistenceManager" />
+				</Versioning>
+			</Repository>
+			""";
+
+	private Path baseDir;
+	private TransientRepository repository;
+	private Session session;
+
+	@Override
+	protected void setUp() throws Exception {
+		baseDir = Files.createTempDirectory(getClass().getSimpleName());
+		Path repositoryDir = Files.createDirectory(baseDir.resolve("repository"));
+		Path repositoryXml = repositoryDir.resolve("repository.xml");
+		Files.writeString(repositoryXml, REPOSITORY_XML);
+		repository = new TransientRepository(repositoryXml.toFile(), repositoryDir.toFile());
+		session = repository.login(new SimpleCredentials("admin", "admin".toCharArray()));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		session.logout();
+		repository.shutdown();
+		try (Stream<Path> paths = Files.walk(baseDir)) {
+			for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+				Files.delete(p);
+		}
+	}
+
+	public void testUnchangedSubtreeIsLinked() throws Exception {
+		addFile("a", "x.txt", CONTENT);
+		addFile("b", "y.txt", "Content of the file which won't change.");
+		Path first = backup("first", null);
+
+		updateFile("/a/x.txt", "Content which has changed since the first backup.");
+		Path second = backup("second", first);
+
+		String xml = LogicalBackup.WORKSPACES_BASE + WORKSPACE + "/b.xml";
+		assertTrue(Files.isSameFile(first.resolve(xml), second.resolve(xml)));
+		assertTrue(Files.isSameFile(files(first, "/b/y.txt"), files(second, "/b/y.txt")));
+		assertEquals("Content which has changed since the first backup.", read(second, "/a/x.txt"));
+	}
+
+	public void testLinkOfUnchangedSubtreeIsResolved() throws Exception {
+		// y.txt is a symbolic link to x.txt in the first backup
+		addFile("a", "x.txt", CONTENT);
+		addFile("b", "y.txt", CONTENT);
+		Path first = backup("first", null);
+		assertTrue(Files.isSymbolicLink(files(first, "/b/y.txt")));
+
+		updateFile("/a/x.txt", "Content which has changed since the first backup.");
+		Path second = backup("second", first);
+
+		assertEquals("Content which has changed since the first backup.", read(second, "/a/x.txt"));
+		assertFalse(Files.isSymbolicLink(files(second, "/b/y.txt")));
+		assertEquals(CONTENT, read(second, "/b/y.txt"));
+
+		// the previous backup has been removed
+		Path third = backup("third", second);
+		try (Stream<Path> paths = Files.walk(first)) {
+			for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+				Files.delete(p);
+		}
+		assertEquals(CONTENT, read(third, "/b/y.txt"));
+	}
+
+	/*
+	 * UTILITIES
+	 */
+	private Path backup(String name, Path previous) throws Exception {
+		Path backupDir = Files.createDirectory(baseDir.resolve(name));
+		LogicalBackup backup = new LogicalBackup(null, repository, backupDir) {
+
+			@Override
+			protected Session login(String workspaceName) {
+				try {
+					return repository.login(new SimpleCredentials("admin", "admin".toCharArray()), workspaceName);
+				} catch (Exception e) {
+					throw new IllegalStateException("Cannot log in", e);
+				}
+			}
+		};
+		// subtrees are processed in document order
+		backup.setThreadCount(1);
+		if (previous != null)
+			backup.setPreviousBackup(previous);
+		backup.perform();
+		assertFalse(backup.isBackupFailed());
+		return backupDir;
+	}
+
+	/** Adds a file in a top-level folder, both tracking their modifications. */
+	private void addFile(String folderName, String fileName, String content) throws Exception {
+		Node folder = session.getRootNode().addNode(folderName, NodeType.NT_FOLDER);
+		folder.addMixin(NodeType.MIX_LAST_MODIFIED);
+		Node file = folder.addNode(fileName, NodeType.NT_FILE);
+		file.addMixin(NodeType.MIX_LAST_MODIFIED);
+		file.addNode(Node.JCR_CONTENT, NodeType.NT_RESOURCE);
+		setData(file, content);
+		session.save();
+	}
+
+	private void updateFile(String path, String content) throws Exception {
+		// make sure that the modification date differs
+		Thread.sleep(10);
+		Node file = session.getNode(path);
+		setData(file, content);
+		JcrUtils.updateLastModified(file.getNode(Node.JCR_CONTENT));
+		JcrUtils.updateLastModified(file);
+		JcrUtils.updateLastModified(file.getParent());
+		session.save();
+	}
+
+	private void setData(Node file, String content) throws Exception {
+		try (InputStream in = new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8))) {
+			Binary binary = session.getValueFactory().createBinary(in);
+			file.getNode(Node.JCR_CONTENT).setProperty(Property.JCR_DATA, binary);
+			binary.dispose();
+		}
+	}
+
+	private static Path files(Path backupDir, String path) {
+		return backupDir.resolve(LogicalBackup.FILES_BASE + WORKSPACE + path);
+	}
+
+	private static String read(Path backupDir, String path) throws Exception {
+		return Files.readString(files(backupDir, path), StandardCharsets.UTF_8);
+	}
+}
@@ -6,13 +6,17 @@ import java.util.ArrayList;
 import java.util.List;
 
 import javax.jcr.Property;
+import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.nodetype.NodeType;
+import javax.jcr.nodetype.NodeTypeIterator;
 import javax.jcr.query.QueryManager;
 import javax.jcr.query.qom.DynamicOperand;
 import javax.jcr.query.qom.QueryObjectModel;
 import javax.jcr.query.qom.QueryObjectModelConstants;
 import javax.jcr.query.qom.QueryObjectModelFactory;
+import javax.jcr.query.qom.Ordering;
 import javax.jcr.query.qom.Selector;
 import javax.jcr.query.qom.StaticOperand;
 import javax.xml.namespace.QName;
@@ -35,7 +39,13 @@ import org.argeo.api.acr.search.Not;
 import org.argeo.api.acr.search.PropertyValueContraint;
 import org.argeo.api.cms.CmsLog;
 
-/** Convert an ACR basic search to a JCR query. */
+/**
+ * Convert an ACR basic search to a JCR query. Ordering, limit and offset are
+ * pushed down to the query engine. When multiple content classes are
+ * specified, the first one of the top-level intersection is used as selector
+ * and the other ones become constraints on the primary and mixin types, which
+ * match the registered subtypes as well.
+ */
 class BasicSearchToQom {
 	private final static CmsLog log = CmsLog.getLog(BasicSearchToQom.class);
 
@@ -47,9 +57,16 @@ class BasicSearchToQom {
 	private String relPath;
 
 	private QName contentClass = null;
+	/** Whether a content class has been specified at all. */
+	private boolean hasContentClass = false;
 
 	private String selectorName = "content";
 
+	private List<QName> orderBy = new ArrayList<>();
+	private List<Boolean> descending = new ArrayList<>();
+	private long limit = -1;
+	private long offset = 0;
+
 	public BasicSearchToQom(Session session, BasicSearch basicSearch, String relPath) throws RepositoryException {
 		this.session = session;
 		this.queryManager = session.getWorkspace().getQueryManager();
@@ -64,16 +81,34 @@ class BasicSearchToQom {
 		// TODO deal with complex cases of multiple types
 
 		javax.jcr.query.qom.Constraint qomConstraint = toQomConstraint(where);
-		if (contentClass == null)
+		if (!hasContentClass)
 			throw new IllegalArgumentException("No content class specified");
 
 		if (relPath != null) {
-			qomConstraint = factory.and(qomConstraint, factory.descendantNode(selectorName, "/" + relPath));
+			javax.jcr.query.qom.Constraint descendantConstraint = factory.descendantNode(selectorName, "/" + relPath);
+			qomConstraint = qomConstraint != null ? factory.and(qomConstraint, descendantConstraint)
+					: descendantConstraint;
 		}
 
-		Selector source = factory.selector(NamespaceUtils.toPrefixedName(contentClass), selectorName);
+		String selectorType = contentClass != null ? NamespaceUtils.toPrefixedName(contentClass)
+				: NodeType.NT_BASE;
+		Selector source = factory.selector(selectorType, selectorName);
+
+		Ordering[] orderings = null;
+		if (!orderBy.isEmpty()) {
+			orderings = new Ordering[orderBy.size()];
+			for (int i = 0; i < orderBy.size(); i++) {
+				DynamicOperand operand = factory.propertyValue(selectorName,
+						NamespaceUtils.toPrefixedName(toJcrProperty(orderBy.get(i))));
+				orderings[i] = descending.get(i) ? factory.descending(operand) : factory.ascending(operand);
+			}
+		}
 
-		QueryObjectModel qom = factory.createQuery(source, qomConstraint, null, null);
+		QueryObjectModel qom = factory.createQuery(source, qomConstraint, orderings, null);
+		if (limit >= 0)
+			qom.setLimit(limit);
+		if (offset > 0)
+			qom.setOffset(offset);
 		if (log.isTraceEnabled()) {
 			String sql2 = QOMFormatter.format(qom);
 			log.trace("JCR query:\n" + sql2 + "\n");
@@ -81,55 +116,98 @@ class BasicSearchToQom {
 		return qom;
 	}
 
+	/** Add an ordering on this property. */
+	void addOrdering(QName property, boolean descending) {
+		this.orderBy.add(property);
+		this.descending.add(descending);
+	}
+
+	/** The maximum number of results, or -1 if not limited. */
+	void setLimit(long limit) {
+		this.limit = limit;
+	}
+
+	/** The number of results to skip. */
+	void setOffset(long offset) {
+		this.offset = offset;
+	}
+
+	private QName toJcrProperty(QName prop) {
+		if (DName.creationdate.equals(prop))
+			return JcrName.created.qName();
+		else if (DName.getlastmodified.equals(prop))
+			return JcrName.lastModified.qName();
+		return prop;
+	}
+
+	/**
+	 * Whether the node is of this type, either as primary type or as mixin. Since
+	 * the types are compared by name, all the registered subtypes are compared as
+	 * well.
+	 */
+	private javax.jcr.query.qom.Constraint isNodeType(QName clss) throws RepositoryException {
+		String typeName = NamespaceUtils.toPrefixedName(clss);
+		javax.jcr.query.qom.Constraint res = null;
+		for (NodeTypeIterator it = session.getWorkspace().getNodeTypeManager().getAllNodeTypes(); it.hasNext();) {
+			NodeType nodeType = it.nextNodeType();
+			if (!nodeType.isNodeType(typeName))
+				continue;
+			StaticOperand type = factory
+					.literal(session.getValueFactory().createValue(nodeType.getName(), PropertyType.NAME));
+			String typeProperty = nodeType.isMixin() ? Property.JCR_MIXIN_TYPES : Property.JCR_PRIMARY_TYPE;
+			javax.jcr.query.qom.Constraint isType = factory
+					.comparison(factory.propertyValue(selectorName, typeProperty), JCR_OPERATOR_EQUAL_TO, type);
+			res = res != null ? factory.or(res, isType) : isType;
+		}
+		if (res == null)
+			throw new IllegalArgumentException("Content class " + typeName + " is not a registered node type");
+		return res;
+	}
+
 	private javax.jcr.query.qom.Constraint toQomConstraint(Constraint constraint) throws RepositoryException {
 //		javax.jcr.query.qom.Constraint qomConstraint;
 		if (constraint instanceof ContentFilter<?> where) {
 			List<Constraint> constraints = new ArrayList<>();
+			List<javax.jcr.query.qom.Constraint> classConstraints = new ArrayList<>();
 			for (Constraint c : where.getConstraints()) {
 				if (c instanceof IsContentClass icc) {
-					if (icc.getContentClasses().length > 1 || contentClass != null)
-						throw new IllegalArgumentException("Multiple content class is not supported");
-					contentClass = icc.getContentClasses()[0];
+					for (QName clss : icc.getContentClasses()) {
+						// the first class of the top-level intersection is used as selector,
+						// since it applies to all the results
+						if (contentClass == null && where == basicSearch.getWhere() && !where.isUnion())
+							contentClass = clss;
+						else
+							classConstraints.add(isNodeType(clss));
+						hasContentClass = true;
+					}
 				} else {
 					constraints.add(c);
 				}
 			}
 
-			if (constraints.isEmpty()) {
+			// QOM constraint may be null because only content classes where specified
+			List<javax.jcr.query.qom.Constraint> qomConstraints = new ArrayList<>();
+			for (Constraint c : constraints) {
+				javax.jcr.query.qom.Constraint subQomConstraint = toQomConstraint(c);
+				if (subQomConstraint != null)
+					qomConstraints.add(subQomConstraint);
+			}
+			qomConstraints.addAll(classConstraints);
+
+			if (qomConstraints.isEmpty())
 				return null;
-			} else if (constraints.size() == 1) {
-				return toQomConstraint(constraints.get(0));
-			} else {
-				javax.jcr.query.qom.Constraint currQomConstraint = toQomConstraint(constraints.get(0));
-				// QOM constraint may be null because only content classes where specified
-				while (currQomConstraint == null) {
-					constraints.remove(0);
-					if (constraints.isEmpty())
-						return null;
-					currQomConstraint = toQomConstraint(constraints.get(0));
-				}
-				assert currQomConstraint != null : "currQomConstraint is null : " + constraints.get(0);
-				for (int i = 1; i < constraints.size(); i++) {
-					Constraint c = constraints.get(i);
-					javax.jcr.query.qom.Constraint subQomConstraint = toQomConstraint(c);
-					if (subQomConstraint != null) { // isContentClass leads to null QOM constraint
-						assert subQomConstraint != null : "subQomConstraint";
-						if (where.isUnion()) {
-							currQomConstraint = factory.or(currQomConstraint, subQomConstraint);
-						} else {
-							currQomConstraint = factory.and(currQomConstraint, subQomConstraint);
-						}
-					}
+			javax.jcr.query.qom.Constraint currQomConstraint = qomConstraints.get(0);
+			for (int i = 1; i < qomConstraints.size(); i++) {
+				if (where.isUnion()) {
+					currQomConstraint = factory.or(currQomConstraint, qomConstraints.get(i));
+				} else {
+					currQomConstraint = factory.and(currQomConstraint, qomConstraints.get(i));
 				}
-				return currQomConstraint;
 			}
+			return currQomConstraint;
 
 		} else if (constraint instanceof PropertyValueContraint comp) {
-			QName prop = comp.getProp();
-			if (DName.creationdate.equals(prop))
-				prop = JcrName.created.qName();
-			else if (DName.getlastmodified.equals(prop))
-				prop = JcrName.lastModified.qName();
+			QName prop = toJcrProperty(comp.getProp());
 
 			DynamicOperand dynamicOperand = factory.propertyValue(selectorName, NamespaceUtils.toPrefixedName(prop));
 			// TODO better convert attribute value
@@ -0,0 +1,112 @@
+package org.argeo.cms.jcr.acr;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * An {@link OutputStream} whose content is passed as an {@link InputStream} to
+ * a consumer (typically creating a JCR binary) when it is closed, on the
+ * closing thread. The content is kept in memory up to a threshold, and spilled
+ * to a temporary file beyond it.
+ */
+class BinaryOutputStream extends OutputStream {
+	/** Content larger than that is written to a temporary file. */
+	final static int DEFAULT_THRESHOLD = 1024 * 1024;
+
+	private final Consumer<InputStream> consumer;
+	private final int threshold;
+
+	private byte[] buf = new byte[8 * 1024];
+	private int count = 0;
+
+	private Path tempFile = null;
+	private OutputStream fileOut = null;
+
+	private boolean closed = false;
+
+	BinaryOutputStream(Consumer<InputStream> consumer) {
+		this(consumer, DEFAULT_THRESHOLD);
+	}
+
+	BinaryOutputStream(Consumer<InputStream> consumer, int threshold) {
+		this.consumer = consumer;
+		this.threshold = threshold;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		ensureOpen();
+		if (fileOut != null) {
+			fileOut.write(b);
+		} else if (count < buf.length) {
+			buf[count++] = (byte) b;
+		} else {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		ensureOpen();
+		if (fileOut == null) {
+			if (count + len > threshold) {
+				spill();
+			} else {
+				if (count + len > buf.length)
+					buf = Arrays.copyOf(buf, Math.min(threshold, Math.max(buf.length * 2, count + len)));
+				System.arraycopy(b, off, buf, count, len);
+				count += len;
+				return;
+			}
+		}
+		fileOut.write(b, off, len);
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (fileOut != null)
+			fileOut.flush();
+	}
+
+	/** Passes the content to the consumer. */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		try {
+			if (fileOut == null) {
+				consumer.accept(new ByteArrayInputStream(buf, 0, count));
+			} else {
+				fileOut.close();
+				try (InputStream in = Files.newInputStream(tempFile)) {
+					consumer.accept(in);
+				}
+			}
+		} finally {
+			buf = null;
+			if (tempFile != null)
+				Files.deleteIfExists(tempFile);
+		}
+	}
+
+	private void spill() throws IOException {
+		tempFile = Files.createTempFile("argeo-binary-", ".tmp");
+		fileOut = new BufferedOutputStream(Files.newOutputStream(tempFile));
+		fileOut.write(buf, 0, count);
+		buf = null;
+		count = 0;
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed)
+			throw new IOException("Stream is closed");
+	}
+}
@@ -0,0 +1,137 @@
+package org.argeo.cms.jcr.acr;
+
+import java.io.IOException;
+import java.util.function.Supplier;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXNotRecognizedException;
+import org.xml.sax.SAXNotSupportedException;
+import org.xml.sax.XMLReader;
+
+/**
+ * An {@link XMLReader} emitting the JCR document view of a subtree directly to
+ * its {@link ContentHandler}, on the thread calling
+ * {@link #parse(InputSource)}. The input source is ignored.
+ */
+class DocumentViewXmlReader implements XMLReader {
+	private final static String NAMESPACES_FEATURE = "http://xml.org/sax/features/namespaces";
+	private final static String NAMESPACE_PREFIXES_FEATURE = "http://xml.org/sax/features/namespace-prefixes";
+
+	private final Supplier<Session> session;
+	private final String jcrPath;
+	private final boolean skipBinary;
+	private final boolean noRecurse;
+
+	private ContentHandler contentHandler;
+	private ErrorHandler errorHandler;
+	private DTDHandler dtdHandler;
+	private EntityResolver entityResolver;
+
+	/**
+	 * @param session supplies the session when parsing, since JCR sessions are
+	 *                used by the thread which parses.
+	 */
+	DocumentViewXmlReader(Supplier<Session> session, String jcrPath, boolean skipBinary, boolean noRecurse) {
+		this.session = session;
+		this.jcrPath = jcrPath;
+		this.skipBinary = skipBinary;
+		this.noRecurse = noRecurse;
+	}
+
+	@Override
+	public void parse(InputSource input) throws IOException, SAXException {
+		if (contentHandler == null)
+			throw new IllegalStateException("No content handler set");
+		try {
+			session.get().exportDocumentView(jcrPath, contentHandler, skipBinary, noRecurse);
+		} catch (RepositoryException e) {
+			throw new SAXException("Cannot export " + jcrPath, e);
+		}
+	}
+
+	@Override
+	public void parse(String systemId) throws IOException, SAXException {
+		parse(new InputSource(systemId));
+	}
+
+	/*
+	 * FEATURES
+	 */
+	/** Events are namespace aware, but without xmlns attributes. */
+	@Override
+	public boolean getFeature(String name) throws SAXNotRecognizedException, SAXNotSupportedException {
+		if (NAMESPACES_FEATURE.equals(name))
+			return true;
+		else if (NAMESPACE_PREFIXES_FEATURE.equals(name))
+			return false;
+		throw new SAXNotRecognizedException(name);
+	}
+
+	@Override
+	public void setFeature(String name, boolean value) throws SAXNotRecognizedException, SAXNotSupportedException {
+		if (getFeature(name) != value)
+			throw new SAXNotSupportedException(name + " cannot be set to " + value);
+	}
+
+	@Override
+	public Object getProperty(String name) throws SAXNotRecognizedException, SAXNotSupportedException {
+		throw new SAXNotRecognizedException(name);
+	}
+
+	@Override
+	public void setProperty(String name, Object value) throws SAXNotRecognizedException, SAXNotSupportedException {
+		throw new SAXNotRecognizedException(name);
+	}
+
+	/*
+	 * HANDLERS
+	 */
+	@Override
+	public void setEntityResolver(EntityResolver resolver) {
+		this.entityResolver = resolver;
+	}
+
+	@Override
+	public EntityResolver getEntityResolver() {
+		return entityResolver;
+	}
+
+	@Override
+	public void setDTDHandler(DTDHandler handler) {
+		this.dtdHandler = handler;
+	}
+
+	@Override
+	public DTDHandler getDTDHandler() {
+		return dtdHandler;
+	}
+
+	@Override
+	public void setContentHandler(ContentHandler handler) {
+		this.contentHandler = handler;
+	}
+
+	@Override
+	public ContentHandler getContentHandler() {
+		return contentHandler;
+	}
+
+	@Override
+	public void setErrorHandler(ErrorHandler handler) {
+		this.errorHandler = handler;
+	}
+
+	@Override
+	public ErrorHandler getErrorHandler() {
+		return errorHandler;
+	}
+
+}
@@ -4,15 +4,12 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -21,11 +18,11 @@ import java.util.Optional;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.UUID;
-import java.util.concurrent.ForkJoinPool;
 
 import javax.jcr.Binary;
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
+import javax.jcr.PathNotFoundException;
 import javax.jcr.Property;
 import javax.jcr.PropertyIterator;
 import javax.jcr.PropertyType;
@@ -37,7 +34,7 @@ import javax.jcr.nodetype.NodeType;
 import javax.jcr.nodetype.NodeTypeManager;
 import javax.xml.namespace.QName;
 import javax.xml.transform.Source;
-import javax.xml.transform.stream.StreamSource;
+import javax.xml.transform.sax.SAXSource;
 
 import org.argeo.api.acr.Content;
 import org.argeo.api.acr.CrAttributeType;
@@ -47,11 +44,12 @@ import org.argeo.api.acr.spi.ProvidedSession;
 import org.argeo.api.cms.CmsConstants;
 import org.argeo.cms.acr.AbstractContent;
 import org.argeo.cms.acr.CmsContent;
-import org.argeo.cms.util.AsyncPipedOutputStream;
 import org.argeo.jcr.Jcr;
 import org.argeo.jcr.JcrException;
 import org.argeo.jcr.JcrUtils;
 import org.argeo.jcr.JcrxApi;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
 
 /** A JCR {@link Node} accessed as {@link Content}. */
 public class JcrContent extends AbstractContent {
@@ -64,12 +62,12 @@ public class JcrContent extends AbstractContent {
 
 	/* OPTIMISATIONS */
 	/**
-	 * While we want to support thread-safe access, it is very likely that only one
-	 * thread and only one session will be used (typically from a single-threaded
-	 * UI). We therefore cache was long as the same thread is calling.
+	 * The node as last resolved, together with the JCR session it belongs to. JCR
+	 * sessions are bound to threads (see {@link JcrSessionAdapter}), so that it is
+	 * reused as long as the calling thread gets the same session, and resolved
+	 * again otherwise.
 	 */
-	private Thread lastRetrievingThread = null;
-	private Node cachedNode = null;
+	private volatile ResolvedNode resolvedNode = null;
 	private boolean caching = true;
 
 	protected JcrContent(ProvidedSession session, JcrContentProvider provider, String jcrWorkspace, String jcrPath) {
@@ -81,6 +79,15 @@ public class JcrContent extends AbstractContent {
 		this.isMountBase = "/".equals(jcrPath);
 	}
 
+	/**
+	 * Wraps an already retrieved node (typically a query result), so that it is
+	 * not looked up again by the current thread.
+	 */
+	JcrContent(ProvidedSession session, JcrContentProvider provider, String jcrWorkspace, Node node) {
+		this(session, provider, jcrWorkspace, Jcr.getPath(node));
+		this.resolvedNode = new ResolvedNode(Jcr.session(node), node);
+	}
+
 	/*
 	 * READ
 	 */
@@ -120,17 +127,19 @@ public class JcrContent extends AbstractContent {
 					contentType = "application/octet-stream";
 				return CrAttributeType.cast(clss, contentType);
 			} else if (DName.checkedOut.equals(key)) {
-				if (!node.hasProperty(Property.JCR_IS_CHECKED_OUT))
+				Property property = getPropertyOrNull(node, Property.JCR_IS_CHECKED_OUT);
+				if (property == null)
 					return Optional.empty();
-				boolean isCheckedOut = node.getProperty(Property.JCR_IS_CHECKED_OUT).getBoolean();
+				boolean isCheckedOut = property.getBoolean();
 				if (!isCheckedOut)
 					return Optional.empty();
 				// FIXME return URI
 				return (Optional<A>) Optional.of(new Object());
 			} else if (DName.checkedIn.equals(key)) {
-				if (!node.hasProperty(Property.JCR_IS_CHECKED_OUT))
+				Property property = getPropertyOrNull(node, Property.JCR_IS_CHECKED_OUT);
+				if (property == null)
 					return Optional.empty();
-				boolean isCheckedOut = node.getProperty(Property.JCR_IS_CHECKED_OUT).getBoolean();
+				boolean isCheckedOut = property.getBoolean();
 				if (isCheckedOut)
 					return Optional.empty();
 				// FIXME return URI
@@ -160,22 +169,25 @@ public class JcrContent extends AbstractContent {
 	protected Iterable<QName> keys() {
 		try {
 			Node node = getJcrNode();
-			Set<QName> keys = new HashSet<>();
-			for (PropertyIterator propertyIterator = node.getProperties(); propertyIterator.hasNext();) {
+			PropertyIterator propertyIterator = node.getProperties();
+			long size = propertyIterator.getSize();
+			// property names are unique, and so are the converted names
+			List<QName> keys = new ArrayList<>(size > 0 ? (int) size : 16);
+			while (propertyIterator.hasNext()) {
 				Property property = propertyIterator.nextProperty();
-				QName name = NamespaceUtils.parsePrefixedName(provider, property.getName());
-
+				String propertyName = property.getName();
+				QName name;
 				// TODO convert standard names
-				if (property.getName().equals(Property.JCR_CREATED))
+				if (propertyName.equals(Property.JCR_CREATED))
 					name = DName.creationdate.qName();
-				else if (property.getName().equals(Property.JCR_LAST_MODIFIED))
+				else if (propertyName.equals(Property.JCR_LAST_MODIFIED))
 					name = DName.getlastmodified.qName();
-				else if (property.getName().equals(Property.JCR_MIMETYPE))
+				else if (propertyName.equals(Property.JCR_MIMETYPE))
 					name = DName.getcontenttype.qName();
-				else if (property.getName().equals(Property.JCR_IS_CHECKED_OUT)) {
-					boolean isCheckedOut = node.getProperty(Property.JCR_IS_CHECKED_OUT).getBoolean();
-					name = isCheckedOut ? DName.checkedOut.qName() : DName.checkedIn.qName();
-				}
+				else if (propertyName.equals(Property.JCR_IS_CHECKED_OUT))
+					name = property.getBoolean() ? DName.checkedOut.qName() : DName.checkedIn.qName();
+				else
+					name = NamespaceUtils.parsePrefixedName(provider, propertyName);
 
 				// TODO skip technical properties
 				keys.add(name);
@@ -189,36 +201,46 @@ public class JcrContent extends AbstractContent {
 	/** Cast to a standard Java object. */
 	static Object get(Node node, String property) {
 		try {
-			if (!node.hasProperty(property))
+			Property p = getPropertyOrNull(node, property);
+			if (p == null)
 				return null;
-			Property p = node.getProperty(property);
 			if (p.isMultiple()) {
 				Value[] values = p.getValues();
-				List<Object> lst = new ArrayList<>();
+				List<Object> lst = new ArrayList<>(values.length);
 				for (Value value : values) {
 					lst.add(convertSingleValue(value));
 				}
 				return lst;
 			} else {
-				Value value = node.getProperty(property).getValue();
-				return convertSingleValue(value);
+				return convertSingleValue(p.getValue());
 			}
 		} catch (RepositoryException e) {
 			throw new JcrException("Cannot cast value from " + property + " of " + node, e);
 		}
 	}
 
+	/**
+	 * Retrieves a property with a single lookup, since attributes which are read
+	 * typically exist, so that the cost of an exception for the missing ones is
+	 * lower than the one of checking them all beforehand.
+	 * 
+	 * @return the property, or null if it does not exist
+	 */
+	static Property getPropertyOrNull(Node node, String property) throws RepositoryException {
+		try {
+			return node.getProperty(property);
+		} catch (PathNotFoundException e) {
+			return null;
+		}
+	}
+
 	@Override
 	public boolean isMultiple(QName key) {
 		Node node = getJcrNode();
 		String p = NamespaceUtils.toFullyQualified(key);
 		try {
-			if (node.hasProperty(p)) {
-				Property property = node.getProperty(p);
-				return property.isMultiple();
-			} else {
-				return false;
-			}
+			Property property = getPropertyOrNull(node, p);
+			return property != null && property.isMultiple();
 		} catch (RepositoryException e) {
 			throw new JcrException(
 					"Cannot check multiplicity of property " + p + " of " + jcrPath + " in " + jcrWorkspace, e);
@@ -316,7 +338,7 @@ public class JcrContent extends AbstractContent {
 				child = Jcr.addNode(node, name.toString(), NodeType.NT_UNSTRUCTURED);
 			}
 			saveEditedNode(node);
-			return new JcrContent(getSession(), provider, jcrWorkspace, child.getPath());
+			return new JcrContent(getSession(), provider, jcrWorkspace, child);
 		} catch (RepositoryException e) {
 			throw new JcrException("Cannot add child to " + jcrPath + " in " + jcrWorkspace, e);
 		}
@@ -345,7 +367,7 @@ public class JcrContent extends AbstractContent {
 	private void saveEditedNode(Node node) {
 		try {
 			node.getSession().save();
-			getJcrSession().refresh(true);
+			provider.getJcrSessionAdapter(getSession()).changed(jcrWorkspace);
 		} catch (RepositoryException e) {
 			throw new JcrException("Cannot persist " + jcrPath + " in " + jcrWorkspace, e);
 		}
@@ -473,30 +495,9 @@ public class JcrContent extends AbstractContent {
 		if (Node.class.isAssignableFrom(clss)) {
 			return (A) getJcrNode();
 		} else if (Source.class.isAssignableFrom(clss)) {
-//			try {
-			PipedOutputStream out = new PipedOutputStream();
-			PipedInputStream in;
-			try {
-				in = new PipedInputStream(out);
-			} catch (IOException e) {
-				throw new RuntimeException("Cannot export " + jcrPath + " in workspace " + jcrWorkspace, e);
-			}
-
-			ForkJoinPool.commonPool().execute(() -> {
-//				try (PipedOutputStream out = new PipedOutputStream(in)) {
-				try {
-					getJcrSession().exportDocumentView(jcrPath, out, true, false);
-					out.flush();
-					out.close();
-				} catch (IOException | RepositoryException e) {
-					throw new RuntimeException("Cannot export " + jcrPath + " in workspace " + jcrWorkspace, e);
-				}
-
-			});
-			return (A) new StreamSource(in);
-//			} catch (IOException e) {
-//				throw new RuntimeException("Cannot adapt " + JcrContent.this + " to " + clss, e);
-//			}
+			// the document view is exported on the thread consuming the source
+			XMLReader xmlReader = new DocumentViewXmlReader(this::getJcrSession, jcrPath, true, false);
+			return (A) new SAXSource(xmlReader, new InputSource());
 		} else {
 			return super.adapt(clss);
 		}
@@ -517,13 +518,16 @@ public class JcrContent extends AbstractContent {
 //				System.out.println(node.getSession());
 				if (Jcr.isNodeType(node, NodeType.NT_FILE)) {
 					Node content = node.getNode(Node.JCR_CONTENT);
-					AsyncPipedOutputStream out = new AsyncPipedOutputStream();
-
 					ValueFactory valueFactory = getJcrSession().getValueFactory();
-					out.asyncRead((in) -> {
+					// the binary is created when the stream is closed, on the closing thread
+					BinaryOutputStream out = new BinaryOutputStream((in) -> {
 						try {
 							Binary binary = valueFactory.createBinary(in);
-							content.setProperty(Property.JCR_DATA, binary);
+							try {
+								content.setProperty(Property.JCR_DATA, binary);
+							} finally {
+								binary.dispose();
+							}
 							saveEditedNode(node);
 						} catch (RepositoryException e) {
 							throw new JcrException(
@@ -609,8 +613,8 @@ public class JcrContent extends AbstractContent {
 		Node node = getJcrNode();
 		String p = NamespaceUtils.toFullyQualified(key);
 		try {
-			if (node.hasProperty(p)) {
-				Property property = node.getProperty(p);
+			Property property = getPropertyOrNull(node, p);
+			if (property != null) {
 				return switch (property.getType()) {
 				case PropertyType.STRING:
 				case PropertyType.NAME:
@@ -694,16 +698,16 @@ public class JcrContent extends AbstractContent {
 
 	protected Node getJcrNode() {
 		try {
+			Session session = getJcrSession();
 			if (caching) {
-				synchronized (this) {
-					if (lastRetrievingThread != Thread.currentThread()) {
-						cachedNode = getJcrSession().getNode(jcrPath);
-						lastRetrievingThread = Thread.currentThread();
-					}
-					return cachedNode;
-				}
+				ResolvedNode resolved = resolvedNode;
+				if (resolved != null && resolved.session == session)
+					return resolved.node;
+				Node node = session.getNode(jcrPath);
+				resolvedNode = new ResolvedNode(session, node);
+				return node;
 			} else {
-				return getJcrSession().getNode(jcrPath);
+				return session.getNode(jcrPath);
 			}
 		} catch (RepositoryException e) {
 			throw new JcrException("Cannot retrieve " + jcrPath + " from workspace " + jcrWorkspace, e);
@@ -748,7 +752,8 @@ public class JcrContent extends AbstractContent {
 
 		@Override
 		public Content next() {
-			current = new JcrContent(getSession(), provider, jcrWorkspace, Jcr.getPath(nodeIterator.nextNode()));
+			// the child node has been resolved already
+			current = new JcrContent(getSession(), provider, jcrWorkspace, nodeIterator.nextNode());
 			return current;
 		}
 
@@ -761,4 +766,15 @@ public class JcrContent extends AbstractContent {
 
 	}
 
+	/** A node and the session it has been retrieved from. */
+	private static class ResolvedNode {
+		private final Session session;
+		private final Node node;
+
+		ResolvedNode(Session session, Node node) {
+			this.session = session;
+			this.node = node;
+		}
+	}
+
 }
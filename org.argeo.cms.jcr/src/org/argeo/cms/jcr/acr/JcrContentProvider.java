@@ -2,11 +2,13 @@ package org.argeo.cms.jcr.acr;
 
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -18,6 +20,7 @@ import javax.jcr.Session;
 import javax.jcr.query.Query;
 import javax.jcr.query.QueryResult;
 import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
 
 import org.argeo.api.acr.Content;
 import org.argeo.api.acr.search.BasicSearch;
@@ -41,7 +44,7 @@ public class JcrContentProvider implements ContentProvider, NamespaceContext {
 	// cache
 	private String jcrWorkspace;
 
-	private Map<ProvidedSession, JcrSessionAdapter> sessionAdapters = Collections.synchronizedMap(new HashMap<>());
+	private Map<ProvidedSession, JcrSessionAdapter> sessionAdapters = new ConcurrentHashMap<>();
 
 	public void start(Map<String, String> properties) {
 		mountPath = properties.get(CmsConstants.ACR_MOUNT_PATH);
@@ -86,9 +89,14 @@ public class JcrContentProvider implements ContentProvider, NamespaceContext {
 		if (sessionAdapter == null) {
 			final JcrSessionAdapter newSessionAdapter = new JcrSessionAdapter(jcrRepository, contentSession,
 					contentSession.getSubject());
-			sessionAdapters.put(contentSession, newSessionAdapter);
-			contentSession.onClose().thenAccept((s) -> newSessionAdapter.close());
-			sessionAdapter = newSessionAdapter;
+			sessionAdapter = sessionAdapters.putIfAbsent(contentSession, newSessionAdapter);
+			if (sessionAdapter == null) {
+				contentSession.onClose().thenAccept((s) -> {
+					sessionAdapters.remove(contentSession, newSessionAdapter);
+					newSessionAdapter.close();
+				});
+				sessionAdapter = newSessionAdapter;
+			}
 		}
 		return sessionAdapter;
 	}
@@ -199,56 +207,109 @@ public class JcrContentProvider implements ContentProvider, NamespaceContext {
 
 	@Override
 	public Spliterator<Content> search(ProvidedSession session, BasicSearch search, String relPath) {
+		return search(session, search, relPath, Collections.emptyList(), false, 0, -1);
+	}
+
+	/**
+	 * Search with ordering and paging pushed down to the JCR query engine.
+	 * 
+	 * @param orderBy    the properties to order by, possibly empty
+	 * @param descending whether the ordering is descending
+	 * @param offset     the number of results to skip
+	 * @param limit      the maximum number of results, or -1 if not limited
+	 */
+	public Spliterator<Content> search(ProvidedSession session, BasicSearch search, String relPath,
+			List<QName> orderBy, boolean descending, long offset, long limit) {
 		try {
 			Session jcrSession = getJcrSession(session, jcrWorkspace);
 			BasicSearchToQom jcrBasicSearch = new BasicSearchToQom(jcrSession, search, relPath);
+			for (QName property : orderBy)
+				jcrBasicSearch.addOrdering(property, descending);
+			jcrBasicSearch.setOffset(offset);
+			jcrBasicSearch.setLimit(limit);
 			Query query = jcrBasicSearch.createQuery();
 			QueryResult queryResult = query.execute();
-			return new QueryResultSpliterator(session, queryResult.getNodes());
+			return new QueryResultSpliterator(session, queryResult.getNodes(), !orderBy.isEmpty());
 		} catch (RepositoryException e) {
 			throw new JcrException(e);
 		}
 	}
 
+	/**
+	 * Wraps the query result nodes without looking them up again, and supports
+	 * splitting by batches so that the results can be processed in parallel.
+	 */
 	class QueryResultSpliterator implements Spliterator<Content> {
+		private final static int BATCH_UNIT = 1024;
+		private final static int MAX_BATCH = 1 << 25;
+
 		private ProvidedSession providedSession;
 		private NodeIterator nodeIterator;
+		private final boolean ordered;
+		private int batch = 0;
 
-		public QueryResultSpliterator(ProvidedSession providedSession, NodeIterator nodeIterator) {
+		public QueryResultSpliterator(ProvidedSession providedSession, NodeIterator nodeIterator, boolean ordered) {
 			super();
 			this.providedSession = providedSession;
 			this.nodeIterator = nodeIterator;
+			this.ordered = ordered;
 		}
 
 		@Override
 		public boolean tryAdvance(Consumer<? super Content> action) {
 			if (!nodeIterator.hasNext())
 				return false;
-			try {
-				Node node = nodeIterator.nextNode();
-				// TODO optimise by reusing the Node
-				JcrContent jcrContent = new JcrContent(providedSession, JcrContentProvider.this, jcrWorkspace,
-						node.getPath());
-				action.accept(jcrContent);
-				return true;
-			} catch (RepositoryException e) {
-				throw new JcrException(e);
-			}
+			Node node = nodeIterator.nextNode();
+			action.accept(new JcrContent(providedSession, JcrContentProvider.this, jcrWorkspace, node));
+			return true;
+		}
+
+		@Override
+		public void forEachRemaining(Consumer<? super Content> action) {
+			while (nodeIterator.hasNext())
+				action.accept(
+						new JcrContent(providedSession, JcrContentProvider.this, jcrWorkspace, nodeIterator.nextNode()));
 		}
 
 		@Override
 		public Spliterator<Content> trySplit() {
-			return null;
+			if (!nodeIterator.hasNext())
+				return null;
+			// batches of increasing size, as in Spliterators.AbstractSpliterator
+			int n = Math.min(batch + BATCH_UNIT, MAX_BATCH);
+			long size = nodeIterator.getSize();
+			if (size >= 0) {
+				long remaining = size - nodeIterator.getPosition();
+				if (remaining <= 1)
+					return null;
+				n = (int) Math.min(n, remaining);
+			}
+			Content[] contents = new Content[n];
+			int j = 0;
+			do {
+				contents[j] = new JcrContent(providedSession, JcrContentProvider.this, jcrWorkspace,
+						nodeIterator.nextNode());
+			} while (++j < n && nodeIterator.hasNext());
+			batch = j;
+			return Spliterators.spliterator(contents, 0, j, characteristics());
 		}
 
 		@Override
 		public long estimateSize() {
-			return nodeIterator.getSize();
+			long size = nodeIterator.getSize();
+			if (size < 0)
+				return Long.MAX_VALUE;
+			return size - nodeIterator.getPosition();
 		}
 
 		@Override
 		public int characteristics() {
-			return NONNULL | SIZED;
+			int characteristics = NONNULL;
+			if (nodeIterator.getSize() >= 0)
+				characteristics = characteristics | SIZED;
+			if (ordered)
+				characteristics = characteristics | ORDERED;
+			return characteristics;
 		}
 
 	}
@@ -1,11 +1,13 @@
 package org.argeo.cms.jcr.acr;
 
 import java.security.PrivilegedAction;
-import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jcr.Node;
 import javax.jcr.Repository;
@@ -21,18 +23,24 @@ import org.argeo.jcr.Jcr;
 import org.argeo.jcr.JcrException;
 import org.argeo.jcr.JcrUtils;
 
-/** Manages JCR {@link Session} in an ACR context. */
+/**
+ * Manages JCR {@link Session} in an ACR context. Each thread gets its own read
+ * session per workspace, which is looked up without locking. A read session is
+ * refreshed lazily, only if changes have been persisted to its workspace
+ * through this adapter since it was last refreshed. Edition uses a distinct set
+ * of write sessions.
+ */
 class JcrSessionAdapter {
 	private Repository repository;
 	private Subject subject;
 
 	private ProvidedSession contentSession;
 
-	private Map<Thread, Map<String, Session>> threadSessions = Collections.synchronizedMap(new HashMap<>());
+	private final Map<Thread, Map<String, ReadSession>> threadSessions = new ConcurrentHashMap<>();
+	/** Incremented each time changes are persisted to a workspace. */
+	private final Map<String, AtomicLong> workspaceGenerations = new ConcurrentHashMap<>();
 
-	private boolean closed = false;
-
-	private Thread lastRetrievingThread = null;
+	private volatile boolean closed = false;
 
 //	private Thread writeThread;
 	private Map<String, Session> writeSessions = new HashMap<>();
@@ -49,45 +57,76 @@ class JcrSessionAdapter {
 	}
 
 	public synchronized void close() {
-		for (Map<String, Session> sessions : threadSessions.values()) {
-			for (Session session : sessions.values()) {
-				JcrUtils.logoutQuietly(session);
-			}
-			sessions.clear();
-		}
-		threadSessions.clear();
 		closed = true;
+		for (Map<String, ReadSession> sessions : threadSessions.values())
+			logout(sessions);
+		threadSessions.clear();
+		for (Session session : writeSessions.values())
+			JcrUtils.logoutQuietly(session);
+		writeSessions.clear();
 	}
 
-	public synchronized Session getSession(String workspace) {
+	public Session getSession(String workspace) {
 		if (closed)
 			throw new IllegalStateException("JCR session adapter is closed.");
 
 		Thread currentThread = Thread.currentThread();
-		if (lastRetrievingThread == null)
-			lastRetrievingThread = currentThread;
-
-		Map<String, Session> threadSession = threadSessions.get(currentThread);
-		if (threadSession == null) {
-			threadSession = new HashMap<>();
-			threadSessions.put(currentThread, threadSession);
-		}
-
-		Session session = threadSession.get(workspace);
-		if (session == null) {
-			session = login(workspace);
-			threadSession.put(workspace, session);
+		Map<String, ReadSession> sessions = threadSessions.get(currentThread);
+		if (sessions == null) {
+			cleanTerminatedThreads();
+			sessions = new ConcurrentHashMap<>();
+			threadSessions.put(currentThread, sessions);
 		}
 
-		if (lastRetrievingThread != currentThread) {
+		long generation = getGeneration(workspace).get();
+		ReadSession readSession = sessions.get(workspace);
+		if (readSession == null) {
+			readSession = new ReadSession(login(workspace), generation);
+			sessions.put(workspace, readSession);
+			if (closed) {// closed concurrently
+				logout(sessions);
+				throw new IllegalStateException("JCR session adapter is closed.");
+			}
+		} else if (readSession.generation != generation) {
 			try {
-				session.refresh(true);
+				readSession.session.refresh(true);
 			} catch (RepositoryException e) {
-				throw new JcrException("Cannot refresh JCR session " + session, e);
+				throw new JcrException("Cannot refresh JCR session " + readSession.session, e);
 			}
+			readSession.generation = generation;
 		}
-		lastRetrievingThread = currentThread;
-		return session;
+		return readSession.session;
+	}
+
+	/**
+	 * Notifies that changes have been saved to this workspace, so that the read
+	 * sessions are refreshed before being used again.
+	 */
+	void changed(String workspace) {
+		getGeneration(workspace).incrementAndGet();
+	}
+
+	private AtomicLong getGeneration(String workspace) {
+		return workspaceGenerations.computeIfAbsent(workspace, (w) -> new AtomicLong(0));
+	}
+
+	/** Logs out the read sessions of threads which have terminated. */
+	private void cleanTerminatedThreads() {
+		for (Iterator<Thread> it = threadSessions.keySet().iterator(); it.hasNext();) {
+			Thread thread = it.next();
+			if (!thread.isAlive()) {
+				Map<String, ReadSession> sessions = threadSessions.get(thread);
+				it.remove();
+				if (sessions != null)
+					logout(sessions);
+			}
+		}
+	}
+
+	private void logout(Map<String, ReadSession> sessions) {
+		for (ReadSession readSession : sessions.values())
+			JcrUtils.logoutQuietly(readSession.session);
+		sessions.clear();
 	}
 
 	protected synchronized Session getWriteSession(String workspace) throws RepositoryException {
@@ -143,6 +182,7 @@ class JcrSessionAdapter {
 			VersionManager versionManager = session.getWorkspace().getVersionManager();
 			if (versionManager.isCheckedOut(jcrPath)) {
 				versionManager.checkin(jcrPath);
+				changed(workspace);
 			}
 		}
 		return node;
@@ -154,31 +194,33 @@ class JcrSessionAdapter {
 		return versionManager.isCheckedOut(jcrPath);
 	}
 
+	/**
+	 * Saves the write sessions which have pending changes and processes the
+	 * related versionable nodes. The read sessions of the modified workspaces
+	 * will be refreshed when next used.
+	 */
 	public synchronized void persist() throws RepositoryException {
 		for (String workspace : writeSessions.keySet()) {
 			Session session = writeSessions.get(workspace);
-			if (session == null) {
-//				assert writeThread == null;
-				assert !checkedOutModified.containsKey(workspace);
-				assert !checkedInModified.containsKey(workspace);
-				return; // nothing to do
-			}
-			session.save();
+			boolean dirty = session.hasPendingChanges();
+			if (dirty)
+				session.save();
 			VersionManager versionManager = session.getWorkspace().getVersionManager();
 			if (checkedOutModified.containsKey(workspace))
 				for (String jcrPath : checkedOutModified.get(workspace)) {
 					versionManager.checkpoint(jcrPath);
+					dirty = true;
 				}
 			if (checkedInModified.containsKey(workspace))
 				for (String jcrPath : checkedInModified.get(workspace)) {
 					versionManager.checkin(jcrPath);
+					dirty = true;
 				}
+			if (dirty)
+				changed(workspace);
 			Jcr.logout(session);
 		}
 
-		for (Map<String, Session> m : threadSessions.values())
-			for (Session session : m.values())
-				session.refresh(true);
 //			writeThread = null;
 		writeSessions.clear();
 		checkedOutModified.clear();
@@ -201,4 +243,14 @@ class JcrSessionAdapter {
 		});
 	}
 
+	/** A read session and the generation of its workspace it reflects. */
+	private static class ReadSession {
+		private final Session session;
+		private long generation;
+
+		ReadSession(Session session, long generation) {
+			this.session = session;
+			this.generation = generation;
+		}
+	}
 }
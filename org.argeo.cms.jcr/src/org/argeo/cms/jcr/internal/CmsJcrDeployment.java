@@ -17,6 +17,7 @@ import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.jcr.Repository;
 import javax.jcr.RepositoryException;
@@ -66,6 +67,10 @@ public class CmsJcrDeployment {
 
 	private ProvidedRepository contentRepository;
 
+	/** Path of the metrics endpoint, within the data servlet context. */
+	private final static String METRICS_PATH = "/metrics";
+	private final List<RepositoryMetrics> repositoryMetrics = new CopyOnWriteArrayList<>();
+
 	public CmsJcrDeployment() {
 	}
 
@@ -77,6 +82,8 @@ public class CmsJcrDeployment {
 
 		contentRepository.registerTypes(JcrContentNamespace.values());
 
+		registerMetricsServlet();
+
 		ServiceTracker<?, ?> repoContextSt = new RepositoryContextStc();
 		repoContextSt.open();
 		// KernelUtils.asyncOpen(repoContextSt);
@@ -108,6 +115,10 @@ public class CmsJcrDeployment {
 			log.error("Cannot clean repositories", e1);
 		}
 
+		for (RepositoryMetrics metrics : repositoryMetrics)
+			metrics.unregister();
+		repositoryMetrics.clear();
+
 		// If not called a daemon thread is kept, which is a problem with multi runtimes
 		TransientFileFactory.shutdown();
 	}
@@ -367,7 +378,7 @@ public class CmsJcrDeployment {
 		// dataModelName) != null;
 	}
 
-	private void publishLocalRepo(String dataModelName, Repository repository) {
+	private LocalRepository publishLocalRepo(String dataModelName, Repository repository) {
 		Hashtable<String, Object> properties = new Hashtable<>();
 		properties.put(CmsConstants.CN, dataModelName);
 		LocalRepository localRepository;
@@ -386,6 +397,7 @@ public class CmsJcrDeployment {
 		registerRepositoryServlets(dataModelName, localRepository);
 		if (log.isTraceEnabled())
 			log.trace("Published data model " + dataModelName);
+		return localRepository;
 	}
 
 //	@Override
@@ -445,6 +457,15 @@ public class CmsJcrDeployment {
 		bc.registerService(Servlet.class, remotingServlet, ip);
 	}
 
+	protected void registerMetricsServlet() {
+		MetricsServlet metricsServlet = new MetricsServlet(repositoryMetrics);
+		Hashtable<String, String> ip = new Hashtable<>();
+		ip.put(HttpWhiteboardConstants.HTTP_WHITEBOARD_SERVLET_PATTERN, METRICS_PATH);
+		ip.put(HttpWhiteboardConstants.HTTP_WHITEBOARD_CONTEXT_SELECT,
+				"(" + HttpWhiteboardConstants.HTTP_WHITEBOARD_CONTEXT_PATH + "=" + CmsConstants.PATH_DATA + ")");
+		bc.registerService(Servlet.class, metricsServlet, ip);
+	}
+
 	public void setContentRepository(ProvidedRepository contentRepository) {
 		this.contentRepository = contentRepository;
 	}
@@ -460,6 +481,10 @@ public class CmsJcrDeployment {
 			RepositoryContext repoContext = bc.getService(reference);
 			String cn = (String) reference.getProperty(CmsConstants.CN);
 			if (cn != null) {
+				RepositoryMetrics metrics = new RepositoryMetrics(cn, repoContext);
+				metrics.register();
+				repositoryMetrics.add(metrics);
+
 				List<String> publishAsLocalRepo = new ArrayList<>();
 				if (cn.equals(CmsConstants.NODE_REPOSITORY)) {
 //					JackrabbitDataModelMigration.clearRepositoryCaches(repoContext.getRepositoryConfig());
@@ -473,8 +498,11 @@ public class CmsJcrDeployment {
 					prepareDataModel(cn, repoContext.getRepository(), publishAsLocalRepo);
 				}
 				// Publish all at once, so that bundles with multiple CNDs are consistent
-				for (String dataModelName : publishAsLocalRepo)
-					publishLocalRepo(dataModelName, repoContext.getRepository());
+				for (String dataModelName : publishAsLocalRepo) {
+					LocalRepository localRepository = publishLocalRepo(dataModelName, repoContext.getRepository());
+					if (localRepository instanceof JackrabbitLocalRepository jackrabbitLocalRepository)
+						metrics.addIndexerSource(jackrabbitLocalRepository::getWorkspaceIndexers);
+				}
 			}
 			return repoContext;
 		}
@@ -1,8 +1,15 @@
 package org.argeo.cms.jcr.internal;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jcr.Node;
 import javax.jcr.Property;
@@ -21,7 +28,11 @@ import org.apache.jackrabbit.core.RepositoryImpl;
 import org.argeo.api.cms.CmsLog;
 import org.argeo.jcr.JcrUtils;
 
-/** Ensure consistency of files, folder and last modified nodes. */
+/**
+ * Ensure consistency of files, folder and last modified nodes. Events are
+ * drained in batches bounded in size and latency, repeated events on the same
+ * path are coalesced, and the updates of a whole batch are saved at once.
+ */
 class CmsWorkspaceIndexer implements EventListener {
 	private final static CmsLog log = CmsLog.getLog(CmsWorkspaceIndexer.class);
 
@@ -39,10 +50,26 @@ class CmsWorkspaceIndexer implements EventListener {
 	private Session session;
 	private VersionManager versionManager;
 
+	/** Default maximum number of events processed in one batch. */
+	final static int DEFAULT_MAX_BATCH_SIZE = 1000;
+	/** Default maximum time (in ms) waiting for a batch to fill up. */
+	final static long DEFAULT_MAX_BATCH_LATENCY = 500;
+
+	private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+	private long maxBatchLatency = DEFAULT_MAX_BATCH_LATENCY;
+
 	private LinkedBlockingDeque<Event> toProcess = new LinkedBlockingDeque<>();
 	private IndexingThread indexingThread;
 	private AtomicBoolean stopping = new AtomicBoolean(false);
 
+	// statistics
+	private AtomicLong receivedCount = new AtomicLong(0);
+	private AtomicLong processedCount = new AtomicLong(0);
+	private AtomicLong batchCount = new AtomicLong(0);
+	private volatile long lastBatchDuration = 0;
+	/** Date of the oldest event of the batch being processed, 0 if none. */
+	private volatile long processingSince = 0;
+
 	public CmsWorkspaceIndexer(RepositoryImpl repositoryImpl, String cn, String workspaceName)
 			throws RepositoryException {
 		this.cn = cn;
@@ -85,35 +112,134 @@ class CmsWorkspaceIndexer implements EventListener {
 		}
 	}
 
-	private synchronized void processEvents(EventIterator events) {
+	private void processEvents(EventIterator events) {
 		long begin = System.currentTimeMillis();
 		long count = 0;
 		while (events.hasNext()) {
 			Event event = events.nextEvent();
+			// the deque is unbounded, so this never blocks
+			toProcess.offer(event);
+			count++;
+		}
+		receivedCount.addAndGet(count);
+		long duration = System.currentTimeMillis() - begin;
+		if (log.isTraceEnabled())
+			log.trace("Queued " + count + " events in " + duration + " ms");
+	}
+
+	/**
+	 * Wait for at least one event, then for more events until either the maximum
+	 * batch size or the maximum batch latency is reached.
+	 * 
+	 * @return the drained events, in arrival order
+	 */
+	List<Event> drainBatch() throws InterruptedException {
+		List<Event> batch = new ArrayList<>();
+		Event first = toProcess.take();
+		batch.add(first);
+		long deadline = System.currentTimeMillis() + maxBatchLatency;
+		while (batch.size() < maxBatchSize) {
+			toProcess.drainTo(batch, maxBatchSize - batch.size());
+			if (batch.size() >= maxBatchSize || stopping.get())
+				break;
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0)
+				break;
+			Event next;
 			try {
-				toProcess.put(event);
+				next = toProcess.poll(remaining, TimeUnit.MILLISECONDS);
 			} catch (InterruptedException e) {
-				e.printStackTrace();
+				// process what has already been drained
+				break;
 			}
-//			processEvent(event);
-			count++;
+			if (next == null)
+				break;
+			batch.add(next);
+		}
+		return batch;
+	}
+
+	/**
+	 * Keep only one event per type and path. The latest event wins (so that last
+	 * modified information is the most recent one), but the order of first
+	 * occurrence is preserved.
+	 */
+	static Collection<Event> coalesce(List<Event> batch) {
+		Map<String, Event> coalesced = new LinkedHashMap<>();
+		for (Event event : batch) {
+			try {
+				coalesced.put(event.getType() + event.getPath(), event);
+			} catch (RepositoryException e) {
+				// should not happen with Jackrabbit events, keep it anyhow
+				coalesced.put(event.getType() + "#" + coalesced.size(), event);
+			}
+		}
+		return coalesced.values();
+	}
+
+	/**
+	 * Apply a batch of events and save all the related changes at once. If the
+	 * batch cannot be saved, the events are processed and saved one by one, so
+	 * that a single failing node does not prevent the others from being updated.
+	 */
+	protected synchronized void processBatch(List<Event> batch) {
+		long begin = System.currentTimeMillis();
+		processingSince = eventDate(batch.get(0));
+		Collection<Event> events = coalesce(batch);
+		try {
+			session.refresh(false);
+			for (Event event : events)
+				processEvent(event);
+			if (session.hasPendingChanges())
+				session.save();
+		} catch (RepositoryException e) {
+			log.warn("Cannot save batch of " + events.size() + " events in " + workspaceName + ", will retry one by one: "
+					+ e.getMessage());
+			refreshQuietly();
+			for (Event event : events) {
+				try {
+					processEvent(event);
+					if (session.hasPendingChanges())
+						session.save();
+				} catch (RepositoryException e1) {
+					log.warn("Cannot save event " + event + " in " + workspaceName + ": " + e1.getMessage());
+					refreshQuietly();
+				}
+			}
+		} finally {
+			processingSince = 0;
+			processedCount.addAndGet(batch.size());
+			batchCount.incrementAndGet();
+			lastBatchDuration = System.currentTimeMillis() - begin;
 		}
-		long duration = System.currentTimeMillis() - begin;
 		if (log.isTraceEnabled())
-			log.trace("Processed " + count + " events in " + duration + " ms");
-		notifyAll();
+			log.trace("Processed batch of " + batch.size() + " events (" + events.size() + " after coalescing) in "
+					+ lastBatchDuration + " ms");
 	}
 
+	private void refreshQuietly() {
+		try {
+			session.refresh(false);
+		} catch (RepositoryException e) {
+			if (log.isTraceEnabled())
+				log.warn("Cannot refresh JCR session", e);
+		}
+	}
+
+	/**
+	 * Process a single event, without saving the session, which is done once per
+	 * batch.
+	 */
 	protected synchronized void processEvent(Event event) {
 		try {
 			String eventPath = event.getPath();
 			if (event.getType() == Event.NODE_ADDED) {
+				if (!session.nodeExists(eventPath))
+					return;// removed since
 				if (!versionManager.isCheckedOut(eventPath))
 					return;// ignore checked-in nodes
 				if (log.isTraceEnabled())
 					log.trace("NODE_ADDED " + eventPath);
-//				session.refresh(true);
-				session.refresh(false);
 				Node node = session.getNode(eventPath);
 				Node parentNode = node.getParent();
 				if (parentNode.isNodeType(NodeType.NT_FILE)) {
@@ -122,7 +248,6 @@ class CmsWorkspaceIndexer implements EventListener {
 							node.addMixin(NodeType.MIX_LAST_MODIFIED);
 						Property property = node.getProperty(Property.JCR_DATA);
 						String etag = toEtag(property.getValue());
-						session.save();
 						node.setProperty(JCR_ETAG, etag);
 						if (log.isTraceEnabled())
 							log.trace("ETag and last modified added to new " + node);
@@ -166,7 +291,6 @@ class CmsWorkspaceIndexer implements EventListener {
 
 				if (!session.propertyExists(eventPath))
 					return;
-				session.refresh(false);
 				Property property = session.getProperty(eventPath);
 				Node node = property.getParent();
 				if (property.getType() == PropertyType.BINARY && propertyName.equals(JCR_DATA)
@@ -306,6 +430,69 @@ class CmsWorkspaceIndexer implements EventListener {
 		}
 	}
 
+	/** Number of events waiting to be processed. */
+	public int getQueueDepth() {
+		return toProcess.size();
+	}
+
+	/**
+	 * Time (in ms) since the oldest event not yet processed (whether waiting or
+	 * part of the batch being processed) was generated, 0 if there is none.
+	 */
+	public long getLag() {
+		long oldest = processingSince;
+		if (oldest == 0) {
+			Event first = toProcess.peekFirst();
+			if (first == null)
+				return 0;
+			oldest = eventDate(first);
+		}
+		if (oldest == 0)
+			return 0;
+		return Math.max(0, System.currentTimeMillis() - oldest);
+	}
+
+	private static long eventDate(Event event) {
+		try {
+			return event.getDate();
+		} catch (RepositoryException e) {
+			return 0;
+		}
+	}
+
+	public long getReceivedCount() {
+		return receivedCount.get();
+	}
+
+	public long getProcessedCount() {
+		return processedCount.get();
+	}
+
+	public long getBatchCount() {
+		return batchCount.get();
+	}
+
+	/** Duration (in ms) of the last processed batch. */
+	public long getLastBatchDuration() {
+		return lastBatchDuration;
+	}
+
+	public String getWorkspaceName() {
+		return workspaceName;
+	}
+
+	public void setMaxBatchSize(int maxBatchSize) {
+		if (maxBatchSize <= 0)
+			throw new IllegalArgumentException("Max batch size must be positive");
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	public void setMaxBatchLatency(long maxBatchLatency) {
+		if (maxBatchLatency < 0)
+			throw new IllegalArgumentException("Max batch latency cannot be negative");
+		this.maxBatchLatency = maxBatchLatency;
+	}
+
 	@Override
 	public String toString() {
 		return "Indexer for workspace " + workspaceName + " of repository " + cn;
@@ -322,8 +509,8 @@ class CmsWorkspaceIndexer implements EventListener {
 		public void run() {
 			life: while (session != null && session.isLive()) {
 				try {
-					Event nextEvent = toProcess.take();
-					processEvent(nextEvent);
+					List<Event> batch = drainBatch();
+					processBatch(batch);
 				} catch (InterruptedException e) {
 					// silent
 					interrupted();
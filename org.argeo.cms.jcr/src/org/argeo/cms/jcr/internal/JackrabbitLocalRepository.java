@@ -1,5 +1,7 @@
 package org.argeo.cms.jcr.internal;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -62,7 +64,12 @@ class JackrabbitLocalRepository extends LocalRepository {
 		}
 	}
 
-	public void destroy() {
+	/** The indexers of the monitored workspaces. */
+	synchronized List<CmsWorkspaceIndexer> getWorkspaceIndexers() {
+		return new ArrayList<>(workspaceMonitors.values());
+	}
+
+	public synchronized void destroy() {
 		for (String workspaceName : workspaceMonitors.keySet()) {
 			workspaceMonitors.get(workspaceName).destroy();
 		}
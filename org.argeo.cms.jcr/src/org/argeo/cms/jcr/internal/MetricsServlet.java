@@ -0,0 +1,35 @@
+package org.argeo.cms.jcr.internal;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/** Exposes the metrics of the repositories in the Prometheus text format. */
+class MetricsServlet extends HttpServlet {
+	private static final long serialVersionUID = -2542409146423818553L;
+
+	private final Collection<RepositoryMetrics> metrics;
+
+	MetricsServlet(Collection<RepositoryMetrics> metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+		// collect first, so that a failure results in a proper error
+		StringWriter buf = new StringWriter(8 * 1024);
+		RepositoryMetrics.writePrometheus(buf, metrics);
+		byte[] bytes = buf.toString().getBytes(StandardCharsets.UTF_8);
+		resp.setContentType(RepositoryMetrics.PROMETHEUS_CONTENT_TYPE);
+		resp.setHeader("Cache-Control", "no-cache");
+		resp.setContentLength(bytes.length);
+		resp.getOutputStream().write(bytes);
+	}
+
+}
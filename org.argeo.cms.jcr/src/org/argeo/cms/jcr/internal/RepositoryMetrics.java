@@ -0,0 +1,213 @@
+package org.argeo.cms.jcr.internal;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.jackrabbit.api.stats.RepositoryStatistics;
+import org.apache.jackrabbit.api.stats.TimeSeries;
+import org.apache.jackrabbit.core.RepositoryContext;
+import org.apache.jackrabbit.core.security.JackrabbitSecurityManager;
+import org.argeo.api.cms.CmsLog;
+import org.argeo.security.jackrabbit.ArgeoSecurityManager;
+
+/**
+ * Metrics of a Jackrabbit repository, exposed as an MXBean and in the
+ * Prometheus text format.
+ */
+public class RepositoryMetrics implements RepositoryMetricsMXBean {
+	private final static CmsLog log = CmsLog.getLog(RepositoryMetrics.class);
+
+	public final static String JMX_DOMAIN = "org.argeo.cms.jcr";
+	final static String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	private final static String PREFIX = "argeo_jcr_";
+
+	private final String cn;
+	private final RepositoryContext repositoryContext;
+	private final List<Supplier<Collection<CmsWorkspaceIndexer>>> indexerSources = new CopyOnWriteArrayList<>();
+
+	private ObjectName objectName;
+
+	public RepositoryMetrics(String cn, RepositoryContext repositoryContext) {
+		this.cn = cn;
+		this.repositoryContext = repositoryContext;
+	}
+
+	/** Registers this MXBean with the platform MBean server. */
+	public void register() {
+		try {
+			MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+			objectName = new ObjectName(JMX_DOMAIN + ":type=Repository,name=" + ObjectName.quote(cn));
+			if (!mBeanServer.isRegistered(objectName))
+				mBeanServer.registerMBean(this, objectName);
+		} catch (JMException e) {
+			log.warn("Cannot register JMX metrics of repository " + cn + ": " + e.getMessage());
+			objectName = null;
+		}
+	}
+
+	public void unregister() {
+		if (objectName == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (JMException e) {
+			log.warn("Cannot unregister JMX metrics of repository " + cn + ": " + e.getMessage());
+		} finally {
+			objectName = null;
+		}
+	}
+
+	/** Adds a source of workspace indexers whose queues will be monitored. */
+	void addIndexerSource(Supplier<Collection<CmsWorkspaceIndexer>> indexerSource) {
+		indexerSources.add(indexerSource);
+	}
+
+	/*
+	 * MXBEAN
+	 */
+	@Override
+	public String getCn() {
+		return cn;
+	}
+
+	@Override
+	public Map<String, Long> getStatistics() {
+		Map<String, Long> res = new LinkedHashMap<>();
+		for (RepositoryStatistics.Type type : RepositoryStatistics.Type.values())
+			res.put(type.name(), getLastMinute(type));
+		return res;
+	}
+
+	@Override
+	public double getBundleCacheHitRatio() {
+		long accesses = getLastMinute(RepositoryStatistics.Type.BUNDLE_CACHE_ACCESS_COUNTER);
+		long misses = getLastMinute(RepositoryStatistics.Type.BUNDLE_CACHE_MISS_COUNTER);
+		if (accesses <= 0)
+			return Double.NaN;
+		return 1d - ((double) Math.min(misses, accesses) / accesses);
+	}
+
+	@Override
+	public Map<String, Integer> getSessionCounts() {
+		JackrabbitSecurityManager securityManager = repositoryContext.getSecurityManager();
+		if (securityManager instanceof ArgeoSecurityManager argeoSecurityManager)
+			return argeoSecurityManager.getSessionCounts();
+		return Collections.emptyMap();
+	}
+
+	@Override
+	public Map<String, Integer> getIndexerQueueDepths() {
+		Map<String, Integer> res = new TreeMap<>();
+		for (CmsWorkspaceIndexer indexer : getIndexers())
+			res.put(indexer.getWorkspaceName(), indexer.getQueueDepth());
+		return res;
+	}
+
+	/** The value of a Jackrabbit statistic during the last minute. */
+	long getLastMinute(RepositoryStatistics.Type type) {
+		TimeSeries timeSeries = repositoryContext.getRepositoryStatistics().getTimeSeries(type);
+		long[] values = timeSeries.getValuePerMinute();
+		if (values.length == 0)
+			return timeSeries.getMissingValue();
+		return values[values.length - 1];
+	}
+
+	List<CmsWorkspaceIndexer> getIndexers() {
+		List<CmsWorkspaceIndexer> res = new ArrayList<>();
+		for (Supplier<Collection<CmsWorkspaceIndexer>> indexerSource : indexerSources)
+			res.addAll(indexerSource.get());
+		return res;
+	}
+
+	/*
+	 * PROMETHEUS
+	 */
+	/**
+	 * Writes the metrics of these repositories in the Prometheus text format,
+	 * grouped by metric.
+	 */
+	static void writePrometheus(Appendable out, Collection<RepositoryMetrics> metrics) throws IOException {
+		for (RepositoryStatistics.Type type : RepositoryStatistics.Type.values()) {
+			String name = PREFIX + type.name().toLowerCase();
+			writeHeader(out, name, "gauge", "Jackrabbit " + type.name() + " during the last minute");
+			for (RepositoryMetrics m : metrics)
+				writeSample(out, name, m.cn, null, m.getLastMinute(type));
+		}
+
+		writeHeader(out, PREFIX + "bundle_cache_hit_ratio", "gauge",
+				"Ratio of bundle cache hits during the last minute");
+		for (RepositoryMetrics m : metrics)
+			writeSample(out, PREFIX + "bundle_cache_hit_ratio", m.cn, null, m.getBundleCacheHitRatio());
+
+		writeHeader(out, PREFIX + "sessions", "gauge", "Live sessions per workspace");
+		for (RepositoryMetrics m : metrics) {
+			Map<String, Integer> sessionCounts = m.getSessionCounts();
+			for (String workspace : sessionCounts.keySet())
+				writeSample(out, PREFIX + "sessions", m.cn, workspace, sessionCounts.get(workspace));
+		}
+
+		List<List<CmsWorkspaceIndexer>> indexers = new ArrayList<>();
+		for (RepositoryMetrics m : metrics)
+			indexers.add(m.getIndexers());
+		writeHeader(out, PREFIX + "indexer_queue_depth", "gauge", "Events waiting to be indexed");
+		writeIndexers(out, PREFIX + "indexer_queue_depth", metrics, indexers,
+				(indexer) -> indexer.getQueueDepth());
+		writeHeader(out, PREFIX + "indexer_lag_seconds", "gauge", "Age of the oldest event waiting to be indexed");
+		writeIndexers(out, PREFIX + "indexer_lag_seconds", metrics, indexers,
+				(indexer) -> indexer.getLag() / 1000d);
+		writeHeader(out, PREFIX + "indexer_processed_total", "counter", "Events processed by the indexer");
+		writeIndexers(out, PREFIX + "indexer_processed_total", metrics, indexers,
+				(indexer) -> indexer.getProcessedCount());
+	}
+
+	private static void writeIndexers(Appendable out, String name, Collection<RepositoryMetrics> metrics,
+			List<List<CmsWorkspaceIndexer>> indexers, Function<CmsWorkspaceIndexer, Number> value)
+			throws IOException {
+		int i = 0;
+		for (RepositoryMetrics m : metrics) {
+			for (CmsWorkspaceIndexer indexer : indexers.get(i))
+				writeSample(out, name, m.cn, indexer.getWorkspaceName(), value.apply(indexer));
+			i++;
+		}
+	}
+
+	private static void writeHeader(Appendable out, String name, String type, String help) throws IOException {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void writeSample(Appendable out, String name, String repository, String workspace,
+			Number value) throws IOException {
+		out.append(name).append("{repository=\"").append(escape(repository)).append('\"');
+		if (workspace != null)
+			out.append(",workspace=\"").append(escape(workspace)).append('\"');
+		out.append("} ");
+		if (value instanceof Double d) {
+			if (d.isNaN())
+				out.append("NaN");
+			else
+				out.append(d.toString());
+		} else {
+			out.append(value.toString());
+		}
+		out.append('\n');
+	}
+
+	private static String escape(String labelValue) {
+		return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
@@ -0,0 +1,21 @@
+package org.argeo.cms.jcr.internal;
+
+import java.util.Map;
+
+/** JMX view of the metrics of a Jackrabbit repository. */
+public interface RepositoryMetricsMXBean {
+	/** The common name of the repository. */
+	String getCn();
+
+	/** The Jackrabbit statistics, as values for the last minute. */
+	Map<String, Long> getStatistics();
+
+	/** Ratio of bundle cache accesses which were hits during the last minute. */
+	double getBundleCacheHitRatio();
+
+	/** Number of live sessions per workspace. */
+	Map<String, Integer> getSessionCounts();
+
+	/** Number of events waiting to be indexed per workspace. */
+	Map<String, Integer> getIndexerQueueDepths();
+}
@@ -3,11 +3,13 @@ package org.argeo.cms.jcr.internal.servlet;
 import java.io.Serializable;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jcr.Repository;
 import javax.jcr.RepositoryException;
@@ -25,17 +27,39 @@ import org.argeo.cms.servlet.ServletHttpRequest;
 import org.argeo.jcr.JcrUtils;
 
 /**
- * Implements an open session in view patter: a new JCR session is created for
- * each request
+ * Provides the JCR sessions used by each request from a pool of data sessions
+ * per CMS session and workspace. Acquisition never blocks: if all pooled
+ * sessions are in use, an additional session is logged in, and logged out when
+ * released. Idle sessions are evicted after {@link #setMaxIdleTime(long)}, the
+ * pools of all the CMS sessions being checked on any acquisition or release (at
+ * most once per quarter of this time), and all the sessions of a CMS session
+ * are logged out when it is closed.
  */
 public class CmsSessionProvider implements SessionProvider, Serializable {
 	private static final long serialVersionUID = -1358136599534938466L;
 
 	private final static CmsLog log = CmsLog.getLog(CmsSessionProvider.class);
 
+	/** Default maximum number of pooled sessions per CMS session and workspace. */
+	public final static int DEFAULT_MAX_SESSIONS = 4;
+	/** Default time after which an idle data session is logged out (in ms). */
+	public final static long DEFAULT_MAX_IDLE_TIME = 5 * 60 * 1000;
+
 	private final String alias;
 
-	private LinkedHashMap<Session, CmsDataSession> cmsSessions = new LinkedHashMap<>();
+	private int maxSessions = DEFAULT_MAX_SESSIONS;
+	private long maxIdleTime = DEFAULT_MAX_IDLE_TIME;
+
+	private final Map<CmsSession, CmsDataSession> cmsDataSessions = new ConcurrentHashMap<>();
+	private final Map<Session, CmsDataSession> sessionsInUse = new ConcurrentHashMap<>();
+	/** When the pools of all the CMS sessions were last checked for idle sessions. */
+	private final AtomicLong lastEviction = new AtomicLong(System.currentTimeMillis());
+
+	// metrics
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+	private final AtomicLong overflows = new AtomicLong(0);
+	private final AtomicLong evictions = new AtomicLong(0);
 
 	public CmsSessionProvider(String alias) {
 		this.alias = alias;
@@ -55,29 +79,107 @@ public class CmsSessionProvider implements SessionProvider, Serializable {
 		}
 		if (cmsSession == null)
 			throw new IllegalStateException("Cannot find a session for request " + request.getRequestURI());
-		CmsDataSession cmsDataSession = new CmsDataSession(cmsSession);
+		// do not register a pool which would never be closed
+		checkValid(cmsSession);
+		evictIdle();
+		CmsDataSession cmsDataSession = cmsDataSessions.computeIfAbsent(cmsSession, (s) -> new CmsDataSession(s));
 		Session session = cmsDataSession.getDataSession(alias, workspace, rep);
-		cmsSessions.put(session, cmsDataSession);
+		sessionsInUse.put(session, cmsDataSession);
 		return session;
 	}
 
 	public void releaseSession(Session session) {
 //		JcrUtils.logoutQuietly(session);
-		if (cmsSessions.containsKey(session)) {
-			CmsDataSession cmsDataSession = cmsSessions.get(session);
+		CmsDataSession cmsDataSession = sessionsInUse.remove(session);
+		if (cmsDataSession != null) {
 			cmsDataSession.releaseDataSession(alias, session);
 		} else {
 			log.warn("JCR session " + session + " not found in CMS session list. Logging it out...");
 			JcrUtils.logoutQuietly(session);
 		}
+		evictIdle();
+	}
+
+	/**
+	 * Logs out the sessions which have been idle for too long in the pools of all
+	 * the CMS sessions, so that the pools of CMS sessions which are not used
+	 * anymore are evicted as well.
+	 */
+	private void evictIdle() {
+		long now = System.currentTimeMillis();
+		long last = lastEviction.get();
+		if (now - last < maxIdleTime / 4 || !lastEviction.compareAndSet(last, now))
+			return;
+		for (CmsDataSession cmsDataSession : cmsDataSessions.values())
+			cmsDataSession.evictIdle();
+	}
+
+	private static void checkValid(CmsSession cmsSession) {
+		if (!cmsSession.isValid())
+			throw new IllegalStateException(
+					"CMS session " + cmsSession.uuid() + " is not valid since " + cmsSession.getEnd());
+	}
+
+	/*
+	 * METRICS
+	 */
+	/** Number of acquisitions which reused a pooled session. */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/** Number of acquisitions which required a new pooled session. */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Number of acquisitions which found all the pooled sessions in use, and
+	 * therefore used an additional session instead of waiting.
+	 */
+	public long getOverflows() {
+		return overflows.get();
+	}
+
+	/** Number of idle sessions which have been logged out. */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/** Number of sessions currently provided to requests. */
+	public int getSessionsInUse() {
+		return sessionsInUse.size();
+	}
+
+	/** Number of CMS sessions currently having data sessions. */
+	public int getCmsSessionCount() {
+		return cmsDataSessions.size();
+	}
+
+	/*
+	 * CONFIGURATION
+	 */
+	/** Maximum number of pooled sessions per CMS session and workspace. */
+	public void setMaxSessions(int maxSessions) {
+		this.maxSessions = maxSessions;
 	}
 
-	static class CmsDataSession {
+	/** Time after which an idle data session is logged out (in ms). */
+	public void setMaxIdleTime(long maxIdleTime) {
+		this.maxIdleTime = maxIdleTime;
+	}
+
+	/** A pool of data sessions for a given CMS session. */
+	class CmsDataSession {
 		private CmsSession cmsSession;
 
-		private Map<String, Session> dataSessions = new HashMap<>();
-		private Set<String> dataSessionsInUse = new HashSet<>();
-		private Set<Session> additionalDataSessions = new HashSet<>();
+		/** Idle sessions per path, most recently used first. */
+		private Map<String, Deque<IdleSession>> idleSessions = new ConcurrentHashMap<>();
+		/** Number of pooled sessions (idle or in use) per path. */
+		private Map<String, AtomicInteger> pooledCounts = new ConcurrentHashMap<>();
+		private Map<Session, Boolean> additionalDataSessions = new ConcurrentHashMap<>();
+
+		private volatile boolean closed = false;
 
 		private CmsDataSession(CmsSession cmsSession) {
 			this.cmsSession = cmsSession;
@@ -89,38 +191,46 @@ public class CmsSessionProvider implements SessionProvider, Serializable {
 			return login(repository, workspace);
 		}
 
-		public synchronized Session getDataSession(String cn, String workspace, Repository repository) {
+		public Session getDataSession(String cn, String workspace, Repository repository) {
 			checkValid();
 			// FIXME make it more robust
 			if (workspace == null)
 				workspace = CmsConstants.SYS_WORKSPACE;
 			String path = cn + '/' + workspace;
-			if (dataSessionsInUse.contains(path)) {
-				try {
-					wait(1000);
-					if (dataSessionsInUse.contains(path)) {
-						Session session = login(repository, workspace);
-						additionalDataSessions.add(session);
-						if (log.isTraceEnabled())
-							log.trace("Additional data session " + path + " for " + cmsSession.getUserDn());
-						return session;
-					}
-				} catch (InterruptedException e) {
-					// silent
+			Deque<IdleSession> idle = idleSessions.computeIfAbsent(path, (p) -> new ConcurrentLinkedDeque<>());
+			AtomicInteger pooledCount = pooledCounts.computeIfAbsent(path, (p) -> new AtomicInteger(0));
+			evictIdle(idle, pooledCount);
+
+			IdleSession idleSession;
+			while ((idleSession = idle.pollFirst()) != null) {
+				if (idleSession.session.isLive()) {
+					hits.incrementAndGet();
+					return idleSession.session;
 				}
+				pooledCount.decrementAndGet();
 			}
 
-			Session session = null;
-			if (dataSessions.containsKey(path)) {
-				session = dataSessions.get(path);
-			} else {
-				session = login(repository, workspace);
-				dataSessions.put(path, session);
+			if (pooledCount.incrementAndGet() <= maxSessions) {
+				Session session;
+				try {
+					session = login(repository, workspace);
+				} catch (RuntimeException e) {
+					pooledCount.decrementAndGet();
+					throw e;
+				}
+				misses.incrementAndGet();
 				if (log.isTraceEnabled())
 					log.trace("New data session " + path + " for " + cmsSession.getUserDn());
+				return session;
+			} else {
+				pooledCount.decrementAndGet();
+				Session session = login(repository, workspace);
+				additionalDataSessions.put(session, Boolean.TRUE);
+				overflows.incrementAndGet();
+				if (log.isTraceEnabled())
+					log.trace("Additional data session " + path + " for " + cmsSession.getUserDn());
+				return session;
 			}
-			dataSessionsInUse.add(path);
-			return session;
 		}
 
 		private Session login(Repository repository, String workspace) {
@@ -136,40 +246,103 @@ public class CmsSessionProvider implements SessionProvider, Serializable {
 			}
 		}
 
-		public synchronized void releaseDataSession(String cn, Session session) {
-			if (additionalDataSessions.contains(session)) {
+		public void releaseDataSession(String cn, Session session) {
+			if (additionalDataSessions.remove(session) != null) {
 				JcrUtils.logoutQuietly(session);
-				additionalDataSessions.remove(session);
 				if (log.isTraceEnabled())
 					log.trace("Remove additional data session " + session);
 				return;
 			}
 			String path = cn + '/' + session.getWorkspace().getName();
-			if (!dataSessionsInUse.contains(path))
+			AtomicInteger pooledCount = pooledCounts.get(path);
+			Deque<IdleSession> idle = idleSessions.get(path);
+			if (pooledCount == null || idle == null) {
 				log.warn("Data session " + path + " was not in use for " + cmsSession.getUserDn());
-			dataSessionsInUse.remove(path);
-			Session registeredSession = dataSessions.get(path);
-			if (session != registeredSession)
-				log.warn("Data session " + path + " not consistent for " + cmsSession.getUserDn());
+				JcrUtils.logoutQuietly(session);
+				return;
+			}
+			if (closed || !session.isLive()) {
+				pooledCount.decrementAndGet();
+				JcrUtils.logoutQuietly(session);
+				return;
+			}
+			try {
+				// do not leak unsaved changes to the next request
+				if (session.hasPendingChanges())
+					session.refresh(false);
+			} catch (RepositoryException e) {
+				log.warn("Cannot discard pending changes of " + path + " for " + cmsSession.getUserDn()
+						+ ", logging it out: " + e.getMessage());
+				pooledCount.decrementAndGet();
+				JcrUtils.logoutQuietly(session);
+				return;
+			}
+			idle.offerFirst(new IdleSession(session));
+			if (closed)// closed concurrently
+				close();
 			if (log.isTraceEnabled())
 				log.trace("Released data session " + session + " for " + path);
-			notifyAll();
+		}
+
+		/** Log out the sessions which have been idle for too long, for all paths. */
+		private void evictIdle() {
+			for (String path : idleSessions.keySet()) {
+				AtomicInteger pooledCount = pooledCounts.get(path);
+				// null if the pool is being created
+				if (pooledCount != null)
+					evictIdle(idleSessions.get(path), pooledCount);
+			}
+		}
+
+		/** Log out the sessions which have been idle for too long. */
+		private void evictIdle(Deque<IdleSession> idle, AtomicInteger pooledCount) {
+			long now = System.currentTimeMillis();
+			// least recently used are last
+			Iterator<IdleSession> it = idle.descendingIterator();
+			while (it.hasNext()) {
+				IdleSession idleSession = it.next();
+				if (now - idleSession.since < maxIdleTime)
+					break;
+				if (idle.removeFirstOccurrence(idleSession)) {
+					pooledCount.decrementAndGet();
+					evictions.incrementAndGet();
+					JcrUtils.logoutQuietly(idleSession.session);
+				}
+			}
 		}
 
 		private void checkValid() {
-			if (!cmsSession.isValid())
-				throw new IllegalStateException(
-						"CMS session " + cmsSession.uuid() + " is not valid since " + cmsSession.getEnd());
+			if (!cmsSession.isValid()) {
+				// invalidated concurrently, possibly before the close callback was added
+				close();
+				CmsSessionProvider.checkValid(cmsSession);
+			}
 		}
 
 		protected void close() {
-			synchronized (this) {
-				// TODO check data session in use ?
-				for (String path : dataSessions.keySet())
-					JcrUtils.logoutQuietly(dataSessions.get(path));
-				for (Session session : additionalDataSessions)
-					JcrUtils.logoutQuietly(session);
+			closed = true;
+			cmsDataSessions.remove(cmsSession, this);
+			// sessions in use are logged out when released
+			for (String path : idleSessions.keySet()) {
+				Deque<IdleSession> idle = idleSessions.get(path);
+				AtomicInteger pooledCount = pooledCounts.get(path);
+				IdleSession idleSession;
+				while ((idleSession = idle.pollFirst()) != null) {
+					pooledCount.decrementAndGet();
+					JcrUtils.logoutQuietly(idleSession.session);
+				}
 			}
 		}
 	}
+
+	/** A pooled session and the time since which it is idle. */
+	static class IdleSession {
+		private final Session session;
+		private final long since;
+
+		IdleSession(Session session) {
+			this.session = session;
+			this.since = System.currentTimeMillis();
+		}
+	}
 }
@@ -8,15 +8,24 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
 import javax.jcr.Repository;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
 import javax.security.auth.Subject;
 import javax.security.auth.login.LoginContext;
 import javax.security.auth.login.LoginException;
@@ -27,16 +36,40 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.argeo.api.cms.CmsAuth;
 import org.argeo.api.cms.CmsConstants;
+import org.argeo.api.cms.CmsLog;
 import org.argeo.cms.jcr.CmsJcrUtils;
 import org.argeo.jcr.JcrUtils;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceReference;
 
 public class LinkServlet extends HttpServlet {
-	private final BundleContext bc = FrameworkUtil.getBundle(getClass()).getBundleContext();
-
 	private static final long serialVersionUID = 3749990143146845708L;
+	private final static CmsLog log = CmsLog.getLog(LinkServlet.class);
+
+	/** Depth of the rendered subtree. */
+	private final static int MAX_DEPTH = 8;
+	/** Rendered children per node. */
+	private final static int MAX_CHILDREN = 100;
+	/** Rendered nodes in total. */
+	private final static int MAX_NODES = 1000;
+	/** Number of cached renderings. */
+	private final static int MAX_RENDERINGS = 512;
+
+	/** Canonical renderings per path, the least recently used being evicted. */
+	private final Map<String, Rendering> renderings = Collections
+			.synchronizedMap(new LinkedHashMap<String, Rendering>(64, 0.75f, true) {
+				private static final long serialVersionUID = -8337424327950001349L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Rendering> eldest) {
+					return size() > MAX_RENDERINGS;
+				}
+			});
+	/** Renderings being computed, which are not cached if they become stale. */
+	private final Set<InProgress> inProgress = ConcurrentHashMap.newKeySet();
+	private transient Session observationSession = null;
 
 	@Override
 	protected void service(HttpServletRequest request, HttpServletResponse response)
@@ -80,27 +113,66 @@ public class LinkServlet extends HttpServlet {
 
 	/** For bots which don't understand RWT. */
 	private void canonicalAnswer(HttpServletRequest request, HttpServletResponse response, String path) {
-		Session session = null;
 		try {
+			Rendering rendering = getRendering(path);
+			if (rendering == null) {
+				response.sendError(HttpServletResponse.SC_NOT_FOUND);
+				return;
+			}
+			response.setHeader("ETag", rendering.etag);
+			if (rendering.lastUpdate > 0)
+				response.setDateHeader("Last-Modified", rendering.lastUpdate);
+			String ifNoneMatch = request.getHeader("If-None-Match");
+			if (ifNoneMatch != null && ifNoneMatch.contains(rendering.etag)) {
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return;
+			}
+
+			response.setHeader("Content-Type", "text/html");
 			PrintWriter writer = response.getWriter();
-			session = Subject.doAs(anonymousLogin(), new PrivilegedExceptionAction<Session>() {
+			writer.append("<html>");
+			writer.append("<head>");
+			writeMeta(writer, "og:title", rendering.title);
+			writeMeta(writer, "og:type", "website");
+			writer.append("<meta name='twitter:card' content='summary' />");
+			writer.append("<meta name='twitter:site' content='@argeo_org' />");
+			writeMeta(writer, "og:url", getCanonicalUrl(path, request));
+			if (rendering.description != null)
+				writeMeta(writer, "og:description", rendering.description);
+			if (rendering.lastUpdate > 0)
+				writeMeta(writer, "og:updated_time", Long.toString(rendering.lastUpdate));
+			writer.append("</head>");
+			writer.append("<body>");
+			writer.append("<p><b>!! This page is meant for indexing robots, not for real people,"
+					+ " visit <a href='/#").append(path).append("'>").append(rendering.title)
+					.append("</a> instead.</b></p>");
+			writer.append(rendering.body);
+			writer.append("</body>");
+			writer.append("</html>");
+			writer.flush();
+		} catch (Exception e) {
+			throw new IllegalStateException("Cannot write canonical answer", e);
+		}
+	}
 
-				@Override
-				public Session run() throws Exception {
-					Collection<ServiceReference<Repository>> srs = bc.getServiceReferences(Repository.class,
-							"(" + CmsConstants.CN + "=" + CmsConstants.EGO_REPOSITORY + ")");
-					Repository repository = bc.getService(srs.iterator().next());
-					return repository.login();
-				}
+	/**
+	 * The cached rendering of this path, or a new one if it has changed since it
+	 * was cached.
+	 * 
+	 * @return null if the node does not exist or is not readable anonymously
+	 */
+	private Rendering getRendering(String path) throws Exception {
+		Rendering rendering = renderings.get(path);
+		if (rendering != null)
+			return rendering;
 
-			});
+		InProgress current = new InProgress(path);
+		inProgress.add(current);
+		Session session = openAnonymousSession();
+		try {
+			if (!session.nodeExists(path))
+				return null;
 			Node node = session.getNode(path);
-			String title = node.hasProperty(JCR_TITLE) ? node.getProperty(JCR_TITLE).getString() : node.getName();
-			String desc = node.hasProperty(JCR_DESCRIPTION) ? node.getProperty(JCR_DESCRIPTION).getString() : null;
-			Calendar lastUpdate = node.hasProperty(JCR_LAST_MODIFIED) ? node.getProperty(JCR_LAST_MODIFIED).getDate()
-					: null;
-			String url = getCanonicalUrl(node, request);
-			String imgUrl = null;
 			// TODO support images
 //			loop: for (NodeIterator it = node.getNodes(); it.hasNext();) {
 //				// Takes the first found cms:image
@@ -110,34 +182,25 @@ public class LinkServlet extends HttpServlet {
 //					break loop;
 //				}
 //			}
-			StringBuilder buf = new StringBuilder();
-			buf.append("<html>");
-			buf.append("<head>");
-			writeMeta(buf, "og:title", escapeHTML(title));
-			writeMeta(buf, "og:type", "website");
-			buf.append("<meta name='twitter:card' content='summary' />");
-			buf.append("<meta name='twitter:site' content='@argeo_org' />");
-			writeMeta(buf, "og:url", url);
-			if (desc != null)
-				writeMeta(buf, "og:description", escapeHTML(desc));
-			if (imgUrl != null)
-				writeMeta(buf, "og:image", imgUrl);
-			if (lastUpdate != null)
-				writeMeta(buf, "og:updated_time", Long.toString(lastUpdate.getTime().getTime()));
-			buf.append("</head>");
-			buf.append("<body>");
-			buf.append("<p><b>!! This page is meant for indexing robots, not for real people," + " visit <a href='/#")
-					.append(path).append("'>").append(escapeHTML(title)).append("</a> instead.</b></p>");
-			writeCanonical(buf, node);
-			buf.append("</body>");
-			buf.append("</html>");
-			writer.print(buf.toString());
+			String title = node.hasProperty(JCR_TITLE) ? node.getProperty(JCR_TITLE).getString() : node.getName();
+			String desc = node.hasProperty(JCR_DESCRIPTION) ? node.getProperty(JCR_DESCRIPTION).getString() : null;
+			Calendar lastUpdate = node.hasProperty(JCR_LAST_MODIFIED)
+					? node.getProperty(JCR_LAST_MODIFIED).getDate()
+					: null;
+			StringBuilder body = new StringBuilder();
+			writeCanonical(body, node, 0, MAX_NODES);
+			rendering = new Rendering(escapeHTML(title), desc != null ? escapeHTML(desc) : null,
+					lastUpdate != null ? lastUpdate.getTimeInMillis() : 0, body.toString());
 
-			response.setHeader("Content-Type", "text/html");
-			writer.flush();
-		} catch (Exception e) {
-			throw new IllegalStateException("Cannot write canonical answer", e);
+			if (ensureObserving() && !current.stale) {
+				renderings.put(path, rendering);
+				// a change may have been observed in between
+				if (current.stale)
+					renderings.remove(path, rendering);
+			}
+			return rendering;
 		} finally {
+			inProgress.remove(current);
 			JcrUtils.logoutQuietly(session);
 		}
 	}
@@ -162,21 +225,34 @@ public class LinkServlet extends HttpServlet {
 		return out.toString();
 	}
 
-	private void writeMeta(StringBuilder buf, String tag, String value) {
-		buf.append("<meta property='").append(tag).append("' content='").append(value).append("'/>");
+	private void writeMeta(PrintWriter writer, String tag, String value) {
+		writer.append("<meta property='").append(tag).append("' content='").append(value).append("'/>");
 	}
 
-	private void writeCanonical(StringBuilder buf, Node node) throws RepositoryException {
+	/**
+	 * Renders the subtree, up to a maximal depth, number of children per node and
+	 * total number of nodes.
+	 * 
+	 * @param budget the number of nodes which can still be rendered, at least 1
+	 * @return the number of nodes which can still be rendered afterwards
+	 */
+	private int writeCanonical(StringBuilder buf, Node node, int depth, int budget) throws RepositoryException {
+		budget--;
 		buf.append("<div>");
 		if (node.hasProperty(JCR_TITLE))
-			buf.append("<p>").append(node.getProperty(JCR_TITLE).getString()).append("</p>");
+			buf.append("<p>").append(escapeHTML(node.getProperty(JCR_TITLE).getString())).append("</p>");
 		if (node.hasProperty(JCR_DESCRIPTION))
-			buf.append("<p>").append(node.getProperty(JCR_DESCRIPTION).getString()).append("</p>");
-		NodeIterator children = node.getNodes();
-		while (children.hasNext()) {
-			writeCanonical(buf, children.nextNode());
+			buf.append("<p>").append(escapeHTML(node.getProperty(JCR_DESCRIPTION).getString())).append("</p>");
+		if (depth < MAX_DEPTH) {
+			NodeIterator children = node.getNodes();
+			int count = 0;
+			while (children.hasNext() && count < MAX_CHILDREN && budget > 0) {
+				budget = writeCanonical(buf, children.nextNode(), depth + 1, budget);
+				count++;
+			}
 		}
 		buf.append("</div>");
+		return budget;
 	}
 
 	// DATA
@@ -231,18 +307,158 @@ public class LinkServlet extends HttpServlet {
 	// .toString();
 	// }
 
-	private String getCanonicalUrl(Node node, HttpServletRequest request) throws RepositoryException {
+	private String getCanonicalUrl(String path, HttpServletRequest request) {
 		try {
 			StringBuilder buf = getServerBaseUrl(request);
-			buf.append('/').append('!').append(node.getPath());
+			buf.append('/').append('!').append(path);
 			return new URL(buf.toString()).toString();
 		} catch (MalformedURLException e) {
-			throw new IllegalArgumentException("Cannot build data URL for " + node, e);
+			throw new IllegalArgumentException("Cannot build data URL for " + path, e);
 		}
 		// return request.getRequestURL().append('!').append(node.getPath())
 		// .toString();
 	}
 
+	/*
+	 * CACHE
+	 */
+	/** A session with the rights of anonymous visitors, to be logged out by the caller. */
+	Session openAnonymousSession() throws PrivilegedActionException {
+		return Subject.doAs(anonymousLogin(), new PrivilegedExceptionAction<Session>() {
+
+			@Override
+			public Session run() throws Exception {
+				return getRepository().login();
+			}
+
+		});
+	}
+
+	/**
+	 * The session observing the changes. It is a data admin session, since
+	 * changes to access control, or to content which is no longer readable
+	 * anonymously, are not delivered to anonymous sessions.
+	 */
+	Session openObservationSession() throws InvalidSyntaxException {
+		return CmsJcrUtils.openDataAdminSession(getRepository(), null);
+	}
+
+	private Repository getRepository() throws InvalidSyntaxException {
+		BundleContext bc = FrameworkUtil.getBundle(LinkServlet.class).getBundleContext();
+		Collection<ServiceReference<Repository>> srs = bc.getServiceReferences(Repository.class,
+				"(" + CmsConstants.CN + "=" + CmsConstants.EGO_REPOSITORY + ")");
+		return bc.getService(srs.iterator().next());
+	}
+
+	/**
+	 * Makes sure that changes are observed, so that renderings can be cached.
+	 * 
+	 * @return whether changes are observed
+	 */
+	private synchronized boolean ensureObserving() {
+		if (observationSession != null && observationSession.isLive())
+			return true;
+		invalidateAll();
+		try {
+			observationSession = openObservationSession();
+			observationSession.getWorkspace().getObservationManager().addEventListener(this::onEvents,
+					Event.NODE_ADDED | Event.NODE_REMOVED | Event.NODE_MOVED | Event.PROPERTY_ADDED
+							| Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED,
+					"/", true, null, null, false);
+			return true;
+		} catch (Exception e) {
+			log.warn("Cannot observe changes, canonical renderings won't be cached: " + e.getMessage());
+			JcrUtils.logoutQuietly(observationSession);
+			observationSession = null;
+			return false;
+		}
+	}
+
+	/**
+	 * Invalidates the renderings which include the changed paths, or all of them
+	 * if access control has changed, since it may apply to any descendant.
+	 */
+	private void onEvents(EventIterator events) {
+		try {
+			while (events.hasNext()) {
+				Event event = events.nextEvent();
+				String path = event.getPath();
+				if (isAccessControl(path)) {
+					invalidateAll();
+					continue;
+				}
+				boolean removed = event.getType() == Event.NODE_REMOVED || event.getType() == Event.NODE_MOVED;
+				markStale(path, removed);
+				if (removed) {
+					String prefix = path + '/';
+					renderings.keySet().removeIf((p) -> p.startsWith(prefix));
+					Object srcAbsPath = event.getInfo().get("srcAbsPath");
+					if (srcAbsPath != null) {
+						markStale(srcAbsPath.toString(), true);
+						String srcPrefix = srcAbsPath + "/";
+						renderings.keySet().removeIf((p) -> p.equals(srcAbsPath) || p.startsWith(srcPrefix));
+						removeAncestors(srcAbsPath.toString());
+					}
+				}
+				removeAncestors(path);
+			}
+		} catch (RepositoryException e) {
+			log.warn("Cannot process events, clearing the renderings: " + e.getMessage());
+			invalidateAll();
+		}
+	}
+
+	/** Removes the renderings of this path (which may be a property) and of its ancestors. */
+	private void removeAncestors(String path) {
+		String current = path;
+		while (!current.isEmpty()) {
+			renderings.remove(current);
+			int lastSlash = current.lastIndexOf('/');
+			if (lastSlash <= 0) {
+				renderings.remove("/");
+				break;
+			}
+			current = current.substring(0, lastSlash);
+		}
+	}
+
+	/**
+	 * Marks the renderings in progress which include this changed path as stale,
+	 * before the cached renderings are removed.
+	 * 
+	 * @param removed whether the renderings below this path are affected as well
+	 */
+	private void markStale(String path, boolean removed) {
+		for (InProgress current : inProgress)
+			if (isWithin(path, current.path) || (removed && isWithin(current.path, path)))
+				current.stale = true;
+	}
+
+	/** Whether this path is within an access control policy. */
+	private static boolean isAccessControl(String path) {
+		return path.contains("/rep:policy") || path.contains("/rep:repoPolicy");
+	}
+
+	private static boolean isWithin(String path, String ancestor) {
+		return ancestor.equals("/") || path.equals(ancestor) || path.startsWith(ancestor + '/');
+	}
+
+	private void invalidateAll() {
+		for (InProgress current : inProgress)
+			current.stale = true;
+		renderings.clear();
+	}
+
+	@Override
+	public synchronized void destroy() {
+		if (observationSession != null) {
+			JcrUtils.logoutQuietly(observationSession);
+			observationSession = null;
+		}
+		invalidateAll();
+		super.destroy();
+	}
+
 	private Subject anonymousLogin() {
 		Subject subject = new Subject();
 		LoginContext lc;
@@ -255,4 +471,30 @@ public class LinkServlet extends HttpServlet {
 		}
 	}
 
+	/** A rendering being computed. */
+	private static class InProgress {
+		private final String path;
+		private volatile boolean stale = false;
+
+		InProgress(String path) {
+			this.path = path;
+		}
+	}
+
+	/** The parts of a canonical answer which depend only on the path. */
+	private static class Rendering {
+		private final String title;
+		private final String description;
+		private final long lastUpdate;
+		private final String body;
+		private final String etag;
+
+		Rendering(String title, String description, long lastUpdate, String body) {
+			this.title = title;
+			this.description = description;
+			this.lastUpdate = lastUpdate;
+			this.body = body;
+			this.etag = "W/\"" + Integer.toHexString(Objects.hash(title, description, lastUpdate, body)) + '"';
+		}
+	}
 }
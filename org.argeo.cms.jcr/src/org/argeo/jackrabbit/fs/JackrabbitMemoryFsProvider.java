@@ -46,6 +46,11 @@ public class JackrabbitMemoryFsProvider extends AbstractJackrabbitFsProvider {
 			repository = RepositoryImpl.create(repositoryConfig);
 			postRepositoryCreation(repository);
 			fileSystem = new JcrFileSystem(this, repository, credentials);
+			// content is stored in memory
+			fileSystem.setUsableSpace(() -> {
+				Runtime runtime = Runtime.getRuntime();
+				return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+			});
 			return fileSystem;
 		} catch (RepositoryException | URISyntaxException e) {
 			throw new IOException("Cannot login to repository", e);
@@ -0,0 +1,399 @@
+package org.argeo.jcr;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.jcr.Credentials;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.nodetype.NodeType;
+
+import org.argeo.api.cms.CmsLog;
+
+/**
+ * Copies trees of nt:folder and nt:file (without their additional types and
+ * properties), between JCR workspaces or to the local file system. Changes are
+ * saved in batches, and the subtrees below {@link #setPartitionDepth(int)} are
+ * copied in parallel, each worker using its own sessions. If no credentials
+ * are set, workers log in with the access control context of the calling
+ * thread.
+ */
+public class JcrFileCopy {
+	private final static CmsLog log = CmsLog.getLog(JcrFileCopy.class);
+
+	private Credentials sourceCredentials = null;
+	private Credentials targetCredentials = null;
+
+	private int threads = Runtime.getRuntime().availableProcessors();
+	/** Depth below which subtrees are copied in parallel. */
+	private int partitionDepth = 1;
+	/** Save after that many files have been copied. */
+	private int batchCount = 100;
+	/** Save after that many bytes have been copied. */
+	private long batchBytes = 16 * 1024 * 1024;
+
+	private boolean recursive = true;
+	private boolean onlyAdd = false;
+	private JcrMonitor monitor = null;
+
+	/**
+	 * Copies the files below this node to another node, typically in another
+	 * workspace or repository.
+	 *
+	 * @return how many files were copied
+	 */
+	public long copyFiles(Node fromNode, Node toNode) {
+		try {
+			Session targetSession = toNode.getSession();
+			Batch batch = new Batch(targetSession);
+			List<Partition> partitions = threads > 1 ? new ArrayList<>() : null;
+			long count = copyLevel(fromNode, toNode, 0, partitions, batch);
+			// partitions' target folders must be visible to the workers
+			batch.save();
+			if (partitions != null && !partitions.isEmpty())
+				count = count + copyPartitions(fromNode.getSession(), targetSession, partitions);
+			return count;
+		} catch (RepositoryException e) {
+			throw new JcrException("Cannot copy files between " + fromNode + " and " + toNode, e);
+		}
+	}
+
+	/**
+	 * Exports the files below this node to a local directory, with parallel
+	 * writers.
+	 *
+	 * @return how many files were exported
+	 */
+	public long copyFilesToFs(Node baseNode, Path targetDir) {
+		try {
+			// directories are created while walking the tree
+			List<FileExport> files = new ArrayList<>();
+			collectFiles(baseNode, targetDir, files);
+			if (threads <= 1 || files.size() <= 1)
+				return new ExportWorker(null, files, new AtomicInteger(0)).export(baseNode.getSession());
+
+			Session session = baseNode.getSession();
+			Repository repository = session.getRepository();
+			String workspaceName = session.getWorkspace().getName();
+			AtomicInteger next = new AtomicInteger(0);
+			List<Callable<Long>> workers = new ArrayList<>();
+			for (int i = 0; i < Math.min(threads, files.size()); i++)
+				workers.add(new ExportWorker(() -> repository.login(sourceCredentials, workspaceName), files, next));
+			return runWorkers(workers, baseNode.getPath());
+		} catch (RepositoryException e) {
+			throw new JcrException("Cannot copy " + baseNode + " to " + targetDir, e);
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot copy " + baseNode + " to " + targetDir, e);
+		}
+	}
+
+	/**
+	 * Copies the files of this level and creates its folders, recursing until the
+	 * partition depth is reached.
+	 *
+	 * @param partitions where to collect the subtrees to copy in parallel, or
+	 *                   null if everything should be copied in this thread
+	 */
+	private long copyLevel(Node fromNode, Node toNode, int depth, List<Partition> partitions, Batch batch)
+			throws RepositoryException {
+		long count = 0l;
+		for (NodeIterator fromChildren = fromNode.getNodes(); fromChildren.hasNext();) {
+			checkCanceled();
+			Node fromChild = fromChildren.nextNode();
+			if (fromChild.isNodeType(NodeType.NT_FILE)) {
+				if (copyFile(fromChild, toNode, batch))
+					count++;
+			} else if (recursive && fromChild.isNodeType(NodeType.NT_FOLDER)) {
+				String fileName = fromChild.getName();
+				Node toChildFolder;
+				if (toNode.hasNode(fileName)) {
+					toChildFolder = toNode.getNode(fileName);
+					if (!toChildFolder.isNodeType(NodeType.NT_FOLDER))
+						throw new IllegalArgumentException(toChildFolder + " is not of type nt:folder");
+				} else {
+					toChildFolder = toNode.addNode(fileName, NodeType.NT_FOLDER);
+				}
+				if (partitions != null && depth + 1 >= partitionDepth)
+					partitions.add(new Partition(fromChild.getPath(), toChildFolder.getPath()));
+				else
+					count = count + copyLevel(fromChild, toChildFolder, depth + 1, partitions, batch);
+			}
+		}
+		return count;
+	}
+
+	/** @return whether the file has been copied */
+	private boolean copyFile(Node fromFile, Node toFolder, Batch batch) throws RepositoryException {
+		String fileName = fromFile.getName();
+		if (onlyAdd && toFolder.hasNode(fileName)) {
+			subTask("Skip existing " + fileName);
+			return false;
+		}
+		subTask("Copy " + fileName);
+		Property data = fromFile.getNode(Node.JCR_CONTENT).getProperty(Property.JCR_DATA);
+		try (Bin binary = new Bin(data); InputStream in = binary.getStream();) {
+			JcrUtils.copyStreamAsFile(toFolder, fileName, in);
+		} catch (IOException e) {
+			throw new RuntimeException("Cannot copy " + fileName + " to " + toFolder, e);
+		}
+		batch.added(data.getLength());
+		worked();
+		return true;
+	}
+
+	private long copyPartitions(Session sourceSession, Session targetSession, List<Partition> partitions)
+			throws RepositoryException {
+		Repository sourceRepository = sourceSession.getRepository();
+		String sourceWorkspaceName = sourceSession.getWorkspace().getName();
+		Repository targetRepository = targetSession.getRepository();
+		String targetWorkspaceName = targetSession.getWorkspace().getName();
+
+		int workerCount = Math.min(threads, partitions.size());
+		if (log.isDebugEnabled())
+			log.debug("Copy " + partitions.size() + " subtrees of " + sourceWorkspaceName + " to "
+					+ targetWorkspaceName + " with " + workerCount + " workers");
+		AtomicInteger next = new AtomicInteger(0);
+		List<Callable<Long>> workers = new ArrayList<>();
+		for (int i = 0; i < workerCount; i++) {
+			workers.add(() -> {
+				Session source = null;
+				Session target = null;
+				try {
+					source = sourceRepository.login(sourceCredentials, sourceWorkspaceName);
+					target = targetRepository.login(targetCredentials, targetWorkspaceName);
+					Batch batch = new Batch(target);
+					long count = 0l;
+					int index;
+					while ((index = next.getAndIncrement()) < partitions.size()) {
+						Partition partition = partitions.get(index);
+						count = count + copyLevel(source.getNode(partition.fromPath),
+								target.getNode(partition.toPath), 0, null, batch);
+					}
+					batch.save();
+					return count;
+				} finally {
+					JcrUtils.logoutQuietly(source);
+					JcrUtils.logoutQuietly(target);
+				}
+			});
+		}
+		return runWorkers(workers, sourceSession.getWorkspace().getName());
+	}
+
+	/** Creates the directories and collects the files to export. */
+	private void collectFiles(Node node, Path dir, List<FileExport> files) throws RepositoryException, IOException {
+		Files.createDirectories(dir);
+		for (NodeIterator nit = node.getNodes(); nit.hasNext();) {
+			checkCanceled();
+			Node child = nit.nextNode();
+			if (child.isNodeType(NodeType.NT_FILE)) {
+				files.add(new FileExport(child.getPath(), dir.resolve(child.getName())));
+			} else if (recursive && child.isNodeType(NodeType.NT_FOLDER)) {
+				collectFiles(child, dir.resolve(child.getName()), files);
+			}
+		}
+	}
+
+	private long runWorkers(List<Callable<Long>> workers, String label) throws RepositoryException {
+		ExecutorService executorService = Executors.newFixedThreadPool(workers.size());
+		try {
+			List<Future<Long>> futures = new ArrayList<>();
+			for (Callable<Long> worker : workers)
+				futures.add(executorService.submit(worker));
+			long count = 0l;
+			for (Future<Long> future : futures)
+				count = count + future.get();
+			return count;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Copy of " + label + " has been interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RepositoryException repositoryException)
+				throw repositoryException;
+			if (cause instanceof RuntimeException runtimeException)
+				throw runtimeException;
+			throw new RuntimeException("Cannot copy " + label, cause);
+		} finally {
+			executorService.shutdownNow();
+		}
+	}
+
+	/*
+	 * MONITOR
+	 */
+	private void checkCanceled() {
+		if (monitor != null && monitor.isCanceled())
+			throw new IllegalStateException("Copy cancelled before it was completed");
+	}
+
+	private void subTask(String name) {
+		if (monitor == null)
+			return;
+		// monitors are not expected to be thread-safe
+		synchronized (monitor) {
+			monitor.subTask(name);
+		}
+	}
+
+	private void worked() {
+		if (monitor == null)
+			return;
+		synchronized (monitor) {
+			monitor.worked(1);
+		}
+	}
+
+	/*
+	 * SETTERS
+	 */
+	public void setSourceCredentials(Credentials sourceCredentials) {
+		this.sourceCredentials = sourceCredentials;
+	}
+
+	public void setTargetCredentials(Credentials targetCredentials) {
+		this.targetCredentials = targetCredentials;
+	}
+
+	/**
+	 * Number of parallel workers, 1 meaning that everything is done in the calling
+	 * thread, with the sessions of the provided nodes.
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public void setPartitionDepth(int partitionDepth) {
+		this.partitionDepth = partitionDepth;
+	}
+
+	public void setBatchCount(int batchCount) {
+		this.batchCount = batchCount;
+	}
+
+	public void setBatchBytes(long batchBytes) {
+		this.batchBytes = batchBytes;
+	}
+
+	public void setRecursive(boolean recursive) {
+		this.recursive = recursive;
+	}
+
+	/** Whether existing files should be skipped rather than overwritten. */
+	public void setOnlyAdd(boolean onlyAdd) {
+		this.onlyAdd = onlyAdd;
+	}
+
+	public void setMonitor(JcrMonitor monitor) {
+		this.monitor = monitor;
+	}
+
+	/*
+	 * CLASSES
+	 */
+	/** Pending changes of a session, saved when a threshold is reached. */
+	private class Batch {
+		private final Session session;
+		private int count = 0;
+		private long bytes = 0l;
+
+		Batch(Session session) {
+			this.session = session;
+		}
+
+		void added(long length) throws RepositoryException {
+			count++;
+			if (length > 0)
+				bytes = bytes + length;
+			if (count >= batchCount || bytes >= batchBytes)
+				save();
+		}
+
+		void save() throws RepositoryException {
+			if (session.hasPendingChanges())
+				session.save();
+			count = 0;
+			bytes = 0l;
+		}
+	}
+
+	/** A subtree to copy in parallel. */
+	private static class Partition {
+		private final String fromPath;
+		private final String toPath;
+
+		Partition(String fromPath, String toPath) {
+			this.fromPath = fromPath;
+			this.toPath = toPath;
+		}
+	}
+
+	/** A file to export to the file system. */
+	private static class FileExport {
+		private final String jcrPath;
+		private final Path path;
+
+		FileExport(String jcrPath, Path path) {
+			this.jcrPath = jcrPath;
+			this.path = path;
+		}
+	}
+
+	/** Writes the next available files, with its own session if it has a login. */
+	private class ExportWorker implements Callable<Long> {
+		private final Callable<Session> login;
+		private final List<FileExport> files;
+		private final AtomicInteger next;
+
+		ExportWorker(Callable<Session> login, List<FileExport> files, AtomicInteger next) {
+			this.login = login;
+			this.files = files;
+			this.next = next;
+		}
+
+		@Override
+		public Long call() throws Exception {
+			Session session = login.call();
+			try {
+				return export(session);
+			} finally {
+				JcrUtils.logoutQuietly(session);
+			}
+		}
+
+		long export(Session session) throws RepositoryException, IOException {
+			long count = 0l;
+			int index;
+			while ((index = next.getAndIncrement()) < files.size()) {
+				checkCanceled();
+				FileExport file = files.get(index);
+				if (onlyAdd && Files.exists(file.path)) {
+					subTask("Skip existing " + file.path);
+					continue;
+				}
+				subTask("Export " + file.jcrPath);
+				try (InputStream in = JcrUtils.getFileAsStream(session.getNode(file.jcrPath))) {
+					Files.copy(in, file.path, StandardCopyOption.REPLACE_EXISTING);
+				}
+				count++;
+				worked();
+			}
+			return count;
+		}
+	}
+}
@@ -13,8 +13,6 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.Principal;
 import java.text.DateFormat;
 import java.text.ParseException;
@@ -1350,22 +1348,13 @@ public class JcrUtils {
 	 * Estimate the sub tree size from current node. Computation is based on the Jcr
 	 * {@link Property#getLength()} method. Note : it is not the exact size used on
 	 * the disk by the current part of the JCR Tree.
+	 * 
+	 * @see SubtreeSizeCache for repeated computations
 	 */
-
 	public static long getNodeApproxSize(Node node) {
 		long curNodeSize = 0;
 		try {
-			PropertyIterator pi = node.getProperties();
-			while (pi.hasNext()) {
-				Property prop = pi.nextProperty();
-				if (prop.isMultiple()) {
-					int nb = prop.getLengths().length;
-					for (int i = 0; i < nb; i++) {
-						curNodeSize += (prop.getLengths()[i] > 0 ? prop.getLengths()[i] : 0);
-					}
-				} else
-					curNodeSize += (prop.getLength() > 0 ? prop.getLength() : 0);
-			}
+			curNodeSize += SubtreeSizeCache.getPropertiesSize(node);
 
 			NodeIterator ni = node.getNodes();
 			while (ni.hasNext())
@@ -1501,6 +1490,8 @@ public class JcrUtils {
 	 * @param recursive if true copies folders as well, otherwise only first level
 	 *                  files
 	 * @return how many files were copied
+	 * @see JcrFileCopy for large trees, which saves in batches and copies in
+	 *      parallel
 	 */
 	public static Long copyFiles(Node fromNode, Node toNode, Boolean recursive, JcrMonitor monitor, boolean onlyAdd) {
 		long count = 0l;
@@ -1566,6 +1557,8 @@ public class JcrUtils {
 	/**
 	 * Iteratively count all file nodes in subtree, inefficient but can be useful
 	 * when query are poorly supported, such as in remoting.
+	 * 
+	 * @see SubtreeSizeCache for repeated computations
 	 */
 	public static Long countFiles(Node node) {
 		Long localCount = 0l;
@@ -1661,6 +1654,11 @@ public class JcrUtils {
 		// TODO remove properties if args are null?
 	}
 
+	/**
+	 * Copy nt:folder and nt:file to the file system, sequentially.
+	 * 
+	 * @see JcrFileCopy for parallel writers
+	 */
 	public static void copyFilesToFs(Node baseNode, Path targetDir, boolean recursive) {
 		try {
 			Files.createDirectories(targetDir);
@@ -1686,56 +1684,12 @@ public class JcrUtils {
 	/**
 	 * Computes the checksum of an nt:file.
 	 * 
-	 * @deprecated use separate digest utilities
+	 * @deprecated use {@link JcrxApi#computeChecksums(Node, String...)}, which
+	 *             computes multiple checksums in one read
 	 */
 	@Deprecated
 	public static String checksumFile(Node fileNode, String algorithm) {
-		try (InputStream in = fileNode.getNode(Node.JCR_CONTENT).getProperty(Property.JCR_DATA).getBinary()
-				.getStream()) {
-			return digest(algorithm, in);
-		} catch (IOException e) {
-			throw new RuntimeException("Cannot checksum file " + fileNode + " with algorithm " + algorithm, e);
-		} catch (RepositoryException e) {
-			throw new JcrException("Cannot checksum file " + fileNode + " with algorithm " + algorithm, e);
-		}
-	}
-
-	@Deprecated
-	private static String digest(String algorithm, InputStream in) {
-		final Integer byteBufferCapacity = 100 * 1024;// 100 KB
-		try {
-			MessageDigest digest = MessageDigest.getInstance(algorithm);
-			byte[] buffer = new byte[byteBufferCapacity];
-			int read = 0;
-			while ((read = in.read(buffer)) > 0) {
-				digest.update(buffer, 0, read);
-			}
-
-			byte[] checksum = digest.digest();
-			String res = encodeHexString(checksum);
-			return res;
-		} catch (IOException e) {
-			throw new RuntimeException("Cannot digest with algorithm " + algorithm, e);
-		} catch (NoSuchAlgorithmException e) {
-			throw new IllegalArgumentException("Cannot digest with algorithm " + algorithm, e);
-		}
-	}
-
-	/**
-	 * From
-	 * http://stackoverflow.com/questions/9655181/how-to-convert-a-byte-array-to
-	 * -a-hex-string-in-java
-	 */
-	@Deprecated
-	private static String encodeHexString(byte[] bytes) {
-		final char[] hexArray = "0123456789abcdef".toCharArray();
-		char[] hexChars = new char[bytes.length * 2];
-		for (int j = 0; j < bytes.length; j++) {
-			int v = bytes[j] & 0xFF;
-			hexChars[j * 2] = hexArray[v >>> 4];
-			hexChars[j * 2 + 1] = hexArray[v & 0x0F];
-		}
-		return new String(hexChars);
+		return JcrxApi.computeChecksums(fileNode, algorithm).get(0);
 	}
 
 	/** Export a subtree as a compact XML without namespaces. */
@@ -1,9 +1,15 @@
 package org.argeo.jcr;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+import javax.jcr.Binary;
 import javax.jcr.Node;
 import javax.jcr.Property;
 import javax.jcr.RepositoryException;
@@ -26,6 +32,9 @@ public class JcrxApi {
 	public final static int LENGTH_SHA256 = EMPTY_SHA256.length();
 	public final static int LENGTH_SHA512 = EMPTY_SHA512.length();
 
+	private final static int DIGEST_BUFFER_SIZE = 64 * 1024;
+	private final static char[] HEX = "0123456789abcdef".toCharArray();
+
 	/*
 	 * XML
 	 */
@@ -144,6 +153,78 @@ public class JcrxApi {
 		}
 	}
 
+	/**
+	 * Computes the checksums of the content of an nt:file with these
+	 * algorithms, in a single read.
+	 * 
+	 * @return the checksums, in the order of the algorithms
+	 */
+	public static List<String> computeChecksums(Node fileNode, String... algorithms) {
+		Binary binary = null;
+		try {
+			binary = fileNode.getNode(Node.JCR_CONTENT).getProperty(Property.JCR_DATA).getBinary();
+			return computeChecksums(binary, algorithms);
+		} catch (RepositoryException e) {
+			throw new JcrException("Cannot checksum " + fileNode, e);
+		} finally {
+			JcrUtils.closeQuietly(binary);
+		}
+	}
+
+	/**
+	 * Computes the checksums of this binary with these algorithms, in a single
+	 * read.
+	 * 
+	 * @return the checksums, in the order of the algorithms
+	 */
+	public static List<String> computeChecksums(Binary binary, String... algorithms) throws RepositoryException {
+		try (InputStream in = binary.getStream()) {
+			return computeChecksums(in, algorithms);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Cannot read binary", e);
+		}
+	}
+
+	/**
+	 * Computes the checksums of this stream with these algorithms, in a single
+	 * read. The stream is not closed.
+	 * 
+	 * @return the checksums as lower case hexadecimal strings, in the order of
+	 *         the algorithms
+	 */
+	public static List<String> computeChecksums(InputStream in, String... algorithms) throws IOException {
+		if (algorithms.length == 0)
+			throw new IllegalArgumentException("At least one algorithm must be specified");
+		MessageDigest[] digests = new MessageDigest[algorithms.length];
+		for (int i = 0; i < algorithms.length; i++) {
+			try {
+				digests[i] = MessageDigest.getInstance(algorithms[i]);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalArgumentException("Unkown algorithm " + algorithms[i], e);
+			}
+		}
+		byte[] buffer = new byte[DIGEST_BUFFER_SIZE];
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			for (MessageDigest digest : digests)
+				digest.update(buffer, 0, read);
+		}
+		List<String> res = new ArrayList<>(algorithms.length);
+		for (MessageDigest digest : digests)
+			res.add(toHex(digest.digest()));
+		return res;
+	}
+
+	private static String toHex(byte[] bytes) {
+		char[] hexChars = new char[bytes.length * 2];
+		for (int j = 0; j < bytes.length; j++) {
+			int v = bytes[j] & 0xFF;
+			hexChars[j * 2] = HEX[v >>> 4];
+			hexChars[j * 2 + 1] = HEX[v & 0x0F];
+		}
+		return new String(hexChars);
+	}
+
 //	/** Replace all checksums with this single one. */
 //	public static void setChecksum(Node node, String checksum) {
 //		setChecksums(node, Collections.singletonList(checksum));
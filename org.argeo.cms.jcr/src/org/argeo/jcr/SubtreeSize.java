@@ -0,0 +1,34 @@
+package org.argeo.jcr;
+
+/** The aggregated size of a JCR subtree. */
+public class SubtreeSize {
+	private final long bytes;
+	private final long nodes;
+	private final long files;
+
+	public SubtreeSize(long bytes, long nodes, long files) {
+		this.bytes = bytes;
+		this.nodes = nodes;
+		this.files = files;
+	}
+
+	/** Approximate size in bytes, as the sum of the lengths of all properties. */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/** Number of nodes, including the base node of the subtree. */
+	public long getNodes() {
+		return nodes;
+	}
+
+	/** Number of nt:file nodes. */
+	public long getFiles() {
+		return files;
+	}
+
+	@Override
+	public String toString() {
+		return "SubtreeSize " + bytes + " bytes, " + nodes + " nodes, " + files + " files";
+	}
+}
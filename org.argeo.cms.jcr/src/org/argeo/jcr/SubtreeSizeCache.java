@@ -0,0 +1,419 @@
+package org.argeo.jcr;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.Credentials;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.PathNotFoundException;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.Repository;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.nodetype.NodeType;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+
+import org.argeo.api.cms.CmsLog;
+
+/**
+ * Computes the sizes of the subtrees of a workspace and caches them, so that
+ * they are only computed again along the paths which have changed. The cache
+ * is invalidated by observing the workspace: after a change, the size of an
+ * ancestor is computed from the cached sizes of its unchanged children. A
+ * computed size is not cached if its subtree has been modified during the
+ * computation, changes elsewhere in the workspace being ignored. Sizes can
+ * also be retrieved without blocking (see {@link #getLastKnownSize(String)}),
+ * in which case they are computed in the background. The shared jcr:system
+ * subtree is not accounted for.
+ */
+public class SubtreeSizeCache implements EventListener {
+	private final static CmsLog log = CmsLog.getLog(SubtreeSizeCache.class);
+
+	/** Smaller subtrees are not cached, since they are cheap to compute. */
+	private final static long MIN_CACHED_NODES = 64;
+
+	private final Session session;
+	private final NavigableMap<String, SubtreeSize> cache = new ConcurrentSkipListMap<>();
+
+	/** Incremented by each invalidation. */
+	private final AtomicLong clock = new AtomicLong(0);
+	/** Last invalidation of each path, by a change to it or to a descendant. */
+	private final Map<String, Long> invalidations = new ConcurrentHashMap<>();
+	/** Last invalidation of all the descendants of each path (removals, moves). */
+	private final Map<String, Long> subtreeInvalidations = new ConcurrentHashMap<>();
+	/**
+	 * Start of the computations in progress (and how many started then), so that
+	 * older invalidations can be forgotten.
+	 */
+	private final NavigableMap<Long, Integer> running = new TreeMap<>();
+
+	/** Sizes returned without blocking, kept when they are invalidated. */
+	private final Map<String, SubtreeSize> lastKnown = new ConcurrentHashMap<>();
+	/** Paths whose size is being computed in the background. */
+	private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+	private volatile ExecutorService refresher = null;
+
+	private int threads = 1;
+	private Credentials credentials = null;
+
+	private volatile boolean listening = false;
+
+	/** @param session the session used to compute and to observe */
+	public SubtreeSizeCache(Session session) {
+		this.session = session;
+	}
+
+	/** Starts observing the workspace, without which the cache is never used. */
+	public synchronized void start() {
+		try {
+			session.getWorkspace().getObservationManager().addEventListener(this,
+					Event.NODE_ADDED | Event.NODE_REMOVED | Event.NODE_MOVED | Event.PROPERTY_ADDED
+							| Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED,
+					"/", true, null, null, false);
+			listening = true;
+			String workspaceName = session.getWorkspace().getName();
+			refresher = Executors.newSingleThreadExecutor((r) -> {
+				Thread thread = new Thread(r, "Compute subtree sizes of " + workspaceName);
+				thread.setDaemon(true);
+				return thread;
+			});
+		} catch (RepositoryException e) {
+			throw new JcrException("Cannot observe workspace " + session.getWorkspace().getName(), e);
+		}
+	}
+
+	public synchronized void stop() {
+		if (listening) {
+			try {
+				session.getWorkspace().getObservationManager().removeEventListener(this);
+			} catch (RepositoryException e) {
+				log.warn("Cannot stop observing " + session.getWorkspace().getName() + ": " + e.getMessage());
+			}
+			listening = false;
+			refresher.shutdownNow();
+			refresher = null;
+		}
+		cache.clear();
+		lastKnown.clear();
+	}
+
+	/**
+	 * The size of the subtree at this path, computed in the calling thread if it
+	 * is not cached.
+	 */
+	public SubtreeSize getSize(String path) {
+		try {
+			return getSize(session.getNode(path));
+		} catch (RepositoryException e) {
+			throw new JcrException("Cannot compute size of " + path, e);
+		}
+	}
+
+	/**
+	 * The last known size of the subtree at this path, without blocking. If it
+	 * is not up to date, it is computed again in the background with its own
+	 * session (or in the calling thread if the cache has not been started).
+	 * 
+	 * @return the last known size, or null if it is not known yet
+	 */
+	public SubtreeSize getLastKnownSize(String path) {
+		SubtreeSize cached = cache.get(path);
+		if (cached != null) {
+			lastKnown.put(path, cached);
+			return cached;
+		}
+		ExecutorService refresher = this.refresher;
+		if (refresher == null)
+			return getSize(path);
+		if (refreshing.add(path)) {
+			try {
+				refresher.execute(() -> refresh(path));
+			} catch (RejectedExecutionException e) {
+				// stopped in between
+				refreshing.remove(path);
+			}
+		}
+		return lastKnown.get(path);
+	}
+
+	private void refresh(String path) {
+		Session refreshSession = null;
+		try {
+			refreshSession = session.getRepository().login(credentials, session.getWorkspace().getName());
+			lastKnown.put(path, getSize(refreshSession.getNode(path)));
+		} catch (PathNotFoundException e) {
+			lastKnown.remove(path);
+		} catch (RepositoryException | RuntimeException e) {
+			log.warn("Cannot compute size of " + path + ": " + e.getMessage());
+		} finally {
+			refreshing.remove(path);
+			JcrUtils.logoutQuietly(refreshSession);
+		}
+	}
+
+	private SubtreeSize getSize(Node node) throws RepositoryException {
+		SubtreeSize cached = cache.get(node.getPath());
+		if (cached != null)
+			return cached;
+		long since = begin();
+		try {
+			if (threads > 1)
+				return computeInParallel(node, since);
+			else
+				return compute(node, since);
+		} finally {
+			end(since);
+		}
+	}
+
+	/*
+	 * COMPUTATION
+	 */
+	protected SubtreeSize compute(Node node, long since) throws RepositoryException {
+		String path = node.getPath();
+		SubtreeSize cached = cache.get(path);
+		if (cached != null)
+			return cached;
+		long bytes = getPropertiesSize(node);
+		long nodes = 1;
+		long files = node.isNodeType(NodeType.NT_FILE) ? 1 : 0;
+		for (NodeIterator nit = node.getNodes(); nit.hasNext();) {
+			Node child = nit.nextNode();
+			if (skip(child))
+				continue;
+			SubtreeSize childSize = compute(child, since);
+			bytes = bytes + childSize.getBytes();
+			nodes = nodes + childSize.getNodes();
+			files = files + childSize.getFiles();
+		}
+		SubtreeSize res = new SubtreeSize(bytes, nodes, files);
+		if (listening && nodes >= MIN_CACHED_NODES)
+			put(path, res, since);
+		return res;
+	}
+
+	/** Computes the children of this node with parallel workers. */
+	protected SubtreeSize computeInParallel(Node node, long since) throws RepositoryException {
+		List<String> childPaths = new ArrayList<>();
+		for (NodeIterator nit = node.getNodes(); nit.hasNext();) {
+			Node child = nit.nextNode();
+			if (!skip(child))
+				childPaths.add(child.getPath());
+		}
+		if (childPaths.size() <= 1)
+			return compute(node, since);
+
+		Repository repository = session.getRepository();
+		String workspaceName = session.getWorkspace().getName();
+		SubtreeSize[] childSizes = new SubtreeSize[childPaths.size()];
+		AtomicInteger next = new AtomicInteger(0);
+		int workerCount = Math.min(threads, childPaths.size());
+		ExecutorService executorService = Executors.newFixedThreadPool(workerCount);
+		try {
+			List<Future<Void>> futures = new ArrayList<>();
+			for (int i = 0; i < workerCount; i++) {
+				Callable<Void> worker = () -> {
+					Session workerSession = repository.login(credentials, workspaceName);
+					try {
+						int index;
+						while ((index = next.getAndIncrement()) < childSizes.length)
+							childSizes[index] = compute(workerSession.getNode(childPaths.get(index)), since);
+						return null;
+					} finally {
+						JcrUtils.logoutQuietly(workerSession);
+					}
+				};
+				futures.add(executorService.submit(worker));
+			}
+			for (Future<Void> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Computation of the size of " + node + " has been interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RepositoryException repositoryException)
+				throw repositoryException;
+			throw new IllegalStateException("Cannot compute the size of " + node, cause);
+		} finally {
+			executorService.shutdownNow();
+		}
+
+		long bytes = getPropertiesSize(node);
+		long nodes = 1;
+		long files = node.isNodeType(NodeType.NT_FILE) ? 1 : 0;
+		for (SubtreeSize childSize : childSizes) {
+			bytes = bytes + childSize.getBytes();
+			nodes = nodes + childSize.getNodes();
+			files = files + childSize.getFiles();
+		}
+		SubtreeSize res = new SubtreeSize(bytes, nodes, files);
+		if (listening)
+			put(node.getPath(), res, since);
+		return res;
+	}
+
+	/**
+	 * Caches a size, unless this subtree has been invalidated since the
+	 * computation started.
+	 */
+	private void put(String path, SubtreeSize size, long since) {
+		if (isInvalidatedSince(path, since))
+			return;
+		cache.put(path, size);
+		// an invalidation may have happened in between
+		if (isInvalidatedSince(path, since))
+			cache.remove(path, size);
+	}
+
+	private boolean isInvalidatedSince(String path, long since) {
+		Long invalidation = invalidations.get(path);
+		if (invalidation != null && invalidation > since)
+			return true;
+		for (String current = path; current != null; current = parentPath(current)) {
+			Long subtreeInvalidation = subtreeInvalidations.get(current);
+			if (subtreeInvalidation != null && subtreeInvalidation > since)
+				return true;
+		}
+		return false;
+	}
+
+	/** Registers a computation, and returns the clock when it started. */
+	private long begin() {
+		synchronized (running) {
+			long since = clock.get();
+			running.merge(since, 1, Integer::sum);
+			return since;
+		}
+	}
+
+	/**
+	 * Unregisters a computation, and forgets the invalidations which cannot
+	 * affect the ones still in progress.
+	 */
+	private void end(long since) {
+		long threshold;
+		synchronized (running) {
+			running.computeIfPresent(since, (k, count) -> count == 1 ? null : count - 1);
+			threshold = running.isEmpty() ? clock.get() : Math.min(running.firstKey(), clock.get());
+		}
+		invalidations.values().removeIf((invalidation) -> invalidation <= threshold);
+		subtreeInvalidations.values().removeIf((invalidation) -> invalidation <= threshold);
+	}
+
+	protected boolean skip(Node child) throws RepositoryException {
+		return child.getDepth() == 1 && child.getName().equals("jcr:system");
+	}
+
+	/** The sum of the lengths of the properties of this node. */
+	static long getPropertiesSize(Node node) throws RepositoryException {
+		long size = 0;
+		for (PropertyIterator pi = node.getProperties(); pi.hasNext();) {
+			Property prop = pi.nextProperty();
+			if (prop.isMultiple()) {
+				for (long length : prop.getLengths())
+					if (length > 0)
+						size = size + length;
+			} else {
+				long length = prop.getLength();
+				if (length > 0)
+					size = size + length;
+			}
+		}
+		return size;
+	}
+
+	/*
+	 * INVALIDATION
+	 */
+	@Override
+	public void onEvent(EventIterator events) {
+		try {
+			while (events.hasNext()) {
+				Event event = events.nextEvent();
+				switch (event.getType()) {
+				case Event.NODE_REMOVED:
+					invalidate(event.getPath(), true);
+					break;
+				case Event.NODE_MOVED:
+					Object srcAbsPath = event.getInfo().get("srcAbsPath");
+					if (srcAbsPath != null)
+						invalidate(srcAbsPath.toString(), true);
+					invalidate(event.getPath(), true);
+					break;
+				default:
+					invalidate(event.getPath(), false);
+				}
+			}
+		} catch (RepositoryException e) {
+			log.warn("Cannot process events, clearing the size cache: " + e.getMessage());
+			invalidate("/", true);
+		}
+	}
+
+	/**
+	 * Invalidates the subtree size at this path (which may be the one of a
+	 * property) and the ones of its ancestors.
+	 *
+	 * @param descendants whether the cached sizes below this path should be
+	 *                    invalidated as well
+	 */
+	public void invalidate(String path, boolean descendants) {
+		long invalidation = clock.incrementAndGet();
+		// recorded before the cache is cleared, so that concurrent puts are undone
+		for (String current = path; current != null; current = parentPath(current))
+			invalidations.merge(current, invalidation, Math::max);
+		if (descendants) {
+			subtreeInvalidations.merge(path, invalidation, Math::max);
+			if (path.equals("/"))
+				cache.clear();
+			else
+				// '0' follows '/'
+				cache.subMap(path + '/', path + '0').clear();
+		}
+		for (String current = path; current != null; current = parentPath(current))
+			cache.remove(current);
+	}
+
+	/** The parent path, or null for the root. */
+	private static String parentPath(String path) {
+		int lastSlash = path.lastIndexOf('/');
+		if (lastSlash < 0 || path.equals("/"))
+			return null;
+		return lastSlash == 0 ? "/" : path.substring(0, lastSlash);
+	}
+
+	/*
+	 * SETTERS
+	 */
+	/**
+	 * Number of parallel workers computing the children of an uncached subtree,
+	 * each logging in with its own session.
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/** Credentials for the workers, or null to use the calling context. */
+	public void setCredentials(Credentials credentials) {
+		this.credentials = credentials;
+	}
+}
@@ -1,16 +1,23 @@
 package org.argeo.jcr.fs;
 
 import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Set;
 
 import javax.jcr.Binary;
 import javax.jcr.Node;
@@ -21,18 +28,47 @@ import javax.jcr.nodetype.NodeType;
 
 import org.argeo.jcr.JcrUtils;
 
-/** A read/write {@link SeekableByteChannel} based on a {@link Binary}. */
+/**
+ * A read/write {@link SeekableByteChannel} based on a {@link Binary}.
+ * <p>
+ * Reads are streamed from the binary at the current position, directly into
+ * heap buffers (at their offset) or through a small scratch array for direct
+ * buffers. Writes at or beyond the end of the retained part of the binary are
+ * spooled in a temporary file containing only the new bytes, and the original
+ * binary is only streamed again when the channel is closed. Only writes within
+ * the original content require the whole binary to be copied locally.
+ */
 public class BinaryChannel implements SeekableByteChannel {
+	private final static int SCRATCH_SIZE = 64 * 1024;
+
 	private final Node file;
+	private final Path path;
 	private Binary binary;
 	private boolean open = true;
 
 	private long position = 0;
 
+	/** Number of bytes of the original binary which are retained. */
+	private long baseSize = 0;
+	/** Sequential stream on the original binary, and its current position. */
+	private InputStream in = null;
+	private long inPosition = 0;
+	private byte[] scratch = null;
+
+	/** New bytes, starting at {@link #baseSize}. */
+	private FileChannel appendFc = null;
+	/** Whole content, once a write occurred within the original binary. */
 	private FileChannel fc = null;
+	private boolean modified = false;
 
 	public BinaryChannel(Node file, Path path) throws RepositoryException, IOException {
+		this(file, path, Collections.emptySet());
+	}
+
+	public BinaryChannel(Node file, Path path, Set<? extends OpenOption> options)
+			throws RepositoryException, IOException {
 		this.file = file;
+		this.path = path;
 		Session session = file.getSession();
 		synchronized (session) {
 			if (file.isNodeType(NodeType.NT_FILE)) {
@@ -61,6 +97,14 @@ public class BinaryChannel implements SeekableByteChannel {
 						"Unsupported file node " + file + " (" + file.getPrimaryNodeType() + ")");
 			}
 		}
+		this.baseSize = binary.getSize();
+		if (options.contains(StandardOpenOption.TRUNCATE_EXISTING) && options.contains(StandardOpenOption.WRITE)
+				&& baseSize != 0) {
+			baseSize = 0;
+			modified = true;
+		}
+		if (options.contains(StandardOpenOption.APPEND))
+			position = baseSize;
 	}
 
 	@Override
@@ -70,28 +114,34 @@ public class BinaryChannel implements SeekableByteChannel {
 
 	@Override
 	public synchronized void close() throws IOException {
-		if (isModified()) {
+		if (!open)
+			return;
+		if (modified) {
 			Binary newBinary = null;
 			try {
 				Session session = file.getSession();
+				// stream the new content outside of the session lock
+				try (InputStream newContent = newContentStream()) {
+					newBinary = session.getValueFactory().createBinary(newContent);
+				}
 				synchronized (session) {
-					fc.position(0);
-					InputStream in = Channels.newInputStream(fc);
-					newBinary = session.getValueFactory().createBinary(in);
 					file.getNode(Property.JCR_CONTENT).setProperty(Property.JCR_DATA, newBinary);
 					session.refresh(true);
 					session.save();
-					open = false;
 					session.notifyAll();
 				}
+				if (path.getFileSystem() instanceof JcrFileSystem fileSystem)
+					fileSystem.notifyModified();
 			} catch (RepositoryException e) {
 				throw new IOException("Cannot close " + file, e);
 			} finally {
+				open = false;
 				JcrUtils.closeQuietly(newBinary);
-				// IOUtils.closeQuietly(fc);
-				if (fc != null) {
+				clearReadState();
+				if (appendFc != null)
+					appendFc.close();
+				if (fc != null)
 					fc.close();
-				}
 			}
 		} else {
 			clearReadState();
@@ -100,91 +150,337 @@ public class BinaryChannel implements SeekableByteChannel {
 	}
 
 	@Override
-	public int read(ByteBuffer dst) throws IOException {
-		if (isModified()) {
-			return fc.read(dst);
+	public synchronized int read(ByteBuffer dst) throws IOException {
+		ensureOpen();
+		int read = read(dst, position);
+		if (read > 0)
+			position = position + read;
+		return read;
+	}
+
+	private int read(ByteBuffer dst, long pos) throws IOException {
+		if (!dst.hasRemaining())
+			return 0;
+		if (fc != null)
+			return fc.read(dst, pos);
+		if (pos >= size())
+			return -1;
+		if (pos < baseSize) {
+			int max = (int) Math.min(dst.remaining(), baseSize - pos);
+			return readFromBinary(dst, pos, max);
 		} else {
+			return appendFc.read(dst, pos - baseSize);
+		}
+	}
 
-			try {
-				int read;
-				byte[] arr = dst.array();
-				read = binary.read(arr, position);
+	/** Read from the original binary, reusing the sequential stream if possible. */
+	private int readFromBinary(ByteBuffer dst, long pos, int max) throws IOException {
+		seekBinary(pos);
+		int read;
+		if (dst.hasArray()) {
+			read = in.read(dst.array(), dst.arrayOffset() + dst.position(), max);
+			if (read > 0)
+				dst.position(dst.position() + read);
+		} else {
+			byte[] buf = getScratch();
+			read = in.read(buf, 0, Math.min(max, buf.length));
+			if (read > 0)
+				dst.put(buf, 0, read);
+		}
+		if (read > 0)
+			inPosition = inPosition + read;
+		return read;
+	}
 
-				if (read != -1)
-					position = position + read;
-				return read;
-			} catch (RepositoryException e) {
-				throw new IOException("Cannot read into buffer", e);
+	private void seekBinary(long pos) throws IOException {
+		if (in != null && pos == inPosition)
+			return;
+		try {
+			if (in == null || pos < inPosition) {
+				if (in != null)
+					in.close();
+				in = binary.getStream();
+				inPosition = 0;
+			}
+			while (inPosition < pos) {
+				long skipped = in.skip(pos - inPosition);
+				if (skipped <= 0) {
+					if (in.read() == -1)
+						throw new IOException("Cannot seek to " + pos + " in " + file);
+					skipped = 1;
+				}
+				inPosition = inPosition + skipped;
 			}
+		} catch (RepositoryException e) {
+			throw new IOException("Cannot open binary stream", e);
 		}
 	}
 
 	@Override
-	public int write(ByteBuffer src) throws IOException {
-		int written = getFileChannel().write(src);
+	public synchronized int write(ByteBuffer src) throws IOException {
+		ensureOpen();
+		int written;
+		if (fc != null) {
+			written = fc.write(src, position);
+		} else if (position >= baseSize) {
+			written = getAppendChannel().write(src, position - baseSize);
+		} else {
+			written = getFileChannel().write(src, position);
+		}
+		position = position + written;
+		modified = true;
 		return written;
 	}
 
-	@Override
-	public long position() throws IOException {
-		if (isModified())
-			return getFileChannel().position();
+	/**
+	 * Transfers bytes from this channel to a writable channel, without modifying
+	 * the position of this channel, in the spirit of
+	 * {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
+	 */
+	public synchronized long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+		ensureOpen();
+		if (fc != null)
+			return fc.transferTo(position, count, target);
+		long end = Math.min(size(), position + count);
+		long pos = position;
+		// original part
+		if (pos < baseSize) {
+			ByteBuffer buf = ByteBuffer.wrap(getScratch());
+			while (pos < Math.min(end, baseSize)) {
+				buf.clear();
+				int max = (int) Math.min(buf.remaining(), Math.min(end, baseSize) - pos);
+				int read = readFromBinary(buf, pos, max);
+				if (read <= 0)
+					break;
+				buf.flip();
+				while (buf.hasRemaining())
+					target.write(buf);
+				pos = pos + read;
+			}
+		}
+		// appended part
+		if (pos < end && appendFc != null)
+			pos = pos + transferFully(appendFc, pos - baseSize, end - pos, target);
+		return pos - position;
+	}
+
+	/**
+	 * Transfers bytes into this channel from a readable channel, without
+	 * modifying the position of this channel, in the spirit of
+	 * {@link FileChannel#transferFrom(ReadableByteChannel, long, long)}. Bytes
+	 * written at or after the end of the original binary are directly
+	 * transferred to the spool file.
+	 */
+	public synchronized long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+		ensureOpen();
+		if (position > size())
+			return 0;
+		long transferred;
+		if (fc != null)
+			transferred = fc.transferFrom(src, position, count);
+		else if (position >= baseSize)
+			transferred = getAppendChannel().transferFrom(src, position - baseSize, count);
 		else
-			return position;
+			transferred = getFileChannel().transferFrom(src, position, count);
+		if (transferred > 0)
+			modified = true;
+		return transferred;
 	}
 
 	@Override
-	public SeekableByteChannel position(long newPosition) throws IOException {
-		if (isModified()) {
-			getFileChannel().position(position);
-		} else {
-			this.position = newPosition;
-		}
+	public synchronized long position() throws IOException {
+		ensureOpen();
+		return position;
+	}
+
+	@Override
+	public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+		ensureOpen();
+		if (newPosition < 0)
+			throw new IllegalArgumentException("Position cannot be negative");
+		this.position = newPosition;
 		return this;
 	}
 
 	@Override
-	public long size() throws IOException {
-		if (isModified()) {
-			return getFileChannel().size();
-		} else {
-			try {
-				return binary.getSize();
-			} catch (RepositoryException e) {
-				throw new IOException("Cannot get size", e);
-			}
-		}
+	public synchronized long size() throws IOException {
+		ensureOpen();
+		if (fc != null)
+			return fc.size();
+		return baseSize + (appendFc != null ? appendFc.size() : 0);
 	}
 
 	@Override
-	public SeekableByteChannel truncate(long size) throws IOException {
-		getFileChannel().truncate(size);
+	public synchronized SeekableByteChannel truncate(long size) throws IOException {
+		ensureOpen();
+		if (size < 0)
+			throw new IllegalArgumentException("Size cannot be negative");
+		if (size < size()) {
+			if (fc != null) {
+				fc.truncate(size);
+			} else if (size < baseSize) {
+				baseSize = size;
+				if (appendFc != null)
+					appendFc.truncate(0);
+			} else {
+				appendFc.truncate(size - baseSize);
+			}
+			modified = true;
+		}
+		if (position > size)
+			position = size;
 		return this;
 	}
 
+	/** The spool of the bytes written after the retained original content. */
+	private FileChannel getAppendChannel() throws IOException {
+		if (appendFc == null)
+			appendFc = openTempChannel();
+		return appendFc;
+	}
+
+	/**
+	 * The whole content as a local file, copying the retained original content
+	 * and the appended bytes.
+	 */
 	private FileChannel getFileChannel() throws IOException {
-		try {
-			if (fc == null) {
-				Path tempPath = Files.createTempFile(getClass().getSimpleName(), null);
-				fc = FileChannel.open(tempPath, StandardOpenOption.WRITE, StandardOpenOption.READ,
-						StandardOpenOption.DELETE_ON_CLOSE, StandardOpenOption.SPARSE);
-				ReadableByteChannel readChannel = Channels.newChannel(binary.getStream());
-				fc.transferFrom(readChannel, 0, binary.getSize());
-				clearReadState();
+		if (fc == null) {
+			FileChannel newFc = openTempChannel();
+			if (baseSize > 0) {
+				try (InputStream original = binary.getStream()) {
+					ReadableByteChannel src = Channels.newChannel(original);
+					long copied = 0;
+					while (copied < baseSize) {
+						long transferred = newFc.transferFrom(src, copied, baseSize - copied);
+						if (transferred <= 0)
+							break;
+						copied = copied + transferred;
+					}
+					if (copied < baseSize)
+						throw new IOException("Only " + copied + " bytes of original binary could be read, expected "
+								+ baseSize);
+				} catch (RepositoryException e) {
+					newFc.close();
+					throw new IOException("Cannot get temp file channel", e);
+				}
 			}
-			return fc;
-		} catch (RepositoryException e) {
-			throw new IOException("Cannot get temp file channel", e);
+			if (appendFc != null) {
+				transferFully(appendFc, 0, appendFc.size(), newFc.position(baseSize));
+				appendFc.close();
+				appendFc = null;
+			}
+			fc = newFc;
+			clearReadState();
+		}
+		return fc;
+	}
+
+	/**
+	 * Transfers all these bytes, since a single
+	 * {@link FileChannel#transferTo(long, long, WritableByteChannel)} may
+	 * transfer less than requested (and at most 2 GB on some platforms).
+	 */
+	private static long transferFully(FileChannel from, long position, long count, WritableByteChannel target)
+			throws IOException {
+		long transferred = 0;
+		while (transferred < count) {
+			long n = from.transferTo(position + transferred, count - transferred, target);
+			if (n <= 0)
+				break;// end of file
+			transferred = transferred + n;
+		}
+		return transferred;
+	}
+
+	private FileChannel openTempChannel() throws IOException {
+		Path tempPath = Files.createTempFile(getClass().getSimpleName(), null);
+		return FileChannel.open(tempPath, StandardOpenOption.WRITE, StandardOpenOption.READ,
+				StandardOpenOption.DELETE_ON_CLOSE, StandardOpenOption.SPARSE);
+	}
+
+	/** The whole new content, streamed from its various parts. */
+	private InputStream newContentStream() throws IOException, RepositoryException {
+		if (fc != null) {
+			fc.position(0);
+			return Channels.newInputStream(fc);
 		}
+		InputStream base;
+		if (baseSize == 0)
+			base = new ByteArrayInputStream(new byte[0]);
+		else if (baseSize == binary.getSize())
+			base = binary.getStream();
+		else
+			base = new BoundedInputStream(binary.getStream(), baseSize);
+		if (appendFc == null)
+			return base;
+		appendFc.position(0);
+		return new SequenceInputStream(base, Channels.newInputStream(appendFc));
 	}
 
-	private boolean isModified() {
-		return fc != null;
+	private byte[] getScratch() {
+		if (scratch == null)
+			scratch = new byte[SCRATCH_SIZE];
+		return scratch;
+	}
+
+	private void ensureOpen() throws ClosedChannelException {
+		if (!open)
+			throw new ClosedChannelException();
 	}
 
 	private void clearReadState() {
-		position = -1;
+		if (in != null) {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// silent
+			}
+			in = null;
+		}
+		inPosition = 0;
 		JcrUtils.closeQuietly(binary);
 		binary = null;
 	}
+
+	/** Reads at most a given number of bytes from the underlying stream. */
+	private static class BoundedInputStream extends FilterInputStream {
+		private long remaining;
+
+		BoundedInputStream(InputStream in, long max) {
+			super(in);
+			this.remaining = max;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int b = super.read();
+			if (b != -1)
+				remaining--;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0)
+				return -1;
+			int read = super.read(b, off, (int) Math.min(len, remaining));
+			if (read > 0)
+				remaining = remaining - read;
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(Math.min(n, remaining));
+			remaining = remaining - skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(super.available(), remaining);
+		}
+	}
 }
@@ -0,0 +1,32 @@
+package org.argeo.jcr.fs;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+/** A read-only {@link BasicFileAttributeView} of a JCR path. */
+class JcrBasicFileAttributeView implements BasicFileAttributeView {
+	private final Path path;
+
+	JcrBasicFileAttributeView(Path path) {
+		this.path = path;
+	}
+
+	@Override
+	public String name() {
+		return "basic";
+	}
+
+	@Override
+	public BasicFileAttributes readAttributes() throws IOException {
+		return path.getFileSystem().provider().readAttributes(path, BasicFileAttributes.class);
+	}
+
+	@Override
+	public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime)
+			throws IOException {
+		throw new UnsupportedOperationException("Times of " + path + " cannot be set");
+	}
+}
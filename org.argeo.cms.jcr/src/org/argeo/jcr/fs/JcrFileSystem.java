@@ -15,6 +15,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
 
 import javax.jcr.Credentials;
 import javax.jcr.Node;
@@ -39,6 +41,9 @@ public class JcrFileSystem extends AbstractFsSystem<WorkspaceFileStore> {
 
 	private String userHomePath = null;
 
+	/** Number of modifications performed through this file system. */
+	private final AtomicLong modificationCount = new AtomicLong();
+
 	@Deprecated
 	public JcrFileSystem(JcrFileSystemProvider provider, Session session) throws IOException {
 		super();
@@ -105,6 +110,28 @@ public class JcrFileSystem extends AbstractFsSystem<WorkspaceFileStore> {
 		return true;
 	}
 
+	/**
+	 * Sets how the space available to the underlying storage is retrieved, for
+	 * all the file stores.
+	 */
+	public void setUsableSpace(LongSupplier usableSpace) {
+		baseFileStore.setUsableSpace(usableSpace);
+		for (WorkspaceFileStore fileStore : mounts.values())
+			fileStore.setUsableSpace(usableSpace);
+	}
+
+	/**
+	 * Records a modification performed through this file system, so that the
+	 * attributes read while listing directories are read again.
+	 */
+	void notifyModified() {
+		modificationCount.incrementAndGet();
+	}
+
+	long getModificationCount() {
+		return modificationCount.get();
+	}
+
 	public String getUserHomePath() {
 		return userHomePath;
 	}
@@ -228,7 +255,7 @@ public class JcrFileSystem extends AbstractFsSystem<WorkspaceFileStore> {
 
 	@Override
 	public PathMatcher getPathMatcher(String syntaxAndPattern) {
-		throw new UnsupportedOperationException();
+		return new JcrPathMatcher(syntaxAndPattern);
 	}
 
 	@Override
@@ -238,7 +265,7 @@ public class JcrFileSystem extends AbstractFsSystem<WorkspaceFileStore> {
 
 	@Override
 	public WatchService newWatchService() throws IOException {
-		throw new UnsupportedOperationException();
+		return new JcrWatchService();
 	}
 
 //	public Session getSession() {
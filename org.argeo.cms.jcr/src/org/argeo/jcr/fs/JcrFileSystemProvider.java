@@ -12,6 +12,7 @@ import java.nio.file.LinkOption;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileAttribute;
 import java.nio.file.attribute.FileAttributeView;
@@ -40,6 +41,7 @@ public abstract class JcrFileSystemProvider extends FileSystemProvider {
 	public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs)
 			throws IOException {
 		Node node = toNode(path);
+		boolean created = node == null;
 		try {
 			if (node == null) {
 				Node parent = toNode(path.getParent());
@@ -57,7 +59,11 @@ public abstract class JcrFileSystemProvider extends FileSystemProvider {
 			}
 			if (!node.isNodeType(NodeType.NT_FILE))
 				throw new UnsupportedOperationException(node + " must be a file");
-			return new BinaryChannel(node, path);
+			// the content is only modified when the channel is closed
+			BinaryChannel channel = new BinaryChannel(node, path, options);
+			if (created)
+				notifyModified(path);
+			return channel;
 		} catch (RepositoryException e) {
 			discardChanges(node);
 			throw new IOException("Cannot read file", e);
@@ -71,7 +77,7 @@ public abstract class JcrFileSystemProvider extends FileSystemProvider {
 			if (base == null)
 				throw new IOException(dir + " is not a JCR node");
 			JcrFileSystem fileSystem = (JcrFileSystem) dir.getFileSystem();
-			return new NodeDirectoryStream(fileSystem, base.getNodes(), fileSystem.listDirectMounts(dir), filter);
+			return new NodeDirectoryStream((JcrPath) dir, base.getNodes(), fileSystem.listDirectMounts(dir), filter);
 		} catch (RepositoryException e) {
 			throw new IOException("Cannot list directory", e);
 		}
@@ -97,6 +103,7 @@ public abstract class JcrFileSystemProvider extends FileSystemProvider {
 					node.addMixin(NodeType.MIX_LAST_MODIFIED);
 					save(session);
 				}
+				notifyModified(dir);
 			} else {
 				// if (!node.getPrimaryNodeType().isNodeType(NodeType.NT_FOLDER))
 				// throw new FileExistsException(dir + " exists and is not a directory");
@@ -125,6 +132,7 @@ public abstract class JcrFileSystemProvider extends FileSystemProvider {
 				}
 				save(session);
 			}
+			notifyModified(path);
 		} catch (RepositoryException e) {
 			discardChanges(node);
 			throw new IOException("Cannot delete " + path, e);
@@ -142,6 +150,7 @@ public abstract class JcrFileSystemProvider extends FileSystemProvider {
 				JcrUtils.copy(sourceNode, targetNode);
 				save(targetSession);
 			}
+			notifyModified(target);
 		} catch (RepositoryException e) {
 			discardChanges(sourceNode);
 			discardChanges(targetNode);
@@ -158,6 +167,7 @@ public abstract class JcrFileSystemProvider extends FileSystemProvider {
 			if (sourceStore.equals(targetStore)) {
 				sourceStore.getWorkspace().move(sourceStore.toJcrPath(source.toString()),
 						targetStore.toJcrPath(target.toString()));
+				notifyModified(source);
 			} else {
 				// TODO implement it
 				throw new UnsupportedOperationException("Can only move paths within the same workspace.");
@@ -218,8 +228,11 @@ public abstract class JcrFileSystemProvider extends FileSystemProvider {
 	}
 
 	@Override
+	@SuppressWarnings("unchecked")
 	public <V extends FileAttributeView> V getFileAttributeView(Path path, Class<V> type, LinkOption... options) {
-		throw new UnsupportedOperationException();
+		if (type != BasicFileAttributeView.class)
+			return null;
+		return (V) new JcrBasicFileAttributeView(path);
 	}
 
 	@SuppressWarnings("unchecked")
@@ -227,6 +240,12 @@ public abstract class JcrFileSystemProvider extends FileSystemProvider {
 	public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type, LinkOption... options)
 			throws IOException {
 		// TODO check if assignable
+		if (path instanceof JcrPath jcrPath) {
+			// read while listing the parent directory
+			SnapshotFileAttributes listedAttributes = jcrPath.getListedAttributes();
+			if (listedAttributes != null)
+				return (A) listedAttributes;
+		}
 		Node node = toNode(path);
 		if (node == null) {
 			throw new IOException("JCR node not found for " + path);
@@ -289,6 +308,7 @@ public abstract class JcrFileSystemProvider extends FileSystemProvider {
 				}
 				save(session);
 			}
+			notifyModified(path);
 		} catch (RepositoryException e) {
 			discardChanges(node);
 			throw new IOException("Cannot set attribute " + attribute + " on " + path, e);
@@ -317,6 +337,14 @@ public abstract class JcrFileSystemProvider extends FileSystemProvider {
 		}
 	}
 
+	/**
+	 * Makes sure that the attributes read while listing directories of this file
+	 * system are read again.
+	 */
+	protected void notifyModified(Path path) {
+		((JcrFileSystem) path.getFileSystem()).notifyModified();
+	}
+
 	/** Make sure save is robust. */
 	protected void save(Session session) throws RepositoryException {
 		session.refresh(true);
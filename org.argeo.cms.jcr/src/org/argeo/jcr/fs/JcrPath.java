@@ -1,6 +1,12 @@
 package org.argeo.jcr.fs;
 
+import java.io.IOException;
 import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -12,6 +18,9 @@ public class JcrPath extends AbstractFsPath<JcrFileSystem, WorkspaceFileStore> {
 	final static String separator = "/";
 	final static char separatorChar = '/';
 
+	/** Attributes read while listing the parent directory, if any. */
+	private volatile SnapshotFileAttributes listedAttributes = null;
+
 //	private final JcrFileSystem fs;
 //	/** null for non absolute paths */
 //	private final WorkspaceFileStore fileStore;
@@ -326,6 +335,46 @@ public class JcrPath extends AbstractFsPath<JcrFileSystem, WorkspaceFileStore> {
 //		throw new UnsupportedOperationException();
 //	}
 
+	/** A child of this path, from its JCR name. */
+	JcrPath resolveChild(String jcrName) {
+		String[] segments = getSegments();
+		String[] childSegments;
+		if (segments == null) {
+			childSegments = new String[] { cleanUpSegment(jcrName) };
+		} else {
+			childSegments = Arrays.copyOf(segments, segments.length + 1);
+			childSegments[segments.length] = cleanUpSegment(jcrName);
+		}
+		return newInstance(childSegments, isAbsolute());
+	}
+
+	/**
+	 * The attributes read while listing the parent directory, or null if there
+	 * are none or if they are not up to date anymore.
+	 */
+	SnapshotFileAttributes getListedAttributes() {
+		SnapshotFileAttributes attributes = listedAttributes;
+		if (attributes == null)
+			return null;
+		if (!attributes.isUpToDate(getFileSystem().getModificationCount())) {
+			listedAttributes = null;
+			return null;
+		}
+		return attributes;
+	}
+
+	void setListedAttributes(SnapshotFileAttributes listedAttributes) {
+		this.listedAttributes = listedAttributes;
+	}
+
+	@Override
+	public WatchKey register(WatchService watcher, WatchEvent.Kind<?>[] events, WatchEvent.Modifier... modifiers)
+			throws IOException {
+		if (!(watcher instanceof JcrWatchService jcrWatchService))
+			throw new ProviderMismatchException("Watch service " + watcher + " is not a JCR watch service");
+		return jcrWatchService.register(this, events, modifiers);
+	}
+
 	public Node getNode() throws RepositoryException {
 		if (!isAbsolute())// TODO default dir
 			throw new JcrFsException("Cannot get a JCR node from a relative path");
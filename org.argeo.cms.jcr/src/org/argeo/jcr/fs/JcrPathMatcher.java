@@ -0,0 +1,134 @@
+package org.argeo.jcr.fs;
+
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A {@link PathMatcher} supporting the <code>glob:</code> and
+ * <code>regex:</code> syntaxes, as specified by
+ * {@link FileSystem#getPathMatcher(String)}, and matching against the string
+ * representation of the path.
+ */
+class JcrPathMatcher implements PathMatcher {
+	final static String GLOB = "glob";
+	final static String REGEX = "regex";
+
+	private final static String REGEX_META_CHARS = ".^$+{[]|()";
+	private final static String GLOB_META_CHARS = "\\*?[{";
+
+	private final Pattern pattern;
+
+	JcrPathMatcher(String syntaxAndPattern) {
+		int colonIndex = syntaxAndPattern.indexOf(':');
+		if (colonIndex <= 0)
+			throw new IllegalArgumentException("No syntax specified in " + syntaxAndPattern);
+		String syntax = syntaxAndPattern.substring(0, colonIndex);
+		String expr = syntaxAndPattern.substring(colonIndex + 1);
+		if (GLOB.equalsIgnoreCase(syntax))
+			pattern = Pattern.compile(globToRegex(expr));
+		else if (REGEX.equalsIgnoreCase(syntax))
+			pattern = Pattern.compile(expr);
+		else
+			throw new UnsupportedOperationException("Syntax '" + syntax + "' is not supported");
+	}
+
+	@Override
+	public boolean matches(Path path) {
+		return pattern.matcher(path.toString()).matches();
+	}
+
+	/**
+	 * Converts a glob to a regular expression. <code>*</code> and <code>?</code>
+	 * do not cross directory boundaries, while <code>**</code> does. Bracket
+	 * expressions (negated with <code>!</code>) and non-nested groups of
+	 * sub-patterns are supported.
+	 */
+	static String globToRegex(String glob) {
+		StringBuilder regex = new StringBuilder("^");
+		boolean inGroup = false;
+		int i = 0;
+		while (i < glob.length()) {
+			char c = glob.charAt(i++);
+			switch (c) {
+			case '\\':
+				if (i == glob.length())
+					throw new PatternSyntaxException("No character to escape", glob, i - 1);
+				char next = glob.charAt(i++);
+				if (GLOB_META_CHARS.indexOf(next) >= 0 || REGEX_META_CHARS.indexOf(next) >= 0)
+					regex.append('\\');
+				regex.append(next);
+				break;
+			case '/':
+				regex.append(c);
+				break;
+			case '[':
+				regex.append("[[^/]&&[");
+				if (i < glob.length() && glob.charAt(i) == '!') {
+					regex.append('^');
+					i++;
+				} else if (i < glob.length() && glob.charAt(i) == '^') {
+					regex.append("\\^");
+					i++;
+				}
+				boolean closed = false;
+				while (i < glob.length()) {
+					c = glob.charAt(i++);
+					if (c == ']') {
+						closed = true;
+						break;
+					}
+					if (c == '/')
+						throw new PatternSyntaxException("Explicit 'name separator' in class", glob, i - 1);
+					if (c == '\\' || c == '[' || c == '&')
+						regex.append('\\');
+					regex.append(c);
+				}
+				if (!closed)
+					throw new PatternSyntaxException("Missing ']'", glob, i - 1);
+				regex.append("]]");
+				break;
+			case '{':
+				if (inGroup)
+					throw new PatternSyntaxException("Cannot nest groups", glob, i - 1);
+				regex.append("(?:(?:");
+				inGroup = true;
+				break;
+			case '}':
+				if (inGroup) {
+					regex.append("))");
+					inGroup = false;
+				} else {
+					regex.append('}');
+				}
+				break;
+			case ',':
+				if (inGroup)
+					regex.append(")|(?:");
+				else
+					regex.append(',');
+				break;
+			case '*':
+				if (i < glob.length() && glob.charAt(i) == '*') {
+					regex.append(".*");
+					i++;
+				} else {
+					regex.append("[^/]*");
+				}
+				break;
+			case '?':
+				regex.append("[^/]");
+				break;
+			default:
+				if (REGEX_META_CHARS.indexOf(c) >= 0)
+					regex.append('\\');
+				regex.append(c);
+			}
+		}
+		if (inGroup)
+			throw new PatternSyntaxException("Missing '}'", glob, i - 1);
+		return regex.append('$').toString();
+	}
+}
@@ -0,0 +1,313 @@
+package org.argeo.jcr.fs;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.nodetype.NodeType;
+import javax.jcr.observation.Event;
+import javax.jcr.observation.EventIterator;
+import javax.jcr.observation.EventListener;
+import javax.jcr.observation.ObservationManager;
+
+/**
+ * A {@link WatchService} backed by JCR observation. Each watched directory has
+ * its own listener, on the workspace of its file store. Changes to direct
+ * children are reported as {@link StandardWatchEventKinds#ENTRY_CREATE} and
+ * {@link StandardWatchEventKinds#ENTRY_DELETE}, changes to their properties or
+ * to the content of files as {@link StandardWatchEventKinds#ENTRY_MODIFY}.
+ * Children with a namespace prefix (such as jcr:content or rep:policy) are
+ * technical and are ignored. Moves are reported as a deletion and a creation.
+ */
+class JcrWatchService implements WatchService {
+	/** Pending events of a key beyond which an overflow is reported. */
+	final static int MAX_PENDING_EVENTS = 512;
+
+	private final static int EVENT_TYPES = Event.NODE_ADDED | Event.NODE_REMOVED | Event.PROPERTY_ADDED
+			| Event.PROPERTY_CHANGED | Event.PROPERTY_REMOVED;
+
+	/** Put in the queue in order to wake up the waiting threads. */
+	private final JcrWatchKey closeKey = new JcrWatchKey(null, null, null, Collections.emptySet());
+
+	private final LinkedBlockingDeque<JcrWatchKey> signalled = new LinkedBlockingDeque<>();
+	private final Map<Path, JcrWatchKey> keys = new HashMap<>();
+
+	private volatile boolean closed = false;
+
+	JcrWatchService() {
+	}
+
+	synchronized WatchKey register(JcrPath dir, WatchEvent.Kind<?>[] kinds, WatchEvent.Modifier... modifiers)
+			throws IOException {
+		checkOpen();
+		if (modifiers.length != 0)
+			throw new UnsupportedOperationException("Modifiers are not supported");
+		Set<WatchEvent.Kind<?>> kindSet = new HashSet<>();
+		for (WatchEvent.Kind<?> kind : kinds) {
+			if (kind == StandardWatchEventKinds.ENTRY_CREATE || kind == StandardWatchEventKinds.ENTRY_DELETE
+					|| kind == StandardWatchEventKinds.ENTRY_MODIFY)
+				kindSet.add(kind);
+			else if (kind != StandardWatchEventKinds.OVERFLOW)
+				throw new UnsupportedOperationException("Event kind " + kind + " is not supported");
+		}
+
+		JcrWatchKey existing = keys.get(dir);
+		if (existing != null && existing.isValid()) {
+			existing.kinds = Collections.unmodifiableSet(kindSet);
+			return existing;
+		}
+
+		try {
+			Node node = dir.getNode();
+			if (node == null)
+				throw new NoSuchFileException(dir.toString());
+			if (node.isNodeType(NodeType.NT_FILE))
+				throw new NotDirectoryException(dir.toString());
+			ObservationManager observationManager = node.getSession().getWorkspace().getObservationManager();
+			JcrWatchKey key = new JcrWatchKey(dir, node.getPath(), observationManager, kindSet);
+			observationManager.addEventListener(key, EVENT_TYPES, node.getPath(), true, null, null, false);
+			keys.put(dir, key);
+			return key;
+		} catch (RepositoryException e) {
+			throw new IOException("Cannot watch " + dir, e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		List<JcrWatchKey> toCancel;
+		synchronized (this) {
+			if (closed)
+				return;
+			closed = true;
+			toCancel = new ArrayList<>(keys.values());
+			keys.clear();
+		}
+		for (JcrWatchKey key : toCancel)
+			key.cancel();
+		signalled.clear();
+		signalled.offer(closeKey);
+	}
+
+	@Override
+	public WatchKey poll() {
+		checkOpen();
+		return checkKey(signalled.poll());
+	}
+
+	@Override
+	public WatchKey poll(long timeout, TimeUnit unit) throws InterruptedException {
+		checkOpen();
+		return checkKey(signalled.poll(timeout, unit));
+	}
+
+	@Override
+	public WatchKey take() throws InterruptedException {
+		checkOpen();
+		return checkKey(signalled.take());
+	}
+
+	private JcrWatchKey checkKey(JcrWatchKey key) {
+		if (key == closeKey) {
+			// wake up other waiting threads as well
+			signalled.offer(closeKey);
+			throw new ClosedWatchServiceException();
+		}
+		return key;
+	}
+
+	private void checkOpen() {
+		if (closed)
+			throw new ClosedWatchServiceException();
+	}
+
+	private synchronized void unregister(JcrWatchKey key) {
+		keys.remove(key.dir, key);
+	}
+
+	/** A watched directory, listening to the changes below it. */
+	class JcrWatchKey implements WatchKey, EventListener {
+		private final JcrPath dir;
+		/** The prefix of the JCR paths of the children. */
+		private final String childPrefix;
+		private final ObservationManager observationManager;
+		private volatile Set<WatchEvent.Kind<?>> kinds;
+
+		private final List<JcrWatchEvent<?>> pending = new ArrayList<>();
+		private boolean isSignalled = false;
+		private volatile boolean valid = true;
+
+		JcrWatchKey(JcrPath dir, String jcrPath, ObservationManager observationManager,
+				Set<WatchEvent.Kind<?>> kinds) {
+			this.dir = dir;
+			this.childPrefix = jcrPath == null || jcrPath.equals("/") ? "/" : jcrPath + '/';
+			this.observationManager = observationManager;
+			this.kinds = kinds;
+		}
+
+		@Override
+		public void onEvent(EventIterator events) {
+			if (!valid)
+				return;
+			while (events.hasNext()) {
+				Event event = events.nextEvent();
+				try {
+					String path = event.getPath();
+					if (!path.startsWith(childPrefix))
+						continue;
+					String relative = path.substring(childPrefix.length());
+					int slashIndex = relative.indexOf('/');
+					String childName = slashIndex < 0 ? relative : relative.substring(0, slashIndex);
+					if (childName.indexOf(':') >= 0)
+						continue;
+					WatchEvent.Kind<Path> kind;
+					if (slashIndex < 0) {
+						if (event.getType() == Event.NODE_ADDED)
+							kind = StandardWatchEventKinds.ENTRY_CREATE;
+						else if (event.getType() == Event.NODE_REMOVED)
+							kind = StandardWatchEventKinds.ENTRY_DELETE;
+						else
+							continue;// property of the directory itself
+					} else {
+						String below = relative.substring(slashIndex + 1);
+						if (below.indexOf('/') < 0 && event.getType() != Event.NODE_ADDED
+								&& event.getType() != Event.NODE_REMOVED)
+							kind = StandardWatchEventKinds.ENTRY_MODIFY;// property of the child
+						else if (below.equals(Node.JCR_CONTENT) || below.startsWith(Node.JCR_CONTENT + '/'))
+							kind = StandardWatchEventKinds.ENTRY_MODIFY;// content of a file
+						else
+							continue;// deeper in a sub-directory
+					}
+					if (kinds.contains(kind))
+						signal(kind, new JcrPath(dir.getFileSystem(), childName));
+				} catch (RepositoryException e) {
+					signal(StandardWatchEventKinds.OVERFLOW, null);
+				}
+			}
+		}
+
+		private synchronized <T> void signal(WatchEvent.Kind<T> kind, T context) {
+			if (!valid)
+				return;
+			if (!pending.isEmpty()) {
+				JcrWatchEvent<?> last = pending.get(pending.size() - 1);
+				if (last.kind == StandardWatchEventKinds.OVERFLOW) {
+					last.count++;
+					return;
+				}
+				if (last.kind == kind && last.context.equals(context)) {
+					last.count++;
+					return;
+				}
+			}
+			if (kind == StandardWatchEventKinds.OVERFLOW || pending.size() >= MAX_PENDING_EVENTS) {
+				// events are lost, there is no point keeping the others
+				int lost = pending.size() + 1;
+				pending.clear();
+				JcrWatchEvent<Object> overflow = new JcrWatchEvent<>(StandardWatchEventKinds.OVERFLOW, null);
+				overflow.count = lost;
+				pending.add(overflow);
+			} else {
+				pending.add(new JcrWatchEvent<>(kind, context));
+			}
+			if (!isSignalled) {
+				isSignalled = true;
+				signalled.offer(this);
+			}
+		}
+
+		@Override
+		public synchronized List<WatchEvent<?>> pollEvents() {
+			List<WatchEvent<?>> res = new ArrayList<>(pending);
+			pending.clear();
+			return res;
+		}
+
+		@Override
+		public synchronized boolean reset() {
+			if (!valid)
+				return false;
+			if (isSignalled) {
+				if (pending.isEmpty())
+					isSignalled = false;
+				else
+					signalled.offer(this);
+			}
+			return true;
+		}
+
+		@Override
+		public boolean isValid() {
+			return valid && !closed;
+		}
+
+		@Override
+		public void cancel() {
+			synchronized (this) {
+				if (!valid)
+					return;
+				valid = false;
+			}
+			try {
+				observationManager.removeEventListener(this);
+			} catch (RepositoryException e) {
+				// the session may already be closed
+			}
+			unregister(this);
+		}
+
+		@Override
+		public Path watchable() {
+			return dir;
+		}
+	}
+
+	/** A change of a directory entry. */
+	static class JcrWatchEvent<T> implements WatchEvent<T> {
+		private final Kind<T> kind;
+		private final T context;
+		private int count = 1;
+
+		JcrWatchEvent(Kind<T> kind, T context) {
+			this.kind = kind;
+			this.context = context;
+		}
+
+		@Override
+		public Kind<T> kind() {
+			return kind;
+		}
+
+		@Override
+		public int count() {
+			return count;
+		}
+
+		@Override
+		public T context() {
+			return context;
+		}
+
+		@Override
+		public String toString() {
+			return kind.name() + (context != null ? " " + context : "") + (count > 1 ? " (" + count + ")" : "");
+		}
+	}
+}
@@ -1,22 +1,47 @@
 package org.argeo.jcr.fs;
 
 import java.io.IOException;
-import java.nio.file.DirectoryStream;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.LinkOption;
+import java.nio.file.OpenOption;
 import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.SecureDirectoryStream;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.util.ArrayDeque;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 import javax.jcr.Node;
 import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
 
-public class NodeDirectoryStream implements DirectoryStream<Path> {
-	private final JcrFileSystem fs;
+/**
+ * Lists the children of a node. Children are fetched in batches, together with
+ * their basic attributes, which are attached to the returned paths so that
+ * they can be read without further lookups while walking a tree. Operations
+ * relative to the directory are supported as a {@link SecureDirectoryStream},
+ * although they are not protected against concurrent moves of the directory.
+ */
+public class NodeDirectoryStream implements SecureDirectoryStream<Path> {
+	/** Number of children fetched at once. */
+	final static int BATCH_SIZE = 64;
+
+	private final JcrPath dir;
 	private final NodeIterator nodeIterator;
 	private final Iterator<JcrPath> additionalPaths;
 	private final Filter<? super Path> filter;
 
-	public NodeDirectoryStream(JcrFileSystem fs, NodeIterator nodeIterator, Iterator<JcrPath> additionalPaths,
+	private boolean iteratorReturned = false;
+	private volatile boolean closed = false;
+
+	public NodeDirectoryStream(JcrPath dir, NodeIterator nodeIterator, Iterator<JcrPath> additionalPaths,
 			Filter<? super Path> filter) {
-		this.fs = fs;
+		this.dir = dir;
 		this.nodeIterator = nodeIterator;
 		this.additionalPaths = additionalPaths;
 		this.filter = filter;
@@ -24,54 +49,124 @@ public class NodeDirectoryStream implements DirectoryStream<Path> {
 
 	@Override
 	public void close() throws IOException {
+		closed = true;
 	}
 
 	@Override
 	public Iterator<Path> iterator() {
+		if (closed)
+			throw new IllegalStateException("Directory stream of " + dir + " is closed");
+		if (iteratorReturned)
+			throw new IllegalStateException("Iterator of " + dir + " has already been returned");
+		iteratorReturned = true;
+		// as with other directory streams, the iterator is not thread-safe
 		return new Iterator<Path>() {
-			private JcrPath next = null;
+			private final ArrayDeque<JcrPath> batch = new ArrayDeque<>(BATCH_SIZE);
+
+			@Override
+			public boolean hasNext() {
+				if (closed)
+					return false;
+				if (batch.isEmpty())
+					fetch();
+				return !batch.isEmpty();
+			}
 
 			@Override
-			public synchronized boolean hasNext() {
-				if (next != null)
-					return true;
-				nodes: while (nodeIterator.hasNext()) {
-					try {
+			public Path next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				return batch.poll();
+			}
+
+			private void fetch() {
+				try {
+					nodes: while (batch.size() < BATCH_SIZE && nodeIterator.hasNext()) {
 						Node node = nodeIterator.nextNode();
 						String nodeName = node.getName();
 						if (nodeName.startsWith("rep:") || nodeName.startsWith("jcr:"))
 							continue nodes;
-						if (fs.skipNode(node))
+						if (dir.getFileSystem().skipNode(node))
 							continue nodes;
-						next = new JcrPath(fs, node);
-						if (filter != null) {
-							if (filter.accept(next))
-								break nodes;
-						} else
-							break nodes;
-					} catch (Exception e) {
-						throw new JcrFsException("Could not get next path", e);
+						JcrPath path = dir.resolveChild(nodeName);
+						path.setListedAttributes(
+								new SnapshotFileAttributes(node, dir.getFileSystem().getModificationCount()));
+						if (filter == null || filter.accept(path))
+							batch.add(path);
 					}
+				} catch (RepositoryException e) {
+					throw new JcrFsException("Could not get next path in " + dir, e);
+				} catch (IOException e) {
+					throw new DirectoryIteratorException(e);
 				}
-
-				if (next == null) {
-					if (additionalPaths.hasNext())
-						next = additionalPaths.next();
+				if (batch.isEmpty()) {
+					while (additionalPaths.hasNext()) {
+						JcrPath path = additionalPaths.next();
+						try {
+							if (filter == null || filter.accept(path)) {
+								batch.add(path);
+								break;
+							}
+						} catch (IOException e) {
+							throw new DirectoryIteratorException(e);
+						}
+					}
 				}
-
-				return next != null;
 			}
+		};
+	}
 
-			@Override
-			public synchronized Path next() {
-				if (!hasNext())// make sure has next has been called
-					return null;
-				JcrPath res = next;
-				next = null;
-				return res;
-			}
+	/*
+	 * SECURE DIRECTORY STREAM
+	 */
+	@Override
+	public SecureDirectoryStream<Path> newDirectoryStream(Path path, LinkOption... options) throws IOException {
+		return (SecureDirectoryStream<Path>) provider().newDirectoryStream(resolve(path), null);
+	}
 
-		};
+	@Override
+	public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs)
+			throws IOException {
+		return provider().newByteChannel(resolve(path), options, attrs);
 	}
 
+	@Override
+	public void deleteFile(Path path) throws IOException {
+		provider().delete(resolve(path));
+	}
+
+	@Override
+	public void deleteDirectory(Path path) throws IOException {
+		provider().delete(resolve(path));
+	}
+
+	@Override
+	public void move(Path srcpath, SecureDirectoryStream<Path> targetdir, Path targetpath) throws IOException {
+		if (!(targetdir instanceof NodeDirectoryStream targetStream))
+			throw new ProviderMismatchException("Target directory is not a JCR directory stream");
+		provider().move(resolve(srcpath), targetStream.resolve(targetpath));
+	}
+
+	@Override
+	public <V extends FileAttributeView> V getFileAttributeView(Class<V> type) {
+		return getFileAttributeView(dir, type);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <V extends FileAttributeView> V getFileAttributeView(Path path, Class<V> type, LinkOption... options) {
+		if (type != BasicFileAttributeView.class)
+			return null;
+		return (V) new JcrBasicFileAttributeView(resolve(path));
+	}
+
+	private Path resolve(Path path) {
+		if (closed)
+			throw new IllegalStateException("Directory stream of " + dir + " is closed");
+		return path.isAbsolute() ? path : dir.resolve(path);
+	}
+
+	private JcrFileSystemProvider provider() {
+		return (JcrFileSystemProvider) dir.getFileSystem().provider();
+	}
 }
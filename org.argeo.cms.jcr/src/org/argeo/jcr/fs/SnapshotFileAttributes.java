@@ -0,0 +1,138 @@
+package org.argeo.jcr.fs;
+
+import static javax.jcr.Property.JCR_CREATED;
+import static javax.jcr.Property.JCR_LAST_MODIFIED;
+
+import java.nio.file.attribute.FileTime;
+
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.nodetype.NodeType;
+
+/**
+ * Basic attributes read at once from a node, typically while listing a
+ * directory, as opposed to {@link JcrBasicfileAttributes} which reads them
+ * from the node on each call. They are outdated by any modification performed
+ * through the same file system, and after {@link #VALIDITY_MILLIS} for other
+ * modifications.
+ */
+class SnapshotFileAttributes implements NodeFileAttributes {
+	/** How long the attributes of a listed path are considered up to date. */
+	final static long VALIDITY_MILLIS = 1000;
+
+	private final static FileTime EPOCH = FileTime.fromMillis(0);
+
+	private final Node node;
+	private final FileTime lastModifiedTime;
+	private final FileTime creationTime;
+	private final boolean regularFile;
+	private final boolean directory;
+	private final boolean symbolicLink;
+	private final long size;
+	private final String fileKey;
+
+	private final long readAt;
+	private final long modificationCount;
+
+	/**
+	 * @param modificationCount the modification count of the file system, before
+	 *                          the node is read
+	 */
+	SnapshotFileAttributes(Node node, long modificationCount) throws RepositoryException {
+		this.node = node;
+		this.modificationCount = modificationCount;
+		regularFile = node.isNodeType(NodeType.NT_FILE);
+		symbolicLink = node.isNodeType(NodeType.NT_LINKED_FILE);
+		// all other non file nodes are directories
+		directory = !(regularFile || symbolicLink);
+
+		FileTime lastModified = null;
+		FileTime created = null;
+		for (PropertyIterator pit = node.getProperties(new String[] { JCR_LAST_MODIFIED, JCR_CREATED }); pit
+				.hasNext();) {
+			Property property = pit.nextProperty();
+			FileTime time = FileTime.from(property.getDate().toInstant());
+			if (JCR_LAST_MODIFIED.equals(property.getName()))
+				lastModified = time;
+			else
+				created = time;
+		}
+		lastModifiedTime = lastModified != null ? lastModified : created != null ? created : EPOCH;
+		creationTime = created != null ? created : lastModified != null ? lastModified : EPOCH;
+
+		size = regularFile ? getDataLength(node) : -1;
+		fileKey = node.getIdentifier();
+		readAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * The length of the data of a file, or -1 if it has none (yet), e.g. while it
+	 * is being uploaded. The length of a binary property is its size, without
+	 * reading it.
+	 */
+	private static long getDataLength(Node file) throws RepositoryException {
+		if (!file.hasNode(Node.JCR_CONTENT))
+			return -1;
+		Node content = file.getNode(Node.JCR_CONTENT);
+		if (!content.hasProperty(Property.JCR_DATA))
+			return -1;
+		return content.getProperty(Property.JCR_DATA).getLength();
+	}
+
+	boolean isUpToDate(long currentModificationCount) {
+		return currentModificationCount == modificationCount
+				&& System.currentTimeMillis() - readAt < VALIDITY_MILLIS;
+	}
+
+	@Override
+	public FileTime lastModifiedTime() {
+		return lastModifiedTime;
+	}
+
+	@Override
+	public FileTime lastAccessTime() {
+		return lastModifiedTime;
+	}
+
+	@Override
+	public FileTime creationTime() {
+		return creationTime;
+	}
+
+	@Override
+	public boolean isRegularFile() {
+		return regularFile;
+	}
+
+	@Override
+	public boolean isDirectory() {
+		return directory;
+	}
+
+	@Override
+	public boolean isSymbolicLink() {
+		return symbolicLink;
+	}
+
+	@Override
+	public boolean isOther() {
+		return false;
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public Object fileKey() {
+		return fileKey;
+	}
+
+	@Override
+	public Node getNode() {
+		return node;
+	}
+}
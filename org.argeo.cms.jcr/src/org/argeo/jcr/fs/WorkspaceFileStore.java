@@ -5,6 +5,7 @@ import java.nio.file.FileStore;
 import java.nio.file.attribute.FileAttributeView;
 import java.nio.file.attribute.FileStoreAttributeView;
 import java.util.Arrays;
+import java.util.function.LongSupplier;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -12,7 +13,10 @@ import javax.jcr.Session;
 import javax.jcr.Workspace;
 
 import org.argeo.api.acr.fs.AbstractFsStore;
+import org.argeo.jcr.JcrException;
 import org.argeo.jcr.JcrUtils;
+import org.argeo.jcr.SubtreeSize;
+import org.argeo.jcr.SubtreeSizeCache;
 
 /** A {@link FileStore} implementation based on JCR {@link Workspace}. */
 public class WorkspaceFileStore extends AbstractFsStore {
@@ -21,6 +25,11 @@ public class WorkspaceFileStore extends AbstractFsStore {
 	private final String workspaceName;
 	private final int mountDepth;
 
+	/** Sizes of the subtrees of the workspace, created when first needed. */
+	private SubtreeSizeCache sizes = null;
+	/** The space available to the underlying storage, if known. */
+	private LongSupplier usableSpace = null;
+
 	public WorkspaceFileStore(String mountPath, Workspace workspace) {
 		if ("/".equals(mountPath) || "".equals(mountPath))
 			throw new IllegalArgumentException(
@@ -40,6 +49,10 @@ public class WorkspaceFileStore extends AbstractFsStore {
 	}
 
 	public void close() {
+		synchronized (this) {
+			if (sizes != null)
+				sizes.stop();
+		}
 		JcrUtils.logoutQuietly(workspace.getSession());
 	}
 
@@ -58,19 +71,62 @@ public class WorkspaceFileStore extends AbstractFsStore {
 		return false;
 	}
 
+	/** The space used by the workspace, plus the usable space. */
 	@Override
 	public long getTotalSpace() throws IOException {
-		return 0;
+		return getUsedSpace() + getUsableSpace();
 	}
 
+	/**
+	 * The space available to the underlying storage, or 0 if it is not known.
+	 * 
+	 * @see #setUsableSpace(LongSupplier)
+	 */
 	@Override
 	public long getUsableSpace() throws IOException {
-		return 0;
+		if (usableSpace == null)
+			return 0;
+		return Math.max(0, usableSpace.getAsLong());
 	}
 
 	@Override
 	public long getUnallocatedSpace() throws IOException {
-		return 0;
+		return getUsableSpace();
+	}
+
+	/**
+	 * The approximate space used by the workspace, as last computed. It is
+	 * computed in the background, and then maintained as the workspace changes,
+	 * so that this method never blocks. Returns 0 until it has been computed.
+	 */
+	public long getUsedSpace() throws IOException {
+		try {
+			SubtreeSize size = getSizes().getLastKnownSize("/");
+			return size != null ? size.getBytes() : 0;
+		} catch (JcrException e) {
+			throw new IOException("Cannot compute used space of " + workspaceName, e);
+		}
+	}
+
+	/**
+	 * The size of the subtree at this JCR path, computed in the calling thread
+	 * if it is not cached.
+	 */
+	public SubtreeSize getSubtreeSize(String jcrPath) {
+		return getSizes().getSize(jcrPath);
+	}
+
+	private synchronized SubtreeSizeCache getSizes() {
+		if (sizes == null) {
+			sizes = new SubtreeSizeCache(workspace.getSession());
+			sizes.start();
+		}
+		return sizes;
+	}
+
+	/** Sets how the space available to the underlying storage is retrieved. */
+	public void setUsableSpace(LongSupplier usableSpace) {
+		this.usableSpace = usableSpace;
 	}
 
 	@Override
@@ -2,7 +2,23 @@ package org.argeo.jcr.proxy;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URL;
+import java.net.URLConnection;
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.jcr.Binary;
 import javax.jcr.Node;
@@ -11,27 +27,56 @@ import javax.jcr.Repository;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.jcr.nodetype.NodeType;
+import javax.security.auth.Subject;
 
 import org.argeo.api.cms.CmsLog;
 import org.argeo.jcr.JcrException;
 import org.argeo.jcr.JcrUtils;
 
-/** Base class for URL based proxys. */
+/**
+ * Base class for URL based proxys. Resources are retrieved concurrently, each
+ * thread using its own session, and concurrent requests for the same path are
+ * coalesced into a single retrieval. Mutable resources (see
+ * {@link #isMutable(String)}) are revalidated with conditional HTTP requests,
+ * the proxied copy being kept if the revalidation fails, in which case the
+ * remote is not tried again before a back-off period. New files are added
+ * under a lock, once their content has been read, and the last modification
+ * of the folders is not updated.
+ */
 public abstract class AbstractUrlProxy implements ResourceProxy {
 	private final static CmsLog log = CmsLog.getLog(AbstractUrlProxy.class);
 
+	/** Property of the content node storing the HTTP entity tag. */
+	protected final static String ETAG = "etag";
+
 	private Repository jcrRepository;
 	private Session jcrAdminSession;
 	private String proxyWorkspace = "proxy";
 
+	private int connectTimeout = 10 * 1000;
+	private int readTimeout = 60 * 1000;
+	private long revalidationPeriod = 5 * 60 * 1000;
+	private long failureBackOff = 60 * 1000;
+	private int probeThreads = 8;
+
+	/** The subject used to open the sessions writing to the proxy workspace. */
+	private Subject adminSubject;
+
+	private final Map<String, CompletableFuture<Boolean>> inFlight = new ConcurrentHashMap<>();
+	/** When mutable resources should be revalidated, per path. */
+	private final Map<String, Long> revalidateAfter = new ConcurrentHashMap<>();
+	private ExecutorService probeExecutor;
+
 	protected abstract Node retrieve(Session session, String path);
 
 	void init() {
 		try {
+			adminSubject = Subject.getSubject(AccessController.getContext());
 			jcrAdminSession = JcrUtils.loginOrCreateWorkspace(jcrRepository, proxyWorkspace);
 			beforeInitSessionSave(jcrAdminSession);
 			if (jcrAdminSession.hasPendingChanges())
 				jcrAdminSession.save();
+			probeExecutor = Executors.newFixedThreadPool(probeThreads);
 		} catch (RepositoryException e) {
 			JcrUtils.discardQuietly(jcrAdminSession);
 			throw new JcrException("Cannot initialize URL proxy", e);
@@ -46,6 +91,8 @@ public abstract class AbstractUrlProxy implements ResourceProxy {
 	}
 
 	void destroy() {
+		if (probeExecutor != null)
+			probeExecutor.shutdownNow();
 		JcrUtils.logoutQuietly(jcrAdminSession);
 	}
 
@@ -59,15 +106,27 @@ public abstract class AbstractUrlProxy implements ResourceProxy {
 	public Node proxy(String path) {
 		// we open a JCR session with client credentials in order not to use the
 		// admin session in multiple thread or make it a bottleneck.
-		Node nodeAdmin = null;
 		Node nodeClient = null;
 		Session clientSession = null;
 		try {
 			clientSession = jcrRepository.login(proxyWorkspace);
-			if (!clientSession.itemExists(path) || shouldUpdate(clientSession, path)) {
-				nodeAdmin = retrieveAndSave(path);
-				if (nodeAdmin != null)
+			if (!clientSession.itemExists(path)) {
+				if (retrieveOnce(path)) {
+					clientSession.refresh(false);
 					nodeClient = clientSession.getNode(path);
+				}
+			} else if (shouldUpdate(clientSession, path)) {
+				boolean revalidated;
+				try {
+					revalidated = retrieveOnce(path);
+				} catch (RuntimeException e) {
+					log.warn("Cannot revalidate " + path + ", using the proxied copy: " + e.getMessage());
+					revalidated = false;
+				}
+				if (!revalidated)
+					revalidateAfter.put(path, System.currentTimeMillis() + failureBackOff);
+				clientSession.refresh(false);
+				nodeClient = clientSession.getNode(path);
 			} else
 				nodeClient = clientSession.getNode(path);
 			return nodeClient;
@@ -79,66 +138,257 @@ public abstract class AbstractUrlProxy implements ResourceProxy {
 		}
 	}
 
-	protected synchronized Node retrieveAndSave(String path) {
+	/**
+	 * Retrieves this path, or waits for the retrieval already in progress by
+	 * another thread.
+	 *
+	 * @return whether the resource has been found
+	 */
+	protected boolean retrieveOnce(String path) {
+		CompletableFuture<Boolean> retrieval = new CompletableFuture<>();
+		CompletableFuture<Boolean> current = inFlight.putIfAbsent(path, retrieval);
+		if (current != null) {
+			try {
+				return current.join();
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException) e.getCause();
+				throw e;
+			}
+		}
 		try {
-			Node node = retrieve(jcrAdminSession, path);
+			boolean found = retrieveAndSave(path);
+			retrieval.complete(found);
+			return found;
+		} catch (RuntimeException e) {
+			retrieval.completeExceptionally(e);
+			throw e;
+		} finally {
+			inFlight.remove(path, retrieval);
+		}
+	}
+
+	/**
+	 * Retrieves this path with a session of its own.
+	 *
+	 * @return whether the resource has been found
+	 */
+	protected boolean retrieveAndSave(String path) {
+		Session session = openAdminSession();
+		try {
+			Node node = retrieve(session, path);
 			if (node == null)
-				return null;
-			jcrAdminSession.save();
-			return node;
+				return false;
+			if (session.hasPendingChanges())
+				session.save();
+			return true;
 		} catch (RepositoryException e) {
-			JcrUtils.discardQuietly(jcrAdminSession);
 			throw new JcrException("Cannot retrieve and save " + path, e);
 		} finally {
-			notifyAll();
+			JcrUtils.logoutQuietly(session);
 		}
 	}
 
-	/** Session is not saved */
-	protected synchronized Node proxyUrl(Session session, String remoteUrl, String path) throws RepositoryException {
-		Node node = null;
-		if (session.itemExists(path)) {
-			// throw new ArgeoJcrException("Node " + path + " already exists");
-		}
-		try (InputStream in = new URL(remoteUrl).openStream()) {
-			// URL u = new URL(remoteUrl);
-			// in = u.openStream();
-			node = importFile(session, path, in);
+	/** Session is not saved, except when a new file is added. */
+	protected Node proxyUrl(Session session, String remoteUrl, String path) throws RepositoryException {
+		Node node = session.itemExists(path) ? session.getNode(path) : null;
+		try {
+			URLConnection connection = openConnection(remoteUrl);
+			String etag = null;
+			long lastModified = 0;
+			if (connection instanceof HttpURLConnection httpConnection) {
+				if (node != null && node.hasNode(Node.JCR_CONTENT)) {
+					// conditional request
+					Node content = node.getNode(Node.JCR_CONTENT);
+					if (content.hasProperty(ETAG))
+						httpConnection.setRequestProperty("If-None-Match", content.getProperty(ETAG).getString());
+					if (content.hasProperty(Property.JCR_LAST_MODIFIED))
+						httpConnection.setIfModifiedSince(
+								content.getProperty(Property.JCR_LAST_MODIFIED).getDate().getTimeInMillis());
+				}
+				int responseCode = httpConnection.getResponseCode();
+				if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && node != null) {
+					httpConnection.disconnect();
+					revalidated(path);
+					if (log.isTraceEnabled())
+						log.trace(remoteUrl + " not modified");
+					return node;
+				} else if (responseCode != HttpURLConnection.HTTP_OK) {
+					httpConnection.disconnect();
+					if (log.isDebugEnabled())
+						log.debug("Cannot read " + remoteUrl + " (HTTP " + responseCode + "), skipping...");
+					return null;
+				}
+				etag = httpConnection.getHeaderField("ETag");
+				lastModified = httpConnection.getLastModified();
+			}
+			try (InputStream in = connection.getInputStream()) {
+				node = importFile(session, path, in);
+			}
+			Node content = node.getNode(Node.JCR_CONTENT);
+			if (etag != null)
+				content.setProperty(ETAG, etag);
+			if (lastModified > 0) {
+				Calendar calendar = Calendar.getInstance();
+				calendar.setTimeInMillis(lastModified);
+				content.setProperty(Property.JCR_LAST_MODIFIED, calendar);
+			}
+			revalidated(path);
 		} catch (IOException e) {
 			if (log.isDebugEnabled()) {
 				log.debug("Cannot read " + remoteUrl + ", skipping... " + e.getMessage());
 				// log.trace("Cannot read because of ", e);
 			}
 			JcrUtils.discardQuietly(session);
-			// } finally {
-			// IOUtils.closeQuietly(in);
+			return null;
 		}
 		return node;
 	}
 
-	protected synchronized Node importFile(Session session, String path, InputStream in) throws RepositoryException {
+	private void revalidated(String path) {
+		if (isMutable(path))
+			revalidateAfter.put(path, System.currentTimeMillis() + revalidationPeriod);
+	}
+
+	/**
+	 * Imports the retrieved file. The content is read before the repository is
+	 * modified, and a new file is then added and saved under a lock, together
+	 * with its missing folders, so that concurrent retrievals in the same folders
+	 * do not conflict. Only the file node is marked as modified, not its
+	 * folders.
+	 */
+	protected Node importFile(Session session, String path, InputStream in) throws RepositoryException {
 		Binary binary = null;
 		try {
-			Node content = null;
-			Node node = null;
-			if (!session.itemExists(path)) {
-				node = JcrUtils.mkdirs(session, path, NodeType.NT_FILE, NodeType.NT_FOLDER, false);
-				content = node.addNode(Node.JCR_CONTENT, NodeType.NT_UNSTRUCTURED);
-			} else {
-				node = session.getNode(path);
-				content = node.getNode(Node.JCR_CONTENT);
-			}
 			binary = session.getValueFactory().createBinary(in);
-			content.setProperty(Property.JCR_DATA, binary);
-			JcrUtils.updateLastModifiedAndParents(node, null, true);
+			if (!session.itemExists(path))
+				return addFileAndSave(session, path, binary);
+			Node node = session.getNode(path);
+			node.getNode(Node.JCR_CONTENT).setProperty(Property.JCR_DATA, binary);
+			JcrUtils.updateLastModified(node, true);
 			return node;
 		} finally {
 			JcrUtils.closeQuietly(binary);
 		}
 	}
 
-	/** Whether the file should be updated. */
+	/**
+	 * Adds and saves a new file, and its missing folders. The session must not
+	 * have other pending changes.
+	 */
+	private Node addFileAndSave(Session session, String path, Binary binary) throws RepositoryException {
+		String folderPath = JcrUtils.parentPath(path);
+		synchronized (this) {
+			if (!session.itemExists(folderPath))
+				JcrUtils.mkdirs(session, folderPath, NodeType.NT_FOLDER, NodeType.NT_FOLDER, false);
+			Node node = session.getNode(folderPath).addNode(JcrUtils.lastPathElement(path), NodeType.NT_FILE);
+			Node content = node.addNode(Node.JCR_CONTENT, NodeType.NT_UNSTRUCTURED);
+			content.setProperty(Property.JCR_DATA, binary);
+			JcrUtils.updateLastModified(node, true);
+			session.save();
+			return node;
+		}
+	}
+
+	/**
+	 * Probes these URLs concurrently.
+	 *
+	 * @return the index of the first URL (in the order of the list) which is
+	 *         available, or -1 if none is
+	 */
+	protected int probe(List<String> remoteUrls) {
+		if (remoteUrls.size() == 1)
+			return 0;
+		List<Future<Boolean>> probes = new ArrayList<>(remoteUrls.size());
+		for (String remoteUrl : remoteUrls)
+			probes.add(probeExecutor.submit(() -> exists(remoteUrl)));
+		try {
+			for (int i = 0; i < probes.size(); i++) {
+				try {
+					if (probes.get(i).get()) {
+						// lower priority probes are not needed anymore
+						for (int j = i + 1; j < probes.size(); j++)
+							probes.get(j).cancel(true);
+						return i;
+					}
+				} catch (ExecutionException e) {
+					if (log.isTraceEnabled())
+						log.trace("Cannot probe " + remoteUrls.get(i) + ": " + e.getCause());
+				}
+			}
+			return -1;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while probing " + remoteUrls, e);
+		} finally {
+			for (Future<Boolean> probe : probes)
+				probe.cancel(true);
+		}
+	}
+
+	/** Whether this remote URL is available, using a HEAD request if HTTP. */
+	protected boolean exists(String remoteUrl) throws IOException {
+		URLConnection connection = openConnection(remoteUrl);
+		if (connection instanceof HttpURLConnection httpConnection) {
+			try {
+				httpConnection.setRequestMethod("HEAD");
+				return httpConnection.getResponseCode() == HttpURLConnection.HTTP_OK;
+			} finally {
+				httpConnection.disconnect();
+			}
+		} else {
+			try (InputStream in = connection.getInputStream()) {
+				return true;
+			} catch (IOException e) {
+				return false;
+			}
+		}
+	}
+
+	protected URLConnection openConnection(String remoteUrl) throws IOException {
+		URLConnection connection = new URL(remoteUrl).openConnection();
+		connection.setConnectTimeout(connectTimeout);
+		connection.setReadTimeout(readTimeout);
+		return connection;
+	}
+
+	/**
+	 * A new session writing to the proxy workspace, to be logged out by the
+	 * caller.
+	 */
+	protected Session openAdminSession() {
+		try {
+			if (adminSubject != null)
+				return Subject.doAs(adminSubject,
+						(PrivilegedExceptionAction<Session>) () -> jcrRepository.login(proxyWorkspace));
+			else
+				return jcrRepository.login(proxyWorkspace);
+		} catch (PrivilegedActionException e) {
+			throw new JcrException("Cannot log in to proxy workspace " + proxyWorkspace,
+					(RepositoryException) e.getException());
+		} catch (RepositoryException e) {
+			throw new JcrException("Cannot log in to proxy workspace " + proxyWorkspace, e);
+		}
+	}
+
+	/**
+	 * Whether the file should be updated. By default, mutable resources are
+	 * revalidated once their revalidation period (or the back-off period after a
+	 * failed revalidation) has expired.
+	 */
 	protected Boolean shouldUpdate(Session clientSession, String nodePath) {
+		if (!isMutable(nodePath))
+			return false;
+		Long after = revalidateAfter.get(nodePath);
+		return after == null || System.currentTimeMillis() >= after;
+	}
+
+	/**
+	 * Whether the resource at this path may change remotely (e.g. metadata), and
+	 * should therefore be revalidated. Returns false by default, to be
+	 * overridden.
+	 */
+	protected boolean isMutable(String path) {
 		return false;
 	}
 
@@ -150,4 +400,32 @@ public abstract class AbstractUrlProxy implements ResourceProxy {
 		this.proxyWorkspace = localWorkspace;
 	}
 
+	/** Connect timeout of remote requests (in ms). */
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	/** Read timeout of remote requests (in ms). */
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	/** Period after which mutable resources are revalidated (in ms). */
+	public void setRevalidationPeriod(long revalidationPeriod) {
+		this.revalidationPeriod = revalidationPeriod;
+	}
+
+	/**
+	 * Period during which a mutable resource whose revalidation has failed is
+	 * served from the proxy without trying the remote again (in ms).
+	 */
+	public void setFailureBackOff(long failureBackOff) {
+		this.failureBackOff = failureBackOff;
+	}
+
+	/** Number of threads used to probe remote repositories. */
+	public void setProbeThreads(int probeThreads) {
+		this.probeThreads = probeThreads;
+	}
+
 }
@@ -2,10 +2,19 @@ package org.argeo.jcr.proxy;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 
+import javax.jcr.Binary;
 import javax.jcr.Node;
 import javax.jcr.Property;
 import javax.jcr.RepositoryException;
+import javax.jcr.Value;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -13,10 +22,12 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.jackrabbit.api.JackrabbitValue;
 import org.argeo.jcr.JcrException;
 import org.argeo.api.cms.CmsLog;
 import org.argeo.jcr.Bin;
 import org.argeo.jcr.JcrUtils;
+import org.argeo.jcr.JcrxApi;
 
 /** Wraps a proxy via HTTP */
 public class ResourceProxyServlet extends HttpServlet {
@@ -27,7 +38,28 @@ public class ResourceProxyServlet extends HttpServlet {
 
 	private ResourceProxy proxy;
 
+	/** Requests with more ranges are served the whole content. */
+	private final static int MAX_RANGES = 16;
+	private final static int BUFFER_SIZE = 64 * 1024;
+
 	private String contentTypeCharset = "UTF-8";
+	/** Content types per file extension. */
+	private final Map<String, String> contentTypes = new HashMap<>();
+
+	public ResourceProxyServlet() {
+		// see http://svn.apache.org/viewvc/tomcat/trunk/conf/web.xml
+		contentTypes.put("xml", "text/xml");
+		contentTypes.put("pom", "text/xml");
+		contentTypes.put("jar", "application/java-archive");
+		contentTypes.put("zip", "application/zip");
+		contentTypes.put("gz", "application/x-gzip");
+		contentTypes.put("bz2", "application/x-bzip2");
+		contentTypes.put("tar", "application/x-tar");
+		contentTypes.put("rpm", "application/x-redhat-package-manager");
+		contentTypes.put("sha1", "text/plain");
+		contentTypes.put("md5", "text/plain");
+		contentTypes.put("asc", "text/plain");
+	}
 
 	@Override
 	protected void doGet(HttpServletRequest request,
@@ -51,7 +83,7 @@ public class ResourceProxyServlet extends HttpServlet {
 			if (node == null)
 				response.sendError(404);
 			else
-				processResponse(node, response);
+				processResponse(node, request, response);
 		} finally {
 			if (node != null)
 				try {
@@ -63,44 +95,84 @@ public class ResourceProxyServlet extends HttpServlet {
 
 	}
 
-	/** Retrieve the content of the node. */
+	/**
+	 * Retrieve the content of the node, without support for conditional or range
+	 * requests.
+	 * 
+	 * @deprecated use {@link #processResponse(Node, HttpServletRequest, HttpServletResponse)}
+	 */
+	@Deprecated
 	protected void processResponse(Node node, HttpServletResponse response) {
-//		Binary binary = null;
-//		InputStream in = null;
-		try(Bin binary = new Bin( node.getNode(Property.JCR_CONTENT)
-				.getProperty(Property.JCR_DATA));InputStream in = binary.getStream()) {
+		processResponse(node, null, response);
+	}
+
+	/**
+	 * Retrieve the content of the node, answering conditional requests with
+	 * 304 and range requests with the requested byte ranges.
+	 */
+	protected void processResponse(Node node, HttpServletRequest request, HttpServletResponse response) {
+		try {
+			Node content = node.getNode(Property.JCR_CONTENT);
+			Property data = content.getProperty(Property.JCR_DATA);
+			long length = data.getLength();
+			String etag = getETag(node, data);
+			long lastModified = -1;
+			if (content.hasProperty(Property.JCR_LAST_MODIFIED))// HTTP dates have a precision of one second
+				lastModified = content.getProperty(Property.JCR_LAST_MODIFIED).getDate().getTimeInMillis() / 1000
+						* 1000;
 			String fileName = node.getName();
-			String ext = FilenameUtils.getExtension(fileName);
-
-			// TODO use a more generic / standard approach
-			// see http://svn.apache.org/viewvc/tomcat/trunk/conf/web.xml
-			String contentType;
-			if ("xml".equals(ext))
-				contentType = "text/xml;charset=" + contentTypeCharset;
-			else if ("jar".equals(ext))
-				contentType = "application/java-archive";
-			else if ("zip".equals(ext))
-				contentType = "application/zip";
-			else if ("gz".equals(ext))
-				contentType = "application/x-gzip";
-			else if ("bz2".equals(ext))
-				contentType = "application/x-bzip2";
-			else if ("tar".equals(ext))
-				contentType = "application/x-tar";
-			else if ("rpm".equals(ext))
-				contentType = "application/x-redhat-package-manager";
-			else
-				contentType = "application/octet-stream";
-			contentType = contentType + ";name=\"" + fileName + "\"";
-			response.setHeader("Content-Disposition", "attachment; filename=\""
-					+ fileName + "\"");
-			response.setHeader("Expires", "0");
-			response.setHeader("Cache-Control", "no-cache, must-revalidate");
-			response.setHeader("Pragma", "no-cache");
+			String contentType = getContentType(content, fileName);
+
+			response.setHeader("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
+			// can be cached, but must be revalidated
+			response.setHeader("Cache-Control", "no-cache");
+			response.setHeader("Accept-Ranges", "bytes");
+			if (etag != null)
+				response.setHeader("ETag", etag);
+			if (lastModified > 0)
+				response.setDateHeader("Last-Modified", lastModified);
 
-			response.setContentType(contentType);
+			if (request != null && isNotModified(request, etag, lastModified)) {
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				return;
+			}
 
-			IOUtils.copy(in, response.getOutputStream());
+			List<long[]> ranges = request != null ? getRanges(request, etag, lastModified, length) : null;
+			if (ranges != null && ranges.isEmpty()) {
+				response.setHeader("Content-Range", "bytes */" + length);
+				response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+				return;
+			}
+
+			try (Bin binary = new Bin(data)) {
+				if (ranges == null) {
+					response.setContentType(contentType + ";name=\"" + fileName + "\"");
+					if (length >= 0)
+						response.setContentLengthLong(length);
+					try (InputStream in = binary.getStream()) {
+						IOUtils.copy(in, response.getOutputStream());
+					}
+				} else if (ranges.size() == 1) {
+					long[] range = ranges.get(0);
+					response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+					response.setContentType(contentType + ";name=\"" + fileName + "\"");
+					response.setHeader("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + length);
+					response.setContentLengthLong(range[1] - range[0] + 1);
+					copyRange(binary, range[0], range[1], response.getOutputStream());
+				} else {
+					String boundary = UUID.randomUUID().toString().replace("-", "");
+					response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+					response.setContentType("multipart/byteranges; boundary=" + boundary);
+					OutputStream out = response.getOutputStream();
+					for (long[] range : ranges) {
+						String partHeader = "\r\n--" + boundary + "\r\nContent-Type: " + contentType
+								+ "\r\nContent-Range: bytes " + range[0] + "-" + range[1] + "/" + length + "\r\n\r\n";
+						out.write(partHeader.getBytes(StandardCharsets.US_ASCII));
+						copyRange(binary, range[0], range[1], out);
+					}
+					out.write(("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+				}
+			}
 		} catch (RepositoryException e) {
 			throw new JcrException("Cannot download " + node, e);
 		} catch (IOException e) {
@@ -108,8 +180,169 @@ public class ResourceProxyServlet extends HttpServlet {
 		}
 	}
 
+	/**
+	 * A strong ETag based on the identity of the content in the data store, or
+	 * on a stored checksum, or a weak ETag based on the identifier, the length
+	 * and the last modification of the content.
+	 */
+	protected String getETag(Node node, Property data) throws RepositoryException {
+		Value value = data.getValue();
+		if (value instanceof JackrabbitValue jackrabbitValue) {
+			String contentIdentity = jackrabbitValue.getContentIdentity();
+			if (contentIdentity != null)
+				return '\"' + contentIdentity + '\"';
+		}
+		List<String> checksums = JcrxApi.getChecksums(node);
+		if (!checksums.isEmpty())
+			return '\"' + checksums.get(0).replace("\"", "") + '\"';
+		Node content = data.getParent();
+		long lastModified = content.hasProperty(Property.JCR_LAST_MODIFIED)
+				? content.getProperty(Property.JCR_LAST_MODIFIED).getDate().getTimeInMillis()
+				: 0;
+		return "W/\"" + content.getIdentifier() + '-' + data.getLength() + '-' + lastModified + '\"';
+	}
+
+	/**
+	 * The content type from the jcr:mimeType of the content, or from the
+	 * extension of the file name, or from the servlet context.
+	 */
+	protected String getContentType(Node content, String fileName) throws RepositoryException {
+		String contentType = null;
+		if (content.hasProperty(Property.JCR_MIMETYPE)) {
+			contentType = content.getProperty(Property.JCR_MIMETYPE).getString();
+		} else {
+			String ext = FilenameUtils.getExtension(fileName).toLowerCase();
+			contentType = contentTypes.get(ext);
+			if (contentType == null && getServletConfig() != null)
+				contentType = getServletContext().getMimeType(fileName);
+		}
+		if (contentType == null)
+			return "application/octet-stream";
+		if (contentType.startsWith("text/") && !contentType.contains("charset="))
+			contentType = contentType + ";charset=" + contentTypeCharset;
+		return contentType;
+	}
+
+	/** Whether the client already has the current version. */
+	protected boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			// If-Modified-Since is ignored when If-None-Match is present
+			if (etag == null)
+				return false;
+			for (String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				if (tag.equals("*") || weakTag(tag).equals(weakTag(etag)))
+					return true;
+			}
+			return false;
+		}
+		if (lastModified > 0) {
+			long ifModifiedSince = getDateHeader(request, "If-Modified-Since");
+			return ifModifiedSince > 0 && lastModified <= ifModifiedSince;
+		}
+		return false;
+	}
+
+	/**
+	 * The requested byte ranges, as inclusive start and end positions.
+	 * 
+	 * @return null if the whole content should be sent, an empty list if none of
+	 *         the ranges can be satisfied
+	 */
+	protected List<long[]> getRanges(HttpServletRequest request, String etag, long lastModified, long length) {
+		String rangeHeader = request.getHeader("Range");
+		if (rangeHeader == null || length < 0)
+			return null;
+		String ifRange = request.getHeader("If-Range");
+		if (ifRange != null) {
+			// ranges are only applied to the version known by the client
+			ifRange = ifRange.trim();
+			if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+				if (etag == null || etag.startsWith("W/") || !etag.equals(ifRange))
+					return null;
+			} else {
+				long ifRangeDate = getDateHeader(request, "If-Range");
+				if (lastModified <= 0 || ifRangeDate != lastModified)
+					return null;
+			}
+		}
+		if (!rangeHeader.startsWith("bytes="))
+			return null;
+		List<long[]> ranges = new ArrayList<>();
+		String[] rangeSpecs = rangeHeader.substring("bytes=".length()).split(",");
+		if (rangeSpecs.length > MAX_RANGES)
+			return null;
+		for (String rangeSpec : rangeSpecs) {
+			rangeSpec = rangeSpec.trim();
+			int dashIndex = rangeSpec.indexOf('-');
+			if (dashIndex < 0)
+				return null;
+			try {
+				long start;
+				long end;
+				if (dashIndex == 0) {// suffix
+					long suffixLength = Long.parseLong(rangeSpec.substring(1));
+					if (suffixLength <= 0)
+						continue;
+					start = Math.max(0, length - suffixLength);
+					end = length - 1;
+				} else {
+					start = Long.parseLong(rangeSpec.substring(0, dashIndex));
+					end = dashIndex == rangeSpec.length() - 1 ? length - 1
+							: Math.min(length - 1, Long.parseLong(rangeSpec.substring(dashIndex + 1)));
+					if (end < start)
+						return null;// invalid syntax
+				}
+				if (start < length)
+					ranges.add(new long[] { start, end });
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+		return ranges;
+	}
+
+	/**
+	 * Copies a range with a single stream, skipped to its start, since random
+	 * access into a binary typically opens and skips a new stream on each read.
+	 */
+	protected void copyRange(Binary binary, long start, long end, OutputStream out)
+			throws IOException, RepositoryException {
+		long length = end - start + 1;
+		byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, length)];
+		try (InputStream in = binary.getStream()) {
+			long copied = IOUtils.copyLarge(in, out, start, length, buffer);
+			if (copied < length)
+				throw new IOException("Unexpected end of binary at " + (start + copied));
+		}
+	}
+
+	private static String weakTag(String tag) {
+		return tag.startsWith("W/") ? tag.substring(2) : tag;
+	}
+
+	private static long getDateHeader(HttpServletRequest request, String name) {
+		try {
+			return request.getDateHeader(name);
+		} catch (IllegalArgumentException e) {
+			// invalid date
+			return -1;
+		}
+	}
+
 	public void setProxy(ResourceProxy resourceProxy) {
 		this.proxy = resourceProxy;
 	}
 
+	/** Content types per file extension, overriding the default ones. */
+	public void setContentTypes(Map<String, String> contentTypes) {
+		for (String ext : contentTypes.keySet())
+			this.contentTypes.put(ext.toLowerCase(), contentTypes.get(ext));
+	}
+
+	public void setContentTypeCharset(String contentTypeCharset) {
+		this.contentTypeCharset = contentTypeCharset;
+	}
+
 }
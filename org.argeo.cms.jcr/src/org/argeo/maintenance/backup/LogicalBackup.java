@@ -1,7 +1,9 @@
 package org.argeo.maintenance.backup;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -13,12 +15,22 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -26,6 +38,7 @@ import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.jar.JarOutputStream;
+import java.util.stream.Stream;
 import java.util.jar.Manifest;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
@@ -58,6 +71,22 @@ import org.osgi.framework.BundleContext;
  * for migration or live backup. Physical backups of the underlying file
  * systems, databases, LDAP servers, etc. should be performed for disaster
  * recovery.
+ * <p>
+ * If a previous backup is set (see {@link #setPreviousBackup(Path)}), the
+ * backup is incremental: binaries already present in the previous backup are
+ * hard-linked based on their content identity, and top-level subtrees which
+ * have not changed are hard-linked instead of being exported again (their files
+ * which were symbolic links being hard-linked to the actual files). A subtree
+ * is only considered unchanged if all its nodes have a
+ * <code>jcr:lastModified</code> property, and if the fingerprint of their
+ * paths, order and modification dates (as stored by the repository) is the same
+ * as when the previous backup exported it. Additions, removals, moves and
+ * reorderings are therefore detected, as well as modifications updating
+ * <code>jcr:lastModified</code>, while subtrees with nodes not tracking
+ * modifications (e.g. access control policies) are always exported again. This
+ * is notably the case of the version storage, whose nodes have no
+ * <code>jcr:lastModified</code>: it is exported in full by each backup,
+ * although it is not restored by {@link LogicalRestore}.
  */
 public class LogicalBackup implements Runnable {
 	private final static CmsLog log = CmsLog.getLog(LogicalBackup.class);
@@ -69,6 +98,26 @@ public class LogicalBackup implements Runnable {
 	public final static String JCR_SYSTEM = "jcr:system";
 	public final static String JCR_VERSION_STORAGE_PATH = "/jcr:system/jcr:versionStorage";
 
+	/** Metadata of the backup, used by subsequent incremental backups. */
+	public final static String MANIFEST = "backup.properties";
+	/** Content identities of the backed up binaries and their relative paths. */
+	public final static String FILES_INDEX = "files.index";
+	/** Fingerprints of the exported subtrees, per workspace and path. */
+	public final static String SUBTREES_INDEX = "subtrees.index";
+	/**
+	 * Where the entries referencing another entry are written in a zip backup,
+	 * under the path of the file they stand for (e.g.
+	 * <code>links/files/main/a/b.txt</code> for <code>files/main/a/b.txt</code>).
+	 */
+	public final static String LINKS_BASE = "links/";
+	/**
+	 * Where the checksums of the de-duplicated files are written, under the path
+	 * of the file with a <code>.sha256</code> suffix.
+	 */
+	public final static String CHECKSUMS_BASE = "checksums/";
+	public final static String MANIFEST_BEGIN = "begin";
+	public final static String MANIFEST_PREVIOUS = "previous";
+
 	private final Repository repository;
 	private String defaultWorkspace;
 	private final BundleContext bundleContext;
@@ -80,12 +129,24 @@ public class LogicalBackup implements Runnable {
 
 	private boolean performSoftwareBackup = false;
 
-	private Map<String, String> checksums = new TreeMap<>();
+	/** Content identities backed up so far, shared by all threads. */
+	private ConcurrentMap<String, String> checksums = new ConcurrentHashMap<>();
 
 	private int threadCount = 5;
 
 	private boolean backupFailed = false;
 
+	// incremental
+	private Path previousBackup = null;
+	/** Content identities of the previous backup and their absolute paths. */
+	private Map<String, Path> previousChecksums = Collections.emptyMap();
+	/** Relative paths of the files of the previous backup and their checksums. */
+	private Map<String, String> previousPaths = Collections.emptyMap();
+	/** Fingerprints of the subtrees of the previous backup. */
+	private Map<String, String> previousFingerprints = Collections.emptyMap();
+	/** Fingerprints of the subtrees of this backup, shared by all threads. */
+	private ConcurrentMap<String, String> fingerprints = new ConcurrentHashMap<>();
+
 	public LogicalBackup(BundleContext bundleContext, Repository repository, Path basePath) {
 		this.repository = repository;
 		this.zout = null;
@@ -93,6 +154,17 @@ public class LogicalBackup implements Runnable {
 		this.bundleContext = bundleContext;
 	}
 
+	/**
+	 * Backup to a zip archive. The stream is not closed, which is the
+	 * responsibility of the caller.
+	 */
+	public LogicalBackup(BundleContext bundleContext, Repository repository, ZipOutputStream zout) {
+		this.repository = repository;
+		this.zout = zout;
+		this.basePath = null;
+		this.bundleContext = bundleContext;
+	}
+
 	@Override
 	public void run() {
 		try {
@@ -110,6 +182,7 @@ public class LogicalBackup implements Runnable {
 			throw new IllegalStateException("Another backup is running");
 		executorService = Executors.newFixedThreadPool(threadCount);
 		long begin = System.currentTimeMillis();
+		loadPreviousBackup();
 		// software backup
 		if (bundleContext != null && performSoftwareBackup)
 			executorService.submit(() -> performSoftwareBackup(bundleContext));
@@ -147,6 +220,8 @@ public class LogicalBackup implements Runnable {
 				throw new IllegalStateException("Backup was interrupted before completion", e);
 			}
 		}
+		if (!isBackupFailed())
+			writeManifest(begin);
 		long duration = System.currentTimeMillis() - begin;
 		if (isBackupFailed())
 			log.info("System logical backup failed after " + (duration / 60000) + "min " + (duration / 1000) + "s");
@@ -196,6 +271,16 @@ public class LogicalBackup implements Runnable {
 		Session session = login(workspaceName);
 		try {
 			Node nodeToExport = session.getNode(nodePath);
+			// computed before the export, so that concurrent changes are exported again
+			String fingerprint = fingerprint(nodeToExport);
+			if (fingerprint != null)
+				fingerprints.put(subtreeKey(workspaceName, nodePath), fingerprint);
+			if (isUnchanged(workspaceName, nodePath, fingerprint)) {
+				linkFromPreviousBackup(workspaceName, nodePath);
+				if (log.isDebugEnabled())
+					log.debug(workspaceName + ":" + nodePath + " unchanged, linked from " + previousBackup);
+				return Collections.emptySet();
+			}
 //			String nodeName = nodeToExport.getName();
 //		if (nodeName.startsWith("jcr:") || nodeName.startsWith("rep:"))
 //			continue nodes;
@@ -254,18 +339,24 @@ public class LogicalBackup implements Runnable {
 						checksum = value.getContentIdentity();
 					}
 					if (checksum != null) {
-						if (!checksums.containsKey(checksum)) {
-							checksums.put(checksum, fileRelativePath);
-						} else {
+						// atomic, since files are backed up by multiple threads
+						String sourcePath = checksums.putIfAbsent(checksum, fileRelativePath);
+						if (sourcePath != null) {
 							skip = true;
-							String sourcePath = checksums.get(checksum);
 							if (log.isTraceEnabled())
 								log.trace(fileRelativePath + " : already " + sourcePath + " with checksum " + checksum);
 							createLink(sourcePath, fileRelativePath);
 							try (Writer writerSum = new OutputStreamWriter(
-									openOutputStream(fileRelativePath + ".sha256"), StandardCharsets.UTF_8)) {
+									openOutputStream(CHECKSUMS_BASE + fileRelativePath + ".sha256"),
+									StandardCharsets.UTF_8)) {
 								writerSum.write(checksum);
 							}
+						} else if (previousChecksums.containsKey(checksum) && zout == null
+								&& Files.exists(previousChecksums.get(checksum))) {
+							skip = true;
+							createHardLink(previousChecksums.get(checksum), fileRelativePath);
+							if (log.isTraceEnabled())
+								log.trace(fileRelativePath + " : linked from previous backup");
 						}
 					}
 
@@ -291,11 +382,186 @@ public class LogicalBackup implements Runnable {
 		}
 	}
 
+	/*
+	 * INCREMENTAL
+	 */
+	/** Loads the manifest and the files index of the previous backup, if any. */
+	protected void loadPreviousBackup() throws IOException {
+		if (previousBackup == null)
+			return;
+		if (zout != null)
+			throw new IllegalStateException("Incremental backups are only supported for directories");
+		Path manifestPath = previousBackup.resolve(MANIFEST);
+		if (!Files.exists(manifestPath)) {
+			log.warn("No " + MANIFEST + " in " + previousBackup + ", performing a full backup");
+			previousBackup = null;
+			return;
+		}
+		Properties manifest = new Properties();
+		try (InputStream in = Files.newInputStream(manifestPath)) {
+			manifest.load(in);
+		}
+		Map<String, Path> previousChecksums = new HashMap<>();
+		Map<String, String> previousPaths = new HashMap<>();
+		Path indexPath = previousBackup.resolve(FILES_INDEX);
+		if (Files.exists(indexPath))
+			try (BufferedReader reader = Files.newBufferedReader(indexPath, StandardCharsets.UTF_8)) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					int sep = line.indexOf('\t');
+					if (sep < 0)
+						continue;
+					String checksum = line.substring(0, sep);
+					String relativePath = line.substring(sep + 1);
+					previousChecksums.put(checksum, previousBackup.resolve(relativePath));
+					previousPaths.put(relativePath, checksum);
+				}
+			}
+		Map<String, String> previousFingerprints = new HashMap<>();
+		Path subtreesIndexPath = previousBackup.resolve(SUBTREES_INDEX);
+		if (Files.exists(subtreesIndexPath))
+			try (BufferedReader reader = Files.newBufferedReader(subtreesIndexPath, StandardCharsets.UTF_8)) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					int sep = line.lastIndexOf('\t');
+					if (sep < 0)
+						continue;
+					previousFingerprints.put(line.substring(0, sep), line.substring(sep + 1));
+				}
+			}
+		this.previousChecksums = previousChecksums;
+		this.previousPaths = previousPaths;
+		this.previousFingerprints = previousFingerprints;
+		log.info("Incremental backup based on " + previousBackup + " (" + manifest.getProperty(MANIFEST_BEGIN) + ")");
+	}
+
+	/**
+	 * Whether this subtree has the same fingerprint as when it was exported by
+	 * the previous backup.
+	 */
+	protected boolean isUnchanged(String workspaceName, String nodePath, String fingerprint) {
+		if (previousBackup == null || fingerprint == null)
+			return false;
+		if (!fingerprint.equals(previousFingerprints.get(subtreeKey(workspaceName, nodePath))))
+			return false;
+		return Files.exists(previousBackup.resolve(WORKSPACES_BASE + workspaceName + nodePath + ".xml"));
+	}
+
+	/**
+	 * A digest of the paths and modification dates of all the nodes of this
+	 * subtree, in document order, or null if some of them don't track their
+	 * modifications.
+	 */
+	protected String fingerprint(Node node) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			if (!fingerprint(node, digest))
+				return null;
+			return HexFormat.of().formatHex(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		} catch (RepositoryException e) {
+			if (log.isDebugEnabled())
+				log.debug("Cannot fingerprint " + node + ", exporting it: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private boolean fingerprint(Node node, MessageDigest digest) throws RepositoryException {
+		if (!node.hasProperty(Property.JCR_LAST_MODIFIED))
+			return false;
+		String entry = node.getPath() + '\t' + node.getProperty(Property.JCR_LAST_MODIFIED).getString() + '\n';
+		digest.update(entry.getBytes(StandardCharsets.UTF_8));
+		for (NodeIterator nit = node.getNodes(); nit.hasNext();) {
+			if (!fingerprint(nit.nextNode(), digest))
+				return false;
+		}
+		return true;
+	}
+
+	private static String subtreeKey(String workspaceName, String nodePath) {
+		return workspaceName + ':' + nodePath;
+	}
+
+	/** Hard links the exported XML and the files of a subtree. */
+	protected void linkFromPreviousBackup(String workspaceName, String nodePath) throws IOException {
+		String xmlRelativePath = WORKSPACES_BASE + workspaceName + nodePath + ".xml";
+		createHardLink(previousBackup.resolve(xmlRelativePath), xmlRelativePath);
+		String filesRelativePath = FILES_BASE + workspaceName + nodePath;
+		Path previousChecksumFiles = previousBackup.resolve(CHECKSUMS_BASE + filesRelativePath);
+		if (Files.exists(previousChecksumFiles))
+			try (Stream<Path> paths = Files.walk(previousChecksumFiles)) {
+				for (Iterator<Path> it = paths.iterator(); it.hasNext();) {
+					Path previousFile = it.next();
+					if (!Files.isDirectory(previousFile))
+						createHardLink(previousFile, previousBackup.relativize(previousFile).toString());
+				}
+			}
+		Path previousFiles = previousBackup.resolve(filesRelativePath);
+		if (!Files.exists(previousFiles))
+			return;
+		try (Stream<Path> paths = Files.walk(previousFiles)) {
+			for (Iterator<Path> it = paths.iterator(); it.hasNext();) {
+				Path previousFile = it.next();
+				if (Files.isDirectory(previousFile))
+					continue;
+				String relativePath = previousBackup.relativize(previousFile).toString();
+				String checksum;
+				if (Files.isSymbolicLink(previousFile)) {
+					Path checksumPath = previousBackup.resolve(CHECKSUMS_BASE + relativePath + ".sha256");
+					checksum = Files.exists(checksumPath) ? Files.readString(checksumPath).trim() : null;
+					// the linked file may be in a subtree which has changed since
+					createHardLink(resolvePreviousLink(previousFile, checksum), relativePath);
+				} else {
+					createHardLink(previousFile, relativePath);
+					checksum = previousPaths.get(relativePath);
+				}
+				if (checksum != null)
+					checksums.putIfAbsent(checksum, relativePath);
+			}
+		}
+	}
+
+	/**
+	 * The actual file a symbolic link of the previous backup stands for, found
+	 * by its checksum if the link is dangling.
+	 */
+	protected Path resolvePreviousLink(Path previousLink, String checksum) throws IOException {
+		if (Files.exists(previousLink))
+			return previousLink.toRealPath();
+		Path byChecksum = checksum != null ? previousChecksums.get(checksum) : null;
+		if (byChecksum != null && Files.exists(byChecksum))
+			return byChecksum.toRealPath();
+		throw new FileNotFoundException("Cannot resolve " + previousLink + " in " + previousBackup);
+	}
+
+	/** Writes the manifest and the files index of this backup. */
+	protected void writeManifest(long begin) throws IOException {
+		Properties manifest = new Properties();
+		manifest.setProperty(MANIFEST_BEGIN, Instant.ofEpochMilli(begin).toString());
+		if (previousBackup != null)
+			manifest.setProperty(MANIFEST_PREVIOUS, previousBackup.toString());
+		try (OutputStream out = openOutputStream(MANIFEST)) {
+			manifest.store(out, "Argeo logical backup");
+		}
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(openOutputStream(FILES_INDEX),
+				StandardCharsets.UTF_8))) {
+			for (Map.Entry<String, String> entry : new TreeMap<>(checksums).entrySet())
+				writer.write(entry.getKey() + '\t' + entry.getValue() + '\n');
+		}
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(openOutputStream(SUBTREES_INDEX),
+				StandardCharsets.UTF_8))) {
+			for (Map.Entry<String, String> entry : new TreeMap<>(fingerprints).entrySet())
+				writer.write(entry.getKey() + '\t' + entry.getValue() + '\n');
+		}
+	}
+
+	/*
+	 * OUTPUT
+	 */
 	protected OutputStream openOutputStream(String relativePath) throws IOException {
 		if (zout != null) {
-			ZipEntry entry = new ZipEntry(relativePath);
-			zout.putNextEntry(entry);
-			return zout;
+			return new ZipEntryOutputStream(relativePath);
 		} else if (basePath != null) {
 			Path targetPath = basePath.resolve(Paths.get(relativePath));
 			Files.createDirectories(targetPath.getParent());
@@ -307,8 +573,10 @@ public class LogicalBackup implements Runnable {
 
 	protected void createLink(String source, String target) throws IOException {
 		if (zout != null) {
-			// TODO implement for zip
-			throw new UnsupportedOperationException();
+			// zip entries cannot be linked, so we reference the entry
+			try (OutputStream out = openOutputStream(LINKS_BASE + target)) {
+				out.write(source.getBytes(StandardCharsets.UTF_8));
+			}
 		} else if (basePath != null) {
 			Path sourcePath = basePath.resolve(Paths.get(source));
 			Path targetPath = basePath.resolve(Paths.get(target));
@@ -320,13 +588,17 @@ public class LogicalBackup implements Runnable {
 		}
 	}
 
-	protected void closeOutputStream(String relativePath, OutputStream out) throws IOException {
-		if (zout != null) {
-			zout.closeEntry();
-		} else if (basePath != null) {
-			out.close();
-		} else {
-			throw new UnsupportedOperationException();
+	/**
+	 * Hard links a file from another backup, falling back to a copy if the file
+	 * systems don't support it.
+	 */
+	protected void createHardLink(Path existing, String target) throws IOException {
+		Path targetPath = basePath.resolve(Paths.get(target));
+		Files.createDirectories(targetPath.getParent());
+		try {
+			Files.createLink(targetPath, existing);
+		} catch (UnsupportedOperationException | IOException e) {
+			Files.copy(existing, targetPath, StandardCopyOption.REPLACE_EXISTING);
 		}
 	}
 
@@ -353,13 +625,15 @@ public class LogicalBackup implements Runnable {
 		if (!Files.exists(basePath))
 			Files.createDirectories(basePath);
 		LogicalBackup backup = new LogicalBackup(null, repository, basePath);
+		if (args.length > 2)
+			backup.setPreviousBackup(Paths.get(args[2]));
 		backup.run();
 	}
 
 	private static void printUsage(String errorMessage) {
 		if (errorMessage != null)
 			System.err.println(errorMessage);
-		System.out.println("Usage: LogicalBackup <remote URL> [<target directory>]");
+		System.out.println("Usage: LogicalBackup <remote URL> [<target directory>] [<previous backup directory>]");
 
 	}
 
@@ -445,4 +719,61 @@ public class LogicalBackup implements Runnable {
 	protected boolean isBackupFailed() {
 		return backupFailed;
 	}
+
+	/** The number of threads exporting subtrees and files in parallel. */
+	public void setThreadCount(int threadCount) {
+		if (threadCount < 1)
+			throw new IllegalArgumentException("There must be at least one thread");
+		this.threadCount = threadCount;
+	}
+
+	/**
+	 * A previous backup (in a directory) on which this backup will be
+	 * incrementally based.
+	 */
+	public void setPreviousBackup(Path previousBackup) {
+		this.previousBackup = previousBackup;
+	}
+
+	public void setPerformSoftwareBackup(boolean performSoftwareBackup) {
+		this.performSoftwareBackup = performSoftwareBackup;
+	}
+
+	/**
+	 * Spools a zip entry to a temporary file, and writes it to the shared zip
+	 * stream when closed, since entries are produced by multiple threads.
+	 */
+	private class ZipEntryOutputStream extends FilterOutputStream {
+		private final String relativePath;
+		private final Path tempPath;
+
+		ZipEntryOutputStream(String relativePath) throws IOException {
+			this(relativePath, Files.createTempFile(LogicalBackup.class.getSimpleName(), null));
+		}
+
+		private ZipEntryOutputStream(String relativePath, Path tempPath) throws IOException {
+			super(Files.newOutputStream(tempPath));
+			this.relativePath = relativePath;
+			this.tempPath = tempPath;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				super.close();
+				synchronized (zout) {
+					zout.putNextEntry(new ZipEntry(relativePath));
+					Files.copy(tempPath, zout);
+					zout.closeEntry();
+				}
+			} finally {
+				Files.deleteIfExists(tempPath);
+			}
+		}
+	}
 }
@@ -2,11 +2,24 @@ package org.argeo.maintenance.backup;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 
+import javax.jcr.Binary;
 import javax.jcr.ImportUUIDBehavior;
+import javax.jcr.Node;
+import javax.jcr.Property;
 import javax.jcr.Repository;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
@@ -16,14 +29,39 @@ import org.argeo.jcr.Jcr;
 import org.argeo.jcr.JcrException;
 import org.argeo.jcr.JcrUtils;
 
-/** Restores a backup in the format defined by {@link LogicalBackup}. */
+/**
+ * Restores a backup in the format defined by {@link LogicalBackup}.
+ * <p>
+ * The top-level subtrees of all workspaces are imported concurrently, each in
+ * its own session. The content of the files, which is not part of the exported
+ * XML, is then streamed from the de-duplicated files of the backup (following
+ * the symbolic links of a directory backup, or the entries under
+ * {@link LogicalBackup#LINKS_BASE} of an extracted zip backup).
+ * <p>
+ * The version storage is not restored, since it is protected and cannot be
+ * imported (Jackrabbit rejects it): the versionable nodes get new version
+ * histories, starting with their restored state.
+ */
 public class LogicalRestore implements Runnable {
 	private final static CmsLog log = CmsLog.getLog(LogicalRestore.class);
 
+	/** Number of restored files after which the session is saved. */
+	private final static int FILES_BATCH_SIZE = 100;
+	private final static long M = 1024 * 1024;
+
 	private final Repository repository;
 //	private final BundleContext bundleContext;
 	private final Path basePath;
 
+	private int threadCount = 5;
+
+	// progress
+	private long begin;
+	private long subtreesCount;
+	private final AtomicLong restoredSubtrees = new AtomicLong(0);
+	private final AtomicLong restoredFiles = new AtomicLong(0);
+	private final AtomicLong restoredBytes = new AtomicLong(0);
+
 	public LogicalRestore(Repository repository, Path basePath) {
 		this.repository = repository;
 		this.basePath = basePath;
@@ -32,51 +70,161 @@ public class LogicalRestore implements Runnable {
 
 	@Override
 	public void run() {
+		begin = System.currentTimeMillis();
 		Path workspaces = basePath.resolve(LogicalBackup.WORKSPACES_BASE);
+		ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
 		try {
-			// import jcr:system first
-//			Session defaultSession = NodeUtils.openDataAdminSession(repository, null);
-//			try (DirectoryStream<Path> xmls = Files.newDirectoryStream(
-//					workspaces.resolve(NodeConstants.SYS_WORKSPACE + LogicalBackup.JCR_VERSION_STORAGE_PATH),
-//					"*.xml")) {
-//				for (Path xml : xmls) {
-//					try (InputStream in = Files.newInputStream(xml)) {
-//						defaultSession.getWorkspace().importXML(LogicalBackup.JCR_VERSION_STORAGE_PATH, in,
-//								ImportUUIDBehavior.IMPORT_UUID_COLLISION_REPLACE_EXISTING);
-//						if (log.isDebugEnabled())
-//							log.debug("Restored " + xml + " to " + defaultSession.getWorkspace().getName() + ":");
-//					}
-//				}
-//			} finally {
-//				Jcr.logout(defaultSession);
-//			}
-
-			// non-system content
+			List<Path> workspacePaths = new ArrayList<>();
 			try (DirectoryStream<Path> workspaceDirs = Files.newDirectoryStream(workspaces)) {
-				for (Path workspacePath : workspaceDirs) {
-					String workspaceName = workspacePath.getFileName().toString();
-					Session session = JcrUtils.loginOrCreateWorkspace(repository, workspaceName);
-					try (DirectoryStream<Path> xmls = Files.newDirectoryStream(workspacePath, "*.xml")) {
-						xmls: for (Path xml : xmls) {
-							if (xml.getFileName().toString().startsWith("rep:"))
-								continue xmls;
-							try (InputStream in = Files.newInputStream(xml)) {
-								session.getWorkspace().importXML("/", in,
-										ImportUUIDBehavior.IMPORT_UUID_COLLISION_REPLACE_EXISTING);
-								if (log.isDebugEnabled())
-									log.debug("Restored " + xml + " to workspace " + workspaceName);
-							}
-						}
-					} finally {
-						Jcr.logout(session);
+				for (Path workspacePath : workspaceDirs)
+					if (Files.isDirectory(workspacePath))
+						workspacePaths.add(workspacePath);
+			}
+
+			List<Future<?>> futures = new ArrayList<>();
+			for (Path workspacePath : workspacePaths) {
+				String workspaceName = workspacePath.getFileName().toString();
+				// make sure the workspace exists before concurrent logins
+				Jcr.logout(JcrUtils.loginOrCreateWorkspace(repository, workspaceName));
+				try (DirectoryStream<Path> xmls = Files.newDirectoryStream(workspacePath, "*.xml")) {
+					xmls: for (Path xml : xmls) {
+						if (xml.getFileName().toString().startsWith("rep:"))
+							continue xmls;
+						subtreesCount++;
+						futures.add(executorService.submit(() -> {
+							restoreSubtree(workspaceName, xml);
+							return null;
+						}));
 					}
 				}
 			}
+			waitFor(futures);
+			log.info("Restored " + basePath + ": " + progress());
 		} catch (IOException e) {
 			throw new RuntimeException("Cannot restore backup from " + basePath, e);
 		} catch (RepositoryException e) {
 			throw new JcrException("Cannot restore backup from " + basePath, e);
+		} finally {
+			executorService.shutdownNow();
+		}
+	}
+
+	/** Imports a top-level subtree and restores the content of its files. */
+	protected void restoreSubtree(String workspaceName, Path xml) throws IOException, RepositoryException {
+		Session session = JcrUtils.loginOrCreateWorkspace(repository, workspaceName);
+		try {
+			try (InputStream in = Files.newInputStream(xml)) {
+				session.getWorkspace().importXML("/", in, ImportUUIDBehavior.IMPORT_UUID_COLLISION_REPLACE_EXISTING);
+			}
+			String xmlFileName = xml.getFileName().toString();
+			String nodeName = xmlFileName.substring(0, xmlFileName.length() - ".xml".length());
+			Path workspaceFiles = basePath.resolve(LogicalBackup.FILES_BASE + workspaceName);
+			Path files = workspaceFiles.resolve(nodeName);
+			if (Files.exists(files))
+				restoreFiles(session, workspaceFiles, files, false);
+			Path workspaceLinks = basePath
+					.resolve(LogicalBackup.LINKS_BASE + LogicalBackup.FILES_BASE + workspaceName);
+			Path links = workspaceLinks.resolve(nodeName);
+			if (Files.exists(links))
+				restoreFiles(session, workspaceLinks, links, true);
+			if (session.hasPendingChanges())
+				session.save();
+			restoredSubtrees.incrementAndGet();
+			if (log.isDebugEnabled())
+				log.debug("Restored " + xml + " to workspace " + workspaceName + " - " + progress());
+		} finally {
+			Jcr.logout(session);
+		}
+	}
+
+	/**
+	 * Streams the content of the backed up files to the related nodes.
+	 * 
+	 * @param links whether the files contain the path of the actual file,
+	 *              relative to the backup
+	 */
+	protected void restoreFiles(Session session, Path workspaceFiles, Path files, boolean links)
+			throws IOException, RepositoryException {
+		int pending = 0;
+		try (Stream<Path> paths = Files.walk(files)) {
+			files: for (Iterator<Path> it = paths.iterator(); it.hasNext();) {
+				Path file = it.next();
+				if (Files.isDirectory(file))
+					continue files;
+				Path source = file;
+				if (links) {
+					String target = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+					source = basePath.resolve(target);
+				}
+				Path relativePath = workspaceFiles.relativize(file);
+				StringBuilder jcrPath = new StringBuilder();
+				for (Path segment : relativePath)
+					jcrPath.append('/').append(segment.toString());
+				if (!session.nodeExists(jcrPath.toString())) {
+					log.warn("No node " + jcrPath + " for backed up file " + file + ", ignoring it");
+					continue files;
+				}
+				Node contentNode = session.getNode(jcrPath.toString()).getNode(Node.JCR_CONTENT);
+				Binary binary = null;
+				// symbolic links are followed
+				try (InputStream in = Files.newInputStream(source)) {
+					binary = session.getValueFactory().createBinary(in);
+					contentNode.setProperty(Property.JCR_DATA, binary);
+					restoredBytes.addAndGet(binary.getSize());
+				} finally {
+					JcrUtils.closeQuietly(binary);
+				}
+				restoredFiles.incrementAndGet();
+				pending++;
+				if (pending >= FILES_BATCH_SIZE) {
+					session.save();
+					pending = 0;
+				}
+			}
+		}
+	}
+
+	private void waitFor(List<Future<?>> futures) throws IOException, RepositoryException {
+		try {
+			for (Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			throw new IllegalStateException("Restore of " + basePath + " was interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			else if (cause instanceof RepositoryException)
+				throw (RepositoryException) cause;
+			throw new IllegalStateException("Cannot restore " + basePath, cause);
 		}
 	}
 
+	/** A summary of the progress of the restore and of its throughput. */
+	public String progress() {
+		long duration = Math.max(1, System.currentTimeMillis() - begin);
+		long bytes = restoredBytes.get();
+		return restoredSubtrees.get() + "/" + subtreesCount + " subtrees, " + restoredFiles.get() + " files, "
+				+ (bytes / M) + " MB in " + (duration / 1000) + " s (" + (bytes * 1000 / M / duration) + " MB/s)";
+	}
+
+	public long getRestoredSubtrees() {
+		return restoredSubtrees.get();
+	}
+
+	public long getRestoredFiles() {
+		return restoredFiles.get();
+	}
+
+	public long getRestoredBytes() {
+		return restoredBytes.get();
+	}
+
+	/** The number of subtrees imported in parallel. */
+	public void setThreadCount(int threadCount) {
+		if (threadCount < 1)
+			throw new IllegalArgumentException("There must be at least one thread");
+		this.threadCount = threadCount;
+	}
+
 }
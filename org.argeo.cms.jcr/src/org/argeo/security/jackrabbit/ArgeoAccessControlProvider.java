@@ -1,16 +1,34 @@
 package org.argeo.security.jackrabbit;
 
 import java.security.Principal;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 
+import org.apache.jackrabbit.core.SessionImpl;
+import org.apache.jackrabbit.core.security.authorization.AccessControlModifications;
+import org.apache.jackrabbit.core.security.authorization.CompiledPermissions;
 import org.apache.jackrabbit.core.security.authorization.acl.ACLProvider;
+import org.apache.jackrabbit.core.security.authorization.acl.EntryCollector;
 
-/** Argeo specific access control provider */
+/**
+ * Argeo specific access control provider. The permissions evaluated for a set
+ * of principals are cached per path and shared by all the sessions of these
+ * principals, so that short-lived sessions do not have to evaluate the ACLs
+ * again. The caches are cleared whenever an ACL is modified.
+ */
 public class ArgeoAccessControlProvider extends ACLProvider {
+	/** Principal sets whose permissions are cached. */
+	final static int MAX_PRINCIPAL_SETS = 1024;
+
+	private final Map<Set<Principal>, CachedPermissions.PathCache> pathCaches = new ConcurrentHashMap<>();
+	/** Incremented before the caches are cleared. */
+	private final AtomicLong aclModifications = new AtomicLong(0);
 
 	@SuppressWarnings({ "rawtypes", "unchecked" })
 	@Override
@@ -27,4 +45,41 @@ public class ArgeoAccessControlProvider extends ACLProvider {
 		return super.canAccessRoot(principals);
 	}
 
+	@Override
+	public CompiledPermissions compilePermissions(Set<Principal> principals) throws RepositoryException {
+		CompiledPermissions compiledPermissions = super.compilePermissions(principals);
+		// admin, system and read-only permissions do not evaluate ACLs
+		if (isAdminOrSystem(principals) || isReadOnly(principals))
+			return compiledPermissions;
+		Set<Principal> key = new HashSet<>(principals);
+		CachedPermissions.PathCache pathCache = pathCaches.get(key);
+		if (pathCache == null) {
+			if (pathCaches.size() >= MAX_PRINCIPAL_SETS)
+				pathCaches.clear();
+			pathCache = pathCaches.computeIfAbsent(key, (k) -> new CachedPermissions.PathCache());
+		}
+		return new CachedPermissions(compiledPermissions, pathCache, aclModifications);
+	}
+
+	/** Listens to the ACL modifications observed by the entry collector. */
+	@Override
+	protected EntryCollector createEntryCollector(SessionImpl systemSession) throws RepositoryException {
+		EntryCollector entryCollector = super.createEntryCollector(systemSession);
+		entryCollector.addListener(this::aclModified);
+		return entryCollector;
+	}
+
+	private void aclModified(AccessControlModifications<?> modifications) {
+		// ACLs apply to whole subtrees, and are rarely modified
+		aclModifications.incrementAndGet();
+		pathCaches.clear();
+	}
+
+	@Override
+	public void close() {
+		aclModifications.incrementAndGet();
+		pathCaches.clear();
+		super.close();
+	}
+
 }
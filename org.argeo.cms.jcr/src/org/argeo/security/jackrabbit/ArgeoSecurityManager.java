@@ -2,8 +2,12 @@ package org.argeo.security.jackrabbit;
 
 import java.security.Principal;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.jcr.Credentials;
 import javax.jcr.Repository;
@@ -15,6 +19,8 @@ import javax.security.auth.x500.X500Principal;
 
 import org.apache.jackrabbit.api.security.user.UserManager;
 import org.apache.jackrabbit.core.DefaultSecurityManager;
+import org.apache.jackrabbit.core.SessionImpl;
+import org.apache.jackrabbit.core.SessionListener;
 import org.apache.jackrabbit.core.security.AMContext;
 import org.apache.jackrabbit.core.security.AccessManager;
 import org.apache.jackrabbit.core.security.SecurityConstants;
@@ -35,6 +41,14 @@ public class ArgeoSecurityManager extends DefaultSecurityManager {
 
 //	private BundleContext cmsBundleContext = null;
 
+	/** Workspaces whose access control provider has already been initialised. */
+	private final Set<String> accessManagerWorkspaces = ConcurrentHashMap.newKeySet();
+	/** Workspaces in which a user manager has already been created. */
+	private final Set<String> userManagerWorkspaces = ConcurrentHashMap.newKeySet();
+	private final Map<String, Object> workspaceLocks = new ConcurrentHashMap<>();
+	/** Number of live (non-system) sessions per workspace. */
+	private final Map<String, AtomicInteger> sessionCounts = new ConcurrentHashMap<>();
+
 	public ArgeoSecurityManager() {
 //		if (FrameworkUtil.getBundle(CmsSession.class) != null) {
 //			cmsBundleContext = FrameworkUtil.getBundle(CmsSession.class).getBundleContext();
@@ -51,20 +65,96 @@ public class ArgeoSecurityManager extends DefaultSecurityManager {
 		return new ArgeoAuthContext(appName, subject, cbHandler);
 	}
 
+	/**
+	 * The per-workspace access control providers are lazily created by the
+	 * first login on a workspace, and {@link DefaultSecurityManager} does not
+	 * guard this creation against concurrent logins. The first access to a
+	 * workspace is therefore serialised (per workspace), while subsequent
+	 * logins, which only create session-bound access managers, run
+	 * concurrently.
+	 */
 	@Override
 	public AccessManager getAccessManager(Session session, AMContext amContext) throws RepositoryException {
-		synchronized (getSystemSession()) {
-			return super.getAccessManager(session, amContext);
+		String workspaceName = session.getWorkspace().getName();
+		AccessManager accessManager;
+		if (accessManagerWorkspaces.contains(workspaceName)) {
+			accessManager = super.getAccessManager(session, amContext);
+		} else {
+			synchronized (workspaceLock(workspaceName)) {
+				accessManager = super.getAccessManager(session, amContext);
+				accessManagerWorkspaces.add(workspaceName);
+			}
 		}
+		countSession(session, workspaceName);
+		return accessManager;
+	}
+
+	/**
+	 * An access manager is created for each new session (system sessions
+	 * excepted), which is therefore counted until it is logged out.
+	 */
+	private void countSession(Session session, String workspaceName) {
+		if (!(session instanceof SessionImpl sessionImpl))
+			return;
+		AtomicInteger count = sessionCounts.computeIfAbsent(workspaceName, (k) -> new AtomicInteger(0));
+		count.incrementAndGet();
+		sessionImpl.addListener(new SessionListener() {
+
+			@Override
+			public void loggingOut(SessionImpl session) {
+			}
+
+			@Override
+			public void loggedOut(SessionImpl session) {
+				count.decrementAndGet();
+			}
+		});
+	}
+
+	/** A snapshot of the number of live sessions per workspace. */
+	public Map<String, Integer> getSessionCounts() {
+		Map<String, Integer> res = new TreeMap<>();
+		for (String workspaceName : sessionCounts.keySet())
+			res.put(workspaceName, sessionCounts.get(workspaceName).get());
+		return res;
 	}
 
+	/**
+	 * The first user manager of a workspace may initialise the system user
+	 * manager state, it is therefore serialised (per workspace) as well.
+	 */
 	@Override
 	public UserManager getUserManager(Session session) throws RepositoryException {
-		synchronized (getSystemSession()) {
+		String workspaceName = session.getWorkspace().getName();
+		if (userManagerWorkspaces.contains(workspaceName))
 			return super.getUserManager(session);
+		synchronized (workspaceLock(workspaceName)) {
+			UserManager userManager = super.getUserManager(session);
+			userManagerWorkspaces.add(workspaceName);
+			return userManager;
 		}
 	}
 
+	@Override
+	public void dispose(String workspaceName) {
+		synchronized (workspaceLock(workspaceName)) {
+			accessManagerWorkspaces.remove(workspaceName);
+			userManagerWorkspaces.remove(workspaceName);
+			super.dispose(workspaceName);
+		}
+	}
+
+	@Override
+	public void close() {
+		accessManagerWorkspaces.clear();
+		userManagerWorkspaces.clear();
+		super.close();
+	}
+
+	private Object workspaceLock(String workspaceName) {
+		return workspaceLocks.computeIfAbsent(workspaceName, (k) -> new Object());
+	}
+
 	@Override
 	protected PrincipalProvider createDefaultPrincipalProvider(Properties[] moduleConfig) throws RepositoryException {
 		return super.createDefaultPrincipalProvider(moduleConfig);
@@ -0,0 +1,143 @@
+package org.argeo.security.jackrabbit;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.security.Privilege;
+
+import org.apache.jackrabbit.core.id.ItemId;
+import org.apache.jackrabbit.core.security.authorization.CompiledPermissions;
+import org.apache.jackrabbit.spi.Path;
+
+/**
+ * The permissions of a session, whose read access and privileges per path are
+ * cached in a {@link PathCache} shared by all the sessions of the same
+ * principals. Other evaluations are delegated.
+ */
+class CachedPermissions implements CompiledPermissions {
+	private final CompiledPermissions delegate;
+	private final PathCache pathCache;
+	/** The number of ACL modifications, which invalidate the cache. */
+	private final AtomicLong aclModifications;
+
+	CachedPermissions(CompiledPermissions delegate, PathCache pathCache, AtomicLong aclModifications) {
+		this.delegate = delegate;
+		this.pathCache = pathCache;
+		this.aclModifications = aclModifications;
+	}
+
+	@Override
+	public boolean canRead(Path itemPath, ItemId itemId) throws RepositoryException {
+		if (itemPath == null)
+			return delegate.canRead(itemPath, itemId);
+		long generation = aclModifications.get();
+		Boolean cached = pathCache.readable(itemPath, generation);
+		if (cached != null)
+			return cached;
+		boolean canRead = delegate.canRead(itemPath, itemId);
+		pathCache.putReadable(itemPath, canRead, generation);
+		return canRead;
+	}
+
+	@Override
+	public int getPrivileges(Path absPath) throws RepositoryException {
+		long generation = aclModifications.get();
+		Integer cached = pathCache.privileges(absPath, generation);
+		if (cached != null)
+			return cached;
+		int privileges = delegate.getPrivileges(absPath);
+		pathCache.putPrivileges(absPath, privileges, generation);
+		return privileges;
+	}
+
+	@Override
+	public boolean grants(Path absPath, int permissions) throws RepositoryException {
+		return delegate.grants(absPath, permissions);
+	}
+
+	@Override
+	public boolean hasPrivileges(Path absPath, Privilege... privileges) throws RepositoryException {
+		return delegate.hasPrivileges(absPath, privileges);
+	}
+
+	@Override
+	public Set<Privilege> getPrivilegeSet(Path absPath) throws RepositoryException {
+		return delegate.getPrivilegeSet(absPath);
+	}
+
+	@Override
+	public boolean canReadAll() throws RepositoryException {
+		return delegate.canReadAll();
+	}
+
+	@Override
+	public void close() {
+		// the path cache is kept for the next sessions
+		delegate.close();
+	}
+
+	/**
+	 * Read access and privileges per path, valid as long as no ACL has been
+	 * modified. Reads are not locked.
+	 */
+	static class PathCache {
+		/** Cached paths beyond which a cache is cleared. */
+		final static int MAX_PATHS = 16 * 1024;
+
+		private final Map<Path, Boolean> readable = new ConcurrentHashMap<>();
+		private final Map<Path, Integer> privileges = new ConcurrentHashMap<>();
+		/** The number of ACL modifications when the entries were evaluated. */
+		private volatile long generation = -1;
+
+		Boolean readable(Path path, long currentGeneration) {
+			if (!validate(currentGeneration))
+				return null;
+			return readable.get(path);
+		}
+
+		Integer privileges(Path path, long currentGeneration) {
+			if (!validate(currentGeneration))
+				return null;
+			return privileges.get(path);
+		}
+
+		synchronized void putReadable(Path path, boolean value, long evaluatedGeneration) {
+			// the ACLs may have been modified during the evaluation
+			if (generation != evaluatedGeneration)
+				return;
+			if (readable.size() >= MAX_PATHS)
+				readable.clear();
+			readable.put(path, value);
+		}
+
+		synchronized void putPrivileges(Path path, int value, long evaluatedGeneration) {
+			if (generation != evaluatedGeneration)
+				return;
+			if (privileges.size() >= MAX_PATHS)
+				privileges.clear();
+			privileges.put(path, value);
+		}
+
+		/**
+		 * Clears the entries if ACLs have been modified since they were evaluated.
+		 * 
+		 * @return false if the caller is late, the entries having already been
+		 *         evaluated after a more recent modification
+		 */
+		private boolean validate(long currentGeneration) {
+			if (generation == currentGeneration)
+				return true;
+			synchronized (this) {
+				if (generation < currentGeneration) {
+					readable.clear();
+					privileges.clear();
+					generation = currentGeneration;
+				}
+				return generation == currentGeneration;
+			}
+		}
+	}
+}
@@ -0,0 +1,293 @@
+package org.argeo.jcr.proxy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import javax.jcr.Credentials;
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.Repository;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.jackrabbit.core.TransientRepository;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import junit.framework.TestCase;
+
+/** Tests {@link AbstractUrlProxy} against an embedded HTTP server. */
+public class AbstractUrlProxyTest extends TestCase {
+	private final static String ARTIFACT = "/org/example/example/1.0/example-1.0.jar";
+	private final static String METADATA = "/org/example/example/maven-metadata.xml";
+
+	/** In-memory repository, with simple security. */
+	private final static String REPOSITORY_XML = """
+			<?xml version="1.0"?>
+			<!DOCTYPE Repository PUBLIC "Jackrabbit 2.6" "http://jackrabbit.apache.org/dtd/repository-2.6.dtd">
+			<Repository>
+				<FileSystem class="org.apache.jackrabbit.core.fs.mem.MemoryFileSystem" />
+				<Security appName="Jackrabbit">
+					<SecurityManager class="org.apache.jackrabbit.core.security.simple.SimpleSecurityManager" />
+					<AccessManager class="org.apache.jackrabbit.core.security.simple.SimpleAccessManager" />
+					<LoginModule class="org.apache.jackrabbit.core.security.simple.SimpleLoginModule" />
+				</Security>
+				<Workspaces rootPath="${rep.home}/workspaces" defaultWorkspace="default" />
+				<Workspace name="${wsp.name}">
+					<FileSystem class="org.apache.jackrabbit.core.fs.mem.MemoryFileSystem" />
+					<PersistenceManager class="org.apache.jackrabbit.core.persistence.bundle.BundleFsPersistenceManager" />
+				</Workspace>
+				<Versioning rootPath="${rep.home}/version">
+					<FileSystem class="org.apache.jackrabbit.core.fs.mem.MemoryFileSystem" />
+					<PersistenceManager class="org.apache.jackrabbit.core.persistence.bundle.BundleFsPersistenceManager" />
+				</Versioning>
+			</Repository>
+			""";
+
+	private Path repositoryDir;
+	private TransientRepository transientRepository;
+	/** Keeps the repository started during the test. */
+	private Session keepAlive;
+	private HttpServer server;
+	private String baseUrl;
+
+	private final Map<String, String> contents = new ConcurrentHashMap<>();
+	private final Map<String, AtomicInteger> gets = new ConcurrentHashMap<>();
+	private final AtomicInteger notModified = new AtomicInteger(0);
+	private volatile boolean failing = false;
+	private volatile long delay = 0;
+
+	private TestProxy proxy;
+
+	@Override
+	protected void setUp() throws Exception {
+		repositoryDir = Files.createTempDirectory(getClass().getSimpleName());
+		Path repositoryXml = repositoryDir.resolve("repository.xml");
+		Files.writeString(repositoryXml, REPOSITORY_XML);
+		transientRepository = new TransientRepository(repositoryXml.toFile(), repositoryDir.toFile());
+		keepAlive = transientRepository.login(adminCredentials());
+
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", this::handle);
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+		baseUrl = "http://localhost:" + server.getAddress().getPort();
+
+		proxy = new TestProxy();
+		proxy.setJcrRepository(asAdmin(transientRepository));
+		proxy.setRevalidationPeriod(0);
+		proxy.init();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		proxy.destroy();
+		server.stop(0);
+		keepAlive.logout();
+		transientRepository.shutdown();
+		try (Stream<Path> paths = Files.walk(repositoryDir)) {
+			for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+				Files.delete(p);
+		}
+	}
+
+	public void testConcurrentRequestsAreCoalesced() throws Exception {
+		contents.put(ARTIFACT, "artifact");
+		delay = 500;
+		int threads = 8;
+		ExecutorService executorService = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<String>> futures = new ArrayList<>();
+			for (int i = 0; i < threads; i++)
+				futures.add(executorService.submit((Callable<String>) () -> proxyAndRead(ARTIFACT)));
+			for (Future<String> future : futures)
+				assertEquals("artifact", future.get());
+		} finally {
+			executorService.shutdownNow();
+		}
+		assertEquals(1, gets(ARTIFACT));
+	}
+
+	public void testConcurrentRetrievalsInSameFolder() throws Exception {
+		int artifacts = 64;
+		for (int i = 0; i < artifacts; i++)
+			contents.put(artifactInFolder(i), "artifact " + i);
+		ExecutorService executorService = Executors.newFixedThreadPool(16);
+		try {
+			List<Future<String>> futures = new ArrayList<>();
+			for (int i = 0; i < artifacts; i++) {
+				String path = artifactInFolder(i);
+				futures.add(executorService.submit((Callable<String>) () -> proxyAndRead(path)));
+			}
+			for (int i = 0; i < artifacts; i++)
+				assertEquals("artifact " + i, futures.get(i).get());
+		} finally {
+			// the sessions must be logged out before the repository is shut down
+			executorService.shutdown();
+			executorService.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		for (int i = 0; i < artifacts; i++)
+			assertEquals(1, gets(artifactInFolder(i)));
+	}
+
+	public void testImmutableResourcesAreNotRevalidated() throws Exception {
+		contents.put(ARTIFACT, "artifact");
+		assertEquals("artifact", proxyAndRead(ARTIFACT));
+		contents.put(ARTIFACT, "modified");
+		assertEquals("artifact", proxyAndRead(ARTIFACT));
+		assertEquals(1, gets(ARTIFACT));
+	}
+
+	public void testMutableResourcesAreRevalidated() throws Exception {
+		contents.put(METADATA, "v1");
+		assertEquals("v1", proxyAndRead(METADATA));
+		assertEquals("v1", proxyAndRead(METADATA));
+		assertEquals(2, gets(METADATA));
+		assertEquals(1, notModified.get());
+
+		contents.put(METADATA, "v2");
+		assertEquals("v2", proxyAndRead(METADATA));
+		assertEquals(3, gets(METADATA));
+	}
+
+	public void testFailedRevalidationUsesProxiedCopy() throws Exception {
+		contents.put(METADATA, "v1");
+		assertEquals("v1", proxyAndRead(METADATA));
+
+		failing = true;
+		assertEquals("v1", proxyAndRead(METADATA));
+		assertEquals(2, gets(METADATA));
+		// back-off: the remote is not tried again
+		assertEquals("v1", proxyAndRead(METADATA));
+		assertEquals(2, gets(METADATA));
+	}
+
+	public void testMissingResource() throws Exception {
+		assertNull(proxy.proxy("/org/example/missing/1.0/missing-1.0.jar"));
+	}
+
+	/*
+	 * UTILITIES
+	 */
+	private String proxyAndRead(String path) throws Exception {
+		Node node = proxy.proxy(path);
+		assertNotNull(node);
+		try (InputStream in = node.getNode(Node.JCR_CONTENT).getProperty(Property.JCR_DATA).getBinary()
+				.getStream()) {
+			return IOUtils.toString(in, StandardCharsets.UTF_8);
+		} finally {
+			node.getSession().logout();
+		}
+	}
+
+	private static String artifactInFolder(int i) {
+		return "/org/example/lib/1.0/lib" + i + "-1.0.jar";
+	}
+
+	private int gets(String path) {
+		AtomicInteger count = gets.get(path);
+		return count == null ? 0 : count.get();
+	}
+
+	/** Serves the contents, with their hash code as entity tag. */
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			String path = exchange.getRequestURI().getPath();
+			boolean get = "GET".equals(exchange.getRequestMethod());
+			if (get)
+				gets.computeIfAbsent(path, (k) -> new AtomicInteger(0)).incrementAndGet();
+			String content = contents.get(path);
+			if (failing) {
+				exchange.sendResponseHeaders(503, -1);
+				return;
+			}
+			if (content == null) {
+				exchange.sendResponseHeaders(404, -1);
+				return;
+			}
+			String etag = '"' + Integer.toHexString(content.hashCode()) + '"';
+			if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+				notModified.incrementAndGet();
+				exchange.sendResponseHeaders(304, -1);
+				return;
+			}
+			if (get && delay > 0)
+				Thread.sleep(delay);
+			byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("ETag", etag);
+			exchange.sendResponseHeaders(200, get ? bytes.length : -1);
+			if (get)
+				try (OutputStream out = exchange.getResponseBody()) {
+					out.write(bytes);
+				}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private static Credentials adminCredentials() {
+		return new SimpleCredentials("admin", "admin".toCharArray());
+	}
+
+	/** Logs in as admin when no credentials are provided. */
+	private static Repository asAdmin(Repository repository) {
+		return (Repository) java.lang.reflect.Proxy.newProxyInstance(AbstractUrlProxyTest.class.getClassLoader(),
+				new Class<?>[] { Repository.class }, (p, method, args) -> {
+					try {
+						if (!method.getName().equals("login"))
+							return method.invoke(repository, args);
+						Credentials credentials = null;
+						String workspaceName = null;
+						if (args != null)
+							for (Object arg : args) {
+								if (arg instanceof Credentials c)
+									credentials = c;
+								else if (arg instanceof String w)
+									workspaceName = w;
+							}
+						return repository.login(credentials != null ? credentials : adminCredentials(), workspaceName);
+					} catch (InvocationTargetException e) {
+						throw e.getCause();
+					}
+				});
+	}
+
+	/** Proxies a single remote, Maven metadata being mutable. */
+	private class TestProxy extends AbstractUrlProxy {
+		@Override
+		protected Node retrieve(Session session, String path) {
+			try {
+				return proxyUrl(session, baseUrl + path, path);
+			} catch (Exception e) {
+				throw new IllegalStateException("Cannot retrieve " + path, e);
+			}
+		}
+
+		@Override
+		protected boolean isMutable(String path) {
+			return path.endsWith("maven-metadata.xml");
+		}
+	}
+}
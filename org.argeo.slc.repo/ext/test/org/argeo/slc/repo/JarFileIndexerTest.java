@@ -0,0 +1,157 @@
+package org.argeo.slc.repo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+
+import javax.jcr.Binary;
+import javax.jcr.Node;
+import javax.jcr.Property;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+import javax.jcr.nodetype.NodeType;
+
+import org.apache.jackrabbit.commons.JcrUtils;
+import org.apache.jackrabbit.commons.cnd.CndImporter;
+import org.apache.jackrabbit.core.TransientRepository;
+import org.argeo.slc.SlcTypes;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link JarFileIndexer} against the node types registered by the SLC
+ * data model.
+ */
+public class JarFileIndexerTest extends TestCase {
+	/** The CND registered as the slc data model. */
+	private final static String SLC_CND = "/org/argeo/slc/jcr/slc.cnd";
+
+	/** In-memory repository, with a data store so that binaries have an identity. */
+	private final static String REPOSITORY_XML = """
+			<?xml version="1.0"?>
+			<!DOCTYPE Repository PUBLIC "Jackrabbit 2.6" "http://jackrabbit.apache.org/dtd/repository-2.6.dtd">
+			<Repository>
+				<FileSystem class="org.apache.jackrabbit.core.fs.mem.MemoryFileSystem" />
+				<DataStore class="org.apache.jackrabbit.core.data.FileDataStore">
+					<param name="path" value="${rep.home}/datastore" />
+					<param name="minRecordLength" value="16" />
+				</DataStore>
+				<Security appName="Jackrabbit">
+					<SecurityManager class="org.apache.jackrabbit.core.security.simple.SimpleSecurityManager" />
+					<AccessManager class="org.apache.jackrabbit.core.security.simple.SimpleAccessManager" />
+					<LoginModule class="org.apache.jackrabbit.core.security.simple.SimpleLoginModule" />
+				</Security>
+				<Workspaces rootPath="${rep.home}/workspaces" defaultWorkspace="default" />
+				<Workspace name="${wsp.name}">
+					<FileSystem class="org.apache.jackrabbit.core.fs.mem.MemoryFileSystem" />
+					<PersistenceManager class="org.apache.jackrabbit.core.persistence.bundle.BundleFsPersistenceManager" />
+				</Workspace>
+				<Versioning rootPath="${rep.home}/version">
+					<FileSystem class="org.apache.jackrabbit.core.fs.mem.MemoryFileSystem" />
+					<PersistenceManager class="org.apache.jackrabbit.core.persistence.bundle.BundleFsPersistenceManager" />
+				</Versioning>
+			</Repository>
+			""";
+
+	private Path repositoryDir;
+	private TransientRepository repository;
+	private Session session;
+
+	@Override
+	protected void setUp() throws Exception {
+		repositoryDir = Files.createTempDirectory(getClass().getSimpleName());
+		Path repositoryXml = repositoryDir.resolve("repository.xml");
+		Files.writeString(repositoryXml, REPOSITORY_XML);
+		repository = new TransientRepository(repositoryXml.toFile(), repositoryDir.toFile());
+		session = repository.login(new SimpleCredentials("admin", "admin".toCharArray()));
+		try (Reader reader = new InputStreamReader(getClass().getResourceAsStream(SLC_CND),
+				StandardCharsets.UTF_8)) {
+			CndImporter.registerNodeTypes(reader, session);
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		session.logout();
+		repository.shutdown();
+		try (Stream<Path> paths = Files.walk(repositoryDir)) {
+			for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+				Files.delete(p);
+		}
+	}
+
+	public void testIndexJar() throws Exception {
+		Node fileNode = addJar("example-1.0.jar", "1.0");
+		new JarFileIndexer().index(fileNode);
+		session.save();
+
+		assertTrue(fileNode.isNodeType(SlcTypes.SLC_JAR_FILE));
+		assertEquals("1.0", fileNode.getProperty("slc:Implementation-Version").getString());
+		assertTrue(fileNode.hasProperty(JarFileIndexer.SLC_CONTENT_IDENTITY));
+	}
+
+	public void testChangedJarIsReindexed() throws Exception {
+		Node fileNode = addJar("example.jar", "1.0");
+		JarFileIndexer indexer = new JarFileIndexer();
+		indexer.index(fileNode);
+		session.save();
+		String contentIdentity = fileNode.getProperty(JarFileIndexer.SLC_CONTENT_IDENTITY).getString();
+
+		// unchanged
+		indexer.index(fileNode);
+		assertFalse(session.hasPendingChanges());
+
+		setData(fileNode, jar("2.0"));
+		session.save();
+		indexer.index(fileNode);
+		session.save();
+		assertEquals("2.0", fileNode.getProperty("slc:Implementation-Version").getString());
+		assertFalse(contentIdentity.equals(fileNode.getProperty(JarFileIndexer.SLC_CONTENT_IDENTITY).getString()));
+	}
+
+	/*
+	 * UTILITIES
+	 */
+	private Node addJar(String name, String version) throws Exception {
+		Node fileNode = JcrUtils.getOrAddNode(session.getRootNode(), "test").addNode(name, NodeType.NT_FILE);
+		// as stored in the distribution repositories
+		fileNode.addMixin(NodeType.MIX_LAST_MODIFIED);
+		fileNode.addNode(Node.JCR_CONTENT, NodeType.NT_RESOURCE);
+		setData(fileNode, jar(version));
+		session.save();
+		return fileNode;
+	}
+
+	private void setData(Node fileNode, byte[] bytes) throws Exception {
+		try (InputStream in = new ByteArrayInputStream(bytes)) {
+			Binary binary = session.getValueFactory().createBinary(in);
+			fileNode.getNode(Node.JCR_CONTENT).setProperty(Property.JCR_DATA, binary);
+			binary.dispose();
+		}
+	}
+
+	/** A plain jar, with an implementation version and a single entry. */
+	private static byte[] jar(String version) throws Exception {
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		manifest.getMainAttributes().put(Attributes.Name.IMPLEMENTATION_VERSION, version);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (JarOutputStream jarOut = new JarOutputStream(out, manifest)) {
+			jarOut.putNextEntry(new JarEntry("example/README.txt"));
+			jarOut.write(("Example " + version).getBytes(StandardCharsets.UTF_8));
+			jarOut.closeEntry();
+		}
+		return out.toByteArray();
+	}
+}
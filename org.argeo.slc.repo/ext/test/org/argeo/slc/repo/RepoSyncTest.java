@@ -0,0 +1,205 @@
+package org.argeo.slc.repo;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import javax.jcr.Credentials;
+import javax.jcr.Node;
+import javax.jcr.Session;
+import javax.jcr.SimpleCredentials;
+
+import org.apache.jackrabbit.core.TransientRepository;
+import org.argeo.jcr.JcrMonitor;
+import org.argeo.jcr.JcrUtils;
+
+import junit.framework.TestCase;
+
+/** Tests {@link RepoSync} between two in-memory repositories. */
+public class RepoSyncTest extends TestCase {
+	private final static String WORKSPACE = "main";
+	private final static int PARTITIONS = 4;
+	private final static int FILES = 3;
+
+	/** In-memory repository, with simple security. */
+	private final static String REPOSITORY_XML = """
+			<?xml version="1.0"?>
+			<!DOCTYPE Repository PUBLIC "Jackrabbit 2.6" "http://jackrabbit.apache.org/dtd/repository-2.6.dtd">
+			<Repository>
+				<FileSystem class="org.apache.jackrabbit.core.fs.mem.MemoryFileSystem" />
+				<Security appName="Jackrabbit">
+					<SecurityManager class="org.apache.jackrabbit.core.security.simple.SimpleSecurityManager" />
+					<AccessManager class="org.apache.jackrabbit.core.security.simple.SimpleAccessManager" />
+					<LoginModule class="org.apache.jackrabbit.core.security.simple.SimpleLoginModule" />
+				</Security>
+				<Workspaces rootPath="${rep.home}/workspaces" defaultWorkspace="default" />
+				<Workspace name="${wsp.name}">
+					<FileSystem class="org.apache.jackrabbit.core.fs.mem.MemoryFileSystem" />
+					<PersistenceManager class="org.apache.jackrabbit.core.persistence.bundle.BundleFsPersistenceManager" />
+				</Workspace>
+				<Versioning rootPath="${rep.home}/version">
+					<FileSystem class="org.apache.jackrabbit.core.fs.mem.MemoryFileSystem" />
+					<PersistenceManager class="org.apache.jackrabbit.core.persistence.bundle.BundleFsPersistenceManager" />
+				</Versioning>
+			</Repository>
+			""";
+
+	private Path baseDir;
+	private TransientRepository sourceRepository;
+	private TransientRepository targetRepository;
+	/** Keep the repositories started during the test. */
+	private Session sourceSession;
+	private Session targetSession;
+
+	@Override
+	protected void setUp() throws Exception {
+		baseDir = Files.createTempDirectory(getClass().getSimpleName());
+		sourceRepository = createRepository("source");
+		targetRepository = createRepository("target");
+		sourceSession = sourceRepository.login(credentials());
+		targetSession = targetRepository.login(credentials());
+		for (Session session : new Session[] { sourceSession, targetSession }) {
+			session.getWorkspace().getNamespaceRegistry().registerNamespace("slc", "http://www.argeo.org/ns/slc");
+			session.getWorkspace().createWorkspace(RepoConstants.DEFAULT_DEFAULT_WORKSPACE);
+		}
+		sourceSession.getWorkspace().createWorkspace(WORKSPACE);
+
+		Session source = sourceRepository.login(credentials(), WORKSPACE);
+		try {
+			for (int i = 0; i < PARTITIONS; i++) {
+				Node folder = JcrUtils.mkfolders(source, partition(i));
+				for (int j = 0; j < FILES; j++)
+					JcrUtils.copyBytesAsFile(folder, "f" + j, ("file " + i + "/" + j).getBytes(StandardCharsets.UTF_8));
+			}
+			source.save();
+		} finally {
+			source.logout();
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		sourceSession.logout();
+		targetSession.logout();
+		sourceRepository.shutdown();
+		targetRepository.shutdown();
+		try (Stream<Path> paths = Files.walk(baseDir)) {
+			for (Path p : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+				Files.delete(p);
+		}
+	}
+
+	public void testSync() throws Exception {
+		TestMonitor monitor = new TestMonitor(null);
+		newRepoSync(monitor).run();
+		assertAllFilesSynced();
+	}
+
+	public void testCanceledSyncIsResumed() throws Exception {
+		// canceled in the middle of the second subtree
+		TestMonitor canceling = new TestMonitor("Process " + partition(1) + "/f1");
+		newRepoSync(canceling).run();
+		assertTrue(canceling.isCanceled());
+		Session target = targetRepository.login(credentials(), WORKSPACE);
+		try {
+			assertTrue(target.nodeExists(partition(0) + "/f" + (FILES - 1)));
+			assertFalse(target.nodeExists(partition(1) + "/f" + (FILES - 1)));
+		} finally {
+			target.logout();
+		}
+
+		TestMonitor resuming = new TestMonitor(null);
+		newRepoSync(resuming).run();
+		assertAllFilesSynced();
+		// resumed after the first subtree, which was completed
+		assertFalse(resuming.subTasks.contains("Process " + partition(0) + "/f0"));
+		assertTrue(resuming.subTasks.contains("Process " + partition(1) + "/f0"));
+	}
+
+	/*
+	 * UTILITIES
+	 */
+	private RepoSync newRepoSync(JcrMonitor monitor) {
+		RepoSync repoSync = new RepoSync(sourceRepository, credentials(), targetRepository, credentials());
+		repoSync.setSourceWksp(WORKSPACE);
+		repoSync.setThreads(1);
+		repoSync.setMonitor(monitor);
+		return repoSync;
+	}
+
+	private void assertAllFilesSynced() throws Exception {
+		Session target = targetRepository.login(credentials(), WORKSPACE);
+		try {
+			for (int i = 0; i < PARTITIONS; i++)
+				for (int j = 0; j < FILES; j++)
+					assertTrue(partition(i) + "/f" + j + " is not synced",
+							target.nodeExists(partition(i) + "/f" + j));
+		} finally {
+			target.logout();
+		}
+	}
+
+	private static String partition(int i) {
+		return "/base/p" + i;
+	}
+
+	private TransientRepository createRepository(String name) throws Exception {
+		Path dir = Files.createDirectory(baseDir.resolve(name));
+		Path repositoryXml = dir.resolve("repository.xml");
+		Files.writeString(repositoryXml, REPOSITORY_XML);
+		return new TransientRepository(repositoryXml.toFile(), dir.toFile());
+	}
+
+	private static Credentials credentials() {
+		return new SimpleCredentials("admin", "admin".toCharArray());
+	}
+
+	/** Records the sub tasks, and cancels when a given sub task begins. */
+	private static class TestMonitor implements JcrMonitor {
+		private final String cancelOn;
+		private final List<String> subTasks = Collections.synchronizedList(new ArrayList<>());
+		private volatile boolean canceled = false;
+
+		TestMonitor(String cancelOn) {
+			this.cancelOn = cancelOn;
+		}
+
+		@Override
+		public void beginTask(String name, int totalWork) {
+		}
+
+		@Override
+		public void done() {
+		}
+
+		@Override
+		public boolean isCanceled() {
+			return canceled;
+		}
+
+		@Override
+		public void setCanceled(boolean value) {
+			canceled = value;
+		}
+
+		@Override
+		public void setTaskName(String name) {
+		}
+
+		@Override
+		public void subTask(String name) {
+			subTasks.add(name);
+			if (name.equals(cancelOn))
+				canceled = true;
+		}
+
+		@Override
+		public void worked(int work) {
+		}
+	}
+}
@@ -66,15 +66,9 @@ public class ArtifactIndexer implements NodeIndexer, SlcNames {
 
 			// make sure there are checksums
 			String shaNodeName = fileNode.getName() + ".sha1";
-			if (!fileNode.getParent().hasNode(shaNodeName)) {
-				String sha = JcrUtils.checksumFile(fileNode, "SHA-1");
-				JcrUtils.copyBytesAsFile(fileNode.getParent(), shaNodeName, sha.getBytes());
-			}
 			String md5NodeName = fileNode.getName() + ".md5";
-			if (!fileNode.getParent().hasNode(md5NodeName)) {
-				String md5 = JcrUtils.checksumFile(fileNode, "MD5");
-				JcrUtils.copyBytesAsFile(fileNode.getParent(), md5NodeName, md5.getBytes());
-			}
+			if (!fileNode.getParent().hasNode(shaNodeName) || !fileNode.getParent().hasNode(md5NodeName))
+				RepoUtils.addMavenChecksums(fileNode);
 
 			// Create a default pom if none already exist
 			String fileNodeName = fileNode.getName();
@@ -86,10 +80,7 @@ public class ArtifactIndexer implements NodeIndexer, SlcNames {
 				String pom = generatePomForBundle(fileNode);
 				Node pomNode = JcrUtils.copyBytesAsFile(fileNode.getParent(), pomName, pom.getBytes());
 				// corresponding check sums
-				String sha = JcrUtils.checksumFile(pomNode, "SHA-1");
-				JcrUtils.copyBytesAsFile(fileNode.getParent(), pomName + ".sha1", sha.getBytes());
-				String md5 = JcrUtils.checksumFile(fileNode, "MD5");
-				JcrUtils.copyBytesAsFile(fileNode.getParent(), pomName + ".md5", md5.getBytes());
+				RepoUtils.addMavenChecksums(pomNode);
 			}
 
 			// set higher levels
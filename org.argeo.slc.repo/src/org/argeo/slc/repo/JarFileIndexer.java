@@ -3,10 +3,11 @@ package org.argeo.slc.repo;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.jar.Attributes;
 import java.util.jar.Attributes.Name;
@@ -20,10 +21,12 @@ import javax.jcr.NodeIterator;
 import javax.jcr.Property;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
+import javax.jcr.Value;
 import javax.jcr.nodetype.NodeType;
 
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.jackrabbit.api.JackrabbitValue;
 import org.argeo.api.cms.CmsLog;
 import org.argeo.jcr.JcrUtils;
 import org.argeo.slc.SlcException;
@@ -38,6 +41,10 @@ import org.osgi.framework.Version;
  */
 public class JarFileIndexer implements NodeIndexer, SlcNames {
 	private final static CmsLog log = CmsLog.getLog(JarFileIndexer.class);
+	/** Content identity of the binary which has been last indexed. */
+	final static String SLC_CONTENT_IDENTITY = "slc:contentIdentity";
+	private final static String DEFAULT_VERSION = "0.0.0";
+
 	private Boolean force = false;
 
 	public Boolean support(String path) {
@@ -54,17 +61,26 @@ public class JarFileIndexer implements NodeIndexer, SlcNames {
 			if (!support(fileNode.getPath()))
 				return;
 
-			// Already indexed
-			if (!force && fileNode.isNodeType(SlcTypes.SLC_JAR_FILE))
-				return;
-
 			if (!fileNode.isNodeType(NodeType.NT_FILE))
 				return;
 
-			Session jcrSession = fileNode.getSession();
 			Node contentNode = fileNode.getNode(Node.JCR_CONTENT);
-			fileBinary = contentNode.getProperty(Property.JCR_DATA).getBinary();
+			Property data = contentNode.getProperty(Property.JCR_DATA);
+			String contentIdentity = getContentIdentity(data);
 
+			// Already indexed
+			if (!force && fileNode.isNodeType(SlcTypes.SLC_JAR_FILE)) {
+				if (!fileNode.hasProperty(SLC_CONTENT_IDENTITY) || contentIdentity == null
+						|| contentIdentity.equals(fileNode.getProperty(SLC_CONTENT_IDENTITY).getString()))
+					return;
+				if (log.isTraceEnabled())
+					log.trace("Content of " + fileNode + " has changed, re-indexing it");
+			}
+
+			Session jcrSession = fileNode.getSession();
+			fileBinary = data.getBinary();
+
+			// single pass: the manifest, then the localization entries if needed
 			jarIn = new JarInputStream(fileBinary.getStream());
 			Manifest manifest = jarIn.getManifest();
 			if (manifest == null) {
@@ -78,6 +94,7 @@ public class JarFileIndexer implements NodeIndexer, SlcNames {
 			if (fileNode.hasProperty(SLC_MANIFEST)) {
 				byte[] storedManifest = JcrUtils.getBinaryAsBytes(fileNode.getProperty(SLC_MANIFEST));
 				if (Arrays.equals(newManifest, storedManifest)) {
+					setIfChanged(fileNode, SLC_CONTENT_IDENTITY, contentIdentity);
 					if (log.isTraceEnabled())
 						log.trace("Manifest not changed, doing nothing " + fileNode);
 					return;
@@ -91,9 +108,10 @@ public class JarFileIndexer implements NodeIndexer, SlcNames {
 			fileNode.addMixin(SlcTypes.SLC_JAR_FILE);
 
 			fileNode.setProperty(SlcNames.SLC_MANIFEST, manifestBinary);
+			setIfChanged(fileNode, SLC_CONTENT_IDENTITY, contentIdentity);
 			Attributes attrs = manifest.getMainAttributes();
 
-			getI18nValues(fileBinary, attrs);
+			getI18nValues(jarIn, attrs);
 
 			// standard J2SE MANIFEST attributes
 			addAttr(Attributes.Name.MANIFEST_VERSION, fileNode, attrs);
@@ -133,10 +151,12 @@ public class JarFileIndexer implements NodeIndexer, SlcNames {
 
 	}
 
-	private void getI18nValues(Binary fileBinary, Attributes attrs) throws IOException {
-		JarInputStream jarIn = null;
+	/**
+	 * Replaces the localized values of the manifest, reading the localization
+	 * entry from the stream which has already been used to read the manifest.
+	 */
+	private void getI18nValues(JarInputStream jarIn, Attributes attrs) {
 		try {
-			jarIn = new JarInputStream(fileBinary.getStream());
 			String bundleLocalization = null;
 
 			String blKey = Constants.BUNDLE_LOCALIZATION; // "Bundle-Localization";
@@ -151,43 +171,22 @@ public class JarFileIndexer implements NodeIndexer, SlcNames {
 					}
 				}
 			}
+			if (bundleLocalization == null)
+				return;
 
-			JarEntry jarEntry = null;
-			byte[] propBytes = null;
-			ByteArrayOutputStream baos = null;
-			browse: if (bundleLocalization != null) {
-				JarEntry entry = jarIn.getNextJarEntry();
-				while (entry != null) {
-					if (entry.getName().equals(bundleLocalization + ".properties")) {
-						jarEntry = entry;
-
-						// if(je.getSize() != -1){
-						// propBytes = new byte[(int)je.getSize()];
-						// int len = (int) je.getSize();
-						// int offset = 0;
-						// while (offset != len)
-						// offset += jarIn.read(propBytes, offset, len -
-						// offset);
-						// } else {
-						baos = new ByteArrayOutputStream();
-						while (true) {
-							int qwe = jarIn.read();
-							if (qwe == -1)
-								break;
-							baos.write(qwe);
-						}
-						propBytes = baos.toByteArray();
-						break browse;
-					}
-					entry = jarIn.getNextJarEntry();
+			String localizationEntry = bundleLocalization + ".properties";
+			Properties prop = null;
+			JarEntry entry;
+			browse: while ((entry = jarIn.getNextJarEntry()) != null) {
+				if (entry.getName().equals(localizationEntry)) {
+					prop = new Properties();
+					// the stream ends with the entry
+					prop.load(jarIn);
+					break browse;
 				}
 			}
 
-			if (jarEntry != null) {
-				Properties prop = new Properties();
-				InputStream is = new ByteArrayInputStream(propBytes);
-				prop.load(is);
-
+			if (prop != null) {
 				for (Object obj : attrs.keySet()) {
 					String value = attrs.getValue((Attributes.Name) obj);
 					if (value.startsWith("%")) {
@@ -197,12 +196,8 @@ public class JarFileIndexer implements NodeIndexer, SlcNames {
 					}
 				}
 			}
-		} catch (RepositoryException e) {
-			throw new SlcException("Error while reading the jar binary content " + fileBinary, e);
 		} catch (IOException ioe) {
 			throw new SlcException("unable to get internationalized values", ioe);
-		} finally {
-			IOUtils.closeQuietly(jarIn);
 		}
 	}
 
@@ -252,80 +247,104 @@ public class JarFileIndexer implements NodeIndexer, SlcNames {
 
 		// version
 		Version version = new Version(attrs.getValue(Constants.BUNDLE_VERSION));
-		fileNode.setProperty(SlcNames.SLC_BUNDLE_VERSION, version.toString());
-		cleanSubNodes(fileNode, SlcNames.SLC_ + Constants.BUNDLE_VERSION);
-		Node bundleVersionNode = fileNode.addNode(SlcNames.SLC_ + Constants.BUNDLE_VERSION, SlcTypes.SLC_OSGI_VERSION);
+		setIfChanged(fileNode, SlcNames.SLC_BUNDLE_VERSION, version.toString());
+		Node bundleVersionNode = fileNode.hasNode(SlcNames.SLC_ + Constants.BUNDLE_VERSION)
+				? fileNode.getNode(SlcNames.SLC_ + Constants.BUNDLE_VERSION)
+				: fileNode.addNode(SlcNames.SLC_ + Constants.BUNDLE_VERSION, SlcTypes.SLC_OSGI_VERSION);
 		mapOsgiVersion(version, bundleVersionNode);
 
 		// fragment
-		cleanSubNodes(fileNode, SlcNames.SLC_ + Constants.FRAGMENT_HOST);
 		if (attrs.containsKey(new Name(Constants.FRAGMENT_HOST))) {
 			String fragmentHost = attrs.getValue(Constants.FRAGMENT_HOST);
 			String[] tokens = fragmentHost.split(";");
-			Node node = fileNode.addNode(SlcNames.SLC_ + Constants.FRAGMENT_HOST, SlcTypes.SLC_FRAGMENT_HOST);
-			node.setProperty(SlcNames.SLC_SYMBOLIC_NAME, tokens[0]);
+			Node node = fileNode.hasNode(SlcNames.SLC_ + Constants.FRAGMENT_HOST)
+					? fileNode.getNode(SlcNames.SLC_ + Constants.FRAGMENT_HOST)
+					: fileNode.addNode(SlcNames.SLC_ + Constants.FRAGMENT_HOST, SlcTypes.SLC_FRAGMENT_HOST);
+			setIfChanged(node, SlcNames.SLC_SYMBOLIC_NAME, tokens[0]);
+			String bundleVersion = DEFAULT_VERSION;
 			for (int i = 1; i < tokens.length; i++) {
 				if (tokens[i].startsWith(Constants.BUNDLE_VERSION_ATTRIBUTE)) {
-					node.setProperty(SlcNames.SLC_BUNDLE_VERSION, attributeValue(tokens[i]));
+					bundleVersion = attributeValue(tokens[i]);
 				}
 			}
+			setIfChanged(node, SlcNames.SLC_BUNDLE_VERSION, bundleVersion);
+		} else {
+			cleanSubNodes(fileNode, SlcNames.SLC_ + Constants.FRAGMENT_HOST);
 		}
 
 		// imported packages
-		cleanSubNodes(fileNode, SlcNames.SLC_ + Constants.IMPORT_PACKAGE);
+		Map<String, Node> existing = existingSubNodes(fileNode, SlcNames.SLC_ + Constants.IMPORT_PACKAGE,
+				SlcNames.SLC_NAME);
 		if (attrs.containsKey(new Name(Constants.IMPORT_PACKAGE))) {
 			String importPackages = attrs.getValue(Constants.IMPORT_PACKAGE);
 			List<String> packages = parseCommaSeparated(importPackages);
 			for (String pkg : packages) {
 				String[] tokens = pkg.split(";");
-				Node node = fileNode.addNode(SlcNames.SLC_ + Constants.IMPORT_PACKAGE, SlcTypes.SLC_IMPORTED_PACKAGE);
-				node.setProperty(SlcNames.SLC_NAME, tokens[0]);
+				Node node = existing.remove(tokens[0]);
+				if (node == null) {
+					node = fileNode.addNode(SlcNames.SLC_ + Constants.IMPORT_PACKAGE, SlcTypes.SLC_IMPORTED_PACKAGE);
+					node.setProperty(SlcNames.SLC_NAME, tokens[0]);
+				}
+				String packageVersion = DEFAULT_VERSION;
+				boolean optional = false;
 				for (int i = 1; i < tokens.length; i++) {
 					if (tokens[i].startsWith(Constants.VERSION_ATTRIBUTE)) {
-						node.setProperty(SlcNames.SLC_VERSION, attributeValue(tokens[i]));
+						packageVersion = attributeValue(tokens[i]);
 					} else if (tokens[i].startsWith(Constants.RESOLUTION_DIRECTIVE)) {
-						node.setProperty(SlcNames.SLC_OPTIONAL,
-								directiveValue(tokens[i]).equals(Constants.RESOLUTION_OPTIONAL));
+						optional = directiveValue(tokens[i]).equals(Constants.RESOLUTION_OPTIONAL);
 					}
 				}
+				setIfChanged(node, SlcNames.SLC_VERSION, packageVersion);
+				setIfChanged(node, SlcNames.SLC_OPTIONAL, optional);
 			}
 		}
+		removeAll(existing);
 
 		// dynamic import package
-		cleanSubNodes(fileNode, SlcNames.SLC_ + Constants.DYNAMICIMPORT_PACKAGE);
+		existing = existingSubNodes(fileNode, SlcNames.SLC_ + Constants.DYNAMICIMPORT_PACKAGE, SlcNames.SLC_NAME);
 		if (attrs.containsKey(new Name(Constants.DYNAMICIMPORT_PACKAGE))) {
 			String importPackages = attrs.getValue(Constants.DYNAMICIMPORT_PACKAGE);
 			List<String> packages = parseCommaSeparated(importPackages);
 			for (String pkg : packages) {
 				String[] tokens = pkg.split(";");
-				Node node = fileNode.addNode(SlcNames.SLC_ + Constants.DYNAMICIMPORT_PACKAGE,
-						SlcTypes.SLC_DYNAMIC_IMPORTED_PACKAGE);
-				node.setProperty(SlcNames.SLC_NAME, tokens[0]);
+				Node node = existing.remove(tokens[0]);
+				if (node == null) {
+					node = fileNode.addNode(SlcNames.SLC_ + Constants.DYNAMICIMPORT_PACKAGE,
+							SlcTypes.SLC_DYNAMIC_IMPORTED_PACKAGE);
+					node.setProperty(SlcNames.SLC_NAME, tokens[0]);
+				}
+				String packageVersion = DEFAULT_VERSION;
 				for (int i = 1; i < tokens.length; i++) {
 					if (tokens[i].startsWith(Constants.VERSION_ATTRIBUTE)) {
-						node.setProperty(SlcNames.SLC_VERSION, attributeValue(tokens[i]));
+						packageVersion = attributeValue(tokens[i]);
 					}
 				}
+				setIfChanged(node, SlcNames.SLC_VERSION, packageVersion);
 			}
 		}
+		removeAll(existing);
 
 		// exported packages
-		cleanSubNodes(fileNode, SlcNames.SLC_ + Constants.EXPORT_PACKAGE);
+		existing = existingSubNodes(fileNode, SlcNames.SLC_ + Constants.EXPORT_PACKAGE, SlcNames.SLC_NAME);
 		if (attrs.containsKey(new Name(Constants.EXPORT_PACKAGE))) {
 			String exportPackages = attrs.getValue(Constants.EXPORT_PACKAGE);
 			List<String> packages = parseCommaSeparated(exportPackages);
 			for (String pkg : packages) {
 				String[] tokens = pkg.split(";");
-				Node node = fileNode.addNode(SlcNames.SLC_ + Constants.EXPORT_PACKAGE, SlcTypes.SLC_EXPORTED_PACKAGE);
-				node.setProperty(SlcNames.SLC_NAME, tokens[0]);
-				// TODO: are these cleans really necessary?
-				cleanSubNodes(node, SlcNames.SLC_USES);
-				cleanSubNodes(node, SlcNames.SLC_VERSION);
+				Node node = existing.remove(tokens[0]);
+				if (node == null) {
+					node = fileNode.addNode(SlcNames.SLC_ + Constants.EXPORT_PACKAGE, SlcTypes.SLC_EXPORTED_PACKAGE);
+					node.setProperty(SlcNames.SLC_NAME, tokens[0]);
+				}
+				Map<String, Node> existingUses = existingSubNodes(node, SlcNames.SLC_USES, SlcNames.SLC_NAME);
+				boolean hasVersion = false;
 				for (int i = 1; i < tokens.length; i++) {
 					if (tokens[i].startsWith(Constants.VERSION_ATTRIBUTE)) {
 						String versionStr = attributeValue(tokens[i]);
-						Node versionNode = node.addNode(SlcNames.SLC_VERSION, SlcTypes.SLC_OSGI_VERSION);
+						Node versionNode = node.hasNode(SlcNames.SLC_VERSION) ? node.getNode(SlcNames.SLC_VERSION)
+								: node.addNode(SlcNames.SLC_VERSION, SlcTypes.SLC_OSGI_VERSION);
 						mapOsgiVersion(new Version(versionStr), versionNode);
+						hasVersion = true;
 					} else if (tokens[i].startsWith(Constants.USES_DIRECTIVE)) {
 						String usedPackages = directiveValue(tokens[i]);
 						// log.debug("uses='" + usedPackages + "'");
@@ -333,33 +352,46 @@ public class JarFileIndexer implements NodeIndexer, SlcNames {
 							// log.debug("usedPackage='" +
 							// usedPackage +
 							// "'");
-							Node usesNode = node.addNode(SlcNames.SLC_USES, SlcTypes.SLC_JAVA_PACKAGE);
-							usesNode.setProperty(SlcNames.SLC_NAME, usedPackage);
+							if (existingUses.remove(usedPackage) == null) {
+								Node usesNode = node.addNode(SlcNames.SLC_USES, SlcTypes.SLC_JAVA_PACKAGE);
+								usesNode.setProperty(SlcNames.SLC_NAME, usedPackage);
+							}
 						}
 					}
 				}
+				if (!hasVersion)
+					cleanSubNodes(node, SlcNames.SLC_VERSION);
+				removeAll(existingUses);
 			}
 		}
+		removeAll(existing);
 
 		// required bundle
-		cleanSubNodes(fileNode, SlcNames.SLC_ + Constants.REQUIRE_BUNDLE);
+		existing = existingSubNodes(fileNode, SlcNames.SLC_ + Constants.REQUIRE_BUNDLE, SlcNames.SLC_SYMBOLIC_NAME);
 		if (attrs.containsKey(new Name(Constants.REQUIRE_BUNDLE))) {
 			String requireBundle = attrs.getValue(Constants.REQUIRE_BUNDLE);
 			List<String> bundles = parseCommaSeparated(requireBundle);
 			for (String bundle : bundles) {
 				String[] tokens = bundle.split(";");
-				Node node = fileNode.addNode(SlcNames.SLC_ + Constants.REQUIRE_BUNDLE, SlcTypes.SLC_REQUIRED_BUNDLE);
-				node.setProperty(SlcNames.SLC_SYMBOLIC_NAME, tokens[0]);
+				Node node = existing.remove(tokens[0]);
+				if (node == null) {
+					node = fileNode.addNode(SlcNames.SLC_ + Constants.REQUIRE_BUNDLE, SlcTypes.SLC_REQUIRED_BUNDLE);
+					node.setProperty(SlcNames.SLC_SYMBOLIC_NAME, tokens[0]);
+				}
+				String bundleVersion = DEFAULT_VERSION;
+				boolean optional = false;
 				for (int i = 1; i < tokens.length; i++) {
 					if (tokens[i].startsWith(Constants.BUNDLE_VERSION_ATTRIBUTE)) {
-						node.setProperty(SlcNames.SLC_BUNDLE_VERSION, attributeValue(tokens[i]));
+						bundleVersion = attributeValue(tokens[i]);
 					} else if (tokens[i].startsWith(Constants.RESOLUTION_DIRECTIVE)) {
-						node.setProperty(SlcNames.SLC_OPTIONAL,
-								directiveValue(tokens[i]).equals(Constants.RESOLUTION_OPTIONAL));
+						optional = directiveValue(tokens[i]).equals(Constants.RESOLUTION_OPTIONAL);
 					}
 				}
+				setIfChanged(node, SlcNames.SLC_BUNDLE_VERSION, bundleVersion);
+				setIfChanged(node, SlcNames.SLC_OPTIONAL, optional);
 			}
 		}
+		removeAll(existing);
 
 	}
 
@@ -370,10 +402,58 @@ public class JarFileIndexer implements NodeIndexer, SlcNames {
 	private void addAttr(Name key, Node node, Attributes attrs) throws RepositoryException {
 		if (attrs.containsKey(key)) {
 			String value = attrs.getValue(key);
-			node.setProperty(SlcNames.SLC_ + key, value);
+			setIfChanged(node, SlcNames.SLC_ + key, value);
 		}
 	}
 
+	/** Sets the property only if its value has changed, so as to limit churn. */
+	private void setIfChanged(Node node, String name, String value) throws RepositoryException {
+		if (value == null)
+			return;
+		if (node.hasProperty(name) && node.getProperty(name).getString().equals(value))
+			return;
+		node.setProperty(name, value);
+	}
+
+	private void setIfChanged(Node node, String name, long value) throws RepositoryException {
+		if (node.hasProperty(name) && node.getProperty(name).getLong() == value)
+			return;
+		node.setProperty(name, value);
+	}
+
+	private void setIfChanged(Node node, String name, boolean value) throws RepositoryException {
+		if (node.hasProperty(name) && node.getProperty(name).getBoolean() == value)
+			return;
+		node.setProperty(name, value);
+	}
+
+	/**
+	 * The existing same-name child nodes, by the value of the key property.
+	 * Duplicates are removed.
+	 */
+	private Map<String, Node> existingSubNodes(Node node, String name, String keyProperty)
+			throws RepositoryException {
+		Map<String, Node> res = new HashMap<>();
+		if (node.hasNode(name)) {
+			NodeIterator nit = node.getNodes(name);
+			while (nit.hasNext()) {
+				Node child = nit.nextNode();
+				String key = child.hasProperty(keyProperty) ? child.getProperty(keyProperty).getString() : null;
+				if (key == null || res.containsKey(key))
+					child.remove();
+				else
+					res.put(key, child);
+			}
+		}
+		return res;
+	}
+
+	/** Removes the child nodes which are not relevant anymore. */
+	private void removeAll(Map<String, Node> obsolete) throws RepositoryException {
+		for (Node node : obsolete.values())
+			node.remove();
+	}
+
 	private void cleanSubNodes(Node node, String name) throws RepositoryException {
 		if (node.hasNode(name)) {
 			NodeIterator nit = node.getNodes(name);
@@ -428,12 +508,25 @@ public class JarFileIndexer implements NodeIndexer, SlcNames {
 	}
 
 	protected void mapOsgiVersion(Version version, Node versionNode) throws RepositoryException {
-		versionNode.setProperty(SlcNames.SLC_AS_STRING, version.toString());
-		versionNode.setProperty(SlcNames.SLC_MAJOR, version.getMajor());
-		versionNode.setProperty(SlcNames.SLC_MINOR, version.getMinor());
-		versionNode.setProperty(SlcNames.SLC_MICRO, version.getMicro());
+		setIfChanged(versionNode, SlcNames.SLC_AS_STRING, version.toString());
+		setIfChanged(versionNode, SlcNames.SLC_MAJOR, version.getMajor());
+		setIfChanged(versionNode, SlcNames.SLC_MINOR, version.getMinor());
+		setIfChanged(versionNode, SlcNames.SLC_MICRO, version.getMicro());
 		if (!version.getQualifier().equals(""))
-			versionNode.setProperty(SlcNames.SLC_QUALIFIER, version.getQualifier());
+			setIfChanged(versionNode, SlcNames.SLC_QUALIFIER, version.getQualifier());
+		else if (versionNode.hasProperty(SlcNames.SLC_QUALIFIER))
+			versionNode.getProperty(SlcNames.SLC_QUALIFIER).remove();
+	}
+
+	/**
+	 * The content identity of the binary (typically its digest in the data
+	 * store), or null if not supported or the binary is stored inline.
+	 */
+	static String getContentIdentity(Property data) throws RepositoryException {
+		Value value = data.getValue();
+		if (value instanceof JackrabbitValue)
+			return ((JackrabbitValue) value).getContentIdentity();
+		return null;
 	}
 
 	public void setForce(Boolean force) {
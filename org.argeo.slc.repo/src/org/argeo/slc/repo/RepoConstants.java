@@ -14,6 +14,13 @@ public interface RepoConstants {
 	String DISTRIBUTIONS_BASE_PATH = REPO_BASEPATH + "/slc:distributions";
 	String REPOSITORIES_BASE_PATH = REPO_BASEPATH + "/slc:repositories";
 	String DIST_DOWNLOAD_BASEPATH = "/download";
+	/**
+	 * The workspace where the states of the syncs from other repositories are
+	 * stored, so that they are not part of the mirrored workspaces.
+	 */
+	String SYNC_STATES_WORKSPACE = "syncstates";
+	/** Where the states of the syncs are stored, in their workspace. */
+	String SYNC_STATES_BASE_PATH = REPO_BASEPATH + "/slc:syncStates";
 
 	String BINARIES_ARTIFACT_ID = "binaries";
 	String SOURCES_ARTIFACT_ID = "sources";
@@ -1,6 +1,9 @@
 package org.argeo.slc.repo;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.GregorianCalendar;
@@ -8,6 +11,12 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.jcr.Binary;
 import javax.jcr.Credentials;
@@ -23,14 +32,15 @@ import javax.jcr.RepositoryFactory;
 import javax.jcr.Session;
 import javax.jcr.SimpleCredentials;
 import javax.jcr.nodetype.NodeType;
-import javax.jcr.query.Query;
-import javax.jcr.query.QueryResult;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.jackrabbit.api.JackrabbitValue;
 import org.argeo.api.cms.CmsLog;
 import org.argeo.cms.jcr.CmsJcrUtils;
+import org.argeo.jcr.JcrFileCopy;
 import org.argeo.jcr.JcrMonitor;
 import org.argeo.jcr.JcrUtils;
+import org.argeo.jcr.JcrxApi;
 import org.argeo.slc.SlcException;
 import org.xml.sax.SAXException;
 
@@ -41,16 +51,29 @@ import org.xml.sax.SAXException;
  * Workspaces are retrieved by name given a map that links the source with a
  * target name. If a target workspace does not exist, it is created. Otherwise
  * we copy the content of the source workspace into the target one.
+ * 
+ * The first levels of the tree (see {@link #setPartitionDepth(int)}) are
+ * synchronised by the calling thread, and the subtrees below are distributed
+ * among a pool of workers (see {@link #setThreads(int)}), each of them with
+ * its own source and target sessions. Binaries are compared based on their
+ * content identity or stored checksums. A high-water mark (the start of the
+ * last completed sync, minus a safety margin, and the last completed subtree)
+ * is stored in the {@link RepoConstants#SYNC_STATES_WORKSPACE} workspace of the
+ * target repository, outside of the mirrored workspaces, so that an
+ * interrupted or repeated sync does not copy again the content of the files
+ * which have not changed.
  */
 public class RepoSync implements Runnable {
 	private final static CmsLog log = CmsLog.getLog(RepoSync.class);
 
 	// Centralizes definition of workspaces that must be ignored by the sync.
-	private final static List<String> IGNORED_WKSP_LIST = Arrays.asList("security", "localrepo");
+	private final static List<String> IGNORED_WKSP_LIST = Arrays.asList("security", "localrepo",
+			RepoConstants.SYNC_STATES_WORKSPACE);
 
 	private final Calendar zero;
 	private Session sourceDefaultSession = null;
 	private Session targetDefaultSession = null;
+	private Session stateSession = null;
 
 	private Repository sourceRepository;
 	private Credentials sourceCredentials;
@@ -73,6 +96,15 @@ public class RepoSync implements Runnable {
 	// TODO fix monitor
 	private Boolean filesOnly = false;
 
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int partitionDepth = 2;
+	private boolean incremental = true;
+	private long safetyMargin = 60 * 60 * 1000;// 1h
+
+	private final static String SLC_LAST_SYNCED = "slc:lastSynced";
+	private final static String SLC_SYNC_STARTED = "slc:syncStarted";
+	private final static String SLC_CURSOR = "slc:cursor";
+
 	public RepoSync() {
 		zero = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
 		zero.setTimeInMillis(0);
@@ -114,6 +146,8 @@ public class RepoSync implements Runnable {
 			if (targetCredentials == null && targetUsername != null)
 				targetCredentials = new SimpleCredentials(targetUsername, targetPassword);
 			targetDefaultSession = targetRepository.login(targetCredentials);
+			if (incremental)
+				stateSession = loginOrCreateWorkspace(RepoConstants.SYNC_STATES_WORKSPACE);
 
 			Map<String, Exception> errors = new HashMap<String, Exception>();
 			for (String sourceWorkspaceName : sourceDefaultSession.getWorkspace().getAccessibleWorkspaceNames()) {
@@ -129,12 +163,7 @@ public class RepoSync implements Runnable {
 				Session targetSession = null;
 				String targetWorkspaceName = workspaceMap.get(sourceWorkspaceName);
 				try {
-					try {
-						targetSession = targetRepository.login(targetCredentials, targetWorkspaceName);
-					} catch (NoSuchWorkspaceException e) {
-						targetDefaultSession.getWorkspace().createWorkspace(targetWorkspaceName);
-						targetSession = targetRepository.login(targetCredentials, targetWorkspaceName);
-					}
+					targetSession = loginOrCreateWorkspace(targetWorkspaceName);
 					sourceSession = sourceRepository.login(sourceCredentials, sourceWorkspaceName);
 					syncWorkspace(sourceSession, targetSession);
 				} catch (Exception e) {
@@ -164,31 +193,24 @@ public class RepoSync implements Runnable {
 		} finally {
 			JcrUtils.logoutQuietly(sourceDefaultSession);
 			JcrUtils.logoutQuietly(targetDefaultSession);
+			JcrUtils.logoutQuietly(stateSession);
 		}
 	}
 
-	private long getNodesNumber(Session session) {
-		if (IGNORED_WKSP_LIST.contains(session.getWorkspace().getName()))
-			return 0l;
+	private Session loginOrCreateWorkspace(String targetWorkspaceName) throws RepositoryException {
 		try {
-			Query countQuery = session.getWorkspace().getQueryManager().createQuery(
-					"select file from [" + (true ? NodeType.NT_FILE : NodeType.NT_BASE) + "] as file", Query.JCR_SQL2);
-
-			QueryResult result = countQuery.execute();
-			Long expectedCount = result.getNodes().getSize();
-			return expectedCount;
-		} catch (RepositoryException e) {
-			throw new SlcException("Unexpected error while computing " + "the size of the fetch for workspace "
-					+ session.getWorkspace().getName(), e);
+			return targetRepository.login(targetCredentials, targetWorkspaceName);
+		} catch (NoSuchWorkspaceException e) {
+			targetDefaultSession.getWorkspace().createWorkspace(targetWorkspaceName);
+			return targetRepository.login(targetCredentials, targetWorkspaceName);
 		}
 	}
 
 	protected void syncWorkspace(Session sourceSession, Session targetSession) {
-		if (monitor != null) {
-			monitor.beginTask("Computing fetch size...", -1);
-			Long totalAmount = getNodesNumber(sourceSession);
-			monitor.beginTask("Fetch", totalAmount.intValue());
-		}
+		// the number of files is not known in advance, since we don't want to scan
+		// the whole source workspace before doing anything
+		if (monitor != null)
+			monitor.beginTask("Fetch", JcrMonitor.UNKNOWN);
 
 		try {
 			String msg = "Synchronizing workspace: " + sourceSession.getWorkspace().getName();
@@ -197,6 +219,12 @@ public class RepoSync implements Runnable {
 			if (log.isDebugEnabled())
 				log.debug(msg);
 
+			SyncState state = new SyncState(sourceSession, targetSession);
+			if (incremental)
+				state.load();
+
+			// first levels, in this thread
+			List<String> partitions = new ArrayList<>();
 			for (NodeIterator it = sourceSession.getRootNode().getNodes(); it.hasNext();) {
 				Node node = it.nextNode();
 				if (node.getName().contains(":"))
@@ -205,8 +233,14 @@ public class RepoSync implements Runnable {
 					continue;
 				if (!node.isNodeType(NodeType.NT_HIERARCHY_NODE))
 					continue;
-				syncNode(node, targetSession);
+				collectPartitions(node, targetSession, 1, partitions, state);
 			}
+
+			// deeper levels, in parallel
+			state.setPartitions(partitions);
+			syncPartitions(sourceSession.getWorkspace().getName(), targetSession.getWorkspace().getName(), state);
+			if (incremental && (monitor == null || !monitor.isCanceled()))
+				state.completed();
 			// if (filesOnly) {
 			// JcrUtils.copyFiles(sourceSession.getRootNode(), targetSession.getRootNode(),
 			// true, monitor);
@@ -228,32 +262,128 @@ public class RepoSync implements Runnable {
 		}
 	}
 
+	/**
+	 * Synchronises the first levels of the hierarchy (without their hierarchy
+	 * children), and collects the paths of the subtrees which will be
+	 * synchronised in parallel.
+	 */
+	protected void collectPartitions(Node sourceNode, Session targetSession, int depth, List<String> partitions,
+			SyncState state) throws RepositoryException, SAXException {
+		if (monitor != null && monitor.isCanceled())
+			return;
+		if (depth >= partitionDepth || sourceNode.isNodeType(NodeType.NT_FILE)) {
+			partitions.add(sourceNode.getPath());
+			return;
+		}
+		if (filesOnly) {
+			Node targetNode = JcrUtils.mkdirs(targetSession, sourceNode.getPath(), NodeType.NT_FOLDER);
+			newFileCopy(false).copyFiles(sourceNode, targetNode);
+		} else {
+			syncNode(sourceNode, targetSession, false, state);
+		}
+		for (NodeIterator it = sourceNode.getNodes(); it.hasNext();) {
+			Node child = it.nextNode();
+			if (filesOnly && child.isNodeType(NodeType.NT_FILE))
+				continue;// already copied
+			if (child.isNodeType(NodeType.NT_HIERARCHY_NODE))
+				collectPartitions(child, targetSession, depth + 1, partitions, state);
+		}
+	}
+
+	/**
+	 * Synchronises the collected subtrees with a pool of workers, each of them
+	 * using its own sessions.
+	 */
+	protected void syncPartitions(String sourceWorkspaceName, String targetWorkspaceName, SyncState state)
+			throws RepositoryException {
+		int workerCount = Math.max(1, Math.min(threads, state.partitions.size()));
+		if (log.isDebugEnabled())
+			log.debug("Sync " + state.partitions.size() + " subtrees of " + sourceWorkspaceName + " with "
+					+ workerCount + " workers" + (state.lastSynced != null
+							? ", skipping files not modified since " + state.lastSynced.toInstant()
+							: ""));
+		if (workerCount == 1) {
+			new SyncWorker(sourceWorkspaceName, targetWorkspaceName, state).call();
+			return;
+		}
+		ExecutorService executorService = Executors.newFixedThreadPool(workerCount);
+		try {
+			List<Future<Void>> futures = new ArrayList<>();
+			for (int i = 0; i < workerCount; i++)
+				futures.add(executorService.submit(new SyncWorker(sourceWorkspaceName, targetWorkspaceName, state)));
+			for (Future<Void> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			throw new SlcException("Sync of " + sourceWorkspaceName + " has been interrupted", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RepositoryException)
+				throw (RepositoryException) cause;
+			throw new SlcException("Cannot sync " + sourceWorkspaceName, cause);
+		} finally {
+			executorService.shutdownNow();
+		}
+	}
+
+	/**
+	 * Copy of files only, within the sessions of the calling worker, and saved in
+	 * batches.
+	 */
+	private JcrFileCopy newFileCopy(boolean recursive) {
+		JcrFileCopy fileCopy = new JcrFileCopy();
+		fileCopy.setThreads(1);
+		fileCopy.setRecursive(recursive);
+		fileCopy.setOnlyAdd(true);
+		fileCopy.setMonitor(monitor);
+		return fileCopy;
+	}
+
 	/** factorizes monitor management */
 	private void updateMonitor(String msg) {
 		updateMonitor(msg, false);
 	}
 
 	protected void syncNode(Node sourceNode, Session targetSession) throws RepositoryException, SAXException {
+		syncNode(sourceNode, targetSession, true, null);
+	}
+
+	/**
+	 * @param recursive whether the hierarchy children should be synchronised as
+	 *                  well (non-hierarchy children are always synchronised)
+	 * @param state     the state of the sync, or null if not incremental
+	 */
+	protected void syncNode(Node sourceNode, Session targetSession, boolean recursive, SyncState state)
+			throws RepositoryException, SAXException {
 		if (filesOnly) {
+			if (sourceNode.isNodeType(NodeType.NT_FILE)) {
+				syncFile(sourceNode, targetSession);
+				return;
+			}
 			Node targetNode;
 			if (targetSession.itemExists(sourceNode.getPath()))
 				targetNode = targetSession.getNode(sourceNode.getPath());
 			else
 				targetNode = JcrUtils.mkdirs(targetSession, sourceNode.getPath(), NodeType.NT_FOLDER);
-			JcrUtils.copyFiles(sourceNode, targetNode, true, monitor, true);
+			newFileCopy(recursive).copyFiles(sourceNode, targetNode);
 			return;
 		}
 		// Boolean singleLevel = singleLevel(sourceNode);
 		try {
-			if (monitor != null && monitor.isCanceled()) {
+			// canceled between hierarchy nodes only, so that files are complete
+			if (monitor != null && monitor.isCanceled() && sourceNode.isNodeType(NodeType.NT_HIERARCHY_NODE)) {
 				updateMonitor("Fetched has been canceled, " + "process is terminating");
 				return;
 			}
 
+			// the content of files which have not been modified since last sync is
+			// not checked, but the file node itself is
+			boolean upToDate = state != null && sourceNode.isNodeType(NodeType.NT_FILE)
+					&& state.isUpToDate(lastModified(sourceNode)) && targetSession.itemExists(sourceNode.getPath());
+
 			Node targetParentNode = targetSession.getNode(sourceNode.getParent().getPath());
 			Node targetNode;
 			if (monitor != null && sourceNode.isNodeType(NodeType.NT_HIERARCHY_NODE))
-				monitor.subTask("Process " + sourceNode.getPath());
+				subTask("Process " + sourceNode.getPath());
 
 			final Boolean isNew;
 			if (!targetSession.itemExists(sourceNode.getPath())) {
@@ -290,10 +420,12 @@ public class RepoSync implements Runnable {
 			copyProperties(sourceNode, targetNode);
 
 			// next level
-			NodeIterator ni = sourceNode.getNodes();
+			NodeIterator ni = upToDate ? null : sourceNode.getNodes();
 			while (ni != null && ni.hasNext()) {
 				Node sourceChild = ni.nextNode();
-				syncNode(sourceChild, targetSession);
+				if (!recursive && sourceChild.isNodeType(NodeType.NT_HIERARCHY_NODE))
+					continue;
+				syncNode(sourceChild, targetSession, true, state);
 			}
 
 			copyTimestamps(sourceNode, targetNode);
@@ -314,6 +446,47 @@ public class RepoSync implements Runnable {
 		}
 	}
 
+	/**
+	 * Copies a single file (when it is a partition of a files only sync), unless
+	 * it already exists.
+	 */
+	private void syncFile(Node sourceFile, Session targetSession) throws RepositoryException {
+		if (targetSession.itemExists(sourceFile.getPath())) {
+			updateMonitor("Checked " + sourceFile.getPath(), false);
+			return;
+		}
+		Node targetFolder = JcrUtils.mkdirs(targetSession, sourceFile.getParent().getPath(), NodeType.NT_FOLDER);
+		Property data = sourceFile.getNode(Node.JCR_CONTENT).getProperty(Property.JCR_DATA);
+		Binary binary = data.getBinary();
+		try (InputStream in = binary.getStream()) {
+			JcrUtils.copyStreamAsFile(targetFolder, sourceFile.getName(), in);
+			targetSession.save();
+		} catch (IOException e) {
+			throw new SlcException("Cannot copy " + sourceFile, e);
+		} finally {
+			JcrUtils.closeQuietly(binary);
+		}
+		updateMonitor("Added " + sourceFile.getPath(), true);
+	}
+
+	/** The last modification of this file node or of its content, if known. */
+	private static Calendar lastModified(Node fileNode) throws RepositoryException {
+		Calendar modified = null;
+		for (Node node : new Node[] { fileNode,
+				fileNode.hasNode(Node.JCR_CONTENT) ? fileNode.getNode(Node.JCR_CONTENT) : null }) {
+			if (node == null)
+				continue;
+			for (String property : new String[] { Property.JCR_CREATED, Property.JCR_LAST_MODIFIED }) {
+				if (node.hasProperty(property)) {
+					Calendar date = node.getProperty(property).getDate();
+					if (modified == null || date.after(modified))
+						modified = date;
+				}
+			}
+		}
+		return modified;
+	}
+
 	private void copyTimestamps(Node sourceNode, Node targetNode) throws RepositoryException {
 		if (sourceNode.getDefinition().isProtected())
 			return;
@@ -370,16 +543,15 @@ public class RepoSync implements Runnable {
 		Binary targetBinary = null;
 		try {
 			sourceBinary = p.getBinary();
-			if (targetNode.hasProperty(p.getName()))
-				targetBinary = targetNode.getProperty(p.getName()).getBinary();
-
-			// optim FIXME make it more configurable
-			if (targetBinary != null)
-				if (sourceBinary.getSize() == targetBinary.getSize()) {
+			if (targetNode.hasProperty(p.getName())) {
+				Property targetProperty = targetNode.getProperty(p.getName());
+				targetBinary = targetProperty.getBinary();
+				if (sourceBinary.getSize() == targetBinary.getSize() && sameContent(p, targetProperty)) {
 					if (log.isTraceEnabled())
 						log.trace("Skipped " + p.getPath());
 					return;
 				}
+			}
 
 			in = sourceBinary.getStream();
 			targetBinary = targetNode.getSession().getValueFactory().createBinary(in);
@@ -393,13 +565,233 @@ public class RepoSync implements Runnable {
 		}
 	}
 
+	/**
+	 * Whether two binary properties of the same size have the same content,
+	 * based on (in this order) their content identity, a checksum stored on both
+	 * sides, or as a last resort a digest of both contents.
+	 */
+	static boolean sameContent(Property source, Property target) throws RepositoryException {
+		if (source.getValue() instanceof JackrabbitValue && target.getValue() instanceof JackrabbitValue) {
+			String sourceId = ((JackrabbitValue) source.getValue()).getContentIdentity();
+			String targetId = ((JackrabbitValue) target.getValue()).getContentIdentity();
+			if (sourceId != null && targetId != null)
+				return sourceId.equals(targetId);
+		}
+
+		Node sourceNode = source.getParent();
+		Node targetNode = target.getParent();
+		for (String algorithm : new String[] { JcrxApi.SHA512, JcrxApi.SHA256, JcrxApi.SHA1, JcrxApi.MD5 }) {
+			String sourceSum = storedChecksum(sourceNode, algorithm);
+			if (sourceSum == null)
+				continue;
+			String targetSum = storedChecksum(targetNode, algorithm);
+			if (targetSum != null)
+				return sourceSum.equals(targetSum);
+		}
+
+		return digest(source).equals(digest(target));
+	}
+
+	/** The checksum stored on this node or on its parent nt:file, if any. */
+	private static String storedChecksum(Node node, String algorithm) {
+		try {
+			String checksum = JcrxApi.getChecksum(node, algorithm);
+			if (checksum == null && node.getDepth() > 0 && node.getParent().isNodeType(NodeType.NT_FILE))
+				checksum = JcrxApi.getChecksum(node.getParent(), algorithm);
+			return checksum;
+		} catch (RuntimeException | RepositoryException e) {
+			// e.g. namespace not registered
+			return null;
+		}
+	}
+
+	private static String digest(Property p) throws RepositoryException {
+		Binary binary = p.getBinary();
+		try {
+			return JcrxApi.computeChecksums(binary, JcrxApi.SHA256).get(0);
+		} catch (UncheckedIOException e) {
+			throw new SlcException("Cannot digest " + p, e);
+		} finally {
+			JcrUtils.closeQuietly(binary);
+		}
+	}
+
 	/** factorizes monitor management */
 	private void updateMonitor(String msg, Boolean doLog) {
 		if (doLog && log.isDebugEnabled())
 			log.debug(msg);
 		if (monitor != null) {
-			monitor.worked(1);
-			monitor.subTask(msg);
+			// monitors are not expected to be thread safe
+			synchronized (monitor) {
+				monitor.worked(1);
+				monitor.subTask(msg);
+			}
+		}
+	}
+
+	private void subTask(String msg) {
+		if (monitor != null)
+			synchronized (monitor) {
+				monitor.subTask(msg);
+			}
+	}
+
+	/**
+	 * Synchronises subtrees taken from the shared list, with its own source and
+	 * target sessions.
+	 */
+	private class SyncWorker implements Callable<Void> {
+		private final String sourceWorkspaceName;
+		private final String targetWorkspaceName;
+		private final SyncState state;
+
+		SyncWorker(String sourceWorkspaceName, String targetWorkspaceName, SyncState state) {
+			this.sourceWorkspaceName = sourceWorkspaceName;
+			this.targetWorkspaceName = targetWorkspaceName;
+			this.state = state;
+		}
+
+		@Override
+		public Void call() throws RepositoryException {
+			Session sourceSession = null;
+			Session targetSession = null;
+			try {
+				sourceSession = sourceRepository.login(sourceCredentials, sourceWorkspaceName);
+				targetSession = targetRepository.login(targetCredentials, targetWorkspaceName);
+				int index;
+				while ((index = state.nextPartition()) >= 0) {
+					if (monitor != null && monitor.isCanceled())
+						break;
+					String path = state.partitions.get(index);
+					try {
+						if (sourceSession.nodeExists(path))
+							syncNode(sourceSession.getNode(path), targetSession, true,
+									incremental ? state : null);
+					} catch (SAXException e) {
+						throw new SlcException("Cannot sync " + path, e);
+					}
+					// a canceled subtree may be incomplete, and will be synchronised again
+					if (monitor != null && monitor.isCanceled())
+						break;
+					state.partitionCompleted(index);
+				}
+				return null;
+			} finally {
+				JcrUtils.logoutQuietly(sourceSession);
+				JcrUtils.logoutQuietly(targetSession);
+			}
+		}
+	}
+
+	/**
+	 * The high-water mark of the sync of a workspace: the start of the last
+	 * completed sync (minus the safety margin), and the last subtree such as all
+	 * the subtrees before it have been synchronised. It is stored in its own
+	 * session, and the files modified before the high-water mark are considered
+	 * up to date. Since files can be modified during a sync with a modification
+	 * date earlier than the moment they are checked, the high-water mark is
+	 * based on the start of the sync and not on the modification dates seen.
+	 */
+	class SyncState {
+		private final String statePath;
+
+		private Calendar lastSynced = null;
+		/** When the current sync started, possibly in a previous interrupted run. */
+		private Calendar syncStarted = null;
+		private String cursor = null;
+
+		private List<String> partitions;
+		private boolean[] completed;
+		private int completedUpTo = -1;
+		private final AtomicInteger next = new AtomicInteger(0);
+
+		SyncState(Session sourceSession, Session targetSession) {
+			String source = sourceRepoUri != null ? sourceRepoUri : "source";
+			this.statePath = RepoConstants.SYNC_STATES_BASE_PATH + '/' + JcrUtils.replaceInvalidChars(source) + '/'
+					+ JcrUtils.replaceInvalidChars(sourceSession.getWorkspace().getName()) + '/'
+					+ JcrUtils.replaceInvalidChars(targetSession.getWorkspace().getName());
+		}
+
+		synchronized void load() {
+			if (stateSession == null)
+				return;
+			try {
+				if (!stateSession.nodeExists(statePath))
+					return;
+				Node stateNode = stateSession.getNode(statePath);
+				if (stateNode.hasProperty(SLC_LAST_SYNCED))
+					lastSynced = stateNode.getProperty(SLC_LAST_SYNCED).getDate();
+				if (stateNode.hasProperty(SLC_SYNC_STARTED))
+					syncStarted = stateNode.getProperty(SLC_SYNC_STARTED).getDate();
+				if (stateNode.hasProperty(SLC_CURSOR))
+					cursor = stateNode.getProperty(SLC_CURSOR).getString();
+			} catch (RepositoryException e) {
+				log.warn("Cannot load sync state from " + statePath + ", will do a full sync: " + e.getMessage());
+			}
+		}
+
+		synchronized void setPartitions(List<String> partitions) {
+			this.partitions = partitions;
+			this.completed = new boolean[partitions.size()];
+			// resume after the last completed subtree
+			int cursorIndex = cursor != null ? partitions.indexOf(cursor) : -1;
+			if (cursorIndex >= 0 && syncStarted != null) {
+				for (int i = 0; i <= cursorIndex; i++)
+					completed[i] = true;
+				completedUpTo = cursorIndex;
+				next.set(cursorIndex + 1);
+				if (log.isDebugEnabled())
+					log.debug("Resume sync after " + cursor);
+			} else {
+				cursor = null;
+				syncStarted = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+			}
+		}
+
+		/** @return the index of the next partition, or -1 if none left */
+		int nextPartition() {
+			int index = next.getAndIncrement();
+			return index < partitions.size() ? index : -1;
+		}
+
+		synchronized void partitionCompleted(int index) {
+			completed[index] = true;
+			int previous = completedUpTo;
+			while (completedUpTo + 1 < completed.length && completed[completedUpTo + 1])
+				completedUpTo++;
+			if (incremental && completedUpTo != previous) {
+				cursor = partitions.get(completedUpTo);
+				save();
+			}
+		}
+
+		boolean isUpToDate(Calendar modified) {
+			return lastSynced != null && modified != null && modified.before(lastSynced);
+		}
+
+		/** The whole workspace has been synchronised. */
+		synchronized void completed() {
+			Calendar newLastSynced = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+			newLastSynced.setTimeInMillis(syncStarted.getTimeInMillis() - safetyMargin);
+			lastSynced = newLastSynced;
+			syncStarted = null;
+			cursor = null;
+			save();
+		}
+
+		private void save() {
+			if (stateSession == null)
+				return;
+			try {
+				Node stateNode = JcrUtils.mkdirs(stateSession, statePath, NodeType.NT_UNSTRUCTURED);
+				stateNode.setProperty(SLC_LAST_SYNCED, lastSynced);
+				stateNode.setProperty(SLC_SYNC_STARTED, syncStarted);
+				stateNode.setProperty(SLC_CURSOR, cursor);
+				stateSession.save();
+			} catch (RepositoryException | RuntimeException e) {
+				log.warn("Cannot save sync state to " + statePath + ": " + e.getMessage());
+				JcrUtils.discardQuietly(stateSession);
+			}
 		}
 	}
 
@@ -586,4 +978,40 @@ public class RepoSync implements Runnable {
 		this.filesOnly = filesOnly;
 	}
 
+	/** The number of workers synchronising subtrees in parallel. */
+	public void setThreads(int threads) {
+		if (threads < 1)
+			throw new IllegalArgumentException("There must be at least one thread");
+		this.threads = threads;
+	}
+
+	/**
+	 * The depth of the subtrees which are synchronised in parallel, the levels
+	 * above being synchronised sequentially.
+	 */
+	public void setPartitionDepth(int partitionDepth) {
+		if (partitionDepth < 1)
+			throw new IllegalArgumentException("Partition depth must be at least 1");
+		this.partitionDepth = partitionDepth;
+	}
+
+	/**
+	 * Whether the high-water mark of previous syncs should be used and updated.
+	 * If false, the whole source workspace is checked.
+	 */
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+
+	/**
+	 * How long before the start of the last completed sync files are considered
+	 * up to date, in ms, so as to absorb the clock difference between the source
+	 * repository and this process. Default is one hour.
+	 */
+	public void setSafetyMargin(long safetyMargin) {
+		if (safetyMargin < 0)
+			throw new IllegalArgumentException("Safety margin cannot be negative");
+		this.safetyMargin = safetyMargin;
+	}
+
 }
\ No newline at end of file
@@ -8,6 +8,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Enumeration;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.TreeSet;
@@ -30,6 +31,7 @@ import javax.jcr.RepositoryException;
 import javax.jcr.RepositoryFactory;
 import javax.jcr.Session;
 import javax.jcr.SimpleCredentials;
+import javax.jcr.nodetype.NoSuchNodeTypeException;
 import javax.jcr.nodetype.NodeType;
 
 import org.apache.commons.io.FilenameUtils;
@@ -41,6 +43,8 @@ import org.argeo.cms.ArgeoTypes;
 import org.argeo.cms.jcr.CmsJcrUtils;
 import org.argeo.jcr.JcrMonitor;
 import org.argeo.jcr.JcrUtils;
+import org.argeo.jcr.JcrxApi;
+import org.argeo.jcr.JcrxType;
 import org.argeo.slc.DefaultNameVersion;
 import org.argeo.slc.NameVersion;
 import org.argeo.slc.SlcException;
@@ -516,15 +520,24 @@ public class RepoUtils implements ArgeoNames, SlcNames {
 		return artifact;
 	}
 
-	/** Add files containing the SHA-1 and MD5 checksums. */
+	/**
+	 * Add files containing the SHA-1 and MD5 checksums, computed in a single
+	 * read of the binary, together with SHA-256. All of them are also stored on
+	 * the file node, if the JCR extensions are available.
+	 */
 	public static void addMavenChecksums(Node node) throws RepositoryException {
-		// TODO optimize
-		String sha = JcrUtils.checksumFile(node, "SHA-1");
-		JcrUtils.copyBytesAsFile(node.getParent(), node.getName() + ".sha1",
-				sha.getBytes());
-		String md5 = JcrUtils.checksumFile(node, "MD5");
-		JcrUtils.copyBytesAsFile(node.getParent(), node.getName() + ".md5",
-				md5.getBytes());
+		List<String> checksums = JcrxApi.computeChecksums(node, JcrxApi.SHA1, JcrxApi.MD5, JcrxApi.SHA256);
+		JcrUtils.copyBytesAsFile(node.getParent(), node.getName() + ".sha1", checksums.get(0).getBytes());
+		JcrUtils.copyBytesAsFile(node.getParent(), node.getName() + ".md5", checksums.get(1).getBytes());
+		try {
+			if (node.isNodeType(JcrxType.JCRX_CSUM) || node.canAddMixin(JcrxType.JCRX_CSUM)) {
+				node.addMixin(JcrxType.JCRX_CSUM);
+				JcrxApi.setChecksums(node, checksums);
+			}
+		} catch (NoSuchNodeTypeException e) {
+			if (log.isTraceEnabled())
+				log.trace("JCR extensions not available, not storing checksums on " + node);
+		}
 	}
 
 	/**
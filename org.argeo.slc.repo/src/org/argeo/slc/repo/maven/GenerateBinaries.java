@@ -277,11 +277,7 @@ public class GenerateBinaries implements Runnable, SlcNames {
 		Node node = RepoUtils.copyBytesAsArtifact(session.getNode(artifactBasePath), artifact, pom.getBytes());
 		artifactIndexer.index(node);
 
-		// TODO factorize
-		String pomSha = JcrUtils.checksumFile(node, "SHA-1");
-		JcrUtils.copyBytesAsFile(node.getParent(), node.getName() + ".sha1", pomSha.getBytes());
-		String pomMd5 = JcrUtils.checksumFile(node, "MD5");
-		JcrUtils.copyBytesAsFile(node.getParent(), node.getName() + ".md5", pomMd5.getBytes());
+		RepoUtils.addMavenChecksums(node);
 		session.save();
 		return artifact;
 	}
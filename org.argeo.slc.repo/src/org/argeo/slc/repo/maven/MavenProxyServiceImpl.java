@@ -27,6 +27,8 @@ import org.eclipse.aether.repository.RemoteRepository;
 public class MavenProxyServiceImpl extends AbstractUrlProxy implements MavenProxyService, ArgeoNames, SlcNames {
 	private final static CmsLog log = CmsLog.getLog(MavenProxyServiceImpl.class);
 
+	private final static String MAVEN_METADATA = "maven-metadata.xml";
+
 	private List<RemoteRepository> defaultRepositories = new ArrayList<RemoteRepository>();
 
 	/** Initialises the artifacts area. */
@@ -54,22 +56,55 @@ public class MavenProxyServiceImpl extends AbstractUrlProxy implements MavenProx
 	}
 
 	/**
-	 * Retrieve and add this file to the repository
+	 * Retrieve and add this file to the repository. Already proxied files are
+	 * revalidated against their origin, otherwise the proxied repositories are
+	 * probed concurrently and the first one (in their order) providing the file
+	 * is used.
 	 */
 	@Override
 	protected Node retrieve(Session session, String path) {
 		try {
 			if (session.hasPendingChanges())
 				throw new SlcException("Session has pending changed");
-			Node node = null;
-			for (Node proxiedRepository : getBaseUrls(session)) {
+			List<Node> proxiedRepositories = getBaseUrls(session);
+			if (session.itemExists(path)) {
+				Node existing = session.getNode(path);
+				if (existing.hasNode(SLC_ORIGIN) && existing.getNode(SLC_ORIGIN).hasProperty(SLC_PROXY)) {
+					Node proxiedRepository = existing.getNode(SLC_ORIGIN).getProperty(SLC_PROXY).getNode();
+					// make sure that the origin comes first
+					for (int i = 0; i < proxiedRepositories.size(); i++)
+						if (proxiedRepositories.get(i).isSame(proxiedRepository)) {
+							proxiedRepositories.remove(i);
+							proxiedRepositories.add(0, proxiedRepository);
+							break;
+						}
+				}
+			}
+
+			List<String> baseUrls = new ArrayList<>();
+			List<String> remoteUrls = new ArrayList<>();
+			for (Node proxiedRepository : proxiedRepositories) {
 				String baseUrl = JcrUtils.urlFromAddressProperties(proxiedRepository);
-				node = proxyUrl(session, baseUrl, path);
+				baseUrls.add(baseUrl);
+				remoteUrls.add(baseUrl + path);
+			}
+			if (remoteUrls.isEmpty())
+				return null;
+			int index = probe(remoteUrls);
+			if (index >= 0) {
+				Node proxiedRepository = proxiedRepositories.get(index);
+				String baseUrl = baseUrls.get(index);
+				Node node = proxyUrl(session, remoteUrls.get(index), path);
 				if (node != null) {
-					node.addMixin(SlcTypes.SLC_KNOWN_ORIGIN);
-					Node origin = node.addNode(SLC_ORIGIN, SlcTypes.SLC_PROXIED);
-					origin.setProperty(SLC_PROXY, proxiedRepository);
-					JcrUtils.urlToAddressProperties(origin, baseUrl + path);
+					if (!node.isNodeType(SlcTypes.SLC_KNOWN_ORIGIN))
+						node.addMixin(SlcTypes.SLC_KNOWN_ORIGIN);
+					Node origin = node.hasNode(SLC_ORIGIN) ? node.getNode(SLC_ORIGIN)
+							: node.addNode(SLC_ORIGIN, SlcTypes.SLC_PROXIED);
+					if (!origin.hasProperty(SLC_PROXY)
+							|| !origin.getProperty(SLC_PROXY).getNode().isSame(proxiedRepository)) {
+						origin.setProperty(SLC_PROXY, proxiedRepository);
+						JcrUtils.urlToAddressProperties(origin, baseUrl + path);
+					}
 					if (log.isDebugEnabled())
 						log.debug("Imported " + baseUrl + path + " to " + node);
 					return node;
@@ -83,7 +118,7 @@ public class MavenProxyServiceImpl extends AbstractUrlProxy implements MavenProx
 		}
 	}
 
-	protected synchronized List<Node> getBaseUrls(Session session) throws RepositoryException {
+	protected List<Node> getBaseUrls(Session session) throws RepositoryException {
 		List<Node> baseUrls = new ArrayList<Node>();
 		for (NodeIterator nit = session.getNode(RepoConstants.PROXIED_REPOSITORIES).getNodes(); nit.hasNext();) {
 			Node proxiedRepository = nit.nextNode();
@@ -92,6 +127,13 @@ public class MavenProxyServiceImpl extends AbstractUrlProxy implements MavenProx
 		return baseUrls;
 	}
 
+	/** Maven metadata are updated remotely and must be revalidated. */
+	@Override
+	protected boolean isMutable(String path) {
+		String fileName = JcrUtils.lastPathElement(path);
+		return fileName.startsWith(MAVEN_METADATA);
+	}
+
 	public void setDefaultRepositories(List<RemoteRepository> defaultRepositories) {
 		this.defaultRepositories = defaultRepositories;
 	}
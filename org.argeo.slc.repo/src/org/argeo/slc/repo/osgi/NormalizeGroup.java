@@ -236,11 +236,7 @@ public class NormalizeGroup implements Runnable, SlcNames {
 		Node node = RepoUtils.copyBytesAsArtifact(session.getNode(artifactBasePath), artifact, pom.getBytes());
 		artifactIndexer.index(node);
 
-		// TODO factorize
-		String pomSha = JcrUtils.checksumFile(node, "SHA-1");
-		JcrUtils.copyBytesAsFile(node.getParent(), node.getName() + ".sha1", pomSha.getBytes());
-		String pomMd5 = JcrUtils.checksumFile(node, "MD5");
-		JcrUtils.copyBytesAsFile(node.getParent(), node.getName() + ".md5", pomMd5.getBytes());
+		RepoUtils.addMavenChecksums(node);
 		session.save();
 		return artifact;
 	}
@@ -288,11 +284,9 @@ public class NormalizeGroup implements Runnable, SlcNames {
 
 		String pom = generatePomForBundle(bundleNode);
 		Node pomNode = JcrUtils.copyBytesAsFile(artifactFolder, pomName, pom.getBytes());
-		// checksum
-		String bundleSha = JcrUtils.checksumFile(bundleNode, "SHA-1");
-		JcrUtils.copyBytesAsFile(artifactFolder, bundleNode.getName() + ".sha1", bundleSha.getBytes());
-		String pomSha = JcrUtils.checksumFile(pomNode, "SHA-1");
-		JcrUtils.copyBytesAsFile(artifactFolder, pomNode.getName() + ".sha1", pomSha.getBytes());
+		// checksums
+		RepoUtils.addMavenChecksums(bundleNode);
+		RepoUtils.addMavenChecksums(pomNode);
 	}
 
 	private String generatePomForBundle(Node n) throws RepositoryException {
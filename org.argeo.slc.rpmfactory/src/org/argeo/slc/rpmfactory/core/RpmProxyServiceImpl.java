@@ -128,11 +128,10 @@ public class RpmProxyServiceImpl extends AbstractUrlProxy implements
 		return workspace.toString();
 	}
 
+	/** Repository metadata are updated remotely and must be revalidated. */
 	@Override
-	protected Boolean shouldUpdate(Session clientSession, String nodePath) {
-		// if (nodePath.contains("/repodata/"))
-		// return true;
-		return super.shouldUpdate(clientSession, nodePath);
+	protected boolean isMutable(String path) {
+		return path.contains("/repodata/");
 	}
 
 	public void setDefaultRepositories(Set<RpmRepository> defaultRepositories) {
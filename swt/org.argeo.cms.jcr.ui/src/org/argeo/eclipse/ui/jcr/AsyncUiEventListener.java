@@ -1,7 +1,9 @@
 package org.argeo.eclipse.ui.jcr;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.jcr.RepositoryException;
 import javax.jcr.observation.Event;
@@ -10,34 +12,77 @@ import javax.jcr.observation.EventListener;
 
 import org.argeo.api.cms.CmsLog;
 import org.argeo.eclipse.ui.EclipseUiException;
+import org.eclipse.swt.SWTException;
+import org.eclipse.swt.widgets.Control;
 import org.eclipse.swt.widgets.Display;
 
 /**
  * {@link EventListener} which simplifies running actions within the UI thread.
+ * The events received between two dispatches are accumulated and coalesced
+ * (only the last event of a given type on a given path is kept), and they are
+ * dispatched to the UI thread at most once per minimal interval, so that heavy
+ * writes to the repository do not flood the UI thread. If the listener is
+ * bound to a control, events are dropped while the control is not visible, and
+ * no longer dispatched once it is disposed.
  */
 public abstract class AsyncUiEventListener implements EventListener {
 	// private final static Log logSuper = LogFactory
 	// .getLog(AsyncUiEventListener.class);
 	private final CmsLog logThis = CmsLog.getLog(getClass());
 
+	/** Default minimal interval between two dispatches, in ms. */
+	public final static long DEFAULT_MIN_INTERVAL = 100;
+
 	private final Display display;
+	private final Control control;
+	private volatile long minInterval = DEFAULT_MIN_INTERVAL;
+
+	/** Pending events, per type and path. */
+	private final Map<String, Event> pending = new LinkedHashMap<>();
+	/** Whether a dispatch is already scheduled. */
+	private boolean scheduled = false;
+	private long lastDispatch = 0;
+
+	private final Runnable dispatch = () -> dispatch();
 
 	public AsyncUiEventListener(Display display) {
 		super();
 		this.display = display;
+		this.control = null;
+	}
+
+	/**
+	 * Dispatches the events only while this control is visible, and stops once
+	 * it is disposed.
+	 */
+	public AsyncUiEventListener(Control control) {
+		super();
+		this.display = control.getDisplay();
+		this.control = control;
 	}
 
-	/** Called asynchronously in the UI thread. */
+	/**
+	 * Called asynchronously in the UI thread, with the events coalesced since the
+	 * previous call.
+	 */
 	protected abstract void onEventInUiThread(List<Event> events) throws RepositoryException;
 
 	/**
 	 * Whether these events should be processed in the UI or skipped with no UI
-	 * job created.
+	 * job created. Called in the observation thread, for each batch of events.
 	 */
 	protected Boolean willProcessInUiThread(List<Event> events) throws RepositoryException {
 		return true;
 	}
 
+	/**
+	 * Whether the events should be dispatched, called in the UI thread. By
+	 * default, whether the control (if any) is visible.
+	 */
+	protected boolean isActive() {
+		return control == null || control.isVisible();
+	}
+
 	protected CmsLog getLog() {
 		return logThis;
 	}
@@ -50,6 +95,8 @@ public abstract class AsyncUiEventListener implements EventListener {
 		if (logThis.isTraceEnabled())
 			logThis.trace("Received " + events.size() + " events");
 
+		if (isDisposed())
+			return;
 		try {
 			if (!willProcessInUiThread(events))
 				return;
@@ -57,27 +104,79 @@ public abstract class AsyncUiEventListener implements EventListener {
 			throw new EclipseUiException("Cannot test skip events " + events, e);
 		}
 
-		// Job job = new Job("JCR Events") {
-		// protected IStatus run(IProgressMonitor monitor) {
-		// if (display.isDisposed()) {
-		// logSuper.warn("Display is disposed cannot update UI");
-		// return Status.CANCEL_STATUS;
-		// }
-
-		if (!display.isDisposed())
-			display.asyncExec(new Runnable() {
-				public void run() {
-					try {
-						onEventInUiThread(events);
-					} catch (RepositoryException e) {
-						throw new EclipseUiException("Cannot process events " + events, e);
-					}
-				}
-			});
-
-		// return Status.OK_STATUS;
-		// }
-		// };
-		// job.schedule();
+		synchronized (pending) {
+			for (Event event : events) {
+				String key = coalescingKey(event);
+				// moved to the end, so that the events are dispatched in the order of their last occurrence
+				pending.remove(key);
+				pending.put(key, event);
+			}
+			if (scheduled)
+				return;
+			scheduled = true;
+		}
+		try {
+			display.asyncExec(() -> schedule());
+		} catch (SWTException e) {
+			// display disposed in the meantime
+			synchronized (pending) {
+				pending.clear();
+				scheduled = false;
+			}
+			if (logThis.isTraceEnabled())
+				logThis.trace("Dropped " + events.size() + " events, since the display is disposed");
+		}
+	}
+
+	/** Dispatches now, or once the minimal interval has elapsed. UI thread. */
+	private void schedule() {
+		long delay = lastDispatch + minInterval - System.currentTimeMillis();
+		if (delay > 0)
+			display.timerExec((int) delay, dispatch);
+		else
+			dispatch();
+	}
+
+	private void dispatch() {
+		List<Event> events;
+		synchronized (pending) {
+			events = new ArrayList<>(pending.values());
+			pending.clear();
+			scheduled = false;
+		}
+		lastDispatch = System.currentTimeMillis();
+		if (isDisposed())
+			return;
+		if (!isActive()) {
+			if (logThis.isTraceEnabled())
+				logThis.trace("Dropped " + events.size() + " events, since the UI is not active");
+			return;
+		}
+		try {
+			onEventInUiThread(events);
+		} catch (RepositoryException e) {
+			throw new EclipseUiException("Cannot process events " + events, e);
+		}
+	}
+
+	private boolean isDisposed() {
+		return display.isDisposed() || (control != null && control.isDisposed());
+	}
+
+	private static String coalescingKey(Event event) {
+		try {
+			return event.getType() + event.getPath();
+		} catch (RepositoryException e) {
+			// cannot be coalesced
+			return event.getType() + "#" + System.identityHashCode(event);
+		}
+	}
+
+	/**
+	 * The minimal interval between two dispatches to the UI thread, in ms.
+	 * Default is {@link #DEFAULT_MIN_INTERVAL}.
+	 */
+	public void setMinInterval(long minInterval) {
+		this.minInterval = minInterval;
 	}
 }
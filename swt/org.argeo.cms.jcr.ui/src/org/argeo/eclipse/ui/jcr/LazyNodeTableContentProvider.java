@@ -0,0 +1,136 @@
+package org.argeo.eclipse.ui.jcr;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+
+import org.argeo.eclipse.ui.EclipseUiException;
+import org.eclipse.jface.viewers.ILazyContentProvider;
+import org.eclipse.jface.viewers.TableViewer;
+import org.eclipse.jface.viewers.Viewer;
+
+/**
+ * Lazy content provider for a {@link TableViewer} created with
+ * <code>SWT.VIRTUAL</code>. The input is either a {@link Query}, whose results
+ * are paged with an offset and a limit (and should therefore be ordered by the
+ * query itself), or a {@link Node}, whose children are listed. The nodes are
+ * counted and loaded on a background thread, with its own session, so that
+ * large results do not block the UI.
+ */
+public class LazyNodeTableContentProvider implements ILazyContentProvider {
+	private static final long serialVersionUID = -5284062254185391462L;
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor((r) -> {
+		Thread thread = new Thread(r, "Load nodes for " + LazyNodeTableContentProvider.this);
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final PagedNodes.Sessions sessions = new PagedNodes.Sessions();
+
+	private final Session session;
+	private String namePattern = null;
+
+	private TableViewer viewer;
+	private PagedNodes<Node> pagedNodes;
+
+	/** Only nodes can be used as input. */
+	public LazyNodeTableContentProvider() {
+		this(null);
+	}
+
+	/**
+	 * @param session the session in which the queries used as input have been
+	 *                created, and the nodes are returned
+	 */
+	public LazyNodeTableContentProvider(Session session) {
+		this.session = session;
+	}
+
+	@Override
+	public void inputChanged(Viewer viewer, Object oldInput, Object newInput) {
+		if (pagedNodes != null) {
+			pagedNodes.dispose();
+			pagedNodes = null;
+		}
+		this.viewer = (TableViewer) viewer;
+		if (newInput == null)
+			return;
+
+		Session uiSession;
+		PagedNodes.Source source;
+		try {
+			if (newInput instanceof Query query) {
+				if (session == null)
+					throw new EclipseUiException("A session is required for query " + query.getStatement());
+				uiSession = session;
+				source = new PagedNodes.QueryNodes(sessions.get(uiSession, this::openSession), query);
+			} else if (newInput instanceof Node node) {
+				uiSession = node.getSession();
+				source = new PagedNodes.ChildNodes(sessions.get(uiSession, this::openSession), node, namePattern);
+			} else
+				throw new EclipseUiException("Unsupported input " + newInput);
+		} catch (RepositoryException e) {
+			throw new EclipseUiException("Cannot list " + newInput, e);
+		}
+		// a selected element may not be part of the results anymore
+		viewer.setSelection(null);
+		this.viewer.setItemCount(0);
+		PagedNodes<Node> current = new PagedNodes<>(source, uiSession, (node) -> node,
+				viewer.getControl().getDisplay(), executor);
+		pagedNodes = current;
+		current.count((count) -> {
+			if (pagedNodes == current && !this.viewer.getControl().isDisposed())
+				this.viewer.setItemCount(count);
+		});
+	}
+
+	@Override
+	public void updateElement(int index) {
+		if (pagedNodes == null)
+			return;
+		PagedNodes<Node> current = pagedNodes;
+		Node node = current.get(index, (firstIndex, nodes) -> pageLoaded(current, firstIndex, nodes));
+		if (node != null)
+			viewer.replace(node, index);
+	}
+
+	private void pageLoaded(PagedNodes<Node> loaded, int firstIndex, List<Node> nodes) {
+		if (pagedNodes != loaded || viewer.getControl().isDisposed())
+			return;
+		int itemCount = viewer.getTable().getItemCount();
+		for (int i = 0; i < nodes.size() && firstIndex + i < itemCount; i++)
+			viewer.replace(nodes.get(i), firstIndex + i);
+	}
+
+	/**
+	 * Opens the session used by the background thread, in the workspace of a
+	 * session of the UI. Called in the UI thread, by default logging in with its
+	 * security context.
+	 */
+	protected Session openSession(Session uiSession) throws RepositoryException {
+		return uiSession.getRepository().login(uiSession.getWorkspace().getName());
+	}
+
+	@Override
+	public void dispose() {
+		if (pagedNodes != null)
+			pagedNodes.dispose();
+		sessions.logout(executor);
+		executor.shutdown();
+	}
+
+	/**
+	 * Only the children whose names match this pattern are listed, when the
+	 * input is a node. Takes effect when the input is set.
+	 *
+	 * @see Node#getNodes(String)
+	 */
+	public void setNamePattern(String namePattern) {
+		this.namePattern = namePattern;
+	}
+}
@@ -0,0 +1,243 @@
+package org.argeo.eclipse.ui.jcr;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+
+import org.argeo.api.cms.CmsLog;
+import org.argeo.eclipse.ui.EclipseUiException;
+import org.eclipse.jface.viewers.ILazyTreeContentProvider;
+import org.eclipse.jface.viewers.TreeViewer;
+import org.eclipse.jface.viewers.Viewer;
+
+/**
+ * Lazy content provider for a {@link TreeViewer} of JCR nodes created with
+ * <code>SWT.VIRTUAL</code>. The input is the list of the base nodes (or a
+ * single node), whose children are counted and loaded by pages on a
+ * background thread, with its own session, so that expanding a node with many
+ * children does not block the UI. If the children are ordered by name, they
+ * are sorted by the query engine. The children are loaded again when the
+ * viewer is refreshed or when their parent is expanded.
+ * <p>
+ * Trees whose elements are not nodes themselves can be displayed by
+ * overriding {@link #getNode(Object)}, {@link #toElement(Object, Node)} and
+ * {@link #getChildren(Object)}.
+ */
+public class LazyNodeTreeContentProvider implements ILazyTreeContentProvider {
+	private static final long serialVersionUID = 6312604961727457346L;
+	private final static CmsLog log = CmsLog.getLog(LazyNodeTreeContentProvider.class);
+
+	private final ExecutorService executor = Executors.newSingleThreadExecutor((r) -> {
+		Thread thread = new Thread(r, "Load nodes for " + LazyNodeTreeContentProvider.this);
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final PagedNodes.Sessions sessions = new PagedNodes.Sessions();
+
+	private boolean orderByName = false;
+
+	private TreeViewer viewer;
+	private Object input;
+	/** Children of the expanded elements, per path for nodes. */
+	private final Map<Object, PagedNodes<Object>> children = new HashMap<>();
+
+	@Override
+	public void inputChanged(Viewer viewer, Object oldInput, Object newInput) {
+		clear();
+		this.viewer = (TreeViewer) viewer;
+		this.input = newInput;
+	}
+
+	@Override
+	public void updateChildCount(Object element, int currentChildCount) {
+		Node node = getNode(element);
+		if (node == null) {
+			viewer.setChildCount(element, getChildren(element).length);
+			return;
+		}
+		// loaded again, so that refreshing the viewer shows the changes
+		invalidate(element);
+		PagedNodes<Object> pagedNodes = getPagedNodes(element, node);
+		pagedNodes.count((count) -> {
+			if (children.get(key(element)) == pagedNodes && !viewer.getControl().isDisposed())
+				viewer.setChildCount(element, count);
+		});
+	}
+
+	@Override
+	public void updateElement(Object parent, int index) {
+		Node parentNode = getNode(parent);
+		if (parentNode == null) {
+			Object[] elements = getChildren(parent);
+			if (index < elements.length)
+				replace(parent, index, elements[index]);
+			return;
+		}
+		PagedNodes<Object> pagedNodes = getPagedNodes(parent, parentNode);
+		Object element = pagedNodes.get(index, (firstIndex, elements) -> {
+			if (children.get(key(parent)) != pagedNodes || viewer.getControl().isDisposed())
+				return;
+			for (int i = 0; i < elements.size(); i++)
+				replace(parent, firstIndex + i, elements.get(i));
+		});
+		if (element != null)
+			replace(parent, index, element);
+	}
+
+	private void replace(Object parent, int index, Object element) {
+		viewer.replace(parent, index, element);
+		// the actual count is computed when the element is expanded
+		viewer.setHasChildren(element, hasChildren(element));
+	}
+
+	@Override
+	public Object getParent(Object element) {
+		if (!(element instanceof Node node))
+			return null;
+		try {
+			for (Object baseNode : getChildren(input))
+				if (baseNode instanceof Node n && n.getPath().equals(node.getPath()))
+					return input;
+			return node.getDepth() == 0 ? null : node.getParent();
+		} catch (RepositoryException e) {
+			log.warn("Cannot get parent of " + element + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Forgets the loaded children of this element, so that they are loaded again
+	 * when the viewer is refreshed.
+	 */
+	public void invalidate(Object element) {
+		PagedNodes<Object> pagedNodes = children.remove(key(element));
+		if (pagedNodes != null)
+			pagedNodes.dispose();
+	}
+
+	/*
+	 * EXTENSION
+	 */
+	/**
+	 * The node whose children are the children of this element, or null if they
+	 * are provided by {@link #getChildren(Object)}. By default, the element
+	 * itself if it is a node.
+	 */
+	protected Node getNode(Object element) {
+		return element instanceof Node node ? node : null;
+	}
+
+	/** The element displaying this child node. By default, the node itself. */
+	protected Object toElement(Object parent, Node node) {
+		return node;
+	}
+
+	/**
+	 * The children of an element which is not a node (see
+	 * {@link #getNode(Object)}), such as the input. By default, the base nodes of
+	 * the input.
+	 */
+	protected Object[] getChildren(Object element) {
+		if (element != input)
+			return new Object[0];
+		if (input instanceof Node node)
+			return new Object[] { node };
+		else if (input instanceof Node[] nodes)
+			return nodes;
+		else if (input instanceof List<?> list)
+			return list.toArray();
+		else
+			throw new EclipseUiException("Unsupported input " + input);
+	}
+
+	/** Whether this element has children, called in the UI thread. */
+	protected boolean hasChildren(Object element) {
+		Node node = getNode(element);
+		if (node == null)
+			return getChildren(element).length > 0;
+		try {
+			return node.hasNodes();
+		} catch (RepositoryException e) {
+			log.warn("Cannot check whether " + node + " has children: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Opens the session used by the background thread, in the workspace of a
+	 * session of the UI, when the children of this element are first loaded from
+	 * this workspace. Called in the UI thread, by default logging in with its
+	 * security context.
+	 */
+	protected Session openSession(Object element, Session uiSession) throws RepositoryException {
+		return uiSession.getRepository().login(uiSession.getWorkspace().getName());
+	}
+
+	private PagedNodes<Object> getPagedNodes(Object element, Node node) {
+		Object key = key(element);
+		PagedNodes<Object> pagedNodes = children.get(key);
+		if (pagedNodes == null) {
+			PagedNodes.Source source;
+			Session session;
+			try {
+				session = node.getSession();
+				Session backgroundSession = sessions.get(session, (uiSession) -> openSession(element, uiSession));
+				if (orderByName) {
+					String path = node.getPath();
+					Query query = session.getWorkspace().getQueryManager()
+							.createQuery("SELECT * FROM [nt:base] AS n WHERE ISCHILDNODE(n, '"
+									+ path.replace("'", "''") + "') ORDER BY NAME(n)", Query.JCR_SQL2);
+					source = new PagedNodes.QueryNodes(backgroundSession, query);
+				} else {
+					source = new PagedNodes.ChildNodes(backgroundSession, node, null);
+				}
+			} catch (RepositoryException e) {
+				throw new EclipseUiException("Cannot list children of " + node, e);
+			}
+			pagedNodes = new PagedNodes<>(source, session, (child) -> toElement(element, child),
+					viewer.getControl().getDisplay(), executor);
+			children.put(key, pagedNodes);
+		}
+		return pagedNodes;
+	}
+
+	/** Nodes are identified by their path, other elements by themselves. */
+	private Object key(Object element) {
+		if (element instanceof Node node)
+			try {
+				return node.getPath();
+			} catch (RepositoryException e) {
+				throw new EclipseUiException("Cannot get path of " + node, e);
+			}
+		return element;
+	}
+
+	private void clear() {
+		for (PagedNodes<Object> pagedNodes : children.values())
+			pagedNodes.dispose();
+		children.clear();
+	}
+
+	@Override
+	public void dispose() {
+		clear();
+		sessions.logout(executor);
+		executor.shutdown();
+	}
+
+	/**
+	 * Whether the children are ordered by name (by the query engine), rather
+	 * than in their natural order. Takes effect when the children are loaded
+	 * again.
+	 */
+	public void setOrderByName(boolean orderByName) {
+		this.orderByName = orderByName;
+	}
+}
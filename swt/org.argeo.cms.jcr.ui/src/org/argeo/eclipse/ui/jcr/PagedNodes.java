@@ -0,0 +1,345 @@
+package org.argeo.eclipse.ui.jcr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+
+import javax.jcr.ItemNotFoundException;
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import javax.jcr.query.Query;
+import javax.jcr.query.QueryResult;
+
+import org.argeo.api.cms.CmsLog;
+import org.argeo.jcr.JcrUtils;
+import org.eclipse.swt.widgets.Display;
+
+/**
+ * Nodes which are counted and loaded by pages on a background thread, the
+ * results being passed to the UI thread. Since JCR sessions are not
+ * thread-safe, the background thread only uses its own sessions (see
+ * {@link Sessions}): it loads the identifiers of the nodes, which are resolved
+ * in the UI thread with the session of the UI, and converted to the elements
+ * of the viewer. The loaded pages are only accessed from the UI thread, and the
+ * least recently used ones are evicted.
+ */
+class PagedNodes<T> {
+	private final static CmsLog log = CmsLog.getLog(PagedNodes.class);
+
+	final static int PAGE_SIZE = 128;
+	/** Loaded pages beyond which the least recently used are evicted. */
+	final static int MAX_PAGES = 64;
+
+	private final Source source;
+	private final Session session;
+	private final Function<Node, T> toElement;
+	private final Display display;
+	private final Executor executor;
+
+	private final Map<Integer, List<T>> pages = new LinkedHashMap<Integer, List<T>>(16, 0.75f, true) {
+		private static final long serialVersionUID = 3371574839408302826L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, List<T>> eldest) {
+			return size() > MAX_PAGES;
+		}
+	};
+	private final Set<Integer> loading = new HashSet<>();
+	private volatile boolean disposed = false;
+
+	private IntConsumer onCount = null;
+	private int reportedCount = 0;
+	/** Whether the count is known, rather than grown as pages are loaded. */
+	private boolean exactCount = false;
+
+	/**
+	 * @param source    where the identifiers of the nodes come from
+	 * @param session   the session of the UI, with which the nodes are resolved
+	 * @param toElement converts a resolved node to an element, in the UI thread
+	 */
+	PagedNodes(Source source, Session session, Function<Node, T> toElement, Display display, Executor executor) {
+		this.source = source;
+		this.session = session;
+		this.toElement = toElement;
+		this.display = display;
+		this.executor = executor;
+	}
+
+	/**
+	 * Counts the nodes in the background, then notifies the UI thread. If they
+	 * cannot be counted without iterating, a provisional count is notified, which
+	 * is then grown as pages are loaded.
+	 */
+	void count(IntConsumer onCount) {
+		this.onCount = onCount;
+		executor.execute(() -> {
+			if (disposed)
+				return;
+			try {
+				long count = source.count();
+				inUiThread(() -> {
+					if (count >= 0) {
+						exactCount = true;
+						reportCount((int) Math.min(count, Integer.MAX_VALUE));
+					} else if (!exactCount) {
+						reportCount(Math.max(reportedCount, PAGE_SIZE));
+					}
+				});
+			} catch (RepositoryException | RuntimeException e) {
+				log.error("Cannot count " + source, e);
+			}
+		});
+	}
+
+	/**
+	 * The element at this index if its page is loaded, otherwise null, the page
+	 * being loaded in the background and passed to the listener in the UI
+	 * thread.
+	 */
+	T get(int index, PageListener<T> listener) {
+		int page = index / PAGE_SIZE;
+		List<T> nodes = pages.get(page);
+		if (nodes != null)
+			return index % PAGE_SIZE < nodes.size() ? nodes.get(index % PAGE_SIZE) : null;
+		if (loading.add(page)) {
+			executor.execute(() -> {
+				if (disposed)
+					return;
+				try {
+					List<String> identifiers = source.load((long) page * PAGE_SIZE, PAGE_SIZE);
+					inUiThread(() -> {
+						loading.remove(page);
+						List<T> loaded = resolve(identifiers);
+						pages.put(page, loaded);
+						if (!exactCount)
+							growCount(page, identifiers.size());
+						listener.pageLoaded(page * PAGE_SIZE, loaded);
+					});
+				} catch (RepositoryException | RuntimeException e) {
+					log.error("Cannot load nodes " + (page * PAGE_SIZE) + " to " + ((page + 1) * PAGE_SIZE - 1) + " of "
+							+ source, e);
+					inUiThread(() -> loading.remove(page));
+				}
+			});
+		}
+		return null;
+	}
+
+	/** Pending background tasks are skipped. */
+	void dispose() {
+		disposed = true;
+	}
+
+	/** Resolves the loaded identifiers with the session of the UI. */
+	private List<T> resolve(List<String> identifiers) {
+		List<T> nodes = new ArrayList<>(identifiers.size());
+		for (String identifier : identifiers) {
+			try {
+				nodes.add(toElement.apply(session.getNodeByIdentifier(identifier)));
+			} catch (ItemNotFoundException e) {
+				if (log.isTraceEnabled())
+					log.trace("Node " + identifier + " of " + source + " has been removed since it was loaded");
+			} catch (RepositoryException e) {
+				log.warn("Cannot resolve node " + identifier + " of " + source + ": " + e.getMessage());
+			}
+		}
+		return nodes;
+	}
+
+	/** Grows a provisional count, or fixes it once a page is not full. */
+	private void growCount(int page, int loaded) {
+		int end = page * PAGE_SIZE + loaded;
+		if (loaded < PAGE_SIZE) {
+			// an empty page beyond the first only tells that there are less nodes
+			exactCount = loaded > 0 || page == 0;
+			reportCount(end);
+		} else if (end >= reportedCount) {
+			reportCount(end + PAGE_SIZE);
+		}
+	}
+
+	private void reportCount(int count) {
+		reportedCount = count;
+		if (onCount != null)
+			onCount.accept(count);
+	}
+
+	private void inUiThread(Runnable runnable) {
+		if (disposed || display.isDisposed())
+			return;
+		display.asyncExec(() -> {
+			if (!disposed)
+				runnable.run();
+		});
+	}
+
+	/** Called in the UI thread when a page has been loaded. */
+	@FunctionalInterface
+	interface PageListener<T> {
+		void pageLoaded(int firstIndex, List<T> elements);
+	}
+
+	/**
+	 * Where the identifiers of the nodes come from. Created in the UI thread, and
+	 * then only called in the background thread.
+	 */
+	interface Source {
+		/** The number of nodes, or -1 if they cannot be counted without iterating. */
+		long count() throws RepositoryException;
+
+		List<String> load(long offset, int limit) throws RepositoryException;
+	}
+
+	/** The children of a node, possibly filtered by a name pattern. */
+	static class ChildNodes implements Source {
+		private final Session session;
+		private final String parentIdentifier;
+		private final String parentPath;
+		private final String namePattern;
+
+		/** Where the previous page ended, so that the next one does not skip from the start. */
+		private NodeIterator cursor = null;
+
+		/**
+		 * @param session the session of the background thread, in the workspace of
+		 *                the parent
+		 */
+		ChildNodes(Session session, Node parent, String namePattern) throws RepositoryException {
+			this.session = session;
+			this.parentIdentifier = parent.getIdentifier();
+			this.parentPath = parent.getPath();
+			this.namePattern = namePattern;
+		}
+
+		@Override
+		public long count() throws RepositoryException {
+			return getNodes().getSize();
+		}
+
+		@Override
+		public List<String> load(long offset, int limit) throws RepositoryException {
+			if (cursor == null || cursor.getPosition() > offset)
+				cursor = getNodes();
+			long toSkip = offset - cursor.getPosition();
+			if (toSkip > 0)
+				try {
+					cursor.skip(toSkip);
+				} catch (NoSuchElementException e) {
+					cursor = null;
+					return Collections.emptyList();
+				}
+			List<String> res = new ArrayList<>(limit);
+			while (cursor.hasNext() && res.size() < limit)
+				res.add(cursor.nextNode().getIdentifier());
+			return res;
+		}
+
+		private NodeIterator getNodes() throws RepositoryException {
+			Node parent = session.getNodeByIdentifier(parentIdentifier);
+			return namePattern == null ? parent.getNodes() : parent.getNodes(namePattern);
+		}
+
+		@Override
+		public String toString() {
+			return "children of " + parentPath + (namePattern != null ? " matching " + namePattern : "");
+		}
+	}
+
+	/**
+	 * The results of a query, paged by offset and limit. Ordering is therefore
+	 * performed by the query engine. The query is created again from its
+	 * statement in the session of the background thread, so that the original
+	 * query is not modified (and its bound values are not used).
+	 */
+	static class QueryNodes implements Source {
+		private final Session session;
+		private final String statement;
+		private final String language;
+
+		/** @param session the session of the background thread */
+		QueryNodes(Session session, Query query) {
+			this.session = session;
+			this.statement = query.getStatement();
+			this.language = query.getLanguage();
+		}
+
+		@Override
+		public long count() throws RepositoryException {
+			QueryResult result = createQuery().execute();
+			return result.getNodes().getSize();
+		}
+
+		@Override
+		public List<String> load(long offset, int limit) throws RepositoryException {
+			Query query = createQuery();
+			query.setOffset(offset);
+			query.setLimit(limit);
+			List<String> res = new ArrayList<>(limit);
+			for (NodeIterator nit = query.execute().getNodes(); nit.hasNext();)
+				res.add(nit.nextNode().getIdentifier());
+			return res;
+		}
+
+		private Query createQuery() throws RepositoryException {
+			return session.getWorkspace().getQueryManager().createQuery(statement, language);
+		}
+
+		@Override
+		public String toString() {
+			return "results of " + statement;
+		}
+	}
+
+	/**
+	 * The sessions of the background thread, one per workspace. They are opened
+	 * in the UI thread, so that they are opened with its security context, and
+	 * logged out in the background thread once the provider is disposed.
+	 */
+	static class Sessions {
+		private final Map<List<Object>, Session> sessions = new HashMap<>();
+
+		/** The session of the background thread in the workspace of this session. */
+		Session get(Session uiSession, SessionOpener opener) throws RepositoryException {
+			List<Object> key = List.of(uiSession.getRepository(), uiSession.getWorkspace().getName());
+			Session session = sessions.get(key);
+			if (session == null) {
+				session = opener.open(uiSession);
+				sessions.put(key, session);
+			}
+			return session;
+		}
+
+		/** Logs out the sessions once the pending background tasks are done. */
+		void logout(Executor executor) {
+			List<Session> toLogout = new ArrayList<>(sessions.values());
+			sessions.clear();
+			Runnable logout = () -> {
+				for (Session session : toLogout)
+					JcrUtils.logoutQuietly(session);
+			};
+			try {
+				executor.execute(logout);
+			} catch (RejectedExecutionException e) {
+				logout.run();
+			}
+		}
+	}
+
+	/** Opens a new session in the workspace of a session of the UI. */
+	@FunctionalInterface
+	interface SessionOpener {
+		Session open(Session uiSession) throws RepositoryException;
+	}
+}
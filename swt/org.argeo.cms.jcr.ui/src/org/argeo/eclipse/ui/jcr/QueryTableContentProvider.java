@@ -9,7 +9,10 @@ import org.argeo.jcr.JcrUtils;
 import org.eclipse.jface.viewers.IStructuredContentProvider;
 import org.eclipse.jface.viewers.Viewer;
 
-/** Content provider based on a JCR {@link Query}. */
+/**
+ * Content provider based on a JCR {@link Query}. All the results are loaded at
+ * once, see {@link LazyNodeTableContentProvider} for large results.
+ */
 public class QueryTableContentProvider implements IStructuredContentProvider {
 	private static final long serialVersionUID = 760371460907204722L;
 
@@ -22,11 +22,12 @@ import org.argeo.api.cms.keyring.Keyring;
 import org.argeo.cms.swt.CmsException;
 import org.argeo.cms.swt.CmsSwtUtils;
 import org.argeo.cms.ui.jcr.JcrBrowserUtils;
-import org.argeo.cms.ui.jcr.NodeContentProvider;
+import org.argeo.cms.ui.jcr.LazyNodeContentProvider;
 import org.argeo.cms.ui.jcr.NodeLabelProvider;
 import org.argeo.cms.ui.jcr.OsgiRepositoryRegister;
 import org.argeo.cms.ui.jcr.PropertiesContentProvider;
 import org.argeo.cms.ui.jcr.model.SingleJcrNodeElem;
+import org.argeo.cms.ui.jcr.model.WorkspaceElem;
 import org.argeo.cms.ux.widgets.TreeParent;
 import org.argeo.eclipse.ui.EclipseUiException;
 import org.argeo.eclipse.ui.jcr.AsyncUiEventListener;
@@ -41,7 +42,7 @@ import org.eclipse.jface.viewers.ColumnLabelProvider;
 import org.eclipse.jface.viewers.IBaseLabelProvider;
 import org.eclipse.jface.viewers.ISelectionChangedListener;
 import org.eclipse.jface.viewers.IStructuredSelection;
-import org.eclipse.jface.viewers.ITreeContentProvider;
+import org.eclipse.jface.viewers.IContentProvider;
 import org.eclipse.jface.viewers.SelectionChangedEvent;
 import org.eclipse.jface.viewers.StructuredSelection;
 import org.eclipse.jface.viewers.TableViewer;
@@ -52,7 +53,7 @@ import org.eclipse.swt.custom.SashForm;
 import org.eclipse.swt.layout.FillLayout;
 import org.eclipse.swt.layout.GridData;
 import org.eclipse.swt.widgets.Composite;
-import org.eclipse.swt.widgets.Display;
+import org.eclipse.swt.widgets.Control;
 
 /**
  * Basic View to display a sash form to browse a JCR compliant multiple
@@ -80,7 +81,7 @@ public class JcrBrowserView {
 
 	// This page widgets
 	private TreeViewer nodesViewer;
-	private NodeContentProvider nodeContentProvider;
+	private LazyNodeContentProvider nodeContentProvider;
 	private TableViewer propertiesViewer;
 	private EventListener resultsObserver;
 
@@ -105,7 +106,7 @@ public class JcrBrowserView {
 			throw new CmsException("Cannot open user session", e);
 		}
 
-		nodeContentProvider = new NodeContentProvider(userSession, keyring, repositoryRegister, repositoryFactory,
+		nodeContentProvider = new LazyNodeContentProvider(userSession, keyring, repositoryRegister, repositoryFactory,
 				sortChildNodes);
 
 		// nodes viewer
@@ -150,12 +151,23 @@ public class JcrBrowserView {
 		if (obj == null) {
 			Object[] elements = nodeContentProvider.getElements(null);
 			for (Object el : elements) {
-				if (el instanceof TreeParent)
-					JcrBrowserUtils.forceRefreshIfNeeded((TreeParent) el);
+				refreshModel(el);
 				getNodeViewer().refresh(el);
 			}
-		} else
+		} else {
+			refreshModel(obj);
 			getNodeViewer().refresh(obj);
+		}
+	}
+
+	/**
+	 * Refreshes the children of the repositories and workspaces model, the
+	 * children of the nodes being loaded again by the content provider.
+	 */
+	private void refreshModel(Object element) {
+		if (element instanceof TreeParent tp && !(element instanceof SingleJcrNodeElem)
+				&& !(element instanceof WorkspaceElem))
+			JcrBrowserUtils.forceRefreshIfNeeded(tp);
 	}
 
 	/**
@@ -165,9 +177,11 @@ public class JcrBrowserView {
 		return new int[] { 70, 30 };
 	}
 
-	protected TreeViewer createNodeViewer(Composite parent, final ITreeContentProvider nodeContentProvider) {
+	protected TreeViewer createNodeViewer(Composite parent, final IContentProvider nodeContentProvider) {
 
-		final TreeViewer tmpNodeViewer = new TreeViewer(parent, SWT.MULTI);
+		// items are only created and loaded when shown
+		final TreeViewer tmpNodeViewer = new TreeViewer(parent, SWT.MULTI | SWT.VIRTUAL);
+		tmpNodeViewer.setUseHashlookup(true);
 
 		tmpNodeViewer.getTree().setLayoutData(new GridData(SWT.FILL, SWT.FILL, true, true));
 
@@ -186,7 +200,7 @@ public class JcrBrowserView {
 			}
 		});
 
-		resultsObserver = new TreeObserver(tmpNodeViewer.getTree().getDisplay());
+		resultsObserver = new TreeObserver(tmpNodeViewer.getTree());
 		if (keyring != null)
 			try {
 				ObservationManager observationManager = userSession.getWorkspace().getObservationManager();
@@ -273,15 +287,13 @@ public class JcrBrowserView {
 	 */
 	public void setSortChildNodes(boolean sortChildNodes) {
 		this.sortChildNodes = sortChildNodes;
-		((NodeContentProvider) nodesViewer.getContentProvider()).setSortChildren(sortChildNodes);
+		((LazyNodeContentProvider) nodesViewer.getContentProvider()).setSortChildren(sortChildNodes);
 		nodesViewer.setInput("");
 	}
 
 	/** Notifies the current view that a node has been added */
 	public void nodeAdded(TreeParent parentNode) {
-		// insure that Ui objects have been correctly created:
-		JcrBrowserUtils.forceRefreshIfNeeded(parentNode);
-		getNodeViewer().refresh(parentNode);
+		refresh(parentNode);
 		getNodeViewer().expandToLevel(parentNode, 1);
 	}
 
@@ -296,8 +308,8 @@ public class JcrBrowserView {
 
 	class TreeObserver extends AsyncUiEventListener {
 
-		public TreeObserver(Display display) {
-			super(display);
+		public TreeObserver(Control control) {
+			super(control);
 		}
 
 		@Override
@@ -32,11 +32,8 @@ public class Refresh {
 
 		if (selection != null && !selection.isEmpty()) {
 			for (Object obj : selection)
-				if (obj instanceof TreeParent) {
-					TreeParent tp = (TreeParent) obj;
-					JcrBrowserUtils.forceRefreshIfNeeded(tp);
+				if (obj instanceof TreeParent)
 					view.refresh(obj);
-				}
 		} else if (view instanceof JcrBrowserView)
 			view.refresh(null); // force full refresh
 	}
@@ -22,16 +22,15 @@ import org.argeo.cms.ui.CmsUiProvider;
 import org.argeo.cms.ui.util.CmsLink;
 import org.argeo.cms.ui.widgets.EditableImage;
 import org.argeo.cms.ui.widgets.Img;
+import org.argeo.eclipse.ui.jcr.LazyNodeTableContentProvider;
 import org.argeo.jcr.JcrUtils;
 import org.eclipse.jface.viewers.ColumnLabelProvider;
-import org.eclipse.jface.viewers.ILazyContentProvider;
 import org.eclipse.jface.viewers.ISelectionChangedListener;
 import org.eclipse.jface.viewers.IStructuredSelection;
 import org.eclipse.jface.viewers.SelectionChangedEvent;
 import org.eclipse.jface.viewers.StructuredSelection;
 import org.eclipse.jface.viewers.TableViewer;
 import org.eclipse.jface.viewers.TableViewerColumn;
-import org.eclipse.jface.viewers.Viewer;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.custom.ScrolledComposite;
 import org.eclipse.swt.events.ControlAdapter;
@@ -401,6 +400,7 @@ public class Browse implements CmsUiProvider {
 
 		// UI Objects
 		private TableViewer entityViewer;
+		private LazyNodeTableContentProvider contentProvider;
 
 		// enable management of multiple columns
 		Node getNode() {
@@ -421,13 +421,9 @@ public class Browse implements CmsUiProvider {
 		}
 
 		void filterList(String filter) {
-			try {
-				NodeIterator nit = context.getNodes(filter);
-				refreshFilteredList(nit);
-			} catch (RepositoryException e) {
-				throw new CmsException("Unable to filter " + getNode() + " children with filter " + filter, e);
-			}
-
+			// children are counted and loaded in the background
+			contentProvider.setNamePattern(filter);
+			entityViewer.setInput(context);
 		}
 
 		public FilterEntitiesVirtualTable(Composite parent, int style, Node context) {
@@ -472,7 +468,8 @@ public class Browse implements CmsUiProvider {
 			tcol.setResizable(true);
 			column.setLabelProvider(new SimpleNameLP());
 
-			entityViewer.setContentProvider(new MyLazyCP(entityViewer));
+			contentProvider = new LazyNodeTableContentProvider();
+			entityViewer.setContentProvider(contentProvider);
 			entityViewer.addSelectionChangedListener(new ISelectionChangedListener() {
 
 				@Override
@@ -525,37 +522,6 @@ public class Browse implements CmsUiProvider {
 			});
 		}
 
-		private class MyLazyCP implements ILazyContentProvider {
-			private static final long serialVersionUID = 1L;
-			private TableViewer viewer;
-			private Object[] elements;
-
-			public MyLazyCP(TableViewer viewer) {
-				this.viewer = viewer;
-			}
-
-			public void dispose() {
-			}
-
-			public void inputChanged(Viewer viewer, Object oldInput, Object newInput) {
-				// IMPORTANT: don't forget this: an exception will be thrown if
-				// a selected object is not part of the results anymore.
-				viewer.setSelection(null);
-				this.elements = (Object[]) newInput;
-			}
-
-			public void updateElement(int index) {
-				viewer.replace(elements[index], index);
-			}
-		}
-
-		protected void refreshFilteredList(NodeIterator children) {
-			Object[] rows = JcrUtils.nodeIteratorToList(children).toArray();
-			entityViewer.setInput(rows);
-			entityViewer.setItemCount(rows.length);
-			entityViewer.refresh();
-		}
-
 		public class SimpleNameLP extends ColumnLabelProvider {
 			private static final long serialVersionUID = 2465059387875338553L;
 
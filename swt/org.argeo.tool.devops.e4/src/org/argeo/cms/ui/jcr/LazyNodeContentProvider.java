@@ -0,0 +1,110 @@
+package org.argeo.cms.ui.jcr;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.RepositoryFactory;
+import javax.jcr.Session;
+
+import org.argeo.api.cms.keyring.Keyring;
+import org.argeo.cms.ui.jcr.model.SingleJcrNodeElem;
+import org.argeo.cms.ui.jcr.model.WorkspaceElem;
+import org.argeo.cms.ux.widgets.TreeParent;
+import org.argeo.eclipse.ui.EclipseUiException;
+import org.argeo.eclipse.ui.jcr.LazyNodeTreeContentProvider;
+import org.eclipse.jface.viewers.Viewer;
+
+/**
+ * Lazy counterpart of {@link NodeContentProvider}, for a tree created with
+ * <code>SWT.VIRTUAL</code>. The repositories and workspaces are provided by a
+ * {@link NodeContentProvider}, while the children of the nodes are counted and
+ * loaded by pages in the background. Sorted children are ordered by name by
+ * the query engine, folders being no longer listed first.
+ */
+public class LazyNodeContentProvider extends LazyNodeTreeContentProvider {
+	private static final long serialVersionUID = 2236343236528446131L;
+
+	private final NodeContentProvider model;
+
+	public LazyNodeContentProvider(Session userSession, Keyring keyring, RepositoryRegister repositoryRegister,
+			RepositoryFactory repositoryFactory, Boolean sortChildren) {
+		model = new NodeContentProvider(userSession, keyring, repositoryRegister, repositoryFactory, sortChildren);
+		setOrderByName(sortChildren);
+	}
+
+	@Override
+	public void inputChanged(Viewer viewer, Object oldInput, Object newInput) {
+		model.inputChanged(viewer, oldInput, newInput);
+		super.inputChanged(viewer, oldInput, newInput);
+	}
+
+	/** The first level of the tree, independent from the input. */
+	public Object[] getElements(Object inputElement) {
+		return model.getElements(inputElement);
+	}
+
+	@Override
+	protected Node getNode(Object element) {
+		if (element instanceof SingleJcrNodeElem sjn)
+			return sjn.getNode();
+		else if (element instanceof WorkspaceElem workspace && workspace.isConnected())
+			return workspace.getRootNode();
+		else
+			return null;
+	}
+
+	@Override
+	protected Object toElement(Object parent, Node node) {
+		try {
+			return new SingleJcrNodeElem((TreeParent) parent, node, node.getName());
+		} catch (RepositoryException e) {
+			throw new EclipseUiException("Cannot display " + node, e);
+		}
+	}
+
+	@Override
+	protected Object[] getChildren(Object element) {
+		if (element instanceof TreeParent)
+			return model.getChildren(element);
+		else
+			return model.getElements(element);
+	}
+
+	@Override
+	protected boolean hasChildren(Object element) {
+		if (getNode(element) == null)
+			return model.hasChildren(element);
+		return super.hasChildren(element);
+	}
+
+	@Override
+	public Object getParent(Object element) {
+		return model.getParent(element);
+	}
+
+	/** Logs in with the credentials of the repository of the element, if any. */
+	@Override
+	protected Session openSession(Object element, Session uiSession) throws RepositoryException {
+		Object current = element;
+		while (current instanceof TreeParent) {
+			if (current instanceof WorkspaceElem workspace)
+				return workspace.openSession();
+			current = ((TreeParent) current).getParent();
+		}
+		return super.openSession(element, uiSession);
+	}
+
+	/**
+	 * Sets whether the children should be ordered by name. It is user duty to
+	 * call a full refresh of the tree after changing this parameter.
+	 */
+	public void setSortChildren(boolean sortChildren) {
+		model.setSortChildren(sortChildren);
+		setOrderByName(sortChildren);
+	}
+
+	@Override
+	public void dispose() {
+		super.dispose();
+		model.dispose();
+	}
+}
@@ -3,7 +3,9 @@ package org.argeo.cms.ui.jcr;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
@@ -93,10 +95,15 @@ public class NodeContentProvider implements ITreeContentProvider {
 				Object[] tmpArr = ((TreeParent) parentElement).getChildren();
 				if (tmpArr == null)
 					return new Object[0];
+				// categories require JCR calls, compute them once per child
+				Map<TreeParent, Integer> categories = new IdentityHashMap<>(tmpArr.length);
 				TreeParent[] arr = new TreeParent[tmpArr.length];
-				for (int i = 0; i < tmpArr.length; i++)
+				for (int i = 0; i < tmpArr.length; i++) {
 					arr[i] = (TreeParent) tmpArr[i];
-				Arrays.sort(arr, itemComparator);
+					categories.put(arr[i], itemComparator.category(arr[i]));
+				}
+				Arrays.sort(arr, Comparator.comparing((TreeParent tp) -> categories.get(tp))
+						.thenComparing(TreeParent::getName));
 				return arr;
 			} else
 				return ((TreeParent) parentElement).getChildren();
@@ -53,6 +53,14 @@ public class WorkspaceElem extends TreeParent {
 		}
 	}
 
+	/**
+	 * Opens a new session on this workspace, with the credentials of the
+	 * repository, to be logged out by the caller.
+	 */
+	public Session openSession() throws RepositoryException {
+		return ((RepositoryElem) getParent()).repositoryLogin(getName());
+	}
+
 	public Boolean isConnected() {
 		if (session != null && session.isLive())
 			return true;